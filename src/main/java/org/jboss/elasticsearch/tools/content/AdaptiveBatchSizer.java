@@ -0,0 +1,97 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+/**
+ * Controller of batch size for batched requests into remote system (eg. Elasticsearch cluster) driven by observed
+ * latency of the requests (AIMD - additive increase, multiplicative decrease). Batch size grows by
+ * <code>minSize</code> after each batch finished within <code>targetLatencyMillis</code>, and is halved after each
+ * slower or failed batch, always staying between <code>minSize</code> and <code>maxSize</code>. So batch size tracks
+ * actual capacity of the remote system. Instances are thread safe.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see ESLookupValuePreprocessor
+ */
+public class AdaptiveBatchSizer {
+
+	protected final int minSize;
+	protected final int maxSize;
+	protected final long targetLatencyMillis;
+
+	private int batchSize;
+
+	/**
+	 * Constructor. Initial batch size is <code>minSize</code>.
+	 * 
+	 * @param minSize minimal batch size
+	 * @param maxSize maximal batch size, must not be lower than <code>minSize</code>
+	 * @param targetLatencyMillis latency of batch request in millis batch size is tuned for
+	 * @throws IllegalArgumentException if some parameter is invalid
+	 */
+	public AdaptiveBatchSizer(int minSize, int maxSize, long targetLatencyMillis) throws IllegalArgumentException {
+		if (minSize < 1)
+			throw new IllegalArgumentException("min size must be positive");
+		if (maxSize < minSize)
+			throw new IllegalArgumentException("max size must not be lower than min size");
+		if (targetLatencyMillis < 1)
+			throw new IllegalArgumentException("target latency must be positive");
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.targetLatencyMillis = targetLatencyMillis;
+		this.batchSize = minSize;
+	}
+
+	/**
+	 * @return size of next batch
+	 */
+	public synchronized int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Record finished batch request. Batch size is changed only if full batch has been requested, as small batches don't
+	 * tell anything about capacity for bigger ones.
+	 * 
+	 * @param size of finished batch
+	 * @param latencyMillis of batch request
+	 */
+	public synchronized void recordSuccess(int size, long latencyMillis) {
+		if (latencyMillis > targetLatencyMillis)
+			decrease();
+		else if (size >= batchSize)
+			batchSize = Math.min(maxSize, batchSize + minSize);
+	}
+
+	/**
+	 * Record failed batch request.
+	 */
+	public synchronized void recordFailure() {
+		decrease();
+	}
+
+	private void decrease() {
+		batchSize = Math.max(minSize, batchSize / 2);
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getTargetLatencyMillis() {
+		return targetLatencyMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "AdaptiveBatchSizer [batchSize=" + getBatchSize() + ", minSize=" + minSize + ", maxSize=" + maxSize
+				+ ", targetLatencyMillis=" + targetLatencyMillis + "]";
+	}
+
+}
@@ -6,6 +6,7 @@
 package org.jboss.elasticsearch.tools.content;
 
 import java.util.Map;
+import java.util.Set;
 
 import org.elasticsearch.common.joda.time.format.ISODateTimeFormat;
 import org.elasticsearch.common.settings.SettingsException;
@@ -61,4 +62,19 @@ public class AddCurrentTimestampPreprocessor extends StructuredContentPreprocess
 		return field;
 	}
 
+	@Override
+	public Set<String> getReadFields() {
+		return toFieldSet();
+	}
+
+	@Override
+	public Set<String> getWrittenFields() {
+		return toFieldSet(field);
+	}
+
+	@Override
+	public int getCostHint() {
+		return COST_CHEAP;
+	}
+
 }
@@ -5,7 +5,12 @@
  */
 package org.jboss.elasticsearch.tools.content;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.elasticsearch.common.settings.SettingsException;
 
@@ -48,7 +53,7 @@ public class AddMultipleValuesPreprocessor extends StructuredContentPreprocessor
 		if (settings == null) {
 			throw new SettingsException("'settings' section is not defined for preprocessor " + name);
 		}
-		fields = settings;
+		fields = Collections.unmodifiableMap(new LinkedHashMap<String, Object>(settings));
 	}
 
 	@Override
@@ -59,6 +64,8 @@ public class AddMultipleValuesPreprocessor extends StructuredContentPreprocessor
 			Object value = fields.get(key);
 			if (value != null && (value instanceof String) && ((String) value).contains("{")) {
 				value = ValueUtils.processStringValuePatternReplacement((String) value, data, null);
+			} else if (value instanceof Map || value instanceof List) {
+				value = StructureUtils.getADeepStructureCopy(value);
 			}
 			StructureUtils.putValueIntoMapOfMaps(data, key, value);
 		}
@@ -69,4 +76,24 @@ public class AddMultipleValuesPreprocessor extends StructuredContentPreprocessor
 		return fields;
 	}
 
+	@Override
+	public Set<String> getReadFields() {
+		Set<String> ret = new LinkedHashSet<String>();
+		for (Object value : fields.values()) {
+			if (value instanceof String)
+				ret.addAll(ValueUtils.getPatternKeys((String) value));
+		}
+		return toFieldSet(ret);
+	}
+
+	@Override
+	public Set<String> getWrittenFields() {
+		return toFieldSet(fields.keySet());
+	}
+
+	@Override
+	public int getCostHint() {
+		return COST_CHEAP;
+	}
+
 }
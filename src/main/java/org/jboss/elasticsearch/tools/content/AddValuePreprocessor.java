@@ -5,7 +5,9 @@
  */
 package org.jboss.elasticsearch.tools.content;
 
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.elasticsearch.common.settings.SettingsException;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
@@ -63,10 +65,13 @@ public class AddValuePreprocessor extends StructuredContentPreprocessorBase {
 	public Map<String, Object> preprocessData(Map<String, Object> data, PreprocessChainContext context) {
 		if (data == null)
 			return null;
-		if (value != null && (value instanceof String) && ((String) value).contains("{")) {
-			value = ValueUtils.processStringValuePatternReplacement((String) value, data, null);
+		Object v = value;
+		if (v != null && (v instanceof String) && ((String) v).contains("{")) {
+			v = ValueUtils.processStringValuePatternReplacement((String) v, data, null);
+		} else if (v instanceof Map || v instanceof List) {
+			v = StructureUtils.getADeepStructureCopy(v);
 		}
-		StructureUtils.putValueIntoMapOfMaps(data, field, value);
+		StructureUtils.putValueIntoMapOfMaps(data, field, v);
 		return data;
 	}
 
@@ -78,4 +83,21 @@ public class AddValuePreprocessor extends StructuredContentPreprocessorBase {
 		return value;
 	}
 
+	@Override
+	public Set<String> getReadFields() {
+		if (value instanceof String)
+			return toFieldSet(ValueUtils.getPatternKeys((String) value));
+		return toFieldSet();
+	}
+
+	@Override
+	public Set<String> getWrittenFields() {
+		return toFieldSet(field);
+	}
+
+	@Override
+	public int getCostHint() {
+		return COST_CHEAP;
+	}
+
 }
@@ -0,0 +1,35 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+/**
+ * {@link StructuredContentPreprocessorProvider} registering aliases for all preprocessors distributed with this
+ * framework.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class BuiltInPreprocessorProvider implements StructuredContentPreprocessorProvider {
+
+	@Override
+	public void registerPreprocessors(StructuredContentPreprocessorRegistry registry) {
+		registry.register("add_value", AddValuePreprocessor.class);
+		registry.register("add_multiple_values", AddMultipleValuesPreprocessor.class);
+		registry.register("add_current_timestamp", AddCurrentTimestampPreprocessor.class);
+		registry.register("remove_multiple_fields", RemoveMultipleFieldsPreprocessor.class);
+		registry.register("simple_value_map_mapper", SimpleValueMapMapperPreprocessor.class);
+		registry.register("values_collecting", ValuesCollectingPreprocessor.class);
+		registry.register("es_lookup", ESLookupValuePreprocessor.class);
+		registry.register("max_timestamp", MaxTimestampPreprocessor.class);
+		registry.register("required_validator", RequiredValidatorPreprocessor.class);
+		registry.register("trim_string_value", TrimStringValuePreprocessor.class);
+		registry.register("strip_html", StripHtmlPreprocessor.class);
+		registry.register("long_to_timestamp", LongToTimestampValuePreprocessor.class);
+		registry.register("regexp_capturing_group", RegExpCapturingGroupPreprocessor.class);
+		registry.register("is_date_in_range", IsDateInRangePreprocessor.class);
+		registry.register("scripting", ScriptingPreprocessor.class);
+	}
+
+}
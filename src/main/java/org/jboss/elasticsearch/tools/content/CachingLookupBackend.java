@@ -0,0 +1,535 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+/**
+ * {@link LookupBackend} wrapper which caches lookup results across documents (results for not found documents are
+ * cached too). Cache uses stale-while-revalidate approach with two time limits:
+ * <ul>
+ * <li><code>softTtl</code> - cached result older than this is still returned immediately, but it is refreshed from
+ * the wrapped backend in background thread, so cache expiration doesn't slow down documents preprocessing.
+ * <li><code>hardTtl</code> - cached result older than this is never used, lookup is performed synchronously.
+ * </ul>
+ * Number of cached results is limited by <code>maxSize</code>, hard-expired results are evicted first when limit is
+ * reached, then arbitrary ones. Results are evicted in batch down to 90% of <code>maxSize</code> by one thread at a
+ * time, so cost of eviction scan is amortized over many lookups. Stale result stays in cache if background refresh fails. Cached results can be
+ * persisted into {@link LookupCacheFile}, so cache is warm after restart. Persisted results are loaded when file is set
+ * (see {@link #setPersistentFile(LookupCacheFile)}), results older than <code>hardTtl</code> are ignored. New results
+ * are written into file asynchronously by single background thread, so lookups never wait for file I/O (results are
+ * not persisted if writer is overloaded). Numbers in cache keys are normalized to {@link Long} or {@link Double}, so
+ * keys read from file are equal to keys of live lookups. {@link #close()} writes pending results, closes persistent
+ * file and stops default background threads. Instances are thread safe.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see ESLookupValuePreprocessor
+ */
+public class CachingLookupBackend implements LookupBackend, Closeable {
+
+	private static final ESLogger logger = Loggers.getLogger(CachingLookupBackend.class);
+
+	protected static final String ID_FIELD = "_id";
+
+	protected final LookupBackend delegate;
+	protected final long softTtlMillis;
+	protected final long hardTtlMillis;
+	protected final int maxSize;
+
+	protected final ConcurrentMap<List<Object>, CacheEntry> cache = new ConcurrentHashMap<List<Object>, CacheEntry>();
+
+	private volatile Executor refreshExecutor;
+	private ThreadPoolExecutor defaultRefreshExecutor;
+
+	private volatile Executor persistExecutor;
+	private ThreadPoolExecutor defaultPersistExecutor;
+
+	private volatile LookupCacheFile persistentFile;
+
+	private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param delegate backend to perform lookups in
+	 * @param softTtlMillis age in millis after which cached result is refreshed in background
+	 * @param hardTtlMillis age in millis after which cached result is not used, must not be lower than
+	 *          <code>softTtlMillis</code>
+	 * @param maxSize maximal number of cached results
+	 * @throws IllegalArgumentException if some parameter is invalid
+	 */
+	public CachingLookupBackend(LookupBackend delegate, long softTtlMillis, long hardTtlMillis, int maxSize)
+			throws IllegalArgumentException {
+		if (delegate == null)
+			throw new IllegalArgumentException("delegate must be defined");
+		if (softTtlMillis < 1)
+			throw new IllegalArgumentException("soft TTL must be positive");
+		if (hardTtlMillis < softTtlMillis)
+			throw new IllegalArgumentException("hard TTL must not be lower than soft TTL");
+		if (maxSize < 1)
+			throw new IllegalArgumentException("max size must be positive");
+		this.delegate = delegate;
+		this.softTtlMillis = softTtlMillis;
+		this.hardTtlMillis = hardTtlMillis;
+		this.maxSize = maxSize;
+	}
+
+	@Override
+	public LookupResult lookup(final String idxSearchField, final Object sourceValue, final String routing,
+			PreprocessChainContext chainContext) {
+		return (LookupResult) getCached(createKey(idxSearchField, sourceValue, routing), new Loader() {
+			@Override
+			public Object load(PreprocessChainContext chainContext) {
+				return delegate.lookup(idxSearchField, sourceValue, routing, chainContext);
+			}
+		}, chainContext);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Map<String, LookupResult> lookupCombined(final List<String> idxSearchFields, final Object sourceValue,
+			final String routing, PreprocessChainContext chainContext) {
+		return (Map<String, LookupResult>) getCached(createKey(idxSearchFields, sourceValue, routing),
+				new Loader() {
+					@Override
+					public Object load(PreprocessChainContext chainContext) {
+						return delegate.lookupCombined(idxSearchFields, sourceValue, routing, chainContext);
+					}
+				}, chainContext);
+	}
+
+	/**
+	 * Results are cached for each identifier separately, only identifiers not found in cache are passed to wrapped
+	 * backend.
+	 */
+	@Override
+	public Map<String, LookupResult> lookupByIds(Collection<String> ids, final String routing,
+			PreprocessChainContext chainContext) {
+		Map<String, LookupResult> ret = new HashMap<String, LookupResult>();
+		List<String> missing = new ArrayList<String>();
+		for (final String id : ids) {
+			List<Object> key = createKey(ID_FIELD, id, routing);
+			CacheEntry entry = getUsableEntry(key, new Loader() {
+				@Override
+				public Object load(PreprocessChainContext chainContext) {
+					return delegate.lookup(ID_FIELD, id, routing, chainContext);
+				}
+			});
+			if (entry != null)
+				ret.put(id, (LookupResult) entry.value);
+			else
+				missing.add(id);
+		}
+		if (!missing.isEmpty()) {
+			Map<String, LookupResult> loaded = delegate.lookupByIds(missing, routing, chainContext);
+			for (Map.Entry<String, LookupResult> e : loaded.entrySet()) {
+				put(createKey(ID_FIELD, e.getKey(), routing), e.getValue());
+				ret.put(e.getKey(), e.getValue());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Get value from cache or load it.
+	 * 
+	 * @param key of value
+	 * @param loader to load value if it is not in cache
+	 * @param chainContext passed to loader for synchronous load
+	 * @return value
+	 */
+	protected Object getCached(List<Object> key, Loader loader, PreprocessChainContext chainContext) {
+		CacheEntry entry = getUsableEntry(key, loader);
+		if (entry != null)
+			return entry.value;
+		Object value = loader.load(chainContext);
+		put(key, value);
+		return value;
+	}
+
+	/**
+	 * Get cache entry which can be used, start background refresh if it is stale.
+	 * 
+	 * @param key of value
+	 * @param loader to refresh value
+	 * @return entry or null if there is no usable entry in cache
+	 */
+	private CacheEntry getUsableEntry(final List<Object> key, final Loader loader) {
+		final CacheEntry entry = cache.get(key);
+		if (entry == null)
+			return null;
+		long age = currentTimeMillis() - entry.loadedAt;
+		if (age >= hardTtlMillis) {
+			cache.remove(key, entry);
+			return null;
+		}
+		if (age >= softTtlMillis && entry.refreshing.compareAndSet(false, true)) {
+			try {
+				getRefreshExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							Object value = loader.load(null);
+							put(key, value);
+						} catch (RuntimeException e) {
+							logger.debug("Background refresh of cached lookup result for {} failed: {}", key, e.getMessage());
+							entry.refreshing.set(false);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				entry.refreshing.set(false);
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Create cache key with normalized values.
+	 * 
+	 * @param values of key
+	 * @return key
+	 */
+	protected static List<Object> createKey(Object... values) {
+		return normalizeKey(Arrays.asList(values));
+	}
+
+	/**
+	 * Normalize key so it is equal for the same lookup even after JSON round-trip in {@link LookupCacheFile}, which may
+	 * change type of numbers (eg. {@link Long} to {@link Integer}) or of lists.
+	 * 
+	 * @param key to normalize
+	 * @return normalized key
+	 */
+	protected static List<Object> normalizeKey(List<?> key) {
+		List<Object> ret = new ArrayList<Object>(key.size());
+		for (Object o : key) {
+			ret.add(normalizeKeyValue(o));
+		}
+		return ret;
+	}
+
+	private static Object normalizeKeyValue(Object value) {
+		if (value instanceof Byte || value instanceof Short || value instanceof Integer || value instanceof Long) {
+			return ((Number) value).longValue();
+		} else if (value instanceof BigInteger) {
+			return ((BigInteger) value).bitLength() < 64 ? (Object) ((BigInteger) value).longValue() : value;
+		} else if (value instanceof Float) {
+			// same value as parsed from JSON
+			return Double.valueOf(value.toString());
+		} else if (value instanceof List) {
+			return normalizeKey((List<?>) value);
+		}
+		return value;
+	}
+
+	/**
+	 * Put value into cache. Value is persisted asynchronously if persistent file is set.
+	 * 
+	 * @param key of value, normalized
+	 * @param value to put
+	 */
+	protected void put(final List<Object> key, final Object value) {
+		final long now = currentTimeMillis();
+		cache.put(key, new CacheEntry(value, now));
+		if (cache.size() > maxSize)
+			evict();
+		final LookupCacheFile pf = persistentFile;
+		if (pf != null) {
+			try {
+				getPersistExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						persist(pf, key, now, value);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				logger.debug("Lookup result for {} not persisted because persistent cache writer is overloaded", key);
+			}
+		}
+	}
+
+	/**
+	 * Append value into persistent file, compact file if it is full. Called by persist executor.
+	 * 
+	 * @param pf persistent file to write into, nothing is written if it is not used anymore
+	 * @param key of value
+	 * @param loadedAt time value has been loaded at
+	 * @param value to write
+	 */
+	protected void persist(LookupCacheFile pf, List<Object> key, long loadedAt, Object value) {
+		synchronized (pf) {
+			if (persistentFile != pf)
+				return;
+			try {
+				if (!pf.append(key, loadedAt, value))
+					compactPersistentFile(pf);
+			} catch (IOException e) {
+				logger.warn("Lookup result for {} can't be persisted into {}: {}", key, pf.getFile(), e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Load results persisted in {@link LookupCacheFile} into cache.
+	 * 
+	 * @param pf persistent file to load results from
+	 */
+	protected void loadPersistentFile(LookupCacheFile pf) {
+		synchronized (pf) {
+			long now = currentTimeMillis();
+			int count = 0;
+			for (LookupCacheFile.Record r : pf.readAll()) {
+				if (now - r.loadedAt >= hardTtlMillis)
+					continue;
+				List<Object> key = normalizeKey(r.key);
+				CacheEntry existing = cache.get(key);
+				if (existing == null || existing.loadedAt < r.loadedAt) {
+					cache.put(key, new CacheEntry(r.value, r.loadedAt));
+					count++;
+				}
+			}
+			if (cache.size() > maxSize)
+				evict();
+			logger.debug("{} lookup results loaded from persistent cache file {}", count, pf.getFile());
+		}
+	}
+
+	/**
+	 * Rewrite persistent file so it contains only results actually cached. Called when file is full. Must be called
+	 * with lock on persistent file held.
+	 * 
+	 * @param pf persistent file to compact
+	 * @throws IOException
+	 */
+	private void compactPersistentFile(LookupCacheFile pf) throws IOException {
+		pf.reset();
+		long now = currentTimeMillis();
+		for (Map.Entry<List<Object>, CacheEntry> e : cache.entrySet()) {
+			CacheEntry entry = e.getValue();
+			if (now - entry.loadedAt < hardTtlMillis && !pf.append(e.getKey(), entry.loadedAt, entry.value)) {
+				logger.debug("Persistent cache file {} is too small for all cached lookup results", pf.getFile());
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Evict entries from cache down to 90% of max size. Hard-expired entries are evicted first, then arbitrary ones.
+	 * Nothing is done if other thread is evicting already.
+	 */
+	protected void evict() {
+		if (!evicting.compareAndSet(false, true))
+			return;
+		try {
+			int targetSize = maxSize - maxSize / 10;
+			long now = currentTimeMillis();
+			for (Iterator<CacheEntry> it = cache.values().iterator(); it.hasNext();) {
+				if (now - it.next().loadedAt >= hardTtlMillis)
+					it.remove();
+			}
+			for (Iterator<CacheEntry> it = cache.values().iterator(); it.hasNext() && cache.size() > targetSize;) {
+				it.next();
+				it.remove();
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+
+	private Executor getRefreshExecutor() {
+		if (refreshExecutor == null) {
+			synchronized (this) {
+				if (refreshExecutor == null) {
+					ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+							new LinkedBlockingQueue<Runnable>(maxSize), new ThreadFactory() {
+								@Override
+								public Thread newThread(Runnable r) {
+									Thread t = new Thread(r, "lookup-cache-refresh");
+									t.setDaemon(true);
+									return t;
+								}
+							});
+					executor.allowCoreThreadTimeOut(true);
+					defaultRefreshExecutor = executor;
+					refreshExecutor = executor;
+				}
+			}
+		}
+		return refreshExecutor;
+	}
+
+	private Executor getPersistExecutor() {
+		if (persistExecutor == null) {
+			synchronized (this) {
+				if (persistExecutor == null) {
+					ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+							new LinkedBlockingQueue<Runnable>(maxSize), new ThreadFactory() {
+								@Override
+								public Thread newThread(Runnable r) {
+									Thread t = new Thread(r, "lookup-cache-persist");
+									t.setDaemon(true);
+									return t;
+								}
+							});
+					executor.allowCoreThreadTimeOut(true);
+					defaultPersistExecutor = executor;
+					persistExecutor = executor;
+				}
+			}
+		}
+		return persistExecutor;
+	}
+
+	/**
+	 * Set executor used to write results into persistent file. Single daemon thread is used by default. Executor must
+	 * run tasks in order they are submitted.
+	 * 
+	 * @param persistExecutor to be used
+	 */
+	public void setPersistExecutor(Executor persistExecutor) {
+		this.persistExecutor = persistExecutor;
+	}
+
+	/**
+	 * Set executor used for background refresh of stale results. Single daemon thread is used by default.
+	 * 
+	 * @param refreshExecutor to be used
+	 */
+	public void setRefreshExecutor(Executor refreshExecutor) {
+		this.refreshExecutor = refreshExecutor;
+	}
+
+	/**
+	 * Set file to persist cached results into. Results already stored in the file are loaded into cache during this
+	 * call, so it should be called during initialization.
+	 * 
+	 * @param persistentFile to be used, null to not persist results
+	 */
+	public void setPersistentFile(LookupCacheFile persistentFile) {
+		if (persistentFile != null)
+			loadPersistentFile(persistentFile);
+		this.persistentFile = persistentFile;
+	}
+
+	public LookupCacheFile getPersistentFile() {
+		return persistentFile;
+	}
+
+	/**
+	 * Write pending results into persistent file, close it and stop default background threads. Cached results are not
+	 * persisted anymore after this call. Wrapped backend is closed too if it implements {@link Closeable}.
+	 * 
+	 * @throws IOException if persistent file can't be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		ThreadPoolExecutor pe = null;
+		synchronized (this) {
+			if (defaultRefreshExecutor != null) {
+				defaultRefreshExecutor.shutdown();
+				defaultRefreshExecutor = null;
+			}
+			pe = defaultPersistExecutor;
+			defaultPersistExecutor = null;
+			if (persistExecutor == pe)
+				persistExecutor = null;
+		}
+		if (pe != null) {
+			pe.shutdown();
+			try {
+				if (!pe.awaitTermination(10, TimeUnit.SECONDS))
+					logger.warn("Pending lookup results not written into persistent cache file in time");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		LookupCacheFile pf = persistentFile;
+		persistentFile = null;
+		if (pf != null) {
+			synchronized (pf) {
+				pf.close();
+			}
+		}
+		if (delegate instanceof Closeable)
+			((Closeable) delegate).close();
+	}
+
+	/**
+	 * Get current time. Can be overridden for tests.
+	 * 
+	 * @return current time in millis
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * @return number of cached results
+	 */
+	public int getSize() {
+		return cache.size();
+	}
+
+	public LookupBackend getDelegate() {
+		return delegate;
+	}
+
+	public long getSoftTtlMillis() {
+		return softTtlMillis;
+	}
+
+	public long getHardTtlMillis() {
+		return hardTtlMillis;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Loader of value into cache.
+	 */
+	protected static interface Loader {
+		Object load(PreprocessChainContext chainContext);
+	}
+
+	/**
+	 * Cached value with time it has been loaded.
+	 */
+	protected static class CacheEntry {
+		final Object value;
+		final long loadedAt;
+		final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+		CacheEntry(Object value, long loadedAt) {
+			this.value = value;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+/**
+ * {@link LookupBackend} wrapper which protects the wrapped remote backend by {@link LookupCircuitBreaker}. Request is
+ * not passed to the wrapped backend while breaker is open, {@link LookupCircuitOpenException} is thrown instead. Any
+ * exception thrown by the wrapped backend is recorded as failure, so probe request in half-open state is always
+ * finished. Used by {@link ESLookupValuePreprocessor} directly around backend performing remote requests (below cache
+ * and coalescing wrappers), so breaker sees real requests only, cached results are used while it is open, and
+ * background refresh of cache is protected too.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see ESLookupValuePreprocessor
+ */
+public class CircuitBreakingLookupBackend implements LookupBackend, Closeable {
+
+	private static final ESLogger logger = Loggers.getLogger(CircuitBreakingLookupBackend.class);
+
+	protected final LookupBackend delegate;
+	protected final LookupCircuitBreaker circuitBreaker;
+	protected final String name;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param delegate backend to perform lookups in
+	 * @param circuitBreaker to protect backend by
+	 * @param name of preprocessor using backend, used in log messages
+	 * @throws IllegalArgumentException if some parameter is invalid
+	 */
+	public CircuitBreakingLookupBackend(LookupBackend delegate, LookupCircuitBreaker circuitBreaker, String name)
+			throws IllegalArgumentException {
+		if (delegate == null)
+			throw new IllegalArgumentException("delegate must be defined");
+		if (circuitBreaker == null)
+			throw new IllegalArgumentException("circuit breaker must be defined");
+		this.delegate = delegate;
+		this.circuitBreaker = circuitBreaker;
+		this.name = name;
+	}
+
+	@Override
+	public LookupResult lookup(String idxSearchField, Object sourceValue, String routing,
+			PreprocessChainContext chainContext) {
+		checkAllowed();
+		try {
+			LookupResult ret = delegate.lookup(idxSearchField, sourceValue, routing, chainContext);
+			circuitBreaker.recordSuccess();
+			return ret;
+		} catch (RuntimeException | Error e) {
+			recordFailure(e);
+			throw e;
+		}
+	}
+
+	@Override
+	public Map<String, LookupResult> lookupCombined(List<String> idxSearchFields, Object sourceValue, String routing,
+			PreprocessChainContext chainContext) {
+		checkAllowed();
+		try {
+			Map<String, LookupResult> ret = delegate.lookupCombined(idxSearchFields, sourceValue, routing, chainContext);
+			circuitBreaker.recordSuccess();
+			return ret;
+		} catch (RuntimeException | Error e) {
+			recordFailure(e);
+			throw e;
+		}
+	}
+
+	@Override
+	public Map<String, LookupResult> lookupByIds(Collection<String> ids, String routing,
+			PreprocessChainContext chainContext) {
+		checkAllowed();
+		try {
+			Map<String, LookupResult> ret = delegate.lookupByIds(ids, routing, chainContext);
+			circuitBreaker.recordSuccess();
+			return ret;
+		} catch (RuntimeException | Error e) {
+			recordFailure(e);
+			throw e;
+		}
+	}
+
+	private void checkAllowed() {
+		if (!circuitBreaker.allowRequest())
+			throw new LookupCircuitOpenException("Lookup circuit breaker is open for preprocessor '" + name + "'");
+	}
+
+	private void recordFailure(Throwable e) {
+		if (circuitBreaker.recordFailure()) {
+			logger.warn("Lookup circuit breaker opened for preprocessor '{}' due to failures, last one '{}:{}'", name, e
+					.getClass().getName(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Close wrapped backend if it implements {@link Closeable}.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (delegate instanceof Closeable)
+			((Closeable) delegate).close();
+	}
+
+	public LookupBackend getDelegate() {
+		return delegate;
+	}
+
+	public LookupCircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+}
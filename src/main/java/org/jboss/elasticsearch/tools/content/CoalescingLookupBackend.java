@@ -0,0 +1,142 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchTimeoutException;
+
+/**
+ * {@link LookupBackend} wrapper which coalesces concurrent lookups for the same key. If lookup for same field, value
+ * and routing is requested while another thread is already waiting for result of the same lookup, then no new request is passed to
+ * the wrapped backend, but result (or exception) of the running one is shared. Thread waiting for the shared result
+ * respects time budget from its own {@link PreprocessChainContext}, {@link ElasticsearchTimeoutException} is thrown if
+ * it is exhausted. Lookups by more identifiers at once are not coalesced.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see ESLookupValuePreprocessor
+ */
+public class CoalescingLookupBackend implements LookupBackend, Closeable {
+
+	protected final LookupBackend delegate;
+
+	private final ConcurrentMap<List<Object>, FutureTask<Object>> inFlight = new ConcurrentHashMap<List<Object>, FutureTask<Object>>();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param delegate backend to perform lookups in
+	 */
+	public CoalescingLookupBackend(LookupBackend delegate) {
+		if (delegate == null)
+			throw new IllegalArgumentException("delegate must be defined");
+		this.delegate = delegate;
+	}
+
+	@Override
+	public LookupResult lookup(final String idxSearchField, final Object sourceValue, final String routing,
+			final PreprocessChainContext chainContext) {
+		return (LookupResult) executeCoalesced(Arrays.<Object> asList(idxSearchField, sourceValue, routing),
+				new Callable<Object>() {
+					@Override
+					public Object call() {
+						return delegate.lookup(idxSearchField, sourceValue, routing, chainContext);
+					}
+				}, chainContext);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Map<String, LookupResult> lookupCombined(final List<String> idxSearchFields, final Object sourceValue,
+			final String routing, final PreprocessChainContext chainContext) {
+		return (Map<String, LookupResult>) executeCoalesced(Arrays.<Object> asList(idxSearchFields, sourceValue, routing),
+				new Callable<Object>() {
+					@Override
+					public Object call() {
+						return delegate.lookupCombined(idxSearchFields, sourceValue, routing, chainContext);
+					}
+				}, chainContext);
+	}
+
+	@Override
+	public Map<String, LookupResult> lookupByIds(Collection<String> ids, String routing,
+			PreprocessChainContext chainContext) {
+		return delegate.lookupByIds(ids, routing, chainContext);
+	}
+
+	/**
+	 * Execute lookup or wait for result of the same lookup executed by another thread.
+	 * 
+	 * @param key of lookup
+	 * @param lookup to execute
+	 * @param chainContext used to bound waiting for shared result by time budget, can be null
+	 * @return result of lookup
+	 */
+	protected Object executeCoalesced(List<Object> key, Callable<Object> lookup, PreprocessChainContext chainContext) {
+		FutureTask<Object> task = new FutureTask<Object>(lookup);
+		FutureTask<Object> running = inFlight.putIfAbsent(key, task);
+		if (running == null) {
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+			running = task;
+		}
+		try {
+			long remainingTime = PreprocessChain.getRemainingTimeMillis(chainContext);
+			if (running != task && remainingTime >= 0)
+				return running.get(remainingTime, TimeUnit.MILLISECONDS);
+			return running.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new ElasticsearchException("Lookup failed: " + cause.getMessage(), cause);
+		} catch (TimeoutException e) {
+			throw new ElasticsearchTimeoutException("Time budget exceeded while waiting for result of concurrent lookup");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ElasticsearchException("Interrupted while waiting for result of concurrent lookup");
+		}
+	}
+
+	/**
+	 * @return number of lookups currently in progress
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	/**
+	 * Close wrapped backend if it implements {@link Closeable}.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (delegate instanceof Closeable)
+			((Closeable) delegate).close();
+	}
+
+	public LookupBackend getDelegate() {
+		return delegate;
+	}
+
+}
@@ -0,0 +1,138 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.SettingsException;
+
+/**
+ * Wrapper which calls other {@link StructuredContentPreprocessor} only for data items matching {@link DataCondition},
+ * other data items are returned unchanged. Condition is compiled only once, so it is much cheaper than
+ * {@link ScriptingPreprocessor} used to skip processing of some data items. Used by
+ * {@link StructuredContentPreprocessorFactory} for preprocessors with <code>condition</code> configuration element.
+ * {@link FieldAccessDeclaration} of wrapper contains fields read by condition in addition to fields accessed by wrapped
+ * preprocessor. Instances are thread safe if wrapped preprocessor is.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class ConditionalPreprocessor implements StructuredContentPreprocessor, FieldAccessDeclaration,
+		PreprocessorCostHint, RequiredInputDeclaration, Closeable {
+
+	protected final StructuredContentPreprocessor delegate;
+
+	protected final DataCondition condition;
+
+	/**
+	 * Create wrapper.
+	 * 
+	 * @param delegate preprocessor to be called for matching data items
+	 * @param condition to be evaluated for each data item
+	 */
+	public ConditionalPreprocessor(StructuredContentPreprocessor delegate, DataCondition condition) {
+		if (delegate == null)
+			throw new IllegalArgumentException("delegate must be defined");
+		if (condition == null)
+			throw new IllegalArgumentException("condition must be defined");
+		this.delegate = delegate;
+		this.condition = condition;
+	}
+
+	/**
+	 * Initialize wrapped preprocessor.
+	 */
+	@Override
+	public void init(String name, Client client, Map<String, Object> settings) throws SettingsException {
+		delegate.init(name, client, settings);
+	}
+
+	@Override
+	public String getName() {
+		return delegate.getName();
+	}
+
+	@Override
+	public Map<String, Object> preprocessData(Map<String, Object> data) {
+		return preprocessData(data, null);
+	}
+
+	@Override
+	public Map<String, Object> preprocessData(Map<String, Object> data, PreprocessChainContext chainContext) {
+		if (data == null || !condition.matches(data))
+			return data;
+		return delegate.preprocessData(data, chainContext);
+	}
+
+	@Override
+	public Set<String> getReadFields() {
+		if (!(delegate instanceof FieldAccessDeclaration))
+			return null;
+		Set<String> fields = ((FieldAccessDeclaration) delegate).getReadFields();
+		if (fields == null)
+			return null;
+		Set<String> ret = new LinkedHashSet<String>(fields);
+		ret.addAll(condition.getFields());
+		return Collections.unmodifiableSet(ret);
+	}
+
+	@Override
+	public Set<String> getWrittenFields() {
+		if (delegate instanceof FieldAccessDeclaration)
+			return ((FieldAccessDeclaration) delegate).getWrittenFields();
+		return null;
+	}
+
+	/**
+	 * Required inputs of wrapped preprocessor, as nothing is done without them even if condition matches.
+	 */
+	@Override
+	public Set<String> getRequiredInputFields() {
+		if (delegate instanceof RequiredInputDeclaration)
+			return ((RequiredInputDeclaration) delegate).getRequiredInputFields();
+		return null;
+	}
+
+	/**
+	 * Cost of wrapped preprocessor, as condition may match all data items.
+	 */
+	@Override
+	public int getCostHint() {
+		if (delegate instanceof PreprocessorCostHint)
+			return ((PreprocessorCostHint) delegate).getCostHint();
+		return COST_MODERATE;
+	}
+
+	@Override
+	public boolean mayRejectData() {
+		if (delegate instanceof PreprocessorCostHint)
+			return ((PreprocessorCostHint) delegate).mayRejectData();
+		return false;
+	}
+
+	/**
+	 * Close wrapped preprocessor if it implements {@link Closeable}.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (delegate instanceof Closeable)
+			((Closeable) delegate).close();
+	}
+
+	public StructuredContentPreprocessor getDelegate() {
+		return delegate;
+	}
+
+	public DataCondition getCondition() {
+		return condition;
+	}
+
+}
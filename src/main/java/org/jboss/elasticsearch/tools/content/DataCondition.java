@@ -0,0 +1,333 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+/**
+ * Condition evaluated over data item, compiled once from configuration structure. Used by
+ * {@link ConditionalPreprocessor} to call preprocessor only for some data items. Configuration is object with exactly
+ * one element defining condition type:
+ * 
+ * <pre>
+ * { "exists"  : "field" }
+ * { "equals"  : { "field" : "type", "value" : "bug" } }
+ * { "in"      : { "field" : "type", "values" : ["bug", "feature"] } }
+ * { "regex"   : { "field" : "title", "pattern" : "Re:.*" } }
+ * { "gt"      : { "field" : "count", "value" : 10 } }    - "gte", "lt" and "lte" are supported too
+ * { "and"     : [ {condition}, {condition} ] }
+ * { "or"      : [ {condition}, {condition} ] }
+ * { "not"     : {condition} }
+ * </pre>
+ * 
+ * Fields use dot notation for nested values. If field contains collection then condition matches if some value from
+ * it matches. Numbers are compared by value (<code>10</code> equals to <code>10.0</code>), other values by their
+ * String representation. Regular expression must match whole value. Numeric comparisons match only numbers and
+ * Strings containing number. Instances are immutable and thread safe.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public abstract class DataCondition {
+
+	public static final String TYPE_EXISTS = "exists";
+	public static final String TYPE_EQUALS = "equals";
+	public static final String TYPE_IN = "in";
+	public static final String TYPE_REGEX = "regex";
+	public static final String TYPE_GT = "gt";
+	public static final String TYPE_GTE = "gte";
+	public static final String TYPE_LT = "lt";
+	public static final String TYPE_LTE = "lte";
+	public static final String TYPE_AND = "and";
+	public static final String TYPE_OR = "or";
+	public static final String TYPE_NOT = "not";
+
+	protected static final String CFG_FIELD = "field";
+	protected static final String CFG_VALUE = "value";
+	protected static final String CFG_VALUES = "values";
+	protected static final String CFG_PATTERN = "pattern";
+
+	/**
+	 * Evaluate condition.
+	 * 
+	 * @param data item to evaluate condition for, not null
+	 * @return true if data item matches condition
+	 */
+	public abstract boolean matches(Map<String, Object> data);
+
+	/**
+	 * Get fields read by condition.
+	 * 
+	 * @return unmodifiable set of fields in dot notation
+	 */
+	public abstract Set<String> getFields();
+
+	/**
+	 * Compile condition from configuration structure described in this class's javadoc.
+	 * 
+	 * @param config configuration structure
+	 * @return compiled condition
+	 * @throws IllegalArgumentException if configuration is invalid
+	 */
+	@SuppressWarnings("unchecked")
+	public static DataCondition compile(Object config) throws IllegalArgumentException {
+		if (!(config instanceof Map) || ((Map<String, Object>) config).size() != 1) {
+			throw new IllegalArgumentException("condition must be object with exactly one element, but is " + config);
+		}
+		Map.Entry<String, Object> e = ((Map<String, Object>) config).entrySet().iterator().next();
+		String type = e.getKey();
+		Object value = e.getValue();
+		if (TYPE_EXISTS.equals(type)) {
+			if (!(value instanceof String) || ValueUtils.isEmpty((String) value))
+				throw new IllegalArgumentException("'" + TYPE_EXISTS + "' condition must contain field name");
+			return new ExistsCondition((String) value);
+		} else if (TYPE_AND.equals(type) || TYPE_OR.equals(type)) {
+			if (!(value instanceof List) || ((List<Object>) value).isEmpty())
+				throw new IllegalArgumentException("'" + type + "' condition must contain non empty array of conditions");
+			List<DataCondition> conditions = new ArrayList<DataCondition>();
+			for (Object o : (List<Object>) value) {
+				conditions.add(compile(o));
+			}
+			return new CombinedCondition(conditions, TYPE_AND.equals(type));
+		} else if (TYPE_NOT.equals(type)) {
+			return new NotCondition(compile(value));
+		}
+
+		if (!(value instanceof Map))
+			throw new IllegalArgumentException("'" + type + "' condition must be object");
+		Map<String, Object> params = (Map<String, Object>) value;
+		String field = XContentMapValues.nodeStringValue(params.get(CFG_FIELD), null);
+		if (ValueUtils.isEmpty(field))
+			throw new IllegalArgumentException("'" + type + "/" + CFG_FIELD + "' must be defined");
+		if (TYPE_EQUALS.equals(type)) {
+			if (params.get(CFG_VALUE) == null)
+				throw new IllegalArgumentException("'" + type + "/" + CFG_VALUE + "' must be defined");
+			return new InCondition(field, Collections.singletonList(params.get(CFG_VALUE)));
+		} else if (TYPE_IN.equals(type)) {
+			if (!(params.get(CFG_VALUES) instanceof Collection))
+				throw new IllegalArgumentException("'" + type + "/" + CFG_VALUES + "' must be array");
+			return new InCondition(field, (Collection<Object>) params.get(CFG_VALUES));
+		} else if (TYPE_REGEX.equals(type)) {
+			String pattern = XContentMapValues.nodeStringValue(params.get(CFG_PATTERN), null);
+			if (ValueUtils.isEmpty(pattern))
+				throw new IllegalArgumentException("'" + type + "/" + CFG_PATTERN + "' must be defined");
+			try {
+				return new RegexCondition(field, Pattern.compile(pattern));
+			} catch (PatternSyntaxException ex) {
+				throw new IllegalArgumentException("'" + type + "/" + CFG_PATTERN + "' is invalid: " + ex.getMessage());
+			}
+		} else if (TYPE_GT.equals(type) || TYPE_GTE.equals(type) || TYPE_LT.equals(type) || TYPE_LTE.equals(type)) {
+			if (!(params.get(CFG_VALUE) instanceof Number))
+				throw new IllegalArgumentException("'" + type + "/" + CFG_VALUE + "' must be number");
+			return new CompareCondition(field, toBigDecimal(params.get(CFG_VALUE)), type);
+		}
+		throw new IllegalArgumentException("Unknown condition type '" + type + "'");
+	}
+
+	/**
+	 * Convert number to {@link BigDecimal} for comparison.
+	 * 
+	 * @param value to convert, Number or String
+	 * @return converted number or null if value is not number
+	 */
+	protected static BigDecimal toBigDecimal(Object value) {
+		try {
+			if (value instanceof BigDecimal)
+				return (BigDecimal) value;
+			if (value instanceof Float || value instanceof Double)
+				return new BigDecimal(((Number) value).doubleValue());
+			if (value instanceof Number)
+				return new BigDecimal(value.toString());
+			if (value instanceof String)
+				return new BigDecimal(((String) value).trim());
+		} catch (NumberFormatException e) {
+			// not a number
+		}
+		return null;
+	}
+
+	/**
+	 * Normalize value for equality comparison, so numbers with same value are equal.
+	 */
+	private static Object normalize(Object value) {
+		if (value instanceof Number) {
+			BigDecimal bd = toBigDecimal(value);
+			if (bd != null)
+				return bd.compareTo(BigDecimal.ZERO) == 0 ? BigDecimal.ZERO : bd.stripTrailingZeros();
+		}
+		return value.toString();
+	}
+
+	/**
+	 * Base for conditions over values of one field.
+	 */
+	protected abstract static class FieldCondition extends DataCondition {
+
+		protected final String field;
+
+		protected FieldCondition(String field) {
+			this.field = field;
+		}
+
+		@Override
+		public boolean matches(Map<String, Object> data) {
+			Object value = XContentMapValues.extractValue(field, data);
+			if (value instanceof Collection) {
+				for (Object o : (Collection<?>) value) {
+					if (o != null && matchesValue(o))
+						return true;
+				}
+				return false;
+			}
+			return value != null && matchesValue(value);
+		}
+
+		/**
+		 * @param value of field, not null
+		 * @return true if value matches
+		 */
+		protected abstract boolean matchesValue(Object value);
+
+		@Override
+		public Set<String> getFields() {
+			return Collections.singleton(field);
+		}
+	}
+
+	protected static class ExistsCondition extends FieldCondition {
+
+		protected ExistsCondition(String field) {
+			super(field);
+		}
+
+		@Override
+		protected boolean matchesValue(Object value) {
+			return true;
+		}
+	}
+
+	protected static class InCondition extends FieldCondition {
+
+		protected final Set<Object> values = new HashSet<Object>();
+
+		protected InCondition(String field, Collection<Object> values) {
+			super(field);
+			for (Object v : values) {
+				if (v != null)
+					this.values.add(normalize(v));
+			}
+		}
+
+		@Override
+		protected boolean matchesValue(Object value) {
+			return values.contains(normalize(value));
+		}
+	}
+
+	protected static class RegexCondition extends FieldCondition {
+
+		protected final Pattern pattern;
+
+		protected RegexCondition(String field, Pattern pattern) {
+			super(field);
+			this.pattern = pattern;
+		}
+
+		@Override
+		protected boolean matchesValue(Object value) {
+			return pattern.matcher(value.toString()).matches();
+		}
+	}
+
+	protected static class CompareCondition extends FieldCondition {
+
+		protected final BigDecimal value;
+		protected final String type;
+
+		protected CompareCondition(String field, BigDecimal value, String type) {
+			super(field);
+			this.value = value;
+			this.type = type;
+		}
+
+		@Override
+		protected boolean matchesValue(Object v) {
+			BigDecimal bd = toBigDecimal(v);
+			if (bd == null)
+				return false;
+			int c = bd.compareTo(value);
+			if (TYPE_GT.equals(type))
+				return c > 0;
+			if (TYPE_GTE.equals(type))
+				return c >= 0;
+			if (TYPE_LT.equals(type))
+				return c < 0;
+			return c <= 0;
+		}
+	}
+
+	protected static class CombinedCondition extends DataCondition {
+
+		protected final List<DataCondition> conditions;
+		protected final boolean and;
+		private final Set<String> fields;
+
+		protected CombinedCondition(List<DataCondition> conditions, boolean and) {
+			this.conditions = conditions;
+			this.and = and;
+			Set<String> f = new LinkedHashSet<String>();
+			for (DataCondition c : conditions) {
+				f.addAll(c.getFields());
+			}
+			this.fields = Collections.unmodifiableSet(f);
+		}
+
+		@Override
+		public boolean matches(Map<String, Object> data) {
+			for (DataCondition c : conditions) {
+				if (c.matches(data) != and)
+					return !and;
+			}
+			return and;
+		}
+
+		@Override
+		public Set<String> getFields() {
+			return fields;
+		}
+	}
+
+	protected static class NotCondition extends DataCondition {
+
+		protected final DataCondition condition;
+
+		protected NotCondition(DataCondition condition) {
+			this.condition = condition;
+		}
+
+		@Override
+		public boolean matches(Map<String, Object> data) {
+			return !condition.matches(data);
+		}
+
+		@Override
+		public Set<String> getFields() {
+			return condition.getFields();
+		}
+	}
+
+}
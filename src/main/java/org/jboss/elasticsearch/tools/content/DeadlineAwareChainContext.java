@@ -0,0 +1,37 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+/**
+ * Optional interface of {@link PreprocessChainContext} providing deadline given by time budget for preprocessing of
+ * one data item. It is separated so existing {@link PreprocessChainContext} implementations still work, use
+ * {@link PreprocessChain#isDeadlineExceeded(PreprocessChainContext)} and
+ * {@link PreprocessChain#getRemainingTimeMillis(PreprocessChainContext)} to check deadline in any context.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see PreprocessChainContextImpl
+ * @since 1.3.9
+ */
+public interface DeadlineAwareChainContext extends PreprocessChainContext {
+
+	/**
+	 * Check if time budget for preprocessing of this data item is exhausted already. Long running preprocessors should
+	 * check this and skip their work (with some warning) if <code>true</code>.
+	 * 
+	 * @return <code>true</code> if time budget is exhausted, <code>false</code> if it is not or no budget is defined.
+	 * @see PreprocessChain#setTimeBudget(long, PreprocessChain.TimeoutAction)
+	 */
+	public boolean isDeadlineExceeded();
+
+	/**
+	 * Get remaining time from the time budget for preprocessing of this data item. Useful to bound blocking calls in
+	 * preprocessors, eg. requests to remote systems.
+	 * 
+	 * @return remaining time in milliseconds (0 if exhausted already), <code>-1</code> if no time budget is defined.
+	 */
+	public long getRemainingTimeMillis();
+
+}
@@ -0,0 +1,264 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.get.GetRequestBuilder;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.get.GetField;
+import org.elasticsearch.index.query.BoolFilterBuilder;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.filters.Filters;
+import org.elasticsearch.search.aggregations.bucket.filters.FiltersAggregationBuilder;
+import org.elasticsearch.search.aggregations.metrics.tophits.TopHits;
+import org.elasticsearch.search.aggregations.metrics.tophits.TopHitsBuilder;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
+import org.jboss.elasticsearch.tools.content.ESLookupValuePreprocessor.SearchMode;
+
+/**
+ * {@link LookupBackend} performing lookups in Elasticsearch index. Search request with query based on
+ * {@link SearchMode} is used for lookup in fields, get request for lookup by <code>_id</code>.
+ * {@link ElasticsearchException} is thrown from lookup methods if request fails. Search timed out or failed on some
+ * shards throws {@link ElasticsearchTimeoutException}, so its partial hits are never handled as not found result.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class ESLookupBackend extends LookupBackendBase {
+
+	private static final String AGG_FIELDS = "lookup_fields";
+	private static final String AGG_TOP_HIT = "lookup_hit";
+
+	protected final Client client;
+	protected final String indexName;
+	protected final String indexType;
+	protected final SearchMode searchMode;
+	protected final String preference;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param client to be used for requests
+	 * @param indexName name of search index to lookup documents in
+	 * @param indexType name of type in search index to lookup documents in
+	 * @param searchMode mode of search in fields, {@link SearchMode#MATCH} used if null
+	 * @param preference of shard copies used for lookups (eg. <code>_local</code>), can be null
+	 * @param resultFields names of fields to be returned in results, <code>_source</code> not included. Can be null.
+	 * @param sourceRequested true if whole document source must be returned in results
+	 * @param sourceIncludes list of fields returned in document source, all fields returned if null
+	 */
+	public ESLookupBackend(Client client, String indexName, String indexType, SearchMode searchMode,
+			String preference, String[] resultFields, boolean sourceRequested, String[] sourceIncludes) {
+		super(resultFields, sourceRequested, sourceIncludes);
+		this.client = client;
+		this.indexName = indexName;
+		this.indexType = indexType;
+		this.searchMode = searchMode != null ? searchMode : SearchMode.MATCH;
+		this.preference = preference;
+	}
+
+	@Override
+	public LookupResult lookup(String idxSearchField, Object sourceValue, String routing,
+			PreprocessChainContext chainContext) throws ElasticsearchException {
+		if (ID_FIELD.equals(idxSearchField)) {
+			GetRequestBuilder req = client.prepareGet(indexName, indexType, sourceValue.toString()).setFields(resultFields)
+					.setRouting(routing).setPreference(preference);
+			if (sourceRequested)
+				req.setFetchSource(sourceIncludes, null);
+			return createLookupResult(execute(req, chainContext));
+		}
+
+		SearchRequestBuilder req = client.prepareSearch(indexName).setTypes(indexType).setSize(1).setRouting(routing)
+				.setPreference(preference);
+		if (searchMode == SearchMode.TERM) {
+			req.setQuery(QueryBuilders.constantScoreQuery(createFieldFilter(idxSearchField, sourceValue)));
+		} else {
+			req.setQuery(QueryBuilders.matchAllQuery()).setPostFilter(createFieldFilter(idxSearchField, sourceValue));
+		}
+		for (String field : resultFields) {
+			req.addField(field);
+		}
+		if (sourceRequested)
+			req.setFetchSource(sourceIncludes, null);
+		SearchResponse resp = executeSearch(req, chainContext);
+		if (resp.getHits().getTotalHits() == 0 || resp.getHits().hits().length == 0)
+			return LookupResult.NOT_FOUND;
+		SearchHit hit = resp.getHits().hits()[0];
+		Map<String, Object> fields = new HashMap<String, Object>();
+		for (String field : resultFields) {
+			SearchHitField shf = hit.field(field);
+			if (shf != null)
+				fields.put(field, shf.getValue());
+		}
+		if (sourceRequested && hit.getSource() != null)
+			fields.put(SOURCE_FIELD, hit.getSource());
+		return new LookupResult(resp.getHits().getTotalHits(), fields);
+	}
+
+	/**
+	 * One search request with boolean filter over all fields is used, number of matching documents and first matching
+	 * document is obtained for each field separately using aggregations. Values of result fields are read from document
+	 * <code>_source</code> in this case.
+	 */
+	@Override
+	public Map<String, LookupResult> lookupCombined(List<String> idxSearchFields, Object sourceValue, String routing,
+			PreprocessChainContext chainContext) throws ElasticsearchException {
+		TopHitsBuilder topHit = AggregationBuilders.topHits(AGG_TOP_HIT).setSize(1);
+		if (!sourceRequested || sourceIncludes != null) {
+			Set<String> includes = new LinkedHashSet<String>(Arrays.asList(resultFields));
+			if (sourceIncludes != null)
+				includes.addAll(Arrays.asList(sourceIncludes));
+			topHit.setFetchSource(includes.toArray(new String[includes.size()]), null);
+		}
+		BoolFilterBuilder filter = FilterBuilders.boolFilter();
+		FiltersAggregationBuilder fieldsAgg = AggregationBuilders.filters(AGG_FIELDS);
+		for (String idxSf : idxSearchFields) {
+			filter.should(createFieldFilter(idxSf, sourceValue));
+			fieldsAgg.filter(idxSf, createFieldFilter(idxSf, sourceValue));
+		}
+		fieldsAgg.subAggregation(topHit);
+		SearchRequestBuilder req = client.prepareSearch(indexName).setTypes(indexType).setSize(0).setRouting(routing)
+				.setPreference(preference).setQuery(QueryBuilders.constantScoreQuery(filter)).addAggregation(fieldsAgg);
+		SearchResponse resp = executeSearch(req, chainContext);
+
+		Map<String, LookupResult> ret = new HashMap<String, LookupResult>();
+		Filters filters = resp.getAggregations() != null ? (Filters) resp.getAggregations().get(AGG_FIELDS) : null;
+		for (String idxSf : idxSearchFields) {
+			Filters.Bucket bucket = filters != null ? filters.getBucketByKey(idxSf) : null;
+			TopHits hits = bucket != null ? (TopHits) bucket.getAggregations().get(AGG_TOP_HIT) : null;
+			if (hits == null || bucket.getDocCount() == 0 || hits.getHits().hits().length == 0) {
+				ret.put(idxSf, LookupResult.NOT_FOUND);
+			} else {
+				ret.put(idxSf, createLookupResultFromSource(bucket.getDocCount(), hits.getHits().hits()[0].getSource()));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * One multi get request is used for all identifiers, identifiers failed in this request are not in returned map.
+	 */
+	@Override
+	public Map<String, LookupResult> lookupByIds(Collection<String> ids, String routing,
+			PreprocessChainContext chainContext) throws ElasticsearchException {
+		FetchSourceContext fetchSource = sourceRequested ? new FetchSourceContext(sourceIncludes, null) : null;
+		MultiGetRequestBuilder req = client.prepareMultiGet().setPreference(preference);
+		for (String id : ids) {
+			MultiGetRequest.Item item = new MultiGetRequest.Item(indexName, indexType, id).fields(resultFields).routing(
+					routing);
+			if (fetchSource != null)
+				item.fetchSourceContext(fetchSource);
+			req.add(item);
+		}
+		MultiGetResponse resp = execute(req, chainContext);
+		Map<String, LookupResult> ret = new HashMap<String, LookupResult>();
+		for (MultiGetItemResponse itemResp : resp.getResponses()) {
+			if (!itemResp.isFailed())
+				ret.put(itemResp.getId(), createLookupResult(itemResp.getResponse()));
+		}
+		return ret;
+	}
+
+	/**
+	 * Create filter to find lookup key in one index field, based on configured {@link SearchMode}.
+	 * 
+	 * @param idxSf index field to search lookup key in
+	 * @param sourceValue lookup key
+	 * @return filter
+	 */
+	protected FilterBuilder createFieldFilter(String idxSf, Object sourceValue) {
+		if (searchMode == SearchMode.TERM)
+			return FilterBuilders.termFilter(idxSf, sourceValue);
+		return FilterBuilders.queryFilter(QueryBuilders.matchQuery(idxSf, sourceValue));
+	}
+
+	private LookupResult createLookupResult(GetResponse resp) {
+		if (!resp.isExists())
+			return LookupResult.NOT_FOUND;
+		Map<String, Object> fields = new HashMap<String, Object>();
+		for (String field : resultFields) {
+			GetField gf = resp.getField(field);
+			if (gf != null)
+				fields.put(field, gf.getValue());
+		}
+		if (sourceRequested && resp.getSource() != null)
+			fields.put(SOURCE_FIELD, resp.getSource());
+		return new LookupResult(1, fields);
+	}
+
+	/**
+	 * Execute search request with timeout set from time budget.
+	 * 
+	 * @param req to execute
+	 * @param chainContext used to bound request duration by time budget, can be null
+	 * @return complete response
+	 * @throws ElasticsearchTimeoutException if search timed out or failed on some shards, so hits may be incomplete
+	 */
+	private SearchResponse executeSearch(SearchRequestBuilder req, PreprocessChainContext chainContext) {
+		long remainingTime = PreprocessChain.getRemainingTimeMillis(chainContext);
+		if (remainingTime >= 0)
+			req.setTimeout(TimeValue.timeValueMillis(remainingTime));
+		SearchResponse resp = execute(req, chainContext);
+		if (resp.isTimedOut())
+			throw new ElasticsearchTimeoutException("Lookup search timed out");
+		if (resp.getFailedShards() > 0)
+			throw new ElasticsearchTimeoutException("Lookup search failed on " + resp.getFailedShards() + " of "
+					+ resp.getTotalShards() + " shards");
+		return resp;
+	}
+
+	private <T extends ActionResponse> T execute(ActionRequestBuilder<?, T, ?, ?> req,
+			PreprocessChainContext chainContext) {
+		long remainingTime = PreprocessChain.getRemainingTimeMillis(chainContext);
+		if (remainingTime >= 0)
+			return req.execute().actionGet(remainingTime);
+		return req.execute().actionGet();
+	}
+
+	public Client getClient() {
+		return client;
+	}
+
+	public String getIndexName() {
+		return indexName;
+	}
+
+	public String getIndexType() {
+		return indexType;
+	}
+
+	public SearchMode getSearchMode() {
+		return searchMode;
+	}
+
+	public String getPreference() {
+		return preference;
+	}
+
+}
@@ -5,27 +5,29 @@
  */
 package org.jboss.elasticsearch.tools.content;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.elasticsearch.ElasticsearchException;
-import org.elasticsearch.action.search.SearchRequestBuilder;
-import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.common.settings.SettingsException;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
-import org.elasticsearch.index.query.FilterBuilders;
-import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.search.SearchHit;
-import org.elasticsearch.search.SearchHitField;
 
 /**
  * Content preprocessor which allows to Look up value over Elasticsearch search request containing some value from data
  * structure. This preprocessor requires Elasticsearch client to be passed into
- * {@link #init(String, org.elasticsearch.client.Client, Map)}! Example of configuration for this preprocessor for
- * single value lookup:
+ * {@link #init(String, org.elasticsearch.client.Client, Map)} unless other lookup backend is configured! Example of
+ * configuration for this preprocessor for single value lookup:
  * 
  * <pre>
  * { 
@@ -54,7 +56,23 @@ import org.elasticsearch.search.SearchHitField;
  * <li><code>idx_search_field<code> - field in search index document to be asked for 'lookup key' obtained from source field. Elasticsearch <code>text</code>
  * filter is used against this field. Search is not performed if 'lookup key' is empty. This configuration can contain
  * array of lookup field's names also. They are looked up in sequence then, if previous one do not provide any concrete
- * value - so it is sort of fallback mechanism.
+ * value - so it is sort of fallback mechanism. Not necessary for <code>id</code> search mode.
+ * <li><code>idx_search_combined</code> - optional boolean, if <code>true</code> and more <code>idx_search_field</code>s
+ * are configured then only one search request is performed for all of them instead of request for each field in
+ * sequence. Result is resolved with same priority of fields, but values of result fields are read from
+ * <code>_source</code> of found document. Default is <code>false</code>.
+ * <li><code>idx_search_mode</code> - optional mode of lookup request. <code>match</code> (default value) means
+ * Elasticsearch <code>match</code> query against <code>idx_search_field</code>, so 'lookup key' is analyzed.
+ * <code>term</code> means non scoring <code>term</code> filter against <code>idx_search_field</code>, which is much
+ * cheaper for code-like keys stored in not analyzed fields. <code>id</code> means 'lookup key' is used as
+ * <code>_id</code> of document in search index, so document is obtained by get request without any search (one
+ * multi get request is used for all values if source field contains list of values).
+ * <li><code>idx_routing</code> - optional routing value used for lookup requests, so only one shard of search index
+ * is asked. You can use pattern for keys replacement with values from input data here, same as for
+ * <code>source_value</code>. Special key '<code>__original</code>' means 'lookup key'. Routing is not used if it is
+ * empty after replacement.
+ * <li><code>idx_preference</code> - optional preference of shard copies used for lookup requests, eg.
+ * <code>_local</code> to prefer shard copies on local node.
  * <li><code>result_multiple_ignore</code> - defines what to do if lookup returns multiple value. If `false` (default
  * value) then first result is used. If `true` then lookup result is ignored and default value is used if any. Warning
  * message is produced for both cases.
@@ -70,10 +88,60 @@ import org.elasticsearch.search.SearchHitField;
  * Special key '<code>__original</code>' means that original value from source field will be used here. Example of
  * default value with replacement keys ' <code>No mapping found for value {__original}.</code> '.
  * </ul>
+ * <li><code>result_source_includes</code> - optional list of fields (wildcards can be used) to be returned in
+ * <code>_source</code> if it is used as <code>idx_result_field</code>, so not whole document content is transferred
+ * from search index.
  * <li><code>source_bases</code> - list of fields in source data which are used as bases for lookups evaluation. If
  * defined then lookup is performed for each of this fields, <code>source_field</code>, <code>target_field</code> and
  * keys in <code>value_default</code> and<code>source_value</code> are resolved relatively against this base. Base must
- * provide object or list of objects. See example later. </ul>
+ * provide object or list of objects. See example later.
+ * <li><code>circuit_breaker</code> - optional circuit breaker configuration. If defined then lookups are not
+ * performed while breaker is open (default value handling is used directly with warning), so lookup cluster outage
+ * doesn't slow down preprocessing. Object with fields <code>failure_rate_threshold</code> (percentage of failed lookup
+ * requests when breaker is opened, default 50), <code>minimum_calls</code> (minimal number of tracked requests before
+ * failure rate is evaluated, default 5), <code>window_size</code> (number of last requests tracked, default 20),
+ * <code>probe_interval</code> (time in millis breaker stays open before one probe request is allowed, default 10000).
+ * Breaker protects requests to lookup backend only, so results from <code>lookup_cache</code> are still used while it
+ * is open, and background cache refresh is protected by it too. See {@link LookupCircuitBreaker} and
+ * {@link CircuitBreakingLookupBackend}.
+ * <li><code>idx_batch</code> - optional configuration of adaptive batch size for <code>id</code> search mode, where
+ * documents for all lookup keys from one data item are fetched in batches. If not defined then one request is used for
+ * all of them. Object with fields <code>min_size</code> (minimal and initial batch size, default 10),
+ * <code>max_size</code> (maximal batch size, default 500) and <code>target_latency</code> (time in millis, batch size
+ * grows while batch requests are faster than this, and is halved when they are slower or fail, default 200). See
+ * {@link AdaptiveBatchSizer}.
+ * <li><code>lookup_backend</code> - optional source of documents for lookups. <code>elasticsearch</code> (default
+ * value) means lookup in Elasticsearch index defined by <code>index_name</code> and <code>index_type</code>.
+ * <code>memory</code> means lookup in documents defined directly in <code>lookup_data</code> configuration object
+ * (keys are document identifiers, values are documents). <code>json_file</code> and <code>csv_file</code> mean
+ * lookup in documents loaded from local file defined in <code>lookup_file</code> configuration value at
+ * initialization (see {@link InMemoryLookupBackend#loadJsonFile(java.io.File)} and
+ * {@link InMemoryLookupBackend#loadCsvFile(java.io.File)} for file formats). Documents are indexed in memory for all
+ * <code>idx_search_field</code>s then, and key must be equal to field value to match. Elasticsearch client is not
+ * required in this case. Custom {@link LookupBackend} may be set over {@link #setLookupBackend(LookupBackend)}.
+ * <li><code>lookup_governor</code> - optional configuration of limiter of concurrent lookup requests shared by all
+ * lookup preprocessors in JVM which use the same limiter name, so aggregate load of lookup cluster is capped. Object
+ * with fields <code>name</code> (name of shared limiter, required), <code>max_concurrent</code> (maximal number of
+ * concurrent lookup requests, default 10, first initialized preprocessor wins if differs) and <code>queue_timeout</code>
+ * (maximal time in millis lookup waits for permit, default 5000, lookup fails then). See
+ * {@link LookupConcurrencyGovernor}.
+ * <li><code>lookup_coalescing</code> - optional boolean, if <code>true</code> then concurrent lookups for the same
+ * value performed by more threads (eg. for more documents processed in parallel) share one request and its result.
+ * Default is <code>false</code>. See {@link CoalescingLookupBackend}.
+ * <li><code>lookup_cache</code> - optional configuration of cache for lookup results shared by all processed
+ * documents. Object with fields <code>soft_ttl</code> (age of cached result in millis after which it is refreshed in
+ * background while stale one is still used, default 60000), <code>hard_ttl</code> (age of cached result in millis
+ * after which it is not used anymore, default 600000) and <code>max_size</code> (maximal number of cached results,
+ * default 10000). Optional <code>persistent_file</code> field contains path to local file cached results are
+ * persisted into (memory mapped file of fixed size defined in <code>persistent_file_size</code> field in bytes, default
+ * 64MB), so cache is warm after restart. File is loaded during initialization and written by background thread. It
+ * must not be shared with other preprocessor, it is closed by {@link #close()}. See {@link CachingLookupBackend} and {@link LookupCacheFile}.
+ * </ul>
+ * <p>
+ * If time budget for data item preprocessing is defined in {@link PreprocessChainContext} (see
+ * {@link PreprocessChain#setTimeBudget(long, PreprocessChain.TimeoutAction)}) then lookup request is bounded by
+ * remaining time and is not performed at all if time budget is exhausted already. Default value handling is used in
+ * both cases.
  * 
  * 
  * Example of configuration for this preprocessor for lookup of multiple values of same structure:
@@ -188,39 +256,124 @@ import org.elasticsearch.search.SearchHitField;
  * @see StructuredContentPreprocessorFactory
  */
 public class ESLookupValuePreprocessor extends
-		StructuredContentPreprocessorWithSourceBasesBase<ESLookupValuePreprocessor.LookupContenxt> {
+		StructuredContentPreprocessorWithSourceBasesBase<ESLookupValuePreprocessor.LookupContenxt> implements Closeable {
 
 	protected static final String CFG_index_name = "index_name";
 	protected static final String CFG_index_type = "index_type";
 	protected static final String CFG_source_field = "source_field";
 	protected static final String CFG_source_value = "source_value";
 	protected static final String CFG_idx_search_field = "idx_search_field";
+	protected static final String CFG_idx_search_mode = "idx_search_mode";
+	protected static final String CFG_idx_search_combined = "idx_search_combined";
+	protected static final String CFG_idx_routing = "idx_routing";
+	protected static final String CFG_idx_preference = "idx_preference";
 	protected static final String CFG_result_mapping = "result_mapping";
 	protected static final String CFG_idx_result_field = "idx_result_field";
 	protected static final String CFG_ignore_multiple_results = "result_multiple_ignore";
 	protected static final String CFG_target_field = "target_field";
 	protected static final String CFG_value_default = "value_default";
+	protected static final String CFG_result_source_includes = "result_source_includes";
+	protected static final String CFG_circuit_breaker = "circuit_breaker";
+	protected static final String CFG_circuit_breaker_failure_rate_threshold = "failure_rate_threshold";
+	protected static final String CFG_circuit_breaker_minimum_calls = "minimum_calls";
+	protected static final String CFG_circuit_breaker_window_size = "window_size";
+	protected static final String CFG_circuit_breaker_probe_interval = "probe_interval";
+	protected static final String CFG_idx_batch = "idx_batch";
+	protected static final String CFG_idx_batch_min_size = "min_size";
+	protected static final String CFG_idx_batch_max_size = "max_size";
+	protected static final String CFG_idx_batch_target_latency = "target_latency";
+
+	protected static final String CFG_lookup_backend = "lookup_backend";
+	protected static final String CFG_lookup_data = "lookup_data";
+	protected static final String CFG_lookup_file = "lookup_file";
+	protected static final String CFG_lookup_coalescing = "lookup_coalescing";
+	protected static final String CFG_lookup_governor = "lookup_governor";
+	protected static final String CFG_lookup_governor_name = "name";
+	protected static final String CFG_lookup_governor_max_concurrent = "max_concurrent";
+	protected static final String CFG_lookup_governor_queue_timeout = "queue_timeout";
+	protected static final String CFG_lookup_cache = "lookup_cache";
+	protected static final String CFG_lookup_cache_soft_ttl = "soft_ttl";
+	protected static final String CFG_lookup_cache_hard_ttl = "hard_ttl";
+	protected static final String CFG_lookup_cache_max_size = "max_size";
+	protected static final String CFG_lookup_cache_persistent_file = "persistent_file";
+	protected static final String CFG_lookup_cache_persistent_file_size = "persistent_file_size";
+
+	protected static final String LOOKUP_BACKEND_ES = "elasticsearch";
+	protected static final String LOOKUP_BACKEND_MEMORY = "memory";
+	protected static final String LOOKUP_BACKEND_JSON_FILE = "json_file";
+	protected static final String LOOKUP_BACKEND_CSV_FILE = "csv_file";
+
+	protected static final String SOURCE_FIELD = "_source";
+
+	/**
+	 * Modes of lookup request.
+	 */
+	public static enum SearchMode {
+		/**
+		 * Elasticsearch <code>match</code> query against <code>idx_search_field</code>, lookup key is analyzed.
+		 */
+		MATCH,
+		/**
+		 * Non scoring Elasticsearch <code>term</code> filter against <code>idx_search_field</code>, lookup key is not
+		 * analyzed.
+		 */
+		TERM,
+		/**
+		 * Lookup key is used as <code>_id</code> of document which is obtained using get request, so no search is
+		 * performed.
+		 */
+		ID;
+
+		/**
+		 * Parse mode from configuration value.
+		 * 
+		 * @param value to parse, case insensitive. Can be null.
+		 * @return mode, {@link #MATCH} for <code>null</code> or empty value
+		 * @throws IllegalArgumentException for unknown value
+		 */
+		public static SearchMode parse(String value) throws IllegalArgumentException {
+			if (ValueUtils.isEmpty(value))
+				return MATCH;
+			try {
+				return valueOf(value.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown search mode '" + value + "', allowed values are "
+						+ Arrays.toString(values()));
+			}
+		}
+	}
 
 	protected String indexName;
 	protected String indexType;
 	protected String sourceField;
 	protected String sourceValuePattern;
 	protected List<String> idxSearchField;
+	protected SearchMode idxSearchMode = SearchMode.MATCH;
+	protected boolean idxSearchCombined = false;
+	protected String idxRouting;
+	protected String idxPreference;
+	protected String[] resultSourceIncludes;
 	protected List<Map<String, String>> resultMapping;
 	protected boolean ignoreMultipleResults = false;
+	protected LookupCircuitBreaker circuitBreaker;
+	protected AdaptiveBatchSizer batchSizer;
+	protected String lookupBackendType;
+	protected LookupBackend lookupBackend;
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public void init(Map<String, Object> settings) throws SettingsException {
 		super.init(settings);
-		if (client == null) {
-			throw new SettingsException("ElasticSearch client is required for preprocessor " + name);
+		lookupBackendType = XContentMapValues.nodeStringValue(settings.get(CFG_lookup_backend), LOOKUP_BACKEND_ES);
+		if (LOOKUP_BACKEND_ES.equals(lookupBackendType)) {
+			if (client == null) {
+				throw new SettingsException("ElasticSearch client is required for preprocessor " + name);
+			}
+			indexName = XContentMapValues.nodeStringValue(settings.get(CFG_index_name), null);
+			validateConfigurationStringNotEmpty(indexName, CFG_index_name);
+			indexType = XContentMapValues.nodeStringValue(settings.get(CFG_index_type), null);
+			validateConfigurationStringNotEmpty(indexType, CFG_index_type);
 		}
-
-		indexName = XContentMapValues.nodeStringValue(settings.get(CFG_index_name), null);
-		validateConfigurationStringNotEmpty(indexName, CFG_index_name);
-		indexType = XContentMapValues.nodeStringValue(settings.get(CFG_index_type), null);
-		validateConfigurationStringNotEmpty(indexType, CFG_index_type);
 		sourceField = XContentMapValues.nodeStringValue(settings.get(CFG_source_field), null);
 		if (ValueUtils.isEmpty(sourceField)) {
 			sourceField = null;
@@ -232,9 +385,251 @@ public class ESLookupValuePreprocessor extends
 		}
 		resultMapping = (List<Map<String, String>>) settings.get(CFG_result_mapping);
 		validateResultMappingConfiguration(resultMapping, CFG_result_mapping);
+		List<Map<String, String>> rm = new ArrayList<Map<String, String>>();
+		for (Map<String, String> mappingRecord : resultMapping) {
+			rm.add(Collections.unmodifiableMap(new HashMap<String, String>(mappingRecord)));
+		}
+		resultMapping = Collections.unmodifiableList(rm);
+		try {
+			idxSearchMode = SearchMode.parse(XContentMapValues.nodeStringValue(settings.get(CFG_idx_search_mode), null));
+		} catch (IllegalArgumentException e) {
+			throw new SettingsException("Invalid 'settings/" + CFG_idx_search_mode + "' configuration value for '" + name
+					+ "' preprocessor: " + e.getMessage());
+		}
 		idxSearchField = StructureUtils.getListOfStringValues(settings, CFG_idx_search_field);
-		validateConfigurationObjectNotEmpty(idxSearchField, CFG_idx_search_field);
+		if (idxSearchMode == SearchMode.ID) {
+			idxSearchField = Collections.singletonList("_id");
+		} else {
+			validateConfigurationObjectNotEmpty(idxSearchField, CFG_idx_search_field);
+			idxSearchField = Collections.unmodifiableList(new ArrayList<String>(idxSearchField));
+		}
+		idxSearchCombined = XContentMapValues.nodeBooleanValue(settings.get(CFG_idx_search_combined), false);
+		idxRouting = XContentMapValues.nodeStringValue(settings.get(CFG_idx_routing), null);
+		if (ValueUtils.isEmpty(idxRouting))
+			idxRouting = null;
+		idxPreference = XContentMapValues.nodeStringValue(settings.get(CFG_idx_preference), null);
+		if (ValueUtils.isEmpty(idxPreference))
+			idxPreference = null;
+		List<String> includes = StructureUtils.getListOfStringValues(settings, CFG_result_source_includes);
+		resultSourceIncludes = (includes != null && !includes.isEmpty()) ? includes.toArray(new String[includes.size()])
+				: null;
 		ignoreMultipleResults = XContentMapValues.nodeBooleanValue(settings.get(CFG_ignore_multiple_results), false);
+		circuitBreaker = createCircuitBreaker(settings.get(CFG_circuit_breaker));
+		batchSizer = createBatchSizer(settings.get(CFG_idx_batch));
+		lookupBackend = createLookupBackend(settings);
+		if (circuitBreaker != null)
+			lookupBackend = new CircuitBreakingLookupBackend(lookupBackend, circuitBreaker, name);
+		lookupBackend = createLookupGovernor(settings.get(CFG_lookup_governor), lookupBackend);
+		try {
+			if (XContentMapValues.nodeBooleanValue(settings.get(CFG_lookup_coalescing), false)) {
+				lookupBackend = new CoalescingLookupBackend(lookupBackend);
+			}
+			lookupBackend = createLookupCache(settings.get(CFG_lookup_cache), lookupBackend);
+		} catch (RuntimeException e) {
+			// release JVM-wide governor obtained already
+			try {
+				close();
+			} catch (IOException e1) {
+				logger.warn("Lookup backend of '{}' preprocessor can't be closed: {}", name, e1.getMessage());
+			}
+			lookupBackend = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * Create adaptive batch sizer from configuration.
+	 * 
+	 * @param cfg configuration object, can be null
+	 * @return batch sizer or null if not configured
+	 * @throws SettingsException if configuration is invalid
+	 */
+	@SuppressWarnings("unchecked")
+	protected AdaptiveBatchSizer createBatchSizer(Object cfg) throws SettingsException {
+		if (cfg == null)
+			return null;
+		if (!(cfg instanceof Map)) {
+			throw new SettingsException("'settings/" + CFG_idx_batch + "' configuration value for '" + name
+					+ "' preprocessor must be an object");
+		}
+		Map<String, Object> batchSettings = (Map<String, Object>) cfg;
+		try {
+			int minSize = readIntegerValue(batchSettings, CFG_idx_batch_min_size, 10);
+			return new AdaptiveBatchSizer(minSize, readIntegerValue(batchSettings, CFG_idx_batch_max_size,
+					Math.max(minSize, 500)), readIntegerValue(batchSettings, CFG_idx_batch_target_latency, 200));
+		} catch (NumberFormatException e) {
+			throw new SettingsException("Non integer value in 'settings/" + CFG_idx_batch + "' configuration for '" + name
+					+ "' preprocessor");
+		} catch (IllegalArgumentException e) {
+			throw new SettingsException("Invalid 'settings/" + CFG_idx_batch + "' configuration for '" + name
+					+ "' preprocessor: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Create limiter of concurrent lookups from configuration.
+	 * 
+	 * @param cfg configuration object, can be null
+	 * @param backend to be wrapped by limiter
+	 * @return limiter wrapping backend or backend itself if limiter is not configured
+	 * @throws SettingsException if configuration is invalid
+	 */
+	@SuppressWarnings("unchecked")
+	protected LookupBackend createLookupGovernor(Object cfg, LookupBackend backend) throws SettingsException {
+		if (cfg == null)
+			return backend;
+		if (!(cfg instanceof Map)) {
+			throw new SettingsException("'settings/" + CFG_lookup_governor + "' configuration value for '" + name
+					+ "' preprocessor must be an object");
+		}
+		Map<String, Object> governorSettings = (Map<String, Object>) cfg;
+		String governorName = XContentMapValues.nodeStringValue(governorSettings.get(CFG_lookup_governor_name), null);
+		validateConfigurationStringNotEmpty(governorName, CFG_lookup_governor + "/" + CFG_lookup_governor_name);
+		try {
+			return new GovernedLookupBackend(backend, LookupConcurrencyGovernor.getGovernor(governorName,
+					readIntegerValue(governorSettings, CFG_lookup_governor_max_concurrent, 10)), readIntegerValue(
+					governorSettings, CFG_lookup_governor_queue_timeout, 5000));
+		} catch (NumberFormatException e) {
+			throw new SettingsException("Non integer value in 'settings/" + CFG_lookup_governor + "' configuration for '"
+					+ name + "' preprocessor");
+		} catch (IllegalArgumentException e) {
+			throw new SettingsException("Invalid 'settings/" + CFG_lookup_governor + "' configuration for '" + name
+					+ "' preprocessor: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Create cross document lookup cache from configuration.
+	 * 
+	 * @param cfg configuration object, can be null
+	 * @param backend to be wrapped by cache
+	 * @return cache wrapping backend or backend itself if cache is not configured
+	 * @throws SettingsException if configuration is invalid
+	 */
+	@SuppressWarnings("unchecked")
+	protected LookupBackend createLookupCache(Object cfg, LookupBackend backend) throws SettingsException {
+		if (cfg == null)
+			return backend;
+		if (!(cfg instanceof Map)) {
+			throw new SettingsException("'settings/" + CFG_lookup_cache + "' configuration value for '" + name
+					+ "' preprocessor must be an object");
+		}
+		Map<String, Object> cacheSettings = (Map<String, Object>) cfg;
+		try {
+			int softTtl = readIntegerValue(cacheSettings, CFG_lookup_cache_soft_ttl, 60000);
+			CachingLookupBackend ret = new CachingLookupBackend(backend, softTtl, readIntegerValue(cacheSettings,
+					CFG_lookup_cache_hard_ttl, Math.max(softTtl, 600000)), readIntegerValue(cacheSettings,
+					CFG_lookup_cache_max_size, 10000));
+			String file = XContentMapValues.nodeStringValue(cacheSettings.get(CFG_lookup_cache_persistent_file), null);
+			if (!ValueUtils.isEmpty(file)) {
+				int size = readIntegerValue(cacheSettings, CFG_lookup_cache_persistent_file_size, 64 * 1024 * 1024);
+				try {
+					ret.setPersistentFile(new LookupCacheFile(new File(file), getLookupCacheConfigVersion(), size));
+				} catch (IOException e) {
+					throw new SettingsException("Persistent lookup cache file '" + file + "' can't be opened for '" + name
+							+ "' preprocessor: " + e.getMessage(), e);
+				}
+			}
+			return ret;
+		} catch (NumberFormatException e) {
+			throw new SettingsException("Non integer value in 'settings/" + CFG_lookup_cache + "' configuration for '"
+					+ name + "' preprocessor");
+		} catch (IllegalArgumentException e) {
+			throw new SettingsException("Invalid 'settings/" + CFG_lookup_cache + "' configuration for '" + name
+					+ "' preprocessor: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Get version of configuration which affects lookup results, used to drop results persisted by
+	 * {@link LookupCacheFile} when configuration is changed.
+	 * 
+	 * @return configuration version
+	 */
+	protected String getLookupCacheConfigVersion() {
+		return Arrays.asList(lookupBackendType, indexName, indexType, idxSearchMode, Arrays.toString(getResultFields()),
+				isSourceRequested(), resultSourceIncludes != null ? Arrays.toString(resultSourceIncludes) : null).toString();
+	}
+
+	/**
+	 * Create lookup backend from configuration.
+	 * 
+	 * @param settings of preprocessor
+	 * @return lookup backend
+	 * @throws SettingsException if configuration is invalid
+	 */
+	@SuppressWarnings("unchecked")
+	protected LookupBackend createLookupBackend(Map<String, Object> settings) throws SettingsException {
+		String[] resultFields = getResultFields();
+		boolean sourceRequested = isSourceRequested();
+		if (LOOKUP_BACKEND_ES.equals(lookupBackendType)) {
+			return new ESLookupBackend(client, indexName, indexType, idxSearchMode, idxPreference, resultFields,
+					sourceRequested, resultSourceIncludes);
+		}
+		Map<String, Map<String, Object>> documents = null;
+		if (LOOKUP_BACKEND_MEMORY.equals(lookupBackendType)) {
+			Object data = settings.get(CFG_lookup_data);
+			if (!(data instanceof Map)) {
+				throw new SettingsException("Missing or invalid 'settings/" + CFG_lookup_data
+						+ "' configuration object for '" + name + "' preprocessor");
+			}
+			documents = (Map<String, Map<String, Object>>) data;
+		} else if (LOOKUP_BACKEND_JSON_FILE.equals(lookupBackendType) || LOOKUP_BACKEND_CSV_FILE.equals(lookupBackendType)) {
+			String file = XContentMapValues.nodeStringValue(settings.get(CFG_lookup_file), null);
+			validateConfigurationStringNotEmpty(file, CFG_lookup_file);
+			try {
+				if (LOOKUP_BACKEND_JSON_FILE.equals(lookupBackendType))
+					documents = InMemoryLookupBackend.loadJsonFile(new File(file));
+				else
+					documents = InMemoryLookupBackend.loadCsvFile(new File(file));
+			} catch (IOException e) {
+				throw new SettingsException("Lookup file '" + file + "' can't be read for '" + name + "' preprocessor: "
+						+ e.getMessage());
+			} catch (IllegalArgumentException e) {
+				throw new SettingsException("Invalid lookup file '" + file + "' for '" + name + "' preprocessor: "
+						+ e.getMessage());
+			}
+		} else {
+			throw new SettingsException("Unknown 'settings/" + CFG_lookup_backend + "' configuration value '"
+					+ lookupBackendType + "' for '" + name + "' preprocessor, allowed values are [" + LOOKUP_BACKEND_ES + ", "
+					+ LOOKUP_BACKEND_MEMORY + ", " + LOOKUP_BACKEND_JSON_FILE + ", " + LOOKUP_BACKEND_CSV_FILE + "]");
+		}
+		return new InMemoryLookupBackend(documents, idxSearchField, resultFields, sourceRequested, resultSourceIncludes);
+	}
+
+	/**
+	 * Create circuit breaker from configuration.
+	 * 
+	 * @param cfg configuration object, can be null
+	 * @return circuit breaker or null if not configured
+	 * @throws SettingsException if configuration is invalid
+	 */
+	@SuppressWarnings("unchecked")
+	protected LookupCircuitBreaker createCircuitBreaker(Object cfg) throws SettingsException {
+		if (cfg == null)
+			return null;
+		if (!(cfg instanceof Map)) {
+			throw new SettingsException("'settings/" + CFG_circuit_breaker + "' configuration value for '" + name
+					+ "' preprocessor must be an object");
+		}
+		Map<String, Object> cbSettings = (Map<String, Object>) cfg;
+		try {
+			return new LookupCircuitBreaker(readIntegerValue(cbSettings, CFG_circuit_breaker_failure_rate_threshold, 50),
+					readIntegerValue(cbSettings, CFG_circuit_breaker_minimum_calls, 5), readIntegerValue(cbSettings,
+							CFG_circuit_breaker_window_size, 20), readIntegerValue(cbSettings, CFG_circuit_breaker_probe_interval,
+							10000));
+		} catch (NumberFormatException e) {
+			throw new SettingsException("Non integer value in 'settings/" + CFG_circuit_breaker
+					+ "' configuration for '" + name + "' preprocessor");
+		} catch (IllegalArgumentException e) {
+			throw new SettingsException("Invalid 'settings/" + CFG_circuit_breaker + "' configuration for '" + name
+					+ "' preprocessor: " + e.getMessage());
+		}
+	}
+
+	private static int readIntegerValue(Map<String, Object> settings, String key, int defaultValue) {
+		Integer v = StructureUtils.getIntegerValue(settings, key);
+		return v != null ? v : defaultValue;
 	}
 
 	/**
@@ -282,6 +677,8 @@ public class ESLookupValuePreprocessor extends
 			if (context == null)
 				context = new LookupContenxt();
 			Collection<Object> sourceCollection = (Collection<Object>) sourceValue;
+			if (idxSearchMode == SearchMode.ID)
+				prefetchByIds(sourceCollection, data, context, chainContext);
 			targetValues = new HashMap<String, Object>();
 			for (Object sourceObject : sourceCollection) {
 				Map<String, Object> v = lookupValue(sourceObject, data, context, chainContext);
@@ -308,7 +705,11 @@ public class ESLookupValuePreprocessor extends
 		}
 	}
 
-	private boolean esExceptionWarned = false;
+	/**
+	 * true if warning about failed lookup has been logged already and no lookup succeeded since then. Shared by all
+	 * threads, so one warning is logged for the whole outage.
+	 */
+	private final AtomicBoolean esExceptionWarned = new AtomicBoolean(false);
 
 	/**
 	 * Perform lookup for one value in ES with default handling.
@@ -329,23 +730,36 @@ public class ESLookupValuePreprocessor extends
 				return context.lookupCache.get(sourceValue);
 
 			boolean found = false;
+			Map<String, LookupResult> combinedResults = null;
+			String routing = resolveRouting(data, sourceValue);
 			for (String idxSf : idxSearchField) {
 
+				boolean requestNeeded = !isCombinedSearch() || combinedResults == null;
+
+				if (requestNeeded && isDeadlineExceeded(chainContext)) {
+					String message = "Lookup for value '" + sourceValue
+							+ "' not performed because time budget for data preprocessing is exceeded, so default value handling is used.";
+					addDataWarning(chainContext, message);
+					logger.debug(message);
+					break;
+				}
+
 				try {
-					SearchRequestBuilder req = client.prepareSearch(indexName).setTypes(indexType)
-							.setQuery(QueryBuilders.matchAllQuery())
-							.setPostFilter(FilterBuilders.queryFilter(QueryBuilders.matchQuery(idxSf, sourceValue)));
-					for (Map<String, String> mappingRecord : resultMapping) {
-						String idx_resultField = mappingRecord.get(CFG_idx_result_field);
-						if (idx_resultField != null && !"_source".equals(idx_resultField)) {
-							req.addField(mappingRecord.get(CFG_idx_result_field));
+					LookupResult result = null;
+					if (isCombinedSearch()) {
+						if (combinedResults == null) {
+							combinedResults = lookupBackend.lookupCombined(idxSearchField, sourceValue, routing, chainContext);
 						}
+						result = combinedResults != null ? combinedResults.get(idxSf) : null;
+					} else {
+						result = executeLookup(idxSf, sourceValue, routing, context, chainContext);
 					}
+					// custom backend may leave out result for some field
+					if (result == null)
+						result = LookupResult.NOT_FOUND;
 
-					SearchResponse resp = req.execute().actionGet();
-
-					if (resp.getHits().getTotalHits() > 0) {
-						if (resp.getHits().getTotalHits() > 1) {
+					if (result.isFound()) {
+						if (result.getTotalHits() > 1) {
 							String message = "More results found during lookup for value '" + sourceValue + "' using index field '"
 									+ idxSf;
 							if (ignoreMultipleResults)
@@ -359,20 +773,10 @@ public class ESLookupValuePreprocessor extends
 								continue;
 							}
 						}
-						SearchHit hit = resp.getHits().hits()[0];
 						for (Map<String, String> mappingRecord : resultMapping) {
 							String idx_resultField = mappingRecord.get(CFG_idx_result_field);
-							Object v = null;
-							SearchHitField shf = null;
-							if ("_source".equals(idx_resultField)) {
-								v = hit.getSource();
-							} else {
-								shf = hit.field(idx_resultField);
-								if (shf != null) {
-									v = shf.getValue();
-								}
-							}
-							if (shf != null || v != null) {
+							if (result.hasField(idx_resultField)) {
+								Object v = result.getFieldValue(idx_resultField);
 								if (v == null && mappingRecord.get(CFG_value_default) != null) {
 									v = ValueUtils.processStringValuePatternReplacement(mappingRecord.get(CFG_value_default), data,
 											sourceValue);
@@ -387,19 +791,30 @@ public class ESLookupValuePreprocessor extends
 							}
 						}
 						found = true;
+						break;
 					} else {
 						addDataWarning(chainContext, "No result found during lookup for value '" + sourceValue + "'.");
 					}
 
-					esExceptionWarned = false;
+					if (esExceptionWarned.get())
+						esExceptionWarned.set(false);
+				} catch (LookupCircuitOpenException e) {
+					String message = "Lookup for value '" + sourceValue
+							+ "' not performed because lookup circuit breaker is open, so default value handling is used.";
+					addDataWarning(chainContext, message);
+					logger.debug(message);
+					PreprocessChain.reportTransientFailure(chainContext, name);
+					break;
 				} catch (ElasticsearchException e) {
-					if (!esExceptionWarned) {
-						esExceptionWarned = true;
+					PreprocessChain.reportTransientFailure(chainContext, name);
+					if (esExceptionWarned.compareAndSet(false, true)) {
 						String message = "Lookup failed due '" + e.getClass().getName() + ":" + e.getMessage()
 								+ "', so default value handling is used.";
 						addDataWarning(chainContext, message);
 						logger.warn(message);
 					}
+					if (isCombinedSearch())
+						break;
 				}
 			}
 			if (!found) {
@@ -413,6 +828,135 @@ public class ESLookupValuePreprocessor extends
 		return value;
 	}
 
+	/**
+	 * Execute one lookup request over {@link #lookupBackend}.
+	 * 
+	 * @param idxSf index field to search lookup key in, <code>_id</code> for {@link SearchMode#ID}
+	 * @param sourceValue lookup key
+	 * @param routing used to select shard to lookup in, can be null
+	 * @param context of lookup, can be null. Results prefetched by
+	 *          {@link #prefetchByIds(Collection, Map, LookupContenxt, PreprocessChainContext)} are used from it.
+	 * @param chainContext used to bound request duration by time budget, can be null
+	 * @return result of lookup, never null
+	 * @throws ElasticsearchException if lookup request fails
+	 */
+	protected LookupResult executeLookup(String idxSf, Object sourceValue, String routing, LookupContenxt context,
+			PreprocessChainContext chainContext) throws ElasticsearchException {
+		if (idxSearchMode == SearchMode.ID && context != null) {
+			LookupResult prefetched = context.prefetched.get(sourceValue.toString());
+			if (prefetched != null)
+				return prefetched;
+		}
+		return lookupBackend.lookup(idxSf, sourceValue, routing, chainContext);
+	}
+
+	/**
+	 * @return true if one combined request for all <code>idx_search_field</code>s is used for lookup
+	 */
+	protected boolean isCombinedSearch() {
+		return idxSearchCombined && idxSearchMode != SearchMode.ID && idxSearchField.size() > 1;
+	}
+
+	/**
+	 * Prefetch documents for all lookup keys from collection using one request (one request for each distinct routing
+	 * value if routing depends on lookup key, and for each batch if {@link #batchSizer} is configured). Used for
+	 * {@link SearchMode#ID} only. Results are stored into context. Keys not prefetched due some error are looked up one
+	 * by one later.
+	 * 
+	 * @param sourceValues lookup keys
+	 * @param data used to resolve routing
+	 * @param context to store prefetched results into
+	 * @param chainContext used to bound request duration by time budget, can be null
+	 */
+	protected void prefetchByIds(Collection<Object> sourceValues, Map<String, Object> data, LookupContenxt context,
+			PreprocessChainContext chainContext) {
+		Map<String, Set<String>> idsByRouting = new HashMap<String, Set<String>>();
+		for (Object sourceValue : sourceValues) {
+			if (sourceValue != null && !context.lookupCache.containsKey(sourceValue)) {
+				String id = sourceValue.toString();
+				if (!context.prefetched.containsKey(id)) {
+					String routing = resolveRouting(data, sourceValue);
+					Set<String> ids = idsByRouting.get(routing);
+					if (ids == null) {
+						ids = new LinkedHashSet<String>();
+						idsByRouting.put(routing, ids);
+					}
+					ids.add(id);
+				}
+			}
+		}
+		for (Map.Entry<String, Set<String>> group : idsByRouting.entrySet()) {
+			if (group.getValue().size() < 2)
+				continue;
+			List<String> ids = new ArrayList<String>(group.getValue());
+			int batchStart = 0;
+			while (batchStart < ids.size()) {
+				int batchEnd = batchSizer != null ? Math.min(ids.size(), batchStart + batchSizer.getBatchSize()) : ids.size();
+				prefetchBatchByIds(ids.subList(batchStart, batchEnd), group.getKey(), context, chainContext);
+				batchStart = batchEnd;
+			}
+		}
+	}
+
+	private void prefetchBatchByIds(List<String> ids, String routing, LookupContenxt context,
+			PreprocessChainContext chainContext) {
+		if (isDeadlineExceeded(chainContext))
+			return;
+
+		long start = System.currentTimeMillis();
+		try {
+			context.prefetched.putAll(lookupBackend.lookupByIds(ids, routing, chainContext));
+			if (batchSizer != null)
+				batchSizer.recordSuccess(ids.size(), System.currentTimeMillis() - start);
+		} catch (LookupCircuitOpenException e) {
+			// values will be looked up one by one, so warning is added then
+		} catch (ElasticsearchException e) {
+			if (batchSizer != null)
+				batchSizer.recordFailure();
+			logger.debug("Lookup prefetch failed due '{}:{}', values will be looked up one by one", e.getClass().getName(),
+					e.getMessage());
+		}
+	}
+
+	/**
+	 * Resolve routing for lookup request.
+	 * 
+	 * @param data to get values for routing pattern from
+	 * @param sourceValue lookup key, used for <code>{__original}</code> key in routing pattern
+	 * @return routing or null if not configured or empty
+	 */
+	protected String resolveRouting(Map<String, Object> data, Object sourceValue) {
+		if (idxRouting == null)
+			return null;
+		String routing = ValueUtils.processStringValuePatternReplacement(idxRouting, data, sourceValue);
+		return ValueUtils.isEmpty(routing) ? null : routing;
+	}
+
+	/**
+	 * @return names of document fields to be requested from Elasticsearch, <code>_source</code> not included
+	 */
+	private String[] getResultFields() {
+		List<String> ret = new ArrayList<String>();
+		for (Map<String, String> mappingRecord : resultMapping) {
+			String idx_resultField = mappingRecord.get(CFG_idx_result_field);
+			if (idx_resultField != null && !SOURCE_FIELD.equals(idx_resultField) && !ret.contains(idx_resultField)) {
+				ret.add(idx_resultField);
+			}
+		}
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	/**
+	 * @return true if <code>_source</code> is requested in result mapping
+	 */
+	private boolean isSourceRequested() {
+		for (Map<String, String> mappingRecord : resultMapping) {
+			if (SOURCE_FIELD.equals(mappingRecord.get(CFG_idx_result_field)))
+				return true;
+		}
+		return false;
+	}
+
 	private void processDefaultValues(Object sourceValue, Map<String, Object> data, Map<String, Object> value,
 			PreprocessChainContext chainContext) {
 
@@ -427,8 +971,20 @@ public class ESLookupValuePreprocessor extends
 		}
 	}
 
+	/**
+	 * Release resources held by lookup backend, eg. persistent cache file. Preprocessor must not be used after this call.
+	 * 
+	 * @throws IOException if some resource can't be released
+	 */
+	@Override
+	public void close() throws IOException {
+		if (lookupBackend instanceof Closeable)
+			((Closeable) lookupBackend).close();
+	}
+
 	protected class LookupContenxt {
 		Map<Object, Map<String, Object>> lookupCache = new HashMap<Object, Map<String, Object>>();
+		Map<String, LookupResult> prefetched = new HashMap<String, LookupResult>();
 	}
 
 	public List<String> getSourceBases() {
@@ -455,8 +1011,86 @@ public class ESLookupValuePreprocessor extends
 		return idxSearchField;
 	}
 
+	public SearchMode getIdxSearchMode() {
+		return idxSearchMode;
+	}
+
+	public String getIdxRouting() {
+		return idxRouting;
+	}
+
+	public String getIdxPreference() {
+		return idxPreference;
+	}
+
+	public boolean isIdxSearchCombined() {
+		return idxSearchCombined;
+	}
+
+	public String[] getResultSourceIncludes() {
+		return resultSourceIncludes;
+	}
+
 	public List<Map<String, String>> getResultMapping() {
 		return resultMapping;
 	}
 
+	public LookupCircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	public AdaptiveBatchSizer getBatchSizer() {
+		return batchSizer;
+	}
+
+	public LookupBackend getLookupBackend() {
+		return lookupBackend;
+	}
+
+	/**
+	 * Set backend to perform lookups in. Allows to use custom {@link LookupBackend} implementation. Backend is used as
+	 * is, wrap it into {@link CircuitBreakingLookupBackend} or {@link CachingLookupBackend} if needed.
+	 * 
+	 * @param lookupBackend to be used
+	 */
+	public void setLookupBackend(LookupBackend lookupBackend) {
+		this.lookupBackend = lookupBackend;
+	}
+
+	@Override
+	public Set<String> getReadFields() {
+		Set<String> ret = new LinkedHashSet<String>();
+		if (sourceField != null)
+			ret.add(sourceField);
+		else
+			ret.addAll(ValueUtils.getPatternKeys(sourceValuePattern));
+		ret.addAll(ValueUtils.getPatternKeys(idxRouting));
+		for (Map<String, String> mappingRecord : resultMapping) {
+			ret.addAll(ValueUtils.getPatternKeys(mappingRecord.get(CFG_value_default)));
+		}
+		return toFieldSet(ret);
+	}
+
+	@Override
+	public Set<String> getWrittenFields() {
+		List<String> ret = new ArrayList<String>();
+		for (Map<String, String> mappingRecord : resultMapping) {
+			ret.add(mappingRecord.get(CFG_target_field));
+		}
+		return toFieldSet(ret);
+	}
+
+	@Override
+	public int getCostHint() {
+		return COST_EXPENSIVE;
+	}
+
+	/**
+	 * @return true as lookups wait for remote cluster
+	 */
+	@Override
+	protected boolean isBlockingValueProcessing() {
+		return true;
+	}
+
 }
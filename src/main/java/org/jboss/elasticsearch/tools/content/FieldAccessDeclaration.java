@@ -0,0 +1,41 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.Set;
+
+/**
+ * Optional interface of {@link StructuredContentPreprocessor} declaring which fields of data are read and written by
+ * it, so {@link PreprocessChain} can reason about dependencies between preprocessors (see
+ * {@link PreprocessChainDependencyGraph}). Fields are in dot notation for deeper nesting and are relative to the root
+ * of preprocessed data (so fields of preprocessor using <code>source_bases</code> concept are prefixed by each base).
+ * Field covers all its nested fields too, so eg. <code>fields</code> and <code>fields.summary</code> overlap.
+ * Declarations are available after preprocessor is initialized.
+ * <p>
+ * Declarations must be conservative - preprocessor must not touch any field not declared. If it is not possible to
+ * tell which fields are accessed (eg. for script) then <code>null</code> is returned, which means "any field".
+ * Preprocessors not implementing this interface are handled as accessing any field.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see StructuredContentPreprocessorBase
+ */
+public interface FieldAccessDeclaration {
+
+	/**
+	 * Get fields read by preprocessor.
+	 * 
+	 * @return set of fields, empty if no field is read, <code>null</code> if any field may be read
+	 */
+	Set<String> getReadFields();
+
+	/**
+	 * Get fields written (added, changed or removed) by preprocessor.
+	 * 
+	 * @return set of fields, empty if no field is written, <code>null</code> if any field may be written
+	 */
+	Set<String> getWrittenFields();
+
+}
@@ -0,0 +1,165 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Filter used by {@link PreprocessChain} to skip preprocessors whose input fields are not present in data item, see
+ * {@link RequiredInputDeclaration}. Summary of field presence is computed once at the beginning of data item
+ * preprocessing as bitmap of top level keys of all required input fields in chain (see
+ * {@link #computePresence(Map)}), and updated after each called preprocessor from fields it declares to write (see
+ * {@link #updatePresence(int, long, Map, Map)}). Preprocessor is skipped if no one of top level keys of its required
+ * inputs is present in data item, so it is never touched then. Presence is tracked at top level only, so preprocessor
+ * requiring <code>author.name</code> is called for each data item containing <code>author</code>. Field removed by
+ * preprocessor is still handled as present, preprocessor requiring it is only called for nothing then. At most
+ * {@value #MAX_TRACKED_FIELDS} top level keys are tracked, preprocessors requiring other keys are always called.
+ * Instances are immutable and thread safe.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class FieldPresenceFilter {
+
+	/**
+	 * Max number of tracked top level keys, given by size of bitmap.
+	 */
+	public static final int MAX_TRACKED_FIELDS = 64;
+
+	protected final List<String> trackedFields;
+
+	/**
+	 * Bitmap of required top level keys for each preprocessor, 0 if preprocessor is always called.
+	 */
+	protected final long[] requiredMasks;
+
+	/**
+	 * Bitmap of written top level keys for each preprocessor, -1 if written fields are not declared.
+	 */
+	protected final long[] writtenMasks;
+
+	private final boolean active;
+
+	/**
+	 * Create filter.
+	 * 
+	 * @param preprocessors to create filter for, indexes in this list are used as stage numbers in other methods
+	 */
+	public FieldPresenceFilter(List<StructuredContentPreprocessor> preprocessors) {
+		List<String> tracked = new ArrayList<String>();
+		requiredMasks = new long[preprocessors.size()];
+		writtenMasks = new long[preprocessors.size()];
+		boolean active = false;
+		for (int i = 0; i < preprocessors.size(); i++) {
+			StructuredContentPreprocessor p = preprocessors.get(i);
+			Set<String> required = null;
+			if (p instanceof RequiredInputDeclaration)
+				required = ((RequiredInputDeclaration) p).getRequiredInputFields();
+			if (required == null || required.isEmpty())
+				continue;
+			long mask = 0;
+			for (String field : required) {
+				String key = topLevelKey(field);
+				int idx = tracked.indexOf(key);
+				if (idx < 0 && tracked.size() < MAX_TRACKED_FIELDS) {
+					tracked.add(key);
+					idx = tracked.size() - 1;
+				}
+				if (idx < 0) {
+					// untracked key may be present
+					mask = 0;
+					break;
+				}
+				mask |= 1L << idx;
+			}
+			requiredMasks[i] = mask;
+			if (mask != 0)
+				active = true;
+		}
+		for (int i = 0; i < preprocessors.size(); i++) {
+			StructuredContentPreprocessor p = preprocessors.get(i);
+			Set<String> written = null;
+			if (p instanceof FieldAccessDeclaration)
+				written = ((FieldAccessDeclaration) p).getWrittenFields();
+			if (written == null) {
+				writtenMasks[i] = -1L;
+			} else {
+				for (String field : written) {
+					int idx = tracked.indexOf(topLevelKey(field));
+					if (idx >= 0)
+						writtenMasks[i] |= 1L << idx;
+				}
+			}
+		}
+		this.trackedFields = Collections.unmodifiableList(tracked);
+		this.active = active;
+	}
+
+	private static String topLevelKey(String field) {
+		int idx = field.indexOf('.');
+		return idx < 0 ? field : field.substring(0, idx);
+	}
+
+	/**
+	 * Compute summary of field presence for data item.
+	 * 
+	 * @param data item to compute summary for, not null
+	 * @return bitmap of tracked top level keys with not null value in data item
+	 */
+	public long computePresence(Map<String, Object> data) {
+		long presence = 0;
+		for (int i = 0; i < trackedFields.size(); i++) {
+			if (data.get(trackedFields.get(i)) != null)
+				presence |= 1L << i;
+		}
+		return presence;
+	}
+
+	/**
+	 * Check if preprocessor may be skipped.
+	 * 
+	 * @param stage index of preprocessor
+	 * @param presence current summary of field presence
+	 * @return true if no one of required input fields of preprocessor is present
+	 */
+	public boolean canSkip(int stage, long presence) {
+		long mask = requiredMasks[stage];
+		return mask != 0 && (presence & mask) == 0;
+	}
+
+	/**
+	 * Update summary of field presence after preprocessor is called.
+	 * 
+	 * @param stage index of called preprocessor
+	 * @param presence summary of field presence before preprocessor is called
+	 * @param input data item passed to preprocessor
+	 * @param output data item returned from preprocessor, not null
+	 * @return updated summary
+	 */
+	public long updatePresence(int stage, long presence, Map<String, Object> input, Map<String, Object> output) {
+		if (output != input || writtenMasks[stage] == -1L)
+			return computePresence(output);
+		return presence | writtenMasks[stage];
+	}
+
+	/**
+	 * @return true if some preprocessor may be skipped
+	 */
+	public boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * @return unmodifiable list of tracked top level keys, index in list is bit index in presence summary
+	 */
+	public List<String> getTrackedFields() {
+		return trackedFields;
+	}
+
+}
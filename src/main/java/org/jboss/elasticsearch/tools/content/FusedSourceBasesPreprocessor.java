@@ -0,0 +1,338 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.SettingsException;
+
+/**
+ * Group of consecutive {@link StructuredContentPreprocessorWithSourceBasesBase} preprocessors with the same
+ * <code>source_bases</code> which walks each base only once and applies all preprocessors of group on each element,
+ * instead of walking all elements again by each preprocessor. Values of each base are extracted only once and each
+ * element is processed by all preprocessors while it is hot in CPU cache. Values of one base are processed in parallel
+ * only if all grouped preprocessors have parallel processing enabled, with the lowest threshold used (see
+ * {@link StructuredContentPreprocessorWithSourceBasesBase#getParallelThreshold()}).
+ * <p>
+ * Grouped preprocessors must be already initialized. Result is the same as if preprocessors are called one by one only
+ * if no one of them reads or writes field outside of bases which is written or read by other one (see
+ * {@link #canBeFused(List, StructuredContentPreprocessor)}). {@link PreprocessChain} fuses consecutive preprocessors
+ * automatically, see {@link PreprocessChain#setFuseSourceBases(boolean)}. Instances are thread safe if grouped
+ * preprocessors are.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class FusedSourceBasesPreprocessor implements StructuredContentPreprocessor, FieldAccessDeclaration,
+		PreprocessorCostHint, RequiredInputDeclaration {
+
+	protected final List<StructuredContentPreprocessorWithSourceBasesBase<?>> preprocessors;
+
+	protected final List<String> sourceBases;
+
+	private final String name;
+
+	private final int parallelThreshold;
+
+	/**
+	 * Create group.
+	 * 
+	 * @param preprocessors to group, initialized already. All of them must have the same <code>source_bases</code>.
+	 * @throws IllegalArgumentException if preprocessors can't be grouped
+	 */
+	public FusedSourceBasesPreprocessor(List<? extends StructuredContentPreprocessorWithSourceBasesBase<?>> preprocessors)
+			throws IllegalArgumentException {
+		if (preprocessors == null || preprocessors.isEmpty())
+			throw new IllegalArgumentException("preprocessors must be defined");
+		this.sourceBases = preprocessors.get(0).getSourceBases();
+		StringBuilder sb = new StringBuilder();
+		int pt = Integer.MAX_VALUE;
+		for (StructuredContentPreprocessorWithSourceBasesBase<?> p : preprocessors) {
+			pt = Math.min(pt, p.getParallelThreshold());
+			if (p.getSourceBases() == null || !p.getSourceBases().equals(sourceBases))
+				throw new IllegalArgumentException("Preprocessor '" + p.getName()
+						+ "' must have the same source_bases as other preprocessors in group");
+			if (sb.length() > 0)
+				sb.append(", ");
+			sb.append(p.getName());
+		}
+		this.preprocessors = Collections
+				.unmodifiableList(new ArrayList<StructuredContentPreprocessorWithSourceBasesBase<?>>(preprocessors));
+		this.name = sb.toString();
+		this.parallelThreshold = pt;
+	}
+
+	/**
+	 * Nothing is done as grouped preprocessors are initialized already.
+	 */
+	@Override
+	public void init(String name, Client client, Map<String, Object> settings) throws SettingsException {
+	}
+
+	/**
+	 * @return names of grouped preprocessors separated by comma
+	 */
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public Map<String, Object> preprocessData(Map<String, Object> data) {
+		return preprocessData(data, null);
+	}
+
+	@Override
+	public Map<String, Object> preprocessData(Map<String, Object> data, PreprocessChainContext chainContext) {
+		if (data == null)
+			return null;
+		int size = preprocessors.size();
+		Object[] contexts = new Object[size];
+		for (int i = 0; i < size; i++) {
+			contexts[i] = preprocessors.get(i).createContext(data);
+		}
+		List<String> problems = new ArrayList<String>();
+		for (String base : sourceBases) {
+			List<Map<String, Object>> values = StructuredContentPreprocessorWithSourceBasesBase.extractSourceBaseValues(base,
+					data, problems);
+			if (!problems.isEmpty()) {
+				// each preprocessor reports problems as if it runs alone
+				for (StructuredContentPreprocessorWithSourceBasesBase<?> p : preprocessors) {
+					for (String msg : problems) {
+						p.addDataWarning(chainContext, msg);
+						p.logger.debug(msg);
+					}
+				}
+				problems.clear();
+			}
+			if (parallelThreshold > 0 && values.size() >= parallelThreshold) {
+				processInParallel(values, data, base, chainContext);
+			} else {
+				for (Map<String, Object> value : values) {
+					processOneSourceValue(value, contexts, base, chainContext);
+				}
+			}
+		}
+		return data;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void processOneSourceValue(Map<String, Object> value, Object[] contexts, String base,
+			PreprocessChainContext chainContext) {
+		for (int i = 0; i < contexts.length; i++) {
+			((StructuredContentPreprocessorWithSourceBasesBase<Object>) preprocessors.get(i)).processOneSourceValue(value,
+					contexts[i], base, chainContext);
+		}
+	}
+
+	private void processInParallel(List<Map<String, Object>> values, final Map<String, Object> data, final String base,
+			PreprocessChainContext chainContext) {
+		final PreprocessChainContext syncContext = chainContext != null ? new PreprocessChain.SynchronizedChainContext(
+				chainContext) : null;
+		StructuredContentPreprocessorWithSourceBasesBase.processInParallel(values,
+				new StructuredContentPreprocessorWithSourceBasesBase.SourceValuesProcessor() {
+					@Override
+					public void processValues(List<Map<String, Object>> values, int from, int to) {
+						Object[] contexts = new Object[preprocessors.size()];
+						for (int i = 0; i < contexts.length; i++) {
+							contexts[i] = preprocessors.get(i).createContext(data);
+						}
+						for (int i = from; i < to; i++) {
+							processOneSourceValue(values.get(i), contexts, base, syncContext);
+						}
+					}
+				}, isBlockingValueProcessing());
+	}
+
+	/**
+	 * Check if processing of value by some of grouped preprocessors may block, see
+	 * {@link StructuredContentPreprocessorWithSourceBasesBase#isBlockingValueProcessing()}.
+	 * 
+	 * @return true if processing of value may block
+	 */
+	protected boolean isBlockingValueProcessing() {
+		for (StructuredContentPreprocessorWithSourceBasesBase<?> p : preprocessors) {
+			if (p.isBlockingValueProcessing())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Check if preprocessor may be added into group. Preprocessor must extend
+	 * {@link StructuredContentPreprocessorWithSourceBasesBase} without overriding
+	 * {@link StructuredContentPreprocessor#preprocessData(Map, PreprocessChainContext)}, have the same
+	 * <code>source_bases</code> as preprocessors in group, declare accessed fields over {@link FieldAccessDeclaration},
+	 * and fields outside of bases (including
+	 * {@link StructuredContentPreprocessorWithSourceBasesBase#getRootReadFields()}) read or written by it must not
+	 * overlap fields written or read by preprocessors in group. Nested bases (eg. <code>comments</code> and
+	 * <code>comments.replies</code>) are not allowed.
+	 * 
+	 * @param group preprocessors already in group, can be empty
+	 * @param candidate preprocessor to be added into group
+	 * @return true if candidate may be added into group
+	 */
+	public static boolean canBeFused(List<StructuredContentPreprocessor> group, StructuredContentPreprocessor candidate) {
+		if (!isFusable(candidate))
+			return false;
+		List<String> bases = ((StructuredContentPreprocessorWithSourceBasesBase<?>) candidate).getSourceBases();
+		for (StructuredContentPreprocessor member : group) {
+			if (!isFusable(member)
+					|| !bases.equals(((StructuredContentPreprocessorWithSourceBasesBase<?>) member).getSourceBases()))
+				return false;
+			StructuredContentPreprocessorWithSourceBasesBase<?> m = (StructuredContentPreprocessorWithSourceBasesBase<?>) member;
+			StructuredContentPreprocessorWithSourceBasesBase<?> c = (StructuredContentPreprocessorWithSourceBasesBase<?>) candidate;
+			if (PreprocessChainDependencyGraph.overlap(outsideOfBases(m.getWrittenFields(), bases), accessed(c))
+					|| PreprocessChainDependencyGraph.overlap(outsideOfBases(c.getWrittenFields(), bases), accessed(m))
+					|| PreprocessChainDependencyGraph.overlap(readOutsideOfBases(m, bases), c.getWrittenFields())
+					|| PreprocessChainDependencyGraph.overlap(readOutsideOfBases(c, bases), m.getWrittenFields()))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isFusable(StructuredContentPreprocessor p) {
+		if (!(p instanceof StructuredContentPreprocessorWithSourceBasesBase))
+			return false;
+		StructuredContentPreprocessorWithSourceBasesBase<?> sbp = (StructuredContentPreprocessorWithSourceBasesBase<?>) p;
+		if (sbp.getSourceBases() == null || sbp.getReadFields() == null || sbp.getWrittenFields() == null)
+			return false;
+		List<String> bases = sbp.getSourceBases();
+		for (int i = 0; i < bases.size(); i++) {
+			for (int j = i + 1; j < bases.size(); j++) {
+				// nested bases are walked one after other
+				if (PreprocessChainDependencyGraph.overlap(bases.get(i), bases.get(j)))
+					return false;
+			}
+		}
+		try {
+			return p.getClass().getMethod("preprocessData", Map.class, PreprocessChainContext.class)
+					.getDeclaringClass() == StructuredContentPreprocessorWithSourceBasesBase.class;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	private static Set<String> accessed(FieldAccessDeclaration fad) {
+		Set<String> ret = new LinkedHashSet<String>(fad.getReadFields());
+		ret.addAll(fad.getWrittenFields());
+		return ret;
+	}
+
+	private static Set<String> readOutsideOfBases(StructuredContentPreprocessorWithSourceBasesBase<?> p,
+			List<String> bases) {
+		Set<String> ret = outsideOfBases(p.getReadFields(), bases);
+		ret.addAll(p.getRootReadFields());
+		return ret;
+	}
+
+	private static Set<String> outsideOfBases(Set<String> fields, List<String> bases) {
+		Set<String> ret = new LinkedHashSet<String>();
+		for (String f : fields) {
+			boolean inside = false;
+			for (String base : bases) {
+				if (f.startsWith(base + ".")) {
+					inside = true;
+					break;
+				}
+			}
+			if (!inside)
+				ret.add(f);
+		}
+		return ret;
+	}
+
+	/**
+	 * Union of fields read by grouped preprocessors.
+	 */
+	@Override
+	public Set<String> getReadFields() {
+		Set<String> ret = new LinkedHashSet<String>();
+		for (StructuredContentPreprocessorWithSourceBasesBase<?> p : preprocessors) {
+			if (p.getReadFields() == null)
+				return null;
+			ret.addAll(p.getReadFields());
+		}
+		return Collections.unmodifiableSet(ret);
+	}
+
+	/**
+	 * Union of fields written by grouped preprocessors.
+	 */
+	@Override
+	public Set<String> getWrittenFields() {
+		Set<String> ret = new LinkedHashSet<String>();
+		for (StructuredContentPreprocessorWithSourceBasesBase<?> p : preprocessors) {
+			if (p.getWrittenFields() == null)
+				return null;
+			ret.addAll(p.getWrittenFields());
+		}
+		return Collections.unmodifiableSet(ret);
+	}
+
+	/**
+	 * Union of required inputs of grouped preprocessors, null if some of them must be called always.
+	 */
+	@Override
+	public Set<String> getRequiredInputFields() {
+		Set<String> ret = new LinkedHashSet<String>();
+		for (StructuredContentPreprocessorWithSourceBasesBase<?> p : preprocessors) {
+			Set<String> fields = p.getRequiredInputFields();
+			if (fields == null || fields.isEmpty())
+				return null;
+			ret.addAll(fields);
+		}
+		return Collections.unmodifiableSet(ret);
+	}
+
+	/**
+	 * Sum of costs of grouped preprocessors.
+	 */
+	@Override
+	public int getCostHint() {
+		int ret = 0;
+		for (StructuredContentPreprocessorWithSourceBasesBase<?> p : preprocessors) {
+			ret += p.getCostHint();
+		}
+		return ret;
+	}
+
+	/**
+	 * True if any of grouped preprocessors may reject data.
+	 */
+	@Override
+	public boolean mayRejectData() {
+		for (StructuredContentPreprocessorWithSourceBasesBase<?> p : preprocessors) {
+			if (p.mayRejectData())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return unmodifiable list of grouped preprocessors
+	 */
+	public List<StructuredContentPreprocessorWithSourceBasesBase<?>> getPreprocessors() {
+		return preprocessors;
+	}
+
+	public List<String> getSourceBases() {
+		return sourceBases;
+	}
+
+	/**
+	 * @return number of values of one base to process them in parallel, 0 if never
+	 */
+	public int getParallelThreshold() {
+		return parallelThreshold;
+	}
+
+}
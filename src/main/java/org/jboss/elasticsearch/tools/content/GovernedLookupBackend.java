@@ -0,0 +1,122 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+
+/**
+ * {@link LookupBackend} wrapper which performs each request to the wrapped backend only with permit acquired from
+ * {@link LookupConcurrencyGovernor}. Waiting for permit is bounded by configured queue timeout and by time budget from
+ * {@link PreprocessChainContext}, {@link ElasticsearchTimeoutException} is thrown if permit is not acquired in time.
+ * {@link #close()} releases JVM-wide governor, see {@link LookupConcurrencyGovernor#releaseGovernor(LookupConcurrencyGovernor)}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see ESLookupValuePreprocessor
+ */
+public class GovernedLookupBackend implements LookupBackend, Closeable {
+
+	protected final LookupBackend delegate;
+	protected final LookupConcurrencyGovernor governor;
+	protected final long queueTimeoutMillis;
+
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param delegate backend to perform lookups in
+	 * @param governor to acquire permits from
+	 * @param queueTimeoutMillis maximal time in millis to wait for permit
+	 * @throws IllegalArgumentException if some parameter is invalid
+	 */
+	public GovernedLookupBackend(LookupBackend delegate, LookupConcurrencyGovernor governor, long queueTimeoutMillis)
+			throws IllegalArgumentException {
+		if (delegate == null)
+			throw new IllegalArgumentException("delegate must be defined");
+		if (governor == null)
+			throw new IllegalArgumentException("governor must be defined");
+		if (queueTimeoutMillis < 0)
+			throw new IllegalArgumentException("queue timeout must not be negative");
+		this.delegate = delegate;
+		this.governor = governor;
+		this.queueTimeoutMillis = queueTimeoutMillis;
+	}
+
+	@Override
+	public LookupResult lookup(String idxSearchField, Object sourceValue, String routing,
+			PreprocessChainContext chainContext) {
+		acquire(chainContext);
+		try {
+			return delegate.lookup(idxSearchField, sourceValue, routing, chainContext);
+		} finally {
+			governor.release();
+		}
+	}
+
+	@Override
+	public Map<String, LookupResult> lookupCombined(List<String> idxSearchFields, Object sourceValue, String routing,
+			PreprocessChainContext chainContext) {
+		acquire(chainContext);
+		try {
+			return delegate.lookupCombined(idxSearchFields, sourceValue, routing, chainContext);
+		} finally {
+			governor.release();
+		}
+	}
+
+	@Override
+	public Map<String, LookupResult> lookupByIds(Collection<String> ids, String routing,
+			PreprocessChainContext chainContext) {
+		acquire(chainContext);
+		try {
+			return delegate.lookupByIds(ids, routing, chainContext);
+		} finally {
+			governor.release();
+		}
+	}
+
+	private void acquire(PreprocessChainContext chainContext) {
+		long timeout = queueTimeoutMillis;
+		long remainingTime = PreprocessChain.getRemainingTimeMillis(chainContext);
+		if (remainingTime >= 0)
+			timeout = Math.min(timeout, remainingTime);
+		if (!governor.acquire(timeout)) {
+			throw new ElasticsearchTimeoutException("No permit acquired from lookup concurrency governor '"
+					+ governor.getName() + "' in " + timeout + "ms");
+		}
+	}
+
+	/**
+	 * Release governor and close wrapped backend if it implements {@link Closeable}.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed.compareAndSet(false, true))
+			LookupConcurrencyGovernor.releaseGovernor(governor);
+		if (delegate instanceof Closeable)
+			((Closeable) delegate).close();
+	}
+
+	public LookupBackend getDelegate() {
+		return delegate;
+	}
+
+	public LookupConcurrencyGovernor getGovernor() {
+		return governor;
+	}
+
+	public long getQueueTimeoutMillis() {
+		return queueTimeoutMillis;
+	}
+
+}
@@ -0,0 +1,261 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+/**
+ * {@link LookupBackend} performing lookups in documents held in memory. Documents can be passed directly or loaded from
+ * local JSON or CSV file using {@link #loadJsonFile(File)} or {@link #loadCsvFile(File)}. Index from field value to
+ * documents is built for each field used for lookup, so lookup costs one hash map access. Lookup key matches if it is
+ * equal to the value of field, or to one of values if field contains list of values. Values are compared as strings,
+ * no any analysis is performed, so lookups behave like {@link ESLookupValuePreprocessor.SearchMode#TERM} search.
+ * Documents must not be changed after backend is created.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class InMemoryLookupBackend extends LookupBackendBase {
+
+	protected final Map<String, Map<String, Object>> documents;
+
+	/**
+	 * Index for each field, from field value to list of identifiers of documents containing it.
+	 */
+	private final Map<String, Map<String, List<String>>> fieldIndexes = new ConcurrentHashMap<String, Map<String, List<String>>>();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param documents map from document identifier to document. Can be null.
+	 * @param idxSearchFields fields index is built for at construction, it is built on first lookup for other fields.
+	 *          Can be null.
+	 * @param resultFields names of fields to be returned in results, <code>_source</code> not included. Can be null.
+	 * @param sourceRequested true if whole document source must be returned in results
+	 * @param sourceIncludes list of fields returned in document source, all fields returned if null
+	 */
+	public InMemoryLookupBackend(Map<String, Map<String, Object>> documents, List<String> idxSearchFields,
+			String[] resultFields, boolean sourceRequested, String[] sourceIncludes) {
+		super(resultFields, sourceRequested, sourceIncludes);
+		if (documents == null)
+			this.documents = Collections.emptyMap();
+		else
+			this.documents = Collections.unmodifiableMap(new LinkedHashMap<String, Map<String, Object>>(documents));
+		if (idxSearchFields != null) {
+			for (String idxSf : idxSearchFields) {
+				getFieldIndex(idxSf);
+			}
+		}
+	}
+
+	@Override
+	public LookupResult lookup(String idxSearchField, Object sourceValue, String routing,
+			PreprocessChainContext chainContext) {
+		String key = sourceValue.toString();
+		if (ID_FIELD.equals(idxSearchField)) {
+			Map<String, Object> doc = documents.get(key);
+			return doc != null ? createLookupResultFromSource(1, doc) : LookupResult.NOT_FOUND;
+		}
+		List<String> ids = getFieldIndex(idxSearchField).get(key);
+		if (ids == null)
+			return LookupResult.NOT_FOUND;
+		return createLookupResultFromSource(ids.size(), documents.get(ids.get(0)));
+	}
+
+	private Map<String, List<String>> getFieldIndex(String field) {
+		Map<String, List<String>> index = fieldIndexes.get(field);
+		if (index == null) {
+			index = buildFieldIndex(field);
+			fieldIndexes.put(field, index);
+		}
+		return index;
+	}
+
+	private Map<String, List<String>> buildFieldIndex(String field) {
+		Map<String, List<String>> index = new LinkedHashMap<String, List<String>>();
+		for (Map.Entry<String, Map<String, Object>> doc : documents.entrySet()) {
+			Object value = XContentMapValues.extractValue(field, doc.getValue());
+			if (value instanceof Collection) {
+				for (Object v : (Collection<?>) value) {
+					addIntoFieldIndex(index, v, doc.getKey());
+				}
+			} else {
+				addIntoFieldIndex(index, value, doc.getKey());
+			}
+		}
+		return index;
+	}
+
+	private void addIntoFieldIndex(Map<String, List<String>> index, Object value, String id) {
+		if (value == null)
+			return;
+		String key = value.toString();
+		List<String> ids = index.get(key);
+		if (ids == null) {
+			ids = new ArrayList<String>(1);
+			index.put(key, ids);
+		}
+		if (!ids.contains(id))
+			ids.add(id);
+	}
+
+	/**
+	 * Load documents from JSON file. File must contain JSON object where keys are document identifiers and values are
+	 * documents (JSON objects).
+	 * 
+	 * @param file to load documents from
+	 * @return map from document identifier to document
+	 * @throws IOException if file can't be read
+	 * @throws IllegalArgumentException if file content is not valid
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Map<String, Object>> loadJsonFile(File file) throws IOException, IllegalArgumentException {
+		Map<String, Object> content = null;
+		try {
+			content = XContentHelper.convertToMap(Streams.copyToByteArray(file), true).v2();
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Invalid JSON content in file " + file + ": " + e.getMessage());
+		}
+		Map<String, Map<String, Object>> ret = new LinkedHashMap<String, Map<String, Object>>();
+		for (Map.Entry<String, Object> e : content.entrySet()) {
+			if (!(e.getValue() instanceof Map))
+				throw new IllegalArgumentException("Document with id '" + e.getKey() + "' in file " + file
+						+ " is not JSON object");
+			ret.put(e.getKey(), (Map<String, Object>) e.getValue());
+		}
+		return ret;
+	}
+
+	/**
+	 * Load documents from CSV file in UTF-8 encoding. First line of file must contain names of columns. Column named
+	 * <code>_id</code> contains document identifiers, first column is used as identifier if there is no such column.
+	 * Each other line represents one document with fields named by columns, values are strings. Empty values are not put
+	 * into documents. Values may be enclosed in double quotes, which allows commas, line breaks and double quotes
+	 * (written as two double quotes) in values.
+	 * 
+	 * @param file to load documents from
+	 * @return map from document identifier to document
+	 * @throws IOException if file can't be read
+	 * @throws IllegalArgumentException if file content is not valid
+	 */
+	public static Map<String, Map<String, Object>> loadCsvFile(File file) throws IOException, IllegalArgumentException {
+		List<List<String>> rows = null;
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			rows = parseCsv(reader);
+		} finally {
+			reader.close();
+		}
+		if (rows.isEmpty())
+			throw new IllegalArgumentException("No header line in CSV file " + file);
+		List<String> header = rows.get(0);
+		int idColumn = header.indexOf(ID_FIELD);
+		if (idColumn < 0)
+			idColumn = 0;
+		Map<String, Map<String, Object>> ret = new LinkedHashMap<String, Map<String, Object>>();
+		for (int r = 1; r < rows.size(); r++) {
+			List<String> row = rows.get(r);
+			if (row.size() == 1 && row.get(0).isEmpty())
+				continue;
+			if (row.size() > header.size())
+				throw new IllegalArgumentException("Line " + (r + 1) + " of CSV file " + file + " has more values than header");
+			String id = idColumn < row.size() ? row.get(idColumn) : null;
+			if (ValueUtils.isEmpty(id))
+				throw new IllegalArgumentException("Missing document id on line " + (r + 1) + " of CSV file " + file);
+			Map<String, Object> doc = new LinkedHashMap<String, Object>();
+			for (int c = 0; c < row.size(); c++) {
+				if (c != idColumn && !row.get(c).isEmpty())
+					doc.put(header.get(c), row.get(c));
+			}
+			ret.put(id, doc);
+		}
+		return ret;
+	}
+
+	/**
+	 * Parse CSV content into rows of values.
+	 * 
+	 * @param reader to read content from
+	 * @return list of rows
+	 * @throws IOException
+	 */
+	protected static List<List<String>> parseCsv(Reader reader) throws IOException {
+		if (!reader.markSupported())
+			reader = new BufferedReader(reader);
+		List<List<String>> rows = new ArrayList<List<String>>();
+		List<String> row = new ArrayList<String>();
+		StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		boolean rowStarted = false;
+		int c;
+		while ((c = reader.read()) != -1) {
+			if (quoted) {
+				if (c == '"') {
+					reader.mark(1);
+					int next = reader.read();
+					if (next == '"') {
+						value.append('"');
+					} else {
+						quoted = false;
+						if (next != -1)
+							reader.reset();
+					}
+				} else {
+					value.append((char) c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+				rowStarted = true;
+			} else if (c == ',') {
+				row.add(value.toString());
+				value.setLength(0);
+				rowStarted = true;
+			} else if (c == '\n' || c == '\r') {
+				if (c == '\r') {
+					reader.mark(1);
+					if (reader.read() != '\n')
+						reader.reset();
+				}
+				row.add(value.toString());
+				rows.add(row);
+				row = new ArrayList<String>();
+				value.setLength(0);
+				rowStarted = false;
+			} else {
+				value.append((char) c);
+				rowStarted = true;
+			}
+		}
+		if (rowStarted || value.length() > 0) {
+			row.add(value.toString());
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	/**
+	 * @return unmodifiable map from document identifier to document
+	 */
+	public Map<String, Map<String, Object>> getDocuments() {
+		return documents;
+	}
+
+}
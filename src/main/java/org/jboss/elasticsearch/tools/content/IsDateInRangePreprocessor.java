@@ -7,9 +7,13 @@ package org.jboss.elasticsearch.tools.content;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.elasticsearch.common.settings.SettingsException;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
@@ -69,7 +73,11 @@ public class IsDateInRangePreprocessor extends StructuredContentPreprocessorWith
 	protected static final String CFG_RESULT_FIELD = "result_field";
 	protected static final String CFG_DEFAULT_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSXX";
 
-	protected SimpleDateFormat dateFormatter = new SimpleDateFormat();
+	/**
+	 * Date formats prepared for configured patterns in {@link #init(Map)}. {@link SimpleDateFormat} is not thread safe,
+	 * so they are not used directly but cloned for each parsing.
+	 */
+	protected Map<String, SimpleDateFormat> dateFormats;
 
 	protected String leftDateField;
 	protected String rightDateField;
@@ -105,6 +113,24 @@ public class IsDateInRangePreprocessor extends StructuredContentPreprocessorWith
 			throw new SettingsException("At least one of dates defining range, settings/" + CFG_LEFT_DATE + " or settings/"
 					+ CFG_RIGHT_DATE + " need to be provided.");
 		}
+
+		Map<String, SimpleDateFormat> df = new HashMap<String, SimpleDateFormat>();
+		prepareDateFormat(df, leftDateFormat, CFG_LEFT_DATE_FORMAT);
+		prepareDateFormat(df, rightDateFormat, CFG_RIGHT_DATE_FORMAT);
+		prepareDateFormat(df, checkedDateFormat, CFG_CHECKED_DATE_FORMAT);
+		dateFormats = Collections.unmodifiableMap(df);
+	}
+
+	private void prepareDateFormat(Map<String, SimpleDateFormat> df, String pattern, String configFieldName)
+			throws SettingsException {
+		if (!df.containsKey(pattern)) {
+			try {
+				df.put(pattern, new SimpleDateFormat(pattern));
+			} catch (IllegalArgumentException e) {
+				throw new SettingsException("'settings/" + configFieldName + "' configuration value for '" + name
+						+ "' preprocessor is invalid: " + e.getMessage());
+			}
+		}
 	}
 
 	@Override
@@ -189,17 +215,14 @@ public class IsDateInRangePreprocessor extends StructuredContentPreprocessorWith
 			} else {
 				String dateStr = dateFieldData.toString();
 				if (dateStr != null && !dateStr.isEmpty()) {
-				    synchronized(dateFormatter) {
-    					dateFormatter.applyPattern(dateFormat);
-    					try {
-    						resultDate = dateFormatter.parse(dateStr);
-    					} catch (ParseException e) {
-    						String msg = dateField + " parameter value of " + dateStr + " could not be parsed using " + dateFormat
-    								+ " format.";
-    						addDataWarning(chainContext, msg);
-    						throw new DataProblemException();
-    					}
-				    }
+					try {
+						resultDate = createDateFormat(dateFormat).parse(dateStr);
+					} catch (ParseException e) {
+						String msg = dateField + " parameter value of " + dateStr + " could not be parsed using " + dateFormat
+								+ " format.";
+						addDataWarning(chainContext, msg);
+						throw new DataProblemException();
+					}
 				}
 			}
 		}
@@ -207,6 +230,19 @@ public class IsDateInRangePreprocessor extends StructuredContentPreprocessorWith
 		return resultDate;
 	}
 
+	/**
+	 * Get date format for pattern which can be used by current thread.
+	 * 
+	 * @param pattern of date format
+	 * @return date format not shared with other threads
+	 */
+	protected SimpleDateFormat createDateFormat(String pattern) {
+		SimpleDateFormat prepared = dateFormats != null ? dateFormats.get(pattern) : null;
+		if (prepared != null)
+			return (SimpleDateFormat) prepared.clone();
+		return new SimpleDateFormat(pattern);
+	}
+
 	/**
 	 * Overrided warnings handler helps to save the information that any data parsing was problematic. If anything wrong
 	 * happened during the processing of data, we don't want to preprocess on it further on.
@@ -223,4 +259,28 @@ public class IsDateInRangePreprocessor extends StructuredContentPreprocessorWith
 		private static final long serialVersionUID = 1L;
 	}
 
+	/**
+	 * Checked date is read from the root of data if "source_bases" concept is used.
+	 */
+	@Override
+	public Set<String> getReadFields() {
+		if (sourceBases == null)
+			return toFieldSet(leftDateField, rightDateField, checkedDateField);
+		Set<String> ret = new LinkedHashSet<String>(toFieldSet(leftDateField, rightDateField));
+		ret.addAll(getRootReadFields());
+		return Collections.unmodifiableSet(ret);
+	}
+
+	@Override
+	public Set<String> getRootReadFields() {
+		if (sourceBases == null)
+			return Collections.emptySet();
+		return toRootFieldSet(checkedDateField);
+	}
+
+	@Override
+	public Set<String> getWrittenFields() {
+		return toFieldSet(resultField);
+	}
+
 }
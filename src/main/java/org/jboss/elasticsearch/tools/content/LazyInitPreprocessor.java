@@ -0,0 +1,148 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.SettingsException;
+
+/**
+ * Wrapper which postpones initialization of other {@link StructuredContentPreprocessor} until it is used for the
+ * first time, so expensive initialization (scripting engine creation, reference data loading) doesn't slow down
+ * chain construction. Used by {@link StructuredContentPreprocessorFactory} for preprocessors with
+ * <code>lazy_init</code> configuration element set to <code>true</code>. Note that configuration errors are reported
+ * by first {@link #preprocessData(Map, PreprocessChainContext)} call then, and again on each next call. Instances are
+ * thread safe, wrapped preprocessor is initialized only once. {@link FieldAccessDeclaration} of wrapped preprocessor is
+ * available only after it is initialized, so before it any field access is reported. The same applies to
+ * {@link RequiredInputDeclaration}. {@link PreprocessorCostHint} of wrapped preprocessor is available always.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class LazyInitPreprocessor implements StructuredContentPreprocessor, FieldAccessDeclaration, PreprocessorCostHint,
+		RequiredInputDeclaration, Closeable {
+
+	protected final StructuredContentPreprocessor delegate;
+
+	private String name;
+	private Client client;
+	private Map<String, Object> settings;
+	private volatile boolean initialized = false;
+
+	/**
+	 * Create wrapper.
+	 * 
+	 * @param delegate preprocessor to be initialized lazily, not initialized yet
+	 */
+	public LazyInitPreprocessor(StructuredContentPreprocessor delegate) {
+		if (delegate == null)
+			throw new IllegalArgumentException("delegate must be defined");
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Store configuration for later initialization of wrapped preprocessor.
+	 */
+	@Override
+	public synchronized void init(String name, Client client, Map<String, Object> settings) throws SettingsException {
+		this.name = name;
+		this.client = client;
+		this.settings = settings;
+		this.initialized = false;
+	}
+
+	/**
+	 * Initialize wrapped preprocessor if not initialized yet.
+	 * 
+	 * @throws SettingsException if wrapped preprocessor configuration is invalid
+	 */
+	public void ensureInitialized() throws SettingsException {
+		if (initialized)
+			return;
+		synchronized (this) {
+			if (initialized)
+				return;
+			delegate.init(name, client, settings);
+			settings = null;
+			initialized = true;
+		}
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public Map<String, Object> preprocessData(Map<String, Object> data) {
+		return preprocessData(data, null);
+	}
+
+	@Override
+	public Map<String, Object> preprocessData(Map<String, Object> data, PreprocessChainContext chainContext) {
+		ensureInitialized();
+		return delegate.preprocessData(data, chainContext);
+	}
+
+	@Override
+	public Set<String> getReadFields() {
+		if (initialized && delegate instanceof FieldAccessDeclaration)
+			return ((FieldAccessDeclaration) delegate).getReadFields();
+		return null;
+	}
+
+	@Override
+	public Set<String> getWrittenFields() {
+		if (initialized && delegate instanceof FieldAccessDeclaration)
+			return ((FieldAccessDeclaration) delegate).getWrittenFields();
+		return null;
+	}
+
+	@Override
+	public Set<String> getRequiredInputFields() {
+		if (initialized && delegate instanceof RequiredInputDeclaration)
+			return ((RequiredInputDeclaration) delegate).getRequiredInputFields();
+		return null;
+	}
+
+	@Override
+	public int getCostHint() {
+		if (delegate instanceof PreprocessorCostHint)
+			return ((PreprocessorCostHint) delegate).getCostHint();
+		return COST_MODERATE;
+	}
+
+	@Override
+	public boolean mayRejectData() {
+		if (delegate instanceof PreprocessorCostHint)
+			return ((PreprocessorCostHint) delegate).mayRejectData();
+		return false;
+	}
+
+	/**
+	 * Close wrapped preprocessor if it is initialized and implements {@link Closeable}.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (initialized && delegate instanceof Closeable)
+			((Closeable) delegate).close();
+	}
+
+	/**
+	 * @return true if wrapped preprocessor is initialized already
+	 */
+	public boolean isInitialized() {
+		return initialized;
+	}
+
+	public StructuredContentPreprocessor getDelegate() {
+		return delegate;
+	}
+
+}
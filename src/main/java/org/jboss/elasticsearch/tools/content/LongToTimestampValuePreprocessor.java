@@ -7,6 +7,7 @@ package org.jboss.elasticsearch.tools.content;
 
 import java.util.Date;
 import java.util.Map;
+import java.util.Set;
 
 import org.elasticsearch.common.settings.SettingsException;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
@@ -111,4 +112,27 @@ public class LongToTimestampValuePreprocessor extends StructuredContentPreproces
 		return fieldTarget;
 	}
 
+	@Override
+	public Set<String> getReadFields() {
+		return toFieldSet(fieldSource);
+	}
+
+	@Override
+	public Set<String> getWrittenFields() {
+		return toFieldSet(fieldTarget);
+	}
+
+	/**
+	 * Nothing is done if source field is not present.
+	 */
+	@Override
+	public Set<String> getRequiredInputFields() {
+		return toFieldSet(fieldSource);
+	}
+
+	@Override
+	public int getCostHint() {
+		return COST_CHEAP;
+	}
+
 }
@@ -0,0 +1,59 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Source of documents for lookups performed by {@link ESLookupValuePreprocessor}. Backend is responsible for finding
+ * documents by lookup key only, mapping of results into data and default values handling is done by preprocessor.
+ * Special field name <code>_id</code> is used for lookups by document identifier. Implementations must be thread
+ * safe.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see ESLookupBackend
+ * @see InMemoryLookupBackend
+ */
+public interface LookupBackend {
+
+	/**
+	 * Lookup documents where field contains lookup key.
+	 * 
+	 * @param idxSearchField field to search lookup key in, <code>_id</code> for lookup by document identifier
+	 * @param sourceValue lookup key, never null
+	 * @param routing used to select shard to lookup in, can be null. Ignored by backends without shards.
+	 * @param chainContext used to bound lookup duration by time budget, can be null
+	 * @return result of lookup, never null
+	 */
+	LookupResult lookup(String idxSearchField, Object sourceValue, String routing, PreprocessChainContext chainContext);
+
+	/**
+	 * Lookup documents where some of fields contains lookup key. Result is provided for each field separately.
+	 * 
+	 * @param idxSearchFields fields to search lookup key in
+	 * @param sourceValue lookup key, never null
+	 * @param routing used to select shard to lookup in, can be null. Ignored by backends without shards.
+	 * @param chainContext used to bound lookup duration by time budget, can be null
+	 * @return map with result of lookup for each of <code>idxSearchFields</code>, never null. Field missing in map is
+	 *         handled as not found.
+	 */
+	Map<String, LookupResult> lookupCombined(List<String> idxSearchFields, Object sourceValue, String routing,
+			PreprocessChainContext chainContext);
+
+	/**
+	 * Lookup more documents by their identifiers at once.
+	 * 
+	 * @param ids identifiers of documents
+	 * @param routing used to select shard to lookup in, can be null. Ignored by backends without shards.
+	 * @param chainContext used to bound lookup duration by time budget, can be null
+	 * @return map with result of lookup for each identifier, identifier may be missing in map if lookup failed for it.
+	 *         Never null.
+	 */
+	Map<String, LookupResult> lookupByIds(Collection<String> ids, String routing, PreprocessChainContext chainContext);
+
+}
@@ -0,0 +1,104 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+/**
+ * Base for {@link LookupBackend} implementations. Keeps definition of result fields requested by preprocessor, and
+ * implements combined and multiple identifiers lookups by calling
+ * {@link #lookup(String, Object, String, PreprocessChainContext)} repeatedly.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public abstract class LookupBackendBase implements LookupBackend {
+
+	protected static final String ID_FIELD = "_id";
+	protected static final String SOURCE_FIELD = "_source";
+
+	protected final String[] resultFields;
+	protected final boolean sourceRequested;
+	protected final String[] sourceIncludes;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param resultFields names of fields to be returned in results, <code>_source</code> not included. Can be null.
+	 * @param sourceRequested true if whole document source must be returned in results
+	 * @param sourceIncludes list of fields returned in document source, all fields returned if null
+	 */
+	protected LookupBackendBase(String[] resultFields, boolean sourceRequested, String[] sourceIncludes) {
+		this.resultFields = resultFields != null ? resultFields : new String[0];
+		this.sourceRequested = sourceRequested;
+		this.sourceIncludes = sourceIncludes;
+	}
+
+	@Override
+	public Map<String, LookupResult> lookupCombined(List<String> idxSearchFields, Object sourceValue, String routing,
+			PreprocessChainContext chainContext) {
+		Map<String, LookupResult> ret = new HashMap<String, LookupResult>();
+		for (String idxSf : idxSearchFields) {
+			ret.put(idxSf, lookup(idxSf, sourceValue, routing, chainContext));
+		}
+		return ret;
+	}
+
+	@Override
+	public Map<String, LookupResult> lookupByIds(Collection<String> ids, String routing,
+			PreprocessChainContext chainContext) {
+		Map<String, LookupResult> ret = new HashMap<String, LookupResult>();
+		for (String id : ids) {
+			ret.put(id, lookup(ID_FIELD, id, routing, chainContext));
+		}
+		return ret;
+	}
+
+	/**
+	 * Create lookup result from source of found document. Values of result fields are read from source, first value is
+	 * used for fields containing list of values, same as Elasticsearch does for fields not stored in index.
+	 * 
+	 * @param totalHits number of documents matching lookup key
+	 * @param source of first matching document, can be null
+	 * @return lookup result
+	 */
+	protected LookupResult createLookupResultFromSource(long totalHits, Map<String, Object> source) {
+		if (totalHits == 0)
+			return LookupResult.NOT_FOUND;
+		Map<String, Object> fields = new HashMap<String, Object>();
+		if (source != null) {
+			for (String field : resultFields) {
+				Object v = XContentMapValues.extractValue(field, source);
+				if (v instanceof List)
+					v = ((List<?>) v).isEmpty() ? null : ((List<?>) v).get(0);
+				if (v != null)
+					fields.put(field, v);
+			}
+			if (sourceRequested) {
+				fields.put(SOURCE_FIELD, sourceIncludes != null ? XContentMapValues.filter(source, sourceIncludes, null)
+						: source);
+			}
+		}
+		return new LookupResult(totalHits, fields);
+	}
+
+	public String[] getResultFields() {
+		return resultFields;
+	}
+
+	public boolean isSourceRequested() {
+		return sourceRequested;
+	}
+
+	public String[] getSourceIncludes() {
+		return sourceIncludes;
+	}
+
+}
@@ -0,0 +1,246 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+
+/**
+ * Memory mapped local file used to persist lookup results cached by {@link CachingLookupBackend}, so cache is warm
+ * after restart. File has fixed capacity and contains header (format version and configuration version) followed by
+ * records appended one after another. Each record contains cache key, time result has been loaded at, and result
+ * itself, serialized as JSON. Whole file content is dropped if format version or configuration version doesn't match,
+ * so results cached for different lookup configuration are never used. File must not be shared by more caches.
+ * Instances are thread safe.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class LookupCacheFile implements Closeable {
+
+	private static final ESLogger logger = Loggers.getLogger(LookupCacheFile.class);
+
+	/**
+	 * Version of file format.
+	 */
+	public static final int FORMAT_VERSION = 1;
+
+	private static final int MAGIC = 0x53435443;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String REC_KEY = "k";
+	private static final String REC_LOADED_AT = "t";
+	private static final String REC_VALUE = "v";
+	private static final String VAL_TOTAL_HITS = "h";
+	private static final String VAL_FIELDS = "f";
+	private static final String VAL_COMBINED = "c";
+
+	protected final File file;
+	protected final String configVersion;
+	protected final int capacity;
+
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer buffer;
+	private final int headerSize;
+
+	/**
+	 * Open file, create it if it doesn't exist. Content is dropped if it is not compatible.
+	 * 
+	 * @param file to store results into
+	 * @param configVersion version of lookup configuration, stored results are used only if it is same as at time they
+	 *          have been stored
+	 * @param capacity of file in bytes
+	 * @throws IOException if file can't be opened
+	 */
+	public LookupCacheFile(File file, String configVersion, int capacity) throws IOException {
+		this.file = file;
+		this.configVersion = configVersion != null ? configVersion : "";
+		byte[] cv = this.configVersion.getBytes(UTF8);
+		this.headerSize = 12 + cv.length;
+		if (capacity < headerSize + 4)
+			throw new IllegalArgumentException("capacity is too low");
+		this.capacity = capacity;
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+		if (!isHeaderValid(cv)) {
+			logger.debug("Lookup cache file {} is not compatible, so it is reset", file);
+			reset();
+		}
+	}
+
+	private boolean isHeaderValid(byte[] cv) {
+		buffer.position(0);
+		if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION || buffer.getInt() != cv.length)
+			return false;
+		byte[] stored = new byte[cv.length];
+		buffer.get(stored);
+		for (int i = 0; i < cv.length; i++) {
+			if (stored[i] != cv[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Drop all stored records.
+	 */
+	public synchronized void reset() {
+		buffer.position(0);
+		buffer.putInt(MAGIC);
+		buffer.putInt(FORMAT_VERSION);
+		byte[] cv = configVersion.getBytes(UTF8);
+		buffer.putInt(cv.length);
+		buffer.put(cv);
+		buffer.putInt(0);
+		buffer.position(headerSize);
+	}
+
+	/**
+	 * Read all stored records. Reading stops at first corrupted record.
+	 * 
+	 * @return list of records in order they have been appended
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<Record> readAll() {
+		List<Record> ret = new ArrayList<Record>();
+		int pos = headerSize;
+		while (pos + 4 <= capacity) {
+			int length = buffer.getInt(pos);
+			if (length <= 0 || pos + 4 + length > capacity)
+				break;
+			byte[] data = new byte[length];
+			buffer.position(pos + 4);
+			buffer.get(data);
+			try {
+				Map<String, Object> rec = XContentHelper.convertToMap(data, false).v2();
+				ret.add(new Record((List<Object>) rec.get(REC_KEY), ((Number) rec.get(REC_LOADED_AT)).longValue(),
+						deserializeValue((Map<String, Object>) rec.get(REC_VALUE))));
+			} catch (RuntimeException e) {
+				logger.warn("Corrupted record in lookup cache file {}, rest of file is ignored: {}", file, e.getMessage());
+				break;
+			}
+			pos += 4 + length;
+		}
+		buffer.position(pos);
+		return ret;
+	}
+
+	/**
+	 * Append record to the file. {@link #readAll()} must be called before first append, so end of stored records is
+	 * known.
+	 * 
+	 * @param key of cached value
+	 * @param loadedAt time value has been loaded at
+	 * @param value cached value, {@link LookupResult} or map of them
+	 * @return true if appended, false if there is not enough space in file
+	 * @throws IOException if value can't be serialized
+	 */
+	public synchronized boolean append(List<Object> key, long loadedAt, Object value) throws IOException {
+		Map<String, Object> rec = new HashMap<String, Object>();
+		rec.put(REC_KEY, key);
+		rec.put(REC_LOADED_AT, loadedAt);
+		rec.put(REC_VALUE, serializeValue(value));
+		XContentBuilder builder = XContentFactory.jsonBuilder().map(rec);
+		byte[] data = builder.bytes().toBytes();
+		int pos = buffer.position();
+		if (pos + 4 + data.length + 4 > capacity)
+			return false;
+		buffer.putInt(pos + 4 + data.length, 0);
+		buffer.position(pos + 4);
+		buffer.put(data);
+		buffer.putInt(pos, data.length);
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> serializeValue(Object value) {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		if (value instanceof LookupResult) {
+			LookupResult lr = (LookupResult) value;
+			ret.put(VAL_TOTAL_HITS, lr.getTotalHits());
+			ret.put(VAL_FIELDS, lr.fields);
+		} else {
+			Map<String, Object> combined = new LinkedHashMap<String, Object>();
+			for (Map.Entry<String, LookupResult> e : ((Map<String, LookupResult>) value).entrySet()) {
+				combined.put(e.getKey(), serializeValue(e.getValue()));
+			}
+			ret.put(VAL_COMBINED, combined);
+		}
+		return ret;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object deserializeValue(Map<String, Object> value) {
+		if (value.containsKey(VAL_COMBINED)) {
+			Map<String, LookupResult> ret = new HashMap<String, LookupResult>();
+			for (Map.Entry<String, Object> e : ((Map<String, Object>) value.get(VAL_COMBINED)).entrySet()) {
+				ret.put(e.getKey(), (LookupResult) deserializeValue((Map<String, Object>) e.getValue()));
+			}
+			return ret;
+		}
+		long totalHits = ((Number) value.get(VAL_TOTAL_HITS)).longValue();
+		if (totalHits == 0)
+			return LookupResult.NOT_FOUND;
+		return new LookupResult(totalHits, (Map<String, Object>) value.get(VAL_FIELDS));
+	}
+
+	/**
+	 * Force stored records to the disk and close file.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		buffer.force();
+		raf.close();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public String getConfigVersion() {
+		return configVersion;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * One record stored in file.
+	 */
+	public static class Record {
+		public final List<Object> key;
+		public final long loadedAt;
+		public final Object value;
+
+		public Record(List<Object> key, long loadedAt, Object value) {
+			this.key = key;
+			this.loadedAt = loadedAt;
+			this.value = value;
+		}
+	}
+
+}
@@ -0,0 +1,198 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+/**
+ * Circuit breaker used to protect lookups into remote system (eg. Elasticsearch cluster) from repeated calls when the
+ * remote system is failing. Breaker has three states:
+ * <ul>
+ * <li>{@link State#CLOSED} - calls are allowed, results of last <code>windowSize</code> calls are tracked. Breaker is
+ * opened if at least <code>minimumCalls</code> calls are tracked and percentage of failed calls reaches
+ * <code>failureRateThreshold</code>.
+ * <li>{@link State#OPEN} - calls are not allowed, so caller can fail fast and use some fallback. Once
+ * <code>probeIntervalMillis</code> elapses breaker goes to half-open state.
+ * <li>{@link State#HALF_OPEN} - exactly one probe call is allowed. Breaker is closed if probe succeeds, and opened
+ * again if it fails.
+ * </ul>
+ * Instances are thread safe.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see ESLookupValuePreprocessor
+ */
+public class LookupCircuitBreaker {
+
+	/**
+	 * States of circuit breaker.
+	 */
+	public static enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	protected final int failureRateThreshold;
+	protected final int minimumCalls;
+	protected final long probeIntervalMillis;
+
+	/**
+	 * Ring buffer with results of last calls in closed state, <code>true</code> means failure.
+	 */
+	private final boolean[] window;
+	private int windowPosition = 0;
+	private int windowCount = 0;
+	private int windowFailures = 0;
+
+	private volatile State state = State.CLOSED;
+	private long openedAt = 0;
+	private boolean probeInProgress = false;
+
+	/**
+	 * Create circuit breaker.
+	 * 
+	 * @param failureRateThreshold percentage of failed calls (1-100) when breaker is opened
+	 * @param minimumCalls minimal number of calls tracked before failure rate is evaluated
+	 * @param windowSize number of last calls tracked to evaluate failure rate, must be at least <code>minimumCalls</code>
+	 * @param probeIntervalMillis time in millis breaker stays open before probe call is allowed
+	 * @throws IllegalArgumentException if some parameter is invalid
+	 */
+	public LookupCircuitBreaker(int failureRateThreshold, int minimumCalls, int windowSize, long probeIntervalMillis)
+			throws IllegalArgumentException {
+		if (failureRateThreshold < 1 || failureRateThreshold > 100)
+			throw new IllegalArgumentException("failure rate threshold must be between 1 and 100");
+		if (minimumCalls < 1)
+			throw new IllegalArgumentException("minimum calls must be positive");
+		if (windowSize < minimumCalls)
+			throw new IllegalArgumentException("window size must not be lower than minimum calls");
+		if (probeIntervalMillis < 1)
+			throw new IllegalArgumentException("probe interval must be positive");
+		this.failureRateThreshold = failureRateThreshold;
+		this.minimumCalls = minimumCalls;
+		this.probeIntervalMillis = probeIntervalMillis;
+		this.window = new boolean[windowSize];
+	}
+
+	/**
+	 * Check if call is allowed now. If <code>true</code> is returned then caller must report call result over
+	 * {@link #recordSuccess()} or {@link #recordFailure()}.
+	 * 
+	 * @return true if call is allowed
+	 */
+	public boolean allowRequest() {
+		if (state == State.CLOSED)
+			return true;
+		synchronized (this) {
+			if (state == State.CLOSED)
+				return true;
+			if (state == State.OPEN && currentTimeMillis() - openedAt >= probeIntervalMillis) {
+				state = State.HALF_OPEN;
+				probeInProgress = false;
+			}
+			if (state == State.HALF_OPEN && !probeInProgress) {
+				probeInProgress = true;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Record successful call.
+	 */
+	public synchronized void recordSuccess() {
+		if (state == State.HALF_OPEN) {
+			state = State.CLOSED;
+			probeInProgress = false;
+			resetWindow();
+		} else if (state == State.CLOSED) {
+			recordIntoWindow(false);
+		}
+	}
+
+	/**
+	 * Record failed call.
+	 * 
+	 * @return true if breaker has been opened due this failure
+	 */
+	public synchronized boolean recordFailure() {
+		if (state == State.HALF_OPEN) {
+			open();
+			return true;
+		} else if (state == State.CLOSED) {
+			recordIntoWindow(true);
+			if (windowCount >= minimumCalls && windowFailures * 100 >= failureRateThreshold * windowCount) {
+				open();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void open() {
+		state = State.OPEN;
+		openedAt = currentTimeMillis();
+		probeInProgress = false;
+		resetWindow();
+	}
+
+	private void recordIntoWindow(boolean failure) {
+		if (windowCount == window.length) {
+			if (window[windowPosition])
+				windowFailures--;
+		} else {
+			windowCount++;
+		}
+		window[windowPosition] = failure;
+		if (failure)
+			windowFailures++;
+		windowPosition = (windowPosition + 1) % window.length;
+	}
+
+	private void resetWindow() {
+		windowPosition = 0;
+		windowCount = 0;
+		windowFailures = 0;
+	}
+
+	/**
+	 * Get current state of breaker.
+	 * 
+	 * @return state
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Get current time. Can be overridden for tests.
+	 * 
+	 * @return current time in millis
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	public int getFailureRateThreshold() {
+		return failureRateThreshold;
+	}
+
+	public int getMinimumCalls() {
+		return minimumCalls;
+	}
+
+	public int getWindowSize() {
+		return window.length;
+	}
+
+	public long getProbeIntervalMillis() {
+		return probeIntervalMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "LookupCircuitBreaker [state=" + state + ", failureRateThreshold=" + failureRateThreshold
+				+ ", minimumCalls=" + minimumCalls + ", windowSize=" + window.length + ", probeIntervalMillis="
+				+ probeIntervalMillis + "]";
+	}
+
+}
@@ -0,0 +1,24 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import org.elasticsearch.ElasticsearchException;
+
+/**
+ * Exception thrown by {@link CircuitBreakingLookupBackend} if lookup is not performed because
+ * {@link LookupCircuitBreaker} is open.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class LookupCircuitOpenException extends ElasticsearchException {
+
+	private static final long serialVersionUID = 1L;
+
+	public LookupCircuitOpenException(String msg) {
+		super(msg);
+	}
+
+}
@@ -0,0 +1,236 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+/**
+ * Limiter of concurrent lookups shared by all lookup preprocessors in JVM which use the same governor name (see
+ * {@link #getGovernor(String, int)}), so aggregate lookup pressure to the remote system (eg. Elasticsearch cluster) is
+ * capped. Lookup has to acquire one of <code>maxPermits</code> permits before it is performed. Threads waiting for
+ * permit are queued and served in FIFO order, so permits are fairly divided between preprocessors. Waiting is bounded
+ * by timeout. JVM-wide governor is removed from registry when all its users release it over
+ * {@link #releaseGovernor(LookupConcurrencyGovernor)}, so changed configuration is used once all preprocessors are
+ * reinitialized. Instances are thread safe.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see GovernedLookupBackend
+ */
+public class LookupConcurrencyGovernor {
+
+	private static final ESLogger logger = Loggers.getLogger(LookupConcurrencyGovernor.class);
+
+	/**
+	 * Registry of JVM-wide governors, guards {@link #users} too.
+	 */
+	private static final Map<String, LookupConcurrencyGovernor> governors = new HashMap<String, LookupConcurrencyGovernor>();
+
+	/**
+	 * Get JVM-wide governor with given name, create it if not exists yet. Max permits of existing governor are not
+	 * changed, so the first configuration wins and warning is logged if other value is requested. Each call must be
+	 * paired with {@link #releaseGovernor(LookupConcurrencyGovernor)} once governor is not used anymore.
+	 * 
+	 * @param name of governor
+	 * @param maxPermits maximal number of concurrent lookups
+	 * @return governor, never null
+	 * @throws IllegalArgumentException if some parameter is invalid
+	 */
+	public static LookupConcurrencyGovernor getGovernor(String name, int maxPermits) throws IllegalArgumentException {
+		if (ValueUtils.isEmpty(name))
+			throw new IllegalArgumentException("name must be defined");
+		if (maxPermits < 1)
+			throw new IllegalArgumentException("max permits must be positive");
+		synchronized (governors) {
+			LookupConcurrencyGovernor ret = governors.get(name);
+			if (ret == null) {
+				ret = new LookupConcurrencyGovernor(name, maxPermits);
+				governors.put(name, ret);
+			} else if (ret.getMaxPermits() != maxPermits) {
+				logger.warn(
+						"Lookup concurrency governor '{}' is used with {} max concurrent lookups already, so requested value {} is ignored",
+						name, ret.getMaxPermits(), maxPermits);
+			}
+			ret.users++;
+			return ret;
+		}
+	}
+
+	/**
+	 * Release JVM-wide governor obtained by {@link #getGovernor(String, int)}. Governor is removed from registry when
+	 * released by all users. Nothing is done for governor not registered as JVM-wide.
+	 * 
+	 * @param governor to release
+	 */
+	public static void releaseGovernor(LookupConcurrencyGovernor governor) {
+		synchronized (governors) {
+			if (governors.get(governor.name) == governor && --governor.users <= 0)
+				governors.remove(governor.name);
+		}
+	}
+
+	/**
+	 * Get existing JVM-wide governor.
+	 * 
+	 * @param name of governor
+	 * @return governor or null if not exists
+	 */
+	public static LookupConcurrencyGovernor getExistingGovernor(String name) {
+		synchronized (governors) {
+			return governors.get(name);
+		}
+	}
+
+	protected final String name;
+
+	private final ResizableSemaphore semaphore;
+	private int maxPermits;
+
+	/**
+	 * Number of users of JVM-wide governor.
+	 */
+	private int users = 0;
+
+	private final AtomicLong acquiredCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong totalWaitMillis = new AtomicLong();
+
+	/**
+	 * Create governor not registered as JVM-wide, use {@link #getGovernor(String, int)} to obtain shared one.
+	 * 
+	 * @param name of governor
+	 * @param maxPermits maximal number of concurrent lookups
+	 * @throws IllegalArgumentException if some parameter is invalid
+	 */
+	public LookupConcurrencyGovernor(String name, int maxPermits) throws IllegalArgumentException {
+		if (maxPermits < 1)
+			throw new IllegalArgumentException("max permits must be positive");
+		this.name = name;
+		this.maxPermits = maxPermits;
+		this.semaphore = new ResizableSemaphore(maxPermits);
+	}
+
+	/**
+	 * Change maximal number of concurrent lookups. Lookups running already are not affected if permits are lowered.
+	 * 
+	 * @param maxPermits to set
+	 * @throws IllegalArgumentException if value is invalid
+	 */
+	public synchronized void setMaxPermits(int maxPermits) throws IllegalArgumentException {
+		if (maxPermits < 1)
+			throw new IllegalArgumentException("max permits must be positive");
+		int delta = maxPermits - this.maxPermits;
+		if (delta > 0)
+			semaphore.release(delta);
+		else if (delta < 0)
+			semaphore.reducePermits(-delta);
+		this.maxPermits = maxPermits;
+	}
+
+	/**
+	 * Acquire permit to perform lookup. If <code>true</code> is returned then caller must call {@link #release()} once
+	 * lookup is finished.
+	 * 
+	 * @param timeoutMillis maximal time to wait for permit, <code>0</code> means not to wait at all.
+	 * @return true if permit is acquired, false if timeout elapsed or thread has been interrupted
+	 */
+	public boolean acquire(long timeoutMillis) {
+		long start = System.currentTimeMillis();
+		boolean acquired = false;
+		try {
+			acquired = semaphore.tryAcquire(Math.max(0, timeoutMillis), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		totalWaitMillis.addAndGet(System.currentTimeMillis() - start);
+		if (acquired)
+			acquiredCount.incrementAndGet();
+		else
+			rejectedCount.incrementAndGet();
+		return acquired;
+	}
+
+	/**
+	 * Release permit acquired by {@link #acquire(long)}.
+	 */
+	public void release() {
+		semaphore.release();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized int getMaxPermits() {
+		return maxPermits;
+	}
+
+	/**
+	 * @return number of lookups running now
+	 */
+	public synchronized int getActiveCount() {
+		return maxPermits - semaphore.availablePermits();
+	}
+
+	/**
+	 * @return estimated number of threads waiting for permit now
+	 */
+	public int getWaitingCount() {
+		return semaphore.getQueueLength();
+	}
+
+	/**
+	 * @return total number of permits acquired
+	 */
+	public long getAcquiredCount() {
+		return acquiredCount.get();
+	}
+
+	/**
+	 * @return total number of lookups rejected because permit was not acquired in time
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * @return total time in millis spent by waiting for permits
+	 */
+	public long getTotalWaitMillis() {
+		return totalWaitMillis.get();
+	}
+
+	@Override
+	public String toString() {
+		return "LookupConcurrencyGovernor [name=" + name + ", maxPermits=" + getMaxPermits() + ", active="
+				+ getActiveCount() + ", waiting=" + getWaitingCount() + ", acquired=" + getAcquiredCount() + ", rejected="
+				+ getRejectedCount() + ", totalWaitMillis=" + getTotalWaitMillis() + "]";
+	}
+
+	/**
+	 * Fair semaphore with number of permits changeable at runtime.
+	 */
+	private static class ResizableSemaphore extends Semaphore {
+
+		private static final long serialVersionUID = 1L;
+
+		ResizableSemaphore(int permits) {
+			super(permits, true);
+		}
+
+		@Override
+		protected void reducePermits(int reduction) {
+			super.reducePermits(reduction);
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Result of one lookup request performed by {@link ESLookupValuePreprocessor}. Contains total number of documents
+ * matching lookup key and values of requested result fields from the first of them. Special field name
+ * <code>_source</code> is used for whole document source. Field is present in result if it is present in found
+ * document, even with <code>null</code> value.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class LookupResult {
+
+	/**
+	 * Result for lookup where no any document is found.
+	 */
+	public static final LookupResult NOT_FOUND = new LookupResult(0, null);
+
+	protected final long totalHits;
+
+	protected final Map<String, Object> fields;
+
+	/**
+	 * Create lookup result.
+	 * 
+	 * @param totalHits number of documents matching lookup key
+	 * @param fields values of result fields from the first document. Can be null.
+	 */
+	public LookupResult(long totalHits, Map<String, Object> fields) {
+		this.totalHits = totalHits;
+		if (fields == null)
+			this.fields = Collections.emptyMap();
+		else
+			this.fields = Collections.unmodifiableMap(new HashMap<String, Object>(fields));
+	}
+
+	/**
+	 * @return number of documents matching lookup key
+	 */
+	public long getTotalHits() {
+		return totalHits;
+	}
+
+	/**
+	 * @return true if at least one document matching lookup key is found
+	 */
+	public boolean isFound() {
+		return totalHits > 0;
+	}
+
+	/**
+	 * Check if field is present in found document.
+	 * 
+	 * @param field name of field, <code>_source</code> for whole document source
+	 * @return true if field is present
+	 */
+	public boolean hasField(String field) {
+		return fields.containsKey(field);
+	}
+
+	/**
+	 * Get value of field from found document.
+	 * 
+	 * @param field name of field, <code>_source</code> for whole document source
+	 * @return value of field, can be null
+	 */
+	public Object getFieldValue(String field) {
+		return fields.get(field);
+	}
+
+	@Override
+	public String toString() {
+		return "LookupResult [totalHits=" + totalHits + ", fields=" + fields + "]";
+	}
+
+}
@@ -6,6 +6,7 @@
 package org.jboss.elasticsearch.tools.content;
 
 import java.util.Map;
+import java.util.Set;
 
 import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
 import org.elasticsearch.common.joda.time.format.ISODateTimeFormat;
@@ -132,4 +133,14 @@ public class MaxTimestampPreprocessor extends StructuredContentPreprocessorBase
 		return fieldSource;
 	}
 
+	@Override
+	public Set<String> getReadFields() {
+		return toFieldSet(fieldSource);
+	}
+
+	@Override
+	public Set<String> getWrittenFields() {
+		return toFieldSet(fieldTarget);
+	}
+
 }
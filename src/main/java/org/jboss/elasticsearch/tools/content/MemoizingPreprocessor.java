@@ -0,0 +1,378 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.hash.HashCode;
+import org.elasticsearch.common.hash.HashFunction;
+import org.elasticsearch.common.hash.Hasher;
+import org.elasticsearch.common.hash.Hashing;
+import org.elasticsearch.common.settings.SettingsException;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+/**
+ * Wrapper which memoizes results of other {@link StructuredContentPreprocessor}, so data items with the same input are
+ * not preprocessed again (eg. unchanged documents during reindex). Input of data item is fingerprinted by 128-bit
+ * murmur3 hash of values of fields read by wrapped preprocessor and of top level fields written by it (both from
+ * {@link FieldAccessDeclaration}). Values of written top level fields after preprocessing, and warnings added by
+ * preprocessor, are cached for fingerprint, and they are copied into next data item with the same fingerprint instead
+ * of preprocessor call. Used by {@link StructuredContentPreprocessorFactory} for preprocessors with
+ * <code>memoize</code> configuration element.
+ * <p>
+ * Wrapped preprocessor must be deterministic, so do not use this for preprocessors like
+ * {@link AddCurrentTimestampPreprocessor}. Preprocessor without declared field access is always called. Results are not
+ * cached if preprocessor fails, returns other data instance, reports transient failure over
+ * {@link TransientFailureAwareChainContext} (eg. lookup falling back to default values due outage) or time budget for
+ * data item preprocessing is exceeded during call. Number of cached results is limited by <code>maxSize</code>, arbitrary ones are evicted when limit is
+ * reached. Instances are thread safe if wrapped preprocessor is.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class MemoizingPreprocessor implements StructuredContentPreprocessor, FieldAccessDeclaration,
+		PreprocessorCostHint, RequiredInputDeclaration, Closeable {
+
+	/**
+	 * Max number of cached results used if not defined in configuration.
+	 */
+	public static final int DEFAULT_MAX_SIZE = 10000;
+
+	private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+	protected final StructuredContentPreprocessor delegate;
+
+	protected final int maxSize;
+
+	protected final ConcurrentMap<HashCode, CachedResult> cache = new ConcurrentHashMap<HashCode, CachedResult>();
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	/**
+	 * Create wrapper.
+	 * 
+	 * @param delegate preprocessor to memoize results of
+	 * @param maxSize maximal number of cached results
+	 */
+	public MemoizingPreprocessor(StructuredContentPreprocessor delegate, int maxSize) {
+		if (delegate == null)
+			throw new IllegalArgumentException("delegate must be defined");
+		if (maxSize < 1)
+			throw new IllegalArgumentException("max size must be positive");
+		this.delegate = delegate;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Initialize wrapped preprocessor, cached results are cleared.
+	 */
+	@Override
+	public void init(String name, Client client, Map<String, Object> settings) throws SettingsException {
+		cache.clear();
+		delegate.init(name, client, settings);
+	}
+
+	@Override
+	public String getName() {
+		return delegate.getName();
+	}
+
+	@Override
+	public Map<String, Object> preprocessData(Map<String, Object> data) {
+		return preprocessData(data, null);
+	}
+
+	@Override
+	public Map<String, Object> preprocessData(Map<String, Object> data, PreprocessChainContext chainContext) {
+		Set<String> readFields = getReadFields();
+		Set<String> writtenFields = getWrittenFields();
+		if (data == null || readFields == null || writtenFields == null)
+			return delegate.preprocessData(data, chainContext);
+
+		List<String> writtenKeys = topLevelKeys(writtenFields);
+		HashCode fingerprint = fingerprint(data, readFields, writtenKeys);
+		CachedResult result = cache.get(fingerprint);
+		if (result != null) {
+			hitCount.incrementAndGet();
+			result.apply(data, chainContext);
+			return data;
+		}
+		missCount.incrementAndGet();
+
+		RecordingChainContext recordingContext = new RecordingChainContext(chainContext);
+		Map<String, Object> ret = delegate.preprocessData(data, recordingContext);
+		if (ret == data && !recordingContext.transientFailure && !PreprocessChain.isDeadlineExceeded(chainContext)) {
+			cache.put(fingerprint, new CachedResult(data, writtenKeys, recordingContext.warnings));
+			if (cache.size() > maxSize)
+				evict();
+		}
+		return ret;
+	}
+
+	/**
+	 * Evict arbitrary entries from cache to fit into max size.
+	 */
+	protected void evict() {
+		for (Iterator<CachedResult> it = cache.values().iterator(); it.hasNext() && cache.size() > maxSize;) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	private static List<String> topLevelKeys(Set<String> fields) {
+		Set<String> ret = new LinkedHashSet<String>();
+		for (String field : fields) {
+			int idx = field.indexOf('.');
+			ret.add(idx < 0 ? field : field.substring(0, idx));
+		}
+		return new ArrayList<String>(ret);
+	}
+
+	/**
+	 * Compute fingerprint of preprocessor input.
+	 * 
+	 * @param data item to compute fingerprint for
+	 * @param readFields fields read by preprocessor
+	 * @param writtenKeys top level fields written by preprocessor
+	 * @return 128-bit fingerprint
+	 */
+	protected static HashCode fingerprint(Map<String, Object> data, Set<String> readFields, List<String> writtenKeys) {
+		Hasher hasher = HASH_FUNCTION.newHasher();
+		for (String field : readFields) {
+			putString(hasher, field);
+			putValue(hasher, XContentMapValues.extractValue(field, data));
+		}
+		hasher.putByte((byte) 0);
+		for (String key : writtenKeys) {
+			putString(hasher, key);
+			putValue(hasher, data.get(key));
+		}
+		return hasher.hash();
+	}
+
+	private static void putString(Hasher hasher, String value) {
+		hasher.putInt(value.length());
+		hasher.putUnencodedChars(value);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void putValue(Hasher hasher, Object value) {
+		if (value == null) {
+			hasher.putByte((byte) 0);
+		} else if (value instanceof String) {
+			hasher.putByte((byte) 1);
+			putString(hasher, (String) value);
+		} else if (value instanceof Map) {
+			hasher.putByte((byte) 2);
+			// keys sorted so equal maps have equal fingerprint
+			Map<String, Object> sorted = new TreeMap<String, Object>((Map<String, Object>) value);
+			hasher.putInt(sorted.size());
+			for (Map.Entry<String, Object> e : sorted.entrySet()) {
+				putString(hasher, e.getKey());
+				putValue(hasher, e.getValue());
+			}
+		} else if (value instanceof Collection) {
+			hasher.putByte((byte) 3);
+			hasher.putInt(((Collection<Object>) value).size());
+			for (Object o : (Collection<Object>) value) {
+				putValue(hasher, o);
+			}
+		} else {
+			hasher.putByte((byte) 4);
+			putString(hasher, value.getClass().getName());
+			putString(hasher, value.toString());
+		}
+	}
+
+	/**
+	 * Create deep copy of value, so cached result is not changed by next preprocessors in chain.
+	 */
+	@SuppressWarnings("unchecked")
+	protected static Object copyValue(Object value) {
+		if (value instanceof Map) {
+			Map<String, Object> ret = new LinkedHashMap<String, Object>();
+			for (Map.Entry<String, Object> e : ((Map<String, Object>) value).entrySet()) {
+				ret.put(e.getKey(), copyValue(e.getValue()));
+			}
+			return ret;
+		} else if (value instanceof Collection) {
+			List<Object> ret = new ArrayList<Object>(((Collection<Object>) value).size());
+			for (Object o : (Collection<Object>) value) {
+				ret.add(copyValue(o));
+			}
+			return ret;
+		}
+		return value;
+	}
+
+	/**
+	 * Result of preprocessor call cached for fingerprint.
+	 */
+	protected static class CachedResult {
+
+		/**
+		 * Values of written top level fields, fields not present after preprocessing are not contained.
+		 */
+		protected final Map<String, Object> values = new HashMap<String, Object>();
+		protected final List<String> keys;
+		protected final List<String[]> warnings;
+
+		protected CachedResult(Map<String, Object> data, List<String> keys, List<String[]> warnings) {
+			this.keys = keys;
+			this.warnings = warnings;
+			for (String key : keys) {
+				if (data.containsKey(key))
+					values.put(key, copyValue(data.get(key)));
+			}
+		}
+
+		protected void apply(Map<String, Object> data, PreprocessChainContext chainContext) {
+			for (String key : keys) {
+				if (values.containsKey(key))
+					data.put(key, copyValue(values.get(key)));
+				else
+					data.remove(key);
+			}
+			if (chainContext != null) {
+				for (String[] w : warnings) {
+					chainContext.addDataWarning(w[0], w[1]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Context recording warnings and transient failures reported by preprocessor and forwarding all calls to the original
+	 * context.
+	 */
+	protected static class RecordingChainContext implements DeadlineAwareChainContext, TransientFailureAwareChainContext {
+
+		protected final PreprocessChainContext delegate;
+		protected final List<String[]> warnings = Collections.synchronizedList(new ArrayList<String[]>());
+		protected volatile boolean transientFailure = false;
+
+		protected RecordingChainContext(PreprocessChainContext delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void addDataWarning(String preprocessorName, String warningMessage) {
+			warnings.add(new String[] { preprocessorName, warningMessage });
+			if (delegate != null)
+				delegate.addDataWarning(preprocessorName, warningMessage);
+		}
+
+		@Override
+		public boolean isDeadlineExceeded() {
+			return PreprocessChain.isDeadlineExceeded(delegate);
+		}
+
+		@Override
+		public long getRemainingTimeMillis() {
+			return PreprocessChain.getRemainingTimeMillis(delegate);
+		}
+
+		@Override
+		public void reportTransientFailure(String preprocessorName) {
+			transientFailure = true;
+			PreprocessChain.reportTransientFailure(delegate, preprocessorName);
+		}
+	}
+
+	@Override
+	public Set<String> getReadFields() {
+		if (delegate instanceof FieldAccessDeclaration)
+			return ((FieldAccessDeclaration) delegate).getReadFields();
+		return null;
+	}
+
+	@Override
+	public Set<String> getWrittenFields() {
+		if (delegate instanceof FieldAccessDeclaration)
+			return ((FieldAccessDeclaration) delegate).getWrittenFields();
+		return null;
+	}
+
+	@Override
+	public Set<String> getRequiredInputFields() {
+		if (delegate instanceof RequiredInputDeclaration)
+			return ((RequiredInputDeclaration) delegate).getRequiredInputFields();
+		return null;
+	}
+
+	/**
+	 * Cost of wrapped preprocessor, as all data items may be different.
+	 */
+	@Override
+	public int getCostHint() {
+		if (delegate instanceof PreprocessorCostHint)
+			return ((PreprocessorCostHint) delegate).getCostHint();
+		return COST_MODERATE;
+	}
+
+	@Override
+	public boolean mayRejectData() {
+		if (delegate instanceof PreprocessorCostHint)
+			return ((PreprocessorCostHint) delegate).mayRejectData();
+		return false;
+	}
+
+	/**
+	 * Close wrapped preprocessor if it implements {@link Closeable}, cached results are cleared.
+	 */
+	@Override
+	public void close() throws IOException {
+		cache.clear();
+		if (delegate instanceof Closeable)
+			((Closeable) delegate).close();
+	}
+
+	public StructuredContentPreprocessor getDelegate() {
+		return delegate;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return number of cached results
+	 */
+	public int getCacheSize() {
+		return cache.size();
+	}
+
+	/**
+	 * @return number of data items preprocessed from cached result
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return number of data items preprocessed by wrapped preprocessor
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+}
@@ -0,0 +1,933 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+/**
+ * Chain of {@link StructuredContentPreprocessor}s used to preprocess one data item. Preprocessors are called in
+ * sequence, output of one is passed as input to the next one. Chains may be created from configuration using
+ * {@link StructuredContentPreprocessorFactory#createPreprocessChain(List, org.elasticsearch.client.Client)}.
+ * <p>
+ * Optional time budget may be defined for preprocessing of one data item using
+ * {@link #setTimeBudget(long, TimeoutAction)}. Deadline is then set into {@link PreprocessChainContext} at the
+ * beginning of each data item preprocessing, checked between preprocessors, and available for long running
+ * preprocessors (lookups, scripts, regular expressions) over {@link #isDeadlineExceeded(PreprocessChainContext)} and
+ * {@link #getRemainingTimeMillis(PreprocessChainContext)}. What happens if deadline is exceeded is defined by
+ * {@link TimeoutAction}.
+ * <p>
+ * {@link PreprocessChainDependencyGraph} describing data dependencies between preprocessors is built from their
+ * {@link FieldAccessDeclaration}s when chain is created, see {@link #getDependencyGraph()}. If executor is set over
+ * {@link #setParallelExecutor(Executor)} then independent preprocessors are run concurrently for one data item (see
+ * {@link PreprocessChainDependencyGraph#getConcurrentLevels()}), which decreases latency of large data item
+ * preprocessing. Preprocessors run concurrently must change data in place (as all preprocessors distributed with this
+ * framework do) and return passed data instance, {@link IllegalStateException} is thrown otherwise as returned data
+ * can't be merged. If some of them fails then exception from the first of them in chain order is thrown once all
+ * concurrently run preprocessors finish. Otherwise order of independent preprocessors may be
+ * optimized so cheap validators are called before expensive preprocessors, see {@link #setOptimizeOrder(boolean)}.
+ * Otherwise consecutive preprocessors walking the same <code>source_bases</code> are fused, so each base is walked only
+ * once, see {@link #setFuseSourceBases(boolean)}. Preprocessors declaring {@link RequiredInputDeclaration} are
+ * skipped for data items which do not contain their input fields, see {@link #setSkipAbsentInputs(boolean)}.
+ * <p>
+ * Small change of already preprocessed data item may be preprocessed incrementally by
+ * {@link #preprocessPartialUpdate(Map, Map, PreprocessChainContext)}, only preprocessors depending on changed fields
+ * are called then. Whole chain is called over previous input by
+ * {@link #preprocessPartialUpdate(Map, Map, Map, PreprocessChainContext)} if preprocessor reading its own output or
+ * output of later preprocessor has to be called.
+ * <p>
+ * {@link #close()} releases resources held by preprocessors implementing {@link Closeable}. Chains shared over
+ * {@link PreprocessChainCache} must be released over {@link PreprocessChainCache#release(PreprocessChain)} instead.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class PreprocessChain implements Closeable {
+
+	private static final ESLogger logger = Loggers.getLogger(PreprocessChain.class);
+
+	/**
+	 * What to do if time budget for preprocessing of one data item is exhausted.
+	 */
+	public static enum TimeoutAction {
+		/**
+		 * Remaining preprocessors are skipped, warning is written into {@link PreprocessChainContext} for each of them.
+		 */
+		SKIP,
+		/**
+		 * {@link PreprocessChainTimeoutException} is thrown so data item processing fails.
+		 */
+		FAIL;
+
+		/**
+		 * Parse action from configuration value.
+		 * 
+		 * @param value to parse, case insensitive. Can be null.
+		 * @return action, {@link #SKIP} for <code>null</code> or empty value
+		 * @throws IllegalArgumentException for unknown value
+		 */
+		public static TimeoutAction parse(String value) throws IllegalArgumentException {
+			if (ValueUtils.isEmpty(value))
+				return SKIP;
+			try {
+				return valueOf(value.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown timeout action '" + value + "', allowed values are "
+						+ Arrays.toString(values()));
+			}
+		}
+	}
+
+	protected List<StructuredContentPreprocessor> preprocessors;
+
+	protected PreprocessChainDependencyGraph dependencyGraph;
+
+	protected long timeBudgetMillis = 0;
+
+	protected TimeoutAction timeoutAction = TimeoutAction.SKIP;
+
+	protected Executor parallelExecutor;
+
+	protected volatile PreprocessChainOptimizer optimizer;
+
+	protected boolean fuseSourceBases = true;
+
+	/**
+	 * Preprocessors to call if {@link #fuseSourceBases} is enabled, null if no preprocessors can be fused.
+	 */
+	protected List<StructuredContentPreprocessor> fusedPlan;
+
+	/**
+	 * Index of first preprocessor in chain for each item in {@link #fusedPlan}.
+	 */
+	protected int[] fusedPlanStages;
+
+	protected boolean skipAbsentInputs = true;
+
+	/**
+	 * Filter for {@link #preprocessors}, null if no one of them may be skipped.
+	 */
+	protected FieldPresenceFilter presenceFilter;
+
+	/**
+	 * Filter for {@link #fusedPlan}, null if no one of its items may be skipped.
+	 */
+	protected FieldPresenceFilter fusedPresenceFilter;
+
+	private static volatile Executor sharedParallelExecutor;
+
+	/**
+	 * Create chain.
+	 * 
+	 * @param preprocessors to be called in chain. Can be null or empty.
+	 */
+	public PreprocessChain(List<StructuredContentPreprocessor> preprocessors) {
+		if (preprocessors == null)
+			this.preprocessors = Collections.emptyList();
+		else
+			this.preprocessors = Collections.unmodifiableList(new ArrayList<StructuredContentPreprocessor>(preprocessors));
+		this.dependencyGraph = new PreprocessChainDependencyGraph(this.preprocessors);
+		createFusedPlan();
+		presenceFilter = createPresenceFilter(this.preprocessors);
+		if (fusedPlan != null)
+			fusedPresenceFilter = createPresenceFilter(fusedPlan);
+	}
+
+	private static FieldPresenceFilter createPresenceFilter(List<StructuredContentPreprocessor> preprocessors) {
+		FieldPresenceFilter filter = new FieldPresenceFilter(preprocessors);
+		return filter.isActive() ? filter : null;
+	}
+
+	/**
+	 * Create {@link #fusedPlan} where consecutive preprocessors walking the same <code>source_bases</code> are grouped
+	 * into {@link FusedSourceBasesPreprocessor}.
+	 */
+	protected void createFusedPlan() {
+		List<StructuredContentPreprocessor> plan = new ArrayList<StructuredContentPreprocessor>();
+		List<Integer> planStages = new ArrayList<Integer>();
+		boolean fused = false;
+		int i = 0;
+		while (i < preprocessors.size()) {
+			List<StructuredContentPreprocessor> group = new ArrayList<StructuredContentPreprocessor>();
+			group.add(preprocessors.get(i));
+			while (i + group.size() < preprocessors.size()
+					&& FusedSourceBasesPreprocessor.canBeFused(group, preprocessors.get(i + group.size()))) {
+				group.add(preprocessors.get(i + group.size()));
+			}
+			if (group.size() > 1) {
+				List<StructuredContentPreprocessorWithSourceBasesBase<?>> members = new ArrayList<StructuredContentPreprocessorWithSourceBasesBase<?>>();
+				for (StructuredContentPreprocessor p : group) {
+					members.add((StructuredContentPreprocessorWithSourceBasesBase<?>) p);
+				}
+				plan.add(new FusedSourceBasesPreprocessor(members));
+				fused = true;
+			} else {
+				plan.add(group.get(0));
+			}
+			planStages.add(i);
+			i += group.size();
+		}
+		if (fused) {
+			fusedPlan = plan;
+			fusedPlanStages = new int[planStages.size()];
+			for (int k = 0; k < fusedPlanStages.length; k++) {
+				fusedPlanStages[k] = planStages.get(k);
+			}
+		}
+	}
+
+	/**
+	 * Set time budget for preprocessing of one data item.
+	 * 
+	 * @param timeBudgetMillis time budget in milliseconds, zero or negative value means no time budget
+	 * @param timeoutAction action to perform if budget is exhausted, {@link TimeoutAction#SKIP} used if <code>null</code>
+	 */
+	public void setTimeBudget(long timeBudgetMillis, TimeoutAction timeoutAction) {
+		this.timeBudgetMillis = timeBudgetMillis;
+		this.timeoutAction = timeoutAction != null ? timeoutAction : TimeoutAction.SKIP;
+	}
+
+	/**
+	 * Preprocess data item over chain. Use this if you do not want to use chain context.
+	 * 
+	 * @param data to be preprocessed - may be changed during call!
+	 * @return preprocessed data
+	 * @throws PreprocessChainTimeoutException if time budget is exhausted and {@link TimeoutAction#FAIL} is configured
+	 */
+	public Map<String, Object> preprocessData(Map<String, Object> data) {
+		return preprocessData(data, null);
+	}
+
+	/**
+	 * Preprocess data item over chain.
+	 * 
+	 * @param data to be preprocessed - may be changed during call!
+	 * @param chainContext context of one data preprocessing. May be null, internal one is created if time budget is
+	 *          configured then.
+	 * @return preprocessed data
+	 * @throws PreprocessChainTimeoutException if time budget is exhausted and {@link TimeoutAction#FAIL} is configured
+	 */
+	public Map<String, Object> preprocessData(Map<String, Object> data, PreprocessChainContext chainContext) {
+		chainContext = prepareChainContext(chainContext);
+		if (parallelExecutor != null && data != null && preprocessors.size() > 1)
+			return preprocessDataParallel(data, chainContext);
+		PreprocessChainOptimizer optimizer = this.optimizer;
+		// optimized order is computed for single preprocessors, so fused plan is bypassed then
+		if (optimizer != null && preprocessors.size() > 1)
+			return preprocessDataOptimized(data, chainContext, optimizer);
+		if (fuseSourceBases && fusedPlan != null)
+			return preprocessDataSequential(fusedPlan, fusedPlanStages, getPresenceFilter(fusedPresenceFilter, data), data,
+					chainContext);
+		return preprocessDataSequential(preprocessors, null, getPresenceFilter(presenceFilter, data), data, chainContext);
+	}
+
+	private FieldPresenceFilter getPresenceFilter(FieldPresenceFilter filter, Map<String, Object> data) {
+		return skipAbsentInputs && data != null ? filter : null;
+	}
+
+	/**
+	 * Preprocess data item over preprocessors called in sequence.
+	 * 
+	 * @param plan preprocessors to call
+	 * @param planStages index of first preprocessor in chain for each item in plan, null if plan is whole chain
+	 * @param filter to skip preprocessors without inputs, null to call all of them
+	 * @param data to be preprocessed
+	 * @param chainContext context to be used in chain, can be null
+	 * @return preprocessed data
+	 */
+	protected Map<String, Object> preprocessDataSequential(List<StructuredContentPreprocessor> plan, int[] planStages,
+			FieldPresenceFilter filter, Map<String, Object> data, PreprocessChainContext chainContext) {
+		long presence = filter != null ? filter.computePresence(data) : 0;
+		for (int k = 0; k < plan.size(); k++) {
+			if (isDeadlineExceeded(chainContext)) {
+				handleTimeout(planStages != null ? planStages[k] : k, chainContext);
+				break;
+			}
+			if (filter != null && filter.canSkip(k, presence))
+				continue;
+			Map<String, Object> out = plan.get(k).preprocessData(data, chainContext);
+			if (filter != null) {
+				if (out == null)
+					filter = null;
+				else
+					presence = filter.updatePresence(k, presence, data, out);
+			}
+			data = out;
+		}
+		return data;
+	}
+
+	/**
+	 * Preprocess partial update of data item already preprocessed by this chain. Delta is merged into previous output,
+	 * and only preprocessors reading or writing changed fields (see {@link #getDependencyGraph()}) are called again, in
+	 * chain order. Fields written by called preprocessors are handled as changed too, so preprocessors depending on them
+	 * are called as well. Preprocessors with undeclared field access are always called, and all fields are handled as
+	 * changed after them. Preprocessors are called sequentially even if they are run concurrently or their order is
+	 * optimized for {@link #preprocessData(Map, PreprocessChainContext)}. Fields written by preprocessor are removed from
+	 * previous output before it is called again, so its target is removed also if it is not written for new input (eg.
+	 * source field is removed).
+	 * <p>
+	 * Preprocessor called again reads previous output, so it can't read field written by itself (see
+	 * {@link #isRerunReadingOwnOutput(int)}) or written or removed by later preprocessor in chain (see
+	 * {@link #isRerunReadingLaterOutput(int)}), as it would see value from previous output instead of input one.
+	 * {@link #preprocessPartialUpdate(Map, Map, Map, PreprocessChainContext)} with previous input must be used if such
+	 * preprocessor has to be called for delta.
+	 * 
+	 * @param previousOutput output of previous preprocessing of data item - it is changed during call to the new
+	 *          complete output!
+	 * @param delta top level fields changed in data item since previous preprocessing, <code>null</code> value means
+	 *          removed field
+	 * @param chainContext context of data preprocessing. May be null, internal one is created if time budget is
+	 *          configured then.
+	 * @return partial update containing top level fields changed by delta or called preprocessors, with
+	 *         <code>null</code> value for removed field. Complete output if preprocessor with undeclared field access is
+	 *         called.
+	 * @throws IllegalArgumentException if previous output or delta is null
+	 * @throws IllegalStateException if preprocessor reading output of later preprocessor has to be called
+	 * @throws PreprocessChainTimeoutException if time budget is exhausted and {@link TimeoutAction#FAIL} is configured
+	 */
+	public Map<String, Object> preprocessPartialUpdate(Map<String, Object> previousOutput, Map<String, Object> delta,
+			PreprocessChainContext chainContext) {
+		return preprocessPartialUpdate(null, previousOutput, delta, chainContext);
+	}
+
+	/**
+	 * Preprocess partial update of data item already preprocessed by this chain, see
+	 * {@link #preprocessPartialUpdate(Map, Map, PreprocessChainContext)}. If preprocessor reading field written by
+	 * itself, or written or removed by later preprocessor in chain, has to be called for delta, then delta is merged
+	 * into previous input and whole chain is called over it instead.
+	 * 
+	 * @param previousInput input data of previous preprocessing of data item, used (and changed during call!) only if
+	 *          incremental preprocessing is not possible. May be null.
+	 * @param previousOutput output of previous preprocessing of data item - it is changed during call to the new
+	 *          complete output if preprocessed incrementally!
+	 * @param delta top level fields changed in data item since previous preprocessing, <code>null</code> value means
+	 *          removed field
+	 * @param chainContext context of data preprocessing. May be null, internal one is created if time budget is
+	 *          configured then.
+	 * @return partial update containing top level fields changed by delta or called preprocessors, with
+	 *         <code>null</code> value for removed field. Complete output if preprocessor with undeclared field access is
+	 *         called or whole chain is called over previous input.
+	 * @throws IllegalArgumentException if previous output or delta is null
+	 * @throws IllegalStateException if incremental preprocessing is not possible and previous input is null
+	 * @throws PreprocessChainTimeoutException if time budget is exhausted and {@link TimeoutAction#FAIL} is configured
+	 */
+	public Map<String, Object> preprocessPartialUpdate(Map<String, Object> previousInput,
+			Map<String, Object> previousOutput, Map<String, Object> delta, PreprocessChainContext chainContext) {
+		if (previousOutput == null)
+			throw new IllegalArgumentException("previousOutput must be defined");
+		if (delta == null)
+			throw new IllegalArgumentException("delta must be defined");
+
+		// plan is computed from declared fields, so we know whether incremental preprocessing is possible before call
+		List<Integer> plan = new ArrayList<Integer>();
+		Set<String> changed = new LinkedHashSet<String>(delta.keySet());
+		for (int i = 0; i < preprocessors.size(); i++) {
+			if (changed != null && !isAffectedByChange(i, changed))
+				continue;
+			if (isRerunReadingOwnOutput(i) || isRerunReadingLaterOutput(i)) {
+				if (previousInput == null)
+					throw new IllegalStateException("Preprocessor '" + preprocessors.get(i).getName()
+							+ "' reads field written by itself or later preprocessor, so previous input is necessary"
+							+ " for partial update");
+				mergeDelta(previousInput, delta);
+				return preprocessData(previousInput, chainContext);
+			}
+			plan.add(i);
+			if (changed != null) {
+				Set<String> written = dependencyGraph.getWrittenFields(i);
+				if (written == null)
+					changed = null;
+				else
+					changed.addAll(written);
+			}
+		}
+
+		chainContext = prepareChainContext(chainContext);
+		Map<String, Object> data = previousOutput;
+		mergeDelta(data, delta);
+		for (int k = 0; k < plan.size(); k++) {
+			if (isDeadlineExceeded(chainContext)) {
+				handleTimeout(plan.subList(k, plan.size()), chainContext);
+				break;
+			}
+			int stage = plan.get(k);
+			// stale values would stay in output if preprocessor does not write them for new input
+			Set<String> written = dependencyGraph.getWrittenFields(stage);
+			if (written != null && data != null) {
+				for (String field : written) {
+					StructureUtils.removeValueFromMapOfMaps(data, field);
+				}
+			}
+			data = preprocessors.get(stage).preprocessData(data, chainContext);
+		}
+		if (changed == null || data == null)
+			return data;
+		Map<String, Object> update = new LinkedHashMap<String, Object>();
+		for (String field : changed) {
+			int idx = field.indexOf('.');
+			String key = idx < 0 ? field : field.substring(0, idx);
+			update.put(key, data.get(key));
+		}
+		return update;
+	}
+
+	private static void mergeDelta(Map<String, Object> data, Map<String, Object> delta) {
+		for (Map.Entry<String, Object> e : delta.entrySet()) {
+			if (e.getValue() == null)
+				data.remove(e.getKey());
+			else
+				data.put(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Check if preprocessor reads field written or removed by some later preprocessor in chain (or field access of some
+	 * of them is not declared), so it can't be called again over previous output of chain during partial update.
+	 * 
+	 * @param stage index of preprocessor in chain
+	 * @return true if preprocessor reads output of later preprocessor
+	 * @see #preprocessPartialUpdate(Map, Map, Map, PreprocessChainContext)
+	 */
+	public boolean isRerunReadingLaterOutput(int stage) {
+		Set<String> read = dependencyGraph.getReadFields(stage);
+		for (int j = stage + 1; j < preprocessors.size(); j++) {
+			if (PreprocessChainDependencyGraph.overlap(read, dependencyGraph.getWrittenFields(j)))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Check if preprocessor reads field it writes (or its field access is not declared), so it can't be called again
+	 * over previous output of chain during partial update.
+	 * 
+	 * @param stage index of preprocessor in chain
+	 * @return true if preprocessor reads its own output
+	 * @see #preprocessPartialUpdate(Map, Map, Map, PreprocessChainContext)
+	 */
+	public boolean isRerunReadingOwnOutput(int stage) {
+		return PreprocessChainDependencyGraph.overlap(dependencyGraph.getReadFields(stage),
+				dependencyGraph.getWrittenFields(stage));
+	}
+
+	private boolean isAffectedByChange(int stage, Set<String> changed) {
+		return PreprocessChainDependencyGraph.overlap(dependencyGraph.getReadFields(stage), changed)
+				|| PreprocessChainDependencyGraph.overlap(dependencyGraph.getWrittenFields(stage), changed);
+	}
+
+	/**
+	 * Preprocess data item over chain in order given by optimizer, time spent in preprocessors is recorded into it.
+	 * 
+	 * @param data to be preprocessed
+	 * @param chainContext context to be used in chain, can be null
+	 * @param optimizer to get order from
+	 * @return preprocessed data
+	 */
+	protected Map<String, Object> preprocessDataOptimized(Map<String, Object> data, PreprocessChainContext chainContext,
+			PreprocessChainOptimizer optimizer) {
+		int[] order = optimizer.getOrder();
+		FieldPresenceFilter filter = getPresenceFilter(presenceFilter, data);
+		long presence = filter != null ? filter.computePresence(data) : 0;
+		for (int k = 0; k < order.length; k++) {
+			if (isDeadlineExceeded(chainContext)) {
+				List<Integer> skipped = new ArrayList<Integer>();
+				for (int i = k; i < order.length; i++) {
+					skipped.add(order[i]);
+				}
+				Collections.sort(skipped);
+				handleTimeout(skipped, chainContext);
+				break;
+			}
+			int stage = order[k];
+			if (filter != null && filter.canSkip(stage, presence))
+				continue;
+			long start = System.nanoTime();
+			Map<String, Object> out = null;
+			try {
+				out = preprocessors.get(stage).preprocessData(data, chainContext);
+			} catch (InvalidDataException e) {
+				optimizer.recordStage(stage, System.nanoTime() - start, true);
+				throw e;
+			}
+			optimizer.recordStage(stage, System.nanoTime() - start, false);
+			if (filter != null) {
+				if (out == null)
+					filter = null;
+				else
+					presence = filter.updatePresence(stage, presence, data, out);
+			}
+			data = out;
+		}
+		optimizer.recordDataProcessed();
+		return data;
+	}
+
+	/**
+	 * Preprocess data item over chain, independent preprocessors are run concurrently using
+	 * {@link #setParallelExecutor(Executor)}.
+	 * 
+	 * @param data to be preprocessed, not null
+	 * @param chainContext context to be used in chain, can be null
+	 * @return preprocessed data
+	 */
+	protected Map<String, Object> preprocessDataParallel(Map<String, Object> data, PreprocessChainContext chainContext) {
+		List<List<Integer>> levels = dependencyGraph.getConcurrentLevels();
+		FieldPresenceFilter filter = getPresenceFilter(presenceFilter, data);
+		long presence = filter != null ? filter.computePresence(data) : 0;
+		for (int l = 0; l < levels.size(); l++) {
+			List<Integer> stages = levels.get(l);
+			if (isDeadlineExceeded(chainContext)) {
+				List<Integer> skipped = new ArrayList<Integer>();
+				for (int i = l; i < levels.size(); i++) {
+					skipped.addAll(levels.get(i));
+				}
+				Collections.sort(skipped);
+				handleTimeout(skipped, chainContext);
+				break;
+			}
+			if (filter != null) {
+				List<Integer> called = new ArrayList<Integer>(stages.size());
+				for (Integer stage : stages) {
+					if (!filter.canSkip(stage, presence))
+						called.add(stage);
+				}
+				stages = called;
+			}
+			Map<String, Object> out = data;
+			if (stages.size() == 1) {
+				out = preprocessors.get(stages.get(0)).preprocessData(data, chainContext);
+			} else if (stages.size() > 1) {
+				runConcurrently(stages, Collections.synchronizedMap(data), chainContext != null ? new SynchronizedChainContext(
+						chainContext) : null);
+			}
+			if (filter != null) {
+				if (out == null) {
+					filter = null;
+				} else {
+					for (Integer stage : stages) {
+						presence = filter.updatePresence(stage, presence, data, out);
+					}
+				}
+			}
+			data = out;
+		}
+		return data;
+	}
+
+	/**
+	 * Run preprocessors concurrently over the same data. Calling thread runs preprocessors not started by executor yet,
+	 * so run never waits for busy executor. Returns when all preprocessors finish.
+	 * 
+	 * @param stages indexes of preprocessors to run
+	 * @param data to be preprocessed, must be safe for concurrent access
+	 * @param chainContext context to be used, must be safe for concurrent access. Can be null.
+	 * @throws IllegalStateException if some preprocessor returns other data instance than passed in
+	 */
+	protected void runConcurrently(List<Integer> stages, final Map<String, Object> data,
+			final PreprocessChainContext chainContext) {
+		List<FutureTask<Map<String, Object>>> tasks = new ArrayList<FutureTask<Map<String, Object>>>();
+		for (Integer stage : stages) {
+			final StructuredContentPreprocessor preprocessor = preprocessors.get(stage);
+			FutureTask<Map<String, Object>> task = new FutureTask<Map<String, Object>>(
+					new Callable<Map<String, Object>>() {
+						@Override
+						public Map<String, Object> call() {
+							return preprocessor.preprocessData(data, chainContext);
+						}
+					});
+			if (!tasks.isEmpty()) {
+				try {
+					parallelExecutor.execute(task);
+				} catch (RejectedExecutionException e) {
+					// task is run by calling thread then
+				}
+			}
+			tasks.add(task);
+		}
+		Throwable failure = null;
+		boolean interrupted = false;
+		for (int i = 0; i < tasks.size(); i++) {
+			FutureTask<Map<String, Object>> task = tasks.get(i);
+			// no-op if task is started by executor already
+			task.run();
+			while (true) {
+				try {
+					if (task.get() != data && failure == null)
+						failure = new IllegalStateException("Preprocessor '" + preprocessors.get(stages.get(i)).getName()
+								+ "' returned other data instance than passed in, so it can't be run concurrently");
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (failure == null)
+						failure = e.getCause();
+					break;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		if (failure != null)
+			throw new IllegalStateException("Preprocessor failed: " + failure.getMessage(), failure);
+	}
+
+	/**
+	 * Prepare chain context with deadline set for one data item preprocessing.
+	 * 
+	 * @param chainContext passed by caller, can be null
+	 * @return context to be used in chain
+	 */
+	protected PreprocessChainContext prepareChainContext(PreprocessChainContext chainContext) {
+		if (timeBudgetMillis <= 0)
+			return chainContext;
+		PreprocessChainContextImpl ctx = null;
+		if (chainContext == null) {
+			ctx = new PreprocessChainContextImpl();
+		} else if (chainContext instanceof PreprocessChainContextImpl) {
+			ctx = (PreprocessChainContextImpl) chainContext;
+		} else {
+			ctx = new ForwardingChainContext(chainContext);
+		}
+		ctx.setTimeBudget(timeBudgetMillis);
+		return ctx;
+	}
+
+	/**
+	 * Check if time budget for preprocessing of data item is exceeded already.
+	 * 
+	 * @param chainContext to check deadline in. Can be <code>null</code>.
+	 * @return <code>true</code> if context is {@link DeadlineAwareChainContext} with exceeded deadline
+	 */
+	public static boolean isDeadlineExceeded(PreprocessChainContext chainContext) {
+		return chainContext instanceof DeadlineAwareChainContext
+				&& ((DeadlineAwareChainContext) chainContext).isDeadlineExceeded();
+	}
+
+	/**
+	 * Get remaining time from the time budget for preprocessing of data item.
+	 * 
+	 * @param chainContext to get remaining time from. Can be <code>null</code>.
+	 * @return remaining time in milliseconds (0 if exhausted already), <code>-1</code> if no time budget is defined or
+	 *         context is not {@link DeadlineAwareChainContext}
+	 */
+	public static long getRemainingTimeMillis(PreprocessChainContext chainContext) {
+		if (chainContext instanceof DeadlineAwareChainContext)
+			return ((DeadlineAwareChainContext) chainContext).getRemainingTimeMillis();
+		return -1;
+	}
+
+	/**
+	 * Report transient failure which affected result of preprocessing of data item.
+	 * 
+	 * @param chainContext to report failure into. Can be <code>null</code>, failure is ignored if it is not
+	 *          {@link TransientFailureAwareChainContext}.
+	 * @param preprocessorName name of preprocessor which hit the failure
+	 */
+	public static void reportTransientFailure(PreprocessChainContext chainContext, String preprocessorName) {
+		if (chainContext instanceof TransientFailureAwareChainContext)
+			((TransientFailureAwareChainContext) chainContext).reportTransientFailure(preprocessorName);
+	}
+
+	/**
+	 * Handle exhausted time budget.
+	 * 
+	 * @param firstSkippedIdx index of first preprocessor not called due timeout
+	 * @param chainContext to write warnings into
+	 * @throws PreprocessChainTimeoutException for {@link TimeoutAction#FAIL}
+	 */
+	protected void handleTimeout(int firstSkippedIdx, PreprocessChainContext chainContext) {
+		List<Integer> skipped = new ArrayList<Integer>();
+		for (int i = firstSkippedIdx; i < preprocessors.size(); i++) {
+			skipped.add(i);
+		}
+		handleTimeout(skipped, chainContext);
+	}
+
+	/**
+	 * Handle exhausted time budget.
+	 * 
+	 * @param skipped indexes of preprocessors not called due timeout, in chain order
+	 * @param chainContext to write warnings into
+	 * @throws PreprocessChainTimeoutException for {@link TimeoutAction#FAIL}
+	 */
+	protected void handleTimeout(List<Integer> skipped, PreprocessChainContext chainContext) {
+		String skippedName = preprocessors.get(skipped.get(0)).getName();
+		if (timeoutAction == TimeoutAction.FAIL) {
+			throw new PreprocessChainTimeoutException("Time budget of " + timeBudgetMillis
+					+ "ms for data preprocessing exceeded before preprocessor '" + skippedName + "'");
+		}
+		logger.debug("Time budget of {}ms for data preprocessing exceeded, skipping preprocessors from '{}'",
+				timeBudgetMillis, skippedName);
+		for (int i : skipped) {
+			chainContext.addDataWarning(preprocessors.get(i).getName(), "Preprocessor skipped because time budget of "
+					+ timeBudgetMillis + "ms for data preprocessing is exceeded");
+		}
+	}
+
+	/**
+	 * Get preprocessors in this chain.
+	 * 
+	 * @return unmodifiable list of preprocessors, never null
+	 */
+	public List<StructuredContentPreprocessor> getPreprocessors() {
+		return preprocessors;
+	}
+
+	/**
+	 * Close all preprocessors in this chain implementing {@link Closeable}. All of them are closed even if some fails.
+	 * 
+	 * @throws IOException first exception thrown by some preprocessor
+	 */
+	@Override
+	public void close() throws IOException {
+		closePreprocessors(preprocessors);
+	}
+
+	/**
+	 * Close all preprocessors implementing {@link Closeable}. All of them are closed even if some fails.
+	 * 
+	 * @param preprocessors to close
+	 * @throws IOException first exception thrown by some preprocessor
+	 */
+	protected static void closePreprocessors(List<StructuredContentPreprocessor> preprocessors) throws IOException {
+		IOException first = null;
+		for (StructuredContentPreprocessor p : preprocessors) {
+			if (p instanceof Closeable) {
+				try {
+					((Closeable) p).close();
+				} catch (IOException e) {
+					if (first == null)
+						first = e;
+					logger.warn("Preprocessor '{}' can't be closed: {}", p.getName(), e.getMessage());
+				}
+			}
+		}
+		if (first != null)
+			throw first;
+	}
+
+	/**
+	 * Get graph of data dependencies between preprocessors in this chain, built when chain is created.
+	 * 
+	 * @return dependency graph, never null
+	 */
+	public PreprocessChainDependencyGraph getDependencyGraph() {
+		return dependencyGraph;
+	}
+
+	/**
+	 * Set executor used to run independent preprocessors concurrently for one data item. Preprocessors of chain must
+	 * change data in place and return passed data instance then, preprocessing fails with {@link IllegalStateException}
+	 * otherwise.
+	 * 
+	 * @param parallelExecutor to be used, null to run preprocessors sequentially (default)
+	 * @see #getSharedParallelExecutor()
+	 */
+	public void setParallelExecutor(Executor parallelExecutor) {
+		this.parallelExecutor = parallelExecutor;
+	}
+
+	public Executor getParallelExecutor() {
+		return parallelExecutor;
+	}
+
+	/**
+	 * Get executor shared by all chains which may be passed to {@link #setParallelExecutor(Executor)}. Pool of daemon
+	 * threads with size equal to number of processors is used, idle threads are stopped.
+	 * 
+	 * @return shared executor
+	 */
+	public static Executor getSharedParallelExecutor() {
+		if (sharedParallelExecutor == null) {
+			synchronized (PreprocessChain.class) {
+				if (sharedParallelExecutor == null) {
+					int threads = Runtime.getRuntime().availableProcessors();
+					ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+							new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+								@Override
+								public Thread newThread(Runnable r) {
+									Thread t = new Thread(r, "preprocess-chain");
+									t.setDaemon(true);
+									return t;
+								}
+							});
+					executor.allowCoreThreadTimeOut(true);
+					sharedParallelExecutor = executor;
+				}
+			}
+		}
+		return sharedParallelExecutor;
+	}
+
+	/**
+	 * Enable or disable optimization of order in which preprocessors are called, see {@link PreprocessChainOptimizer}.
+	 * Not used if preprocessors are run concurrently (see {@link #setParallelExecutor(Executor)}), as validators are
+	 * run as soon as data they depend on are available then. Fusion of preprocessors walking the same
+	 * <code>source_bases</code> (see {@link #setFuseSourceBases(boolean)}) is not used if optimization is enabled, as
+	 * fused preprocessors can't be reordered independently, so enable it only if cheap validators reject significant
+	 * part of data items.
+	 * 
+	 * @param optimizeOrder true to enable optimization, false to call preprocessors in configured order (default)
+	 */
+	public void setOptimizeOrder(boolean optimizeOrder) {
+		if (optimizeOrder) {
+			if (optimizer == null)
+				optimizer = new PreprocessChainOptimizer(preprocessors, dependencyGraph);
+		} else {
+			optimizer = null;
+		}
+	}
+
+	/**
+	 * Get optimizer of preprocessors order.
+	 * 
+	 * @return optimizer, null if optimization is not enabled
+	 * @see #setOptimizeOrder(boolean)
+	 */
+	public PreprocessChainOptimizer getOptimizer() {
+		return optimizer;
+	}
+
+	/**
+	 * Enable or disable fusion of consecutive preprocessors walking the same <code>source_bases</code>, see
+	 * {@link FusedSourceBasesPreprocessor}. Fused preprocessors walk each base only once. Enabled by default, not used if
+	 * preprocessors are run concurrently or their order is optimized.
+	 * 
+	 * @param fuseSourceBases true to enable fusion
+	 */
+	public void setFuseSourceBases(boolean fuseSourceBases) {
+		this.fuseSourceBases = fuseSourceBases;
+	}
+
+	public boolean isFuseSourceBases() {
+		return fuseSourceBases;
+	}
+
+	/**
+	 * Get preprocessors called by chain if fusion of <code>source_bases</code> is enabled.
+	 * 
+	 * @return unmodifiable list with consecutive preprocessors grouped into {@link FusedSourceBasesPreprocessor}
+	 * @see #setFuseSourceBases(boolean)
+	 */
+	public List<StructuredContentPreprocessor> getFusedPreprocessors() {
+		return fusedPlan != null ? Collections.unmodifiableList(fusedPlan) : preprocessors;
+	}
+
+	/**
+	 * Enable or disable skipping of preprocessors whose required input fields are not present in data item, see
+	 * {@link FieldPresenceFilter}. Enabled by default.
+	 * 
+	 * @param skipAbsentInputs true to enable skipping
+	 */
+	public void setSkipAbsentInputs(boolean skipAbsentInputs) {
+		this.skipAbsentInputs = skipAbsentInputs;
+	}
+
+	public boolean isSkipAbsentInputs() {
+		return skipAbsentInputs;
+	}
+
+	/**
+	 * Get filter used to skip preprocessors whose required input fields are not present.
+	 * 
+	 * @return filter for {@link #getPreprocessors()}, null if no one of them may be skipped
+	 * @see #setSkipAbsentInputs(boolean)
+	 */
+	public FieldPresenceFilter getPresenceFilter() {
+		return presenceFilter;
+	}
+
+	public long getTimeBudgetMillis() {
+		return timeBudgetMillis;
+	}
+
+	public TimeoutAction getTimeoutAction() {
+		return timeoutAction;
+	}
+
+	/**
+	 * Context used for preprocessors run concurrently. Calls are synchronized and forwarded to the original context.
+	 */
+	protected static class SynchronizedChainContext implements DeadlineAwareChainContext,
+			TransientFailureAwareChainContext {
+
+		protected final PreprocessChainContext delegate;
+
+		protected SynchronizedChainContext(PreprocessChainContext delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public synchronized void addDataWarning(String preprocessorName, String warningMessage) {
+			delegate.addDataWarning(preprocessorName, warningMessage);
+		}
+
+		@Override
+		public synchronized boolean isDeadlineExceeded() {
+			return PreprocessChain.isDeadlineExceeded(delegate);
+		}
+
+		@Override
+		public synchronized long getRemainingTimeMillis() {
+			return PreprocessChain.getRemainingTimeMillis(delegate);
+		}
+
+		@Override
+		public synchronized void reportTransientFailure(String preprocessorName) {
+			PreprocessChain.reportTransientFailure(delegate, preprocessorName);
+		}
+	}
+
+	/**
+	 * Context used to add deadline handling for {@link PreprocessChainContext} implementations other than
+	 * {@link PreprocessChainContextImpl} passed by caller. Warnings and transient failures are forwarded into the
+	 * original context.
+	 */
+	protected static class ForwardingChainContext extends PreprocessChainContextImpl implements
+			TransientFailureAwareChainContext {
+
+		protected PreprocessChainContext delegate;
+
+		protected ForwardingChainContext(PreprocessChainContext delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void addDataWarning(String preprocessorName, String warningMessage) {
+			delegate.addDataWarning(preprocessorName, warningMessage);
+		}
+
+		@Override
+		public void reportTransientFailure(String preprocessorName) {
+			PreprocessChain.reportTransientFailure(delegate, preprocessorName);
+		}
+	}
+
+}
@@ -0,0 +1,386 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+/**
+ * Cache of already initialized {@link StructuredContentPreprocessor}s shared by all callers using identical
+ * configuration, so expensive initialization (scripting engines, reference data loading) is not repeated and instances
+ * are not duplicated in memory. Configuration is canonicalized before lookup into cache, so order of fields in objects
+ * and use of preprocessor alias instead of class name (see {@link StructuredContentPreprocessorRegistry}) doesn't
+ * matter. Preprocessors with identical configuration are shared between different chains too. Instances created for
+ * different ES {@link Client}s are never shared.
+ * <p>
+ * Each call of {@link #acquirePreprocessChain(List, Client)} returns new lightweight {@link PreprocessChain} over
+ * shared preprocessors, so caller may configure it (eg. by
+ * {@link PreprocessChain#setTimeBudget(long, PreprocessChain.TimeoutAction)}) without affecting other callers.
+ * Preprocessors not cached yet are initialized in parallel, see
+ * {@link StructuredContentPreprocessorFactory#createPreprocessors(List, Client, Executor)}.
+ * <p>
+ * Each instance obtained from <code>acquire</code> method must be returned back over <code>release</code> method once
+ * it is not used anymore. Preprocessor is removed from cache and closed (if implements {@link Closeable}) when last
+ * reference is released. Shared preprocessors must not be closed directly by callers. Instances are thread safe.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see StructuredContentPreprocessorFactory#acquirePreprocessChain(List, Client)
+ */
+public class PreprocessChainCache {
+
+	/**
+	 * Shared preprocessor lists of chains, {@link SharedEntry#instance} is unmodifiable list of preprocessors.
+	 */
+	private final Map<CacheKey, SharedEntry> chains = new HashMap<CacheKey, SharedEntry>();
+	private final Map<CacheKey, SharedEntry> preprocessors = new HashMap<CacheKey, SharedEntry>();
+	private final Map<Object, SharedEntry> entriesByInstance = new IdentityHashMap<Object, SharedEntry>();
+	/**
+	 * Chains returned to callers and not released yet, value is entry from {@link #chains}.
+	 */
+	private final Map<PreprocessChain, SharedEntry> acquiredChains = new IdentityHashMap<PreprocessChain, SharedEntry>();
+
+	private volatile Executor initExecutor;
+
+	/**
+	 * Get chain for configuration. Chain is new instance for each call, but its preprocessors are shared with other
+	 * chains acquired for identical configuration. Preprocessors not cached yet are created and initialized.
+	 * 
+	 * @param preprocessorConfig List of configuration structure in Map of Maps, see
+	 *          {@link StructuredContentPreprocessorFactory}
+	 * @param client ES client to be passed to the preprocessors
+	 * @return chain, must be released over {@link #release(PreprocessChain)}
+	 * @throws IllegalArgumentException if something is wrong and preprocessor can't be instantiated.
+	 */
+	public PreprocessChain acquirePreprocessChain(List<Map<String, Object>> preprocessorConfig, Client client)
+			throws IllegalArgumentException {
+		List<CacheKey> keys = new ArrayList<CacheKey>();
+		List<Object> canonical = new ArrayList<Object>();
+		if (preprocessorConfig != null) {
+			for (Map<String, Object> cfgMap : preprocessorConfig) {
+				Object c = canonicalizePreprocessorConfig(cfgMap);
+				canonical.add(c);
+				keys.add(new CacheKey(toCanonicalString(c), client));
+			}
+		}
+		CacheKey key = new CacheKey(toCanonicalString(canonical), client);
+		synchronized (this) {
+			SharedEntry entry = chains.get(key);
+			if (entry != null) {
+				entry.refCount++;
+				return registerAcquiredChain(entry);
+			}
+		}
+
+		List<StructuredContentPreprocessor> preprocs = acquirePreprocessors(preprocessorConfig, keys, client);
+		PreprocessChain chain;
+		synchronized (this) {
+			SharedEntry entry = chains.get(key);
+			if (entry == null) {
+				entry = new SharedEntry(key, Collections.unmodifiableList(preprocs));
+				chains.put(key, entry);
+				return registerAcquiredChain(entry);
+			}
+			entry.refCount++;
+			chain = registerAcquiredChain(entry);
+		}
+		// created concurrently by other thread, so return references to shared preprocessors acquired by us
+		releasePreprocessors(preprocs);
+		return chain;
+	}
+
+	@SuppressWarnings("unchecked")
+	private PreprocessChain registerAcquiredChain(SharedEntry entry) {
+		PreprocessChain chain = new PreprocessChain((List<StructuredContentPreprocessor>) entry.instance);
+		acquiredChains.put(chain, entry);
+		return chain;
+	}
+
+	/**
+	 * Acquire preprocessors for chain. Preprocessors not cached yet are created at once using
+	 * {@link StructuredContentPreprocessorFactory#createPreprocessors(List, Client, Executor)}.
+	 * 
+	 * @param preprocessorConfig configurations of preprocessors
+	 * @param keys cache keys for configurations
+	 * @param client ES client to be passed to the preprocessors
+	 * @return acquired preprocessors in configuration order
+	 * @throws IllegalArgumentException if something is wrong and preprocessor can't be instantiated.
+	 */
+	private List<StructuredContentPreprocessor> acquirePreprocessors(List<Map<String, Object>> preprocessorConfig,
+			List<CacheKey> keys, Client client) throws IllegalArgumentException {
+		StructuredContentPreprocessor[] ret = new StructuredContentPreprocessor[keys.size()];
+		List<Integer> missing = new ArrayList<Integer>();
+		synchronized (this) {
+			for (int i = 0; i < keys.size(); i++) {
+				SharedEntry entry = preprocessors.get(keys.get(i));
+				if (entry != null) {
+					entry.refCount++;
+					ret[i] = (StructuredContentPreprocessor) entry.instance;
+				} else {
+					missing.add(i);
+				}
+			}
+		}
+
+		if (!missing.isEmpty()) {
+			List<Map<String, Object>> missingConfig = new ArrayList<Map<String, Object>>();
+			for (Integer i : missing) {
+				missingConfig.add(preprocessorConfig.get(i));
+			}
+			List<StructuredContentPreprocessor> created;
+			try {
+				// initialization may be slow so it is performed out of lock
+				created = StructuredContentPreprocessorFactory.createPreprocessors(missingConfig, client, getInitExecutor());
+			} catch (RuntimeException e) {
+				// preprocessors created before failure are closed by factory, we release cached ones
+				for (StructuredContentPreprocessor p : ret) {
+					if (p != null)
+						release(p);
+				}
+				throw e;
+			}
+			for (int k = 0; k < missing.size(); k++) {
+				int i = missing.get(k);
+				ret[i] = registerPreprocessor(keys.get(i), created.get(k));
+			}
+		}
+		List<StructuredContentPreprocessor> list = new ArrayList<StructuredContentPreprocessor>();
+		Collections.addAll(list, ret);
+		return list;
+	}
+
+	/**
+	 * Get shared preprocessor for configuration. New preprocessor is created and initialized if not cached yet.
+	 * 
+	 * @param preprocessorConfig configuration structure in Map of Maps, see {@link StructuredContentPreprocessorFactory}
+	 * @param client ES client to be passed to the preprocessor
+	 * @return shared preprocessor, must be released over {@link #release(StructuredContentPreprocessor)}
+	 * @throws IllegalArgumentException if something is wrong and preprocessor can't be instantiated.
+	 */
+	public StructuredContentPreprocessor acquirePreprocessor(Map<String, Object> preprocessorConfig, Client client)
+			throws IllegalArgumentException {
+		CacheKey key = new CacheKey(toCanonicalString(canonicalizePreprocessorConfig(preprocessorConfig)), client);
+		synchronized (this) {
+			SharedEntry entry = preprocessors.get(key);
+			if (entry != null) {
+				entry.refCount++;
+				return (StructuredContentPreprocessor) entry.instance;
+			}
+		}
+
+		// initialization may be slow so it is performed out of lock
+		return registerPreprocessor(key, StructuredContentPreprocessorFactory.createPreprocessor(preprocessorConfig, client));
+	}
+
+	/**
+	 * Put newly created preprocessor into cache.
+	 * 
+	 * @param key of preprocessor
+	 * @param preproc created preprocessor
+	 * @return preprocessor to be used, instance created concurrently by other thread wins and passed one is closed then
+	 */
+	private StructuredContentPreprocessor registerPreprocessor(CacheKey key, StructuredContentPreprocessor preproc) {
+		SharedEntry entry;
+		synchronized (this) {
+			entry = preprocessors.get(key);
+			if (entry == null) {
+				entry = new SharedEntry(key, preproc);
+				preprocessors.put(key, entry);
+				entriesByInstance.put(preproc, entry);
+				return preproc;
+			}
+			entry.refCount++;
+		}
+		// created concurrently by other thread, so throw away our instance
+		closePreprocessor(preproc);
+		return (StructuredContentPreprocessor) entry.instance;
+	}
+
+	/**
+	 * Release chain obtained from {@link #acquirePreprocessChain(List, Client)}. Shared preprocessors of chain are
+	 * released when last chain with the same configuration is released.
+	 * 
+	 * @param chain to release
+	 * @return true if it was last chain with this configuration and its preprocessors have been released
+	 * @throws IllegalArgumentException if chain has not been obtained from this cache or has been released already
+	 */
+	public boolean release(PreprocessChain chain) throws IllegalArgumentException {
+		synchronized (this) {
+			SharedEntry entry = acquiredChains.remove(chain);
+			if (entry == null)
+				throw new IllegalArgumentException("Preprocess chain is not acquired from this cache");
+			if (--entry.refCount > 0)
+				return false;
+			chains.remove(entry.key);
+		}
+		releasePreprocessors(chain.getPreprocessors());
+		return true;
+	}
+
+	/**
+	 * Release preprocessor obtained from {@link #acquirePreprocessor(Map, Client)}. Preprocessor is removed from cache
+	 * and closed (if implements {@link Closeable}) when last reference is released.
+	 * 
+	 * @param preprocessor to release
+	 * @return true if it was last reference and preprocessor has been removed from cache
+	 * @throws IllegalArgumentException if preprocessor has not been obtained from this cache or has been released
+	 *           already
+	 */
+	public boolean release(StructuredContentPreprocessor preprocessor) throws IllegalArgumentException {
+		synchronized (this) {
+			SharedEntry entry = entriesByInstance.get(preprocessor);
+			if (entry == null)
+				throw new IllegalArgumentException("Preprocessor is not acquired from this cache");
+			if (--entry.refCount > 0)
+				return false;
+			preprocessors.remove(entry.key);
+			entriesByInstance.remove(preprocessor);
+		}
+		closePreprocessor(preprocessor);
+		return true;
+	}
+
+	/**
+	 * Set executor used to initialize preprocessors of chain in parallel.
+	 * 
+	 * @param initExecutor executor, null to use shared pool of {@link StructuredContentPreprocessorFactory}
+	 */
+	public void setInitExecutor(Executor initExecutor) {
+		this.initExecutor = initExecutor;
+	}
+
+	protected Executor getInitExecutor() {
+		Executor ret = initExecutor;
+		return ret != null ? ret : StructuredContentPreprocessorFactory.getInitExecutor();
+	}
+
+	/**
+	 * @return number of distinct chain configurations with acquired chains
+	 */
+	public synchronized int getChainCount() {
+		return chains.size();
+	}
+
+	/**
+	 * @return number of cached preprocessors
+	 */
+	public synchronized int getPreprocessorCount() {
+		return preprocessors.size();
+	}
+
+	private void releasePreprocessors(List<StructuredContentPreprocessor> preprocs) {
+		for (StructuredContentPreprocessor p : preprocs) {
+			release(p);
+		}
+	}
+
+	private void closePreprocessor(StructuredContentPreprocessor preproc) {
+		try {
+			PreprocessChain.closePreprocessors(Collections.singletonList(preproc));
+		} catch (IOException e) {
+			// already logged
+		}
+	}
+
+	/**
+	 * Canonicalize configuration of one preprocessor. Alias in <code>class</code> element is replaced by class name.
+	 * 
+	 * @param preprocessorConfig to canonicalize, can be null
+	 * @return canonical structure
+	 */
+	@SuppressWarnings("unchecked")
+	protected Object canonicalizePreprocessorConfig(Map<String, Object> preprocessorConfig) {
+		if (preprocessorConfig == null)
+			return null;
+		Map<String, Object> ret = (Map<String, Object>) canonicalize(preprocessorConfig);
+		Object className = ret.get(StructuredContentPreprocessorFactory.CFG_CLASS);
+		if (className instanceof String) {
+			ret.put(StructuredContentPreprocessorFactory.CFG_CLASS, StructuredContentPreprocessorRegistry.getDefault()
+					.resolveClassName((String) className));
+		}
+		return ret;
+	}
+
+	/**
+	 * Canonicalize structure, so keys in all maps are sorted.
+	 * 
+	 * @param value to canonicalize
+	 * @return canonical structure
+	 */
+	protected static Object canonicalize(Object value) {
+		if (value instanceof Map) {
+			Map<String, Object> ret = new TreeMap<String, Object>();
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+				ret.put(String.valueOf(e.getKey()), canonicalize(e.getValue()));
+			}
+			return ret;
+		} else if (value instanceof Collection) {
+			List<Object> ret = new ArrayList<Object>();
+			for (Object o : (Collection<?>) value) {
+				ret.add(canonicalize(o));
+			}
+			return ret;
+		}
+		return value;
+	}
+
+	private static String toCanonicalString(Object canonical) {
+		try {
+			return XContentFactory.jsonBuilder().startObject().field("c", canonical).endObject().string();
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Preprocessor configuration can't be serialized: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Key of cached instance. Client is compared by identity.
+	 */
+	protected static final class CacheKey {
+		final String canonicalConfig;
+		final Client client;
+
+		CacheKey(String canonicalConfig, Client client) {
+			this.canonicalConfig = canonicalConfig;
+			this.client = client;
+		}
+
+		@Override
+		public int hashCode() {
+			return canonicalConfig.hashCode() * 31 + System.identityHashCode(client);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CacheKey))
+				return false;
+			CacheKey other = (CacheKey) obj;
+			return client == other.client && canonicalConfig.equals(other.canonicalConfig);
+		}
+	}
+
+	private static final class SharedEntry {
+		final CacheKey key;
+		final Object instance;
+		int refCount = 1;
+
+		SharedEntry(CacheKey key, Object instance) {
+			this.key = key;
+			this.instance = instance;
+		}
+	}
+
+}
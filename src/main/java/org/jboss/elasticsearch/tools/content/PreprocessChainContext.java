@@ -7,6 +7,7 @@ package org.jboss.elasticsearch.tools.content;
 
 /**
  * Interface of context object used to pass into chain of preprocessors used to preprocess one data item.
+ * Implementations may provide time budget for data item preprocessing over {@link DeadlineAwareChainContext}.
  * 
  * @author Vlastimil Elias (velias at redhat dot com)
  */
@@ -8,16 +8,24 @@ package org.jboss.elasticsearch.tools.content;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Basic implementation of {@link PreprocessChainContext}.
  * 
  * @author Vlastimil Elias (velias at redhat dot com)
  */
-public class PreprocessChainContextImpl implements PreprocessChainContext {
+public class PreprocessChainContextImpl implements DeadlineAwareChainContext {
 
 	protected List<DataWarning> warnings = new ArrayList<>();
 
+	/**
+	 * {@link System#nanoTime()} based deadline for preprocessing of data item. Valid only if {@link #deadlineSet} is
+	 * <code>true</code>.
+	 */
+	protected long deadlineNanos;
+	protected boolean deadlineSet = false;
+
 	@Override
 	public void addDataWarning(String preprocessorName, String warningMessage) {
 		if (preprocessorName == null || warningMessage == null) {
@@ -44,6 +52,36 @@ public class PreprocessChainContextImpl implements PreprocessChainContext {
 		return !warnings.isEmpty();
 	}
 
+	/**
+	 * Set time budget for preprocessing of data item, so deadline is set to current time plus this budget.
+	 * 
+	 * @param timeBudgetMillis time budget in milliseconds. Zero or negative value means no time budget.
+	 * @since 1.3.9
+	 */
+	public void setTimeBudget(long timeBudgetMillis) {
+		if (timeBudgetMillis > 0) {
+			deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis);
+			deadlineSet = true;
+		} else {
+			deadlineSet = false;
+		}
+	}
+
+	@Override
+	public boolean isDeadlineExceeded() {
+		return deadlineSet && (System.nanoTime() - deadlineNanos) >= 0;
+	}
+
+	@Override
+	public long getRemainingTimeMillis() {
+		if (!deadlineSet)
+			return -1;
+		long remaining = deadlineNanos - System.nanoTime();
+		if (remaining <= 0)
+			return 0;
+		return TimeUnit.NANOSECONDS.toMillis(remaining);
+	}
+
 	@Override
 	public String toString() {
 		return "PreprocessChainContextImpl [warnings=" + warnings + "]";
@@ -0,0 +1,277 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Directed acyclic graph of data dependencies between preprocessors in {@link PreprocessChain}, built from
+ * {@link FieldAccessDeclaration}s of preprocessors. Preprocessor depends on earlier preprocessor in chain if one of
+ * them writes field the other one reads or writes (fields overlap if they are same or one is nested in the other).
+ * Preprocessor not implementing {@link FieldAccessDeclaration} or not able to tell accessed fields depends on all
+ * earlier preprocessors and all later preprocessors depend on it. Preprocessors not depending on each other (even
+ * transitively) may be run in any order or concurrently with the same result.
+ * <p>
+ * Concurrent run of independent preprocessors is safe only if they do not modify the same nested Map structure, see
+ * {@link #canRunConcurrently(int, int)} and {@link #getConcurrentLevels()}.
+ * <p>
+ * Stages are identified by index of preprocessor in chain. Instances are immutable.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class PreprocessChainDependencyGraph {
+
+	protected final List<Set<String>> readFields;
+	protected final List<Set<String>> writtenFields;
+
+	/**
+	 * Direct dependencies of each stage, on earlier stages only.
+	 */
+	private final BitSet[] dependencies;
+
+	/**
+	 * Transitive dependencies of each stage.
+	 */
+	private final BitSet[] ancestors;
+
+	private final int[] levels;
+
+	private final int[] concurrentLevels;
+
+	/**
+	 * Build graph for preprocessors.
+	 * 
+	 * @param preprocessors in order they are called in chain
+	 */
+	public PreprocessChainDependencyGraph(List<StructuredContentPreprocessor> preprocessors) {
+		int size = preprocessors.size();
+		readFields = new ArrayList<Set<String>>(size);
+		writtenFields = new ArrayList<Set<String>>(size);
+		for (StructuredContentPreprocessor p : preprocessors) {
+			if (p instanceof FieldAccessDeclaration) {
+				readFields.add(((FieldAccessDeclaration) p).getReadFields());
+				writtenFields.add(((FieldAccessDeclaration) p).getWrittenFields());
+			} else {
+				readFields.add(null);
+				writtenFields.add(null);
+			}
+		}
+		dependencies = new BitSet[size];
+		ancestors = new BitSet[size];
+		levels = new int[size];
+		concurrentLevels = new int[size];
+		for (int j = 0; j < size; j++) {
+			dependencies[j] = new BitSet(size);
+			ancestors[j] = new BitSet(size);
+			for (int i = 0; i < j; i++) {
+				if (conflicts(i, j)) {
+					dependencies[j].set(i);
+					ancestors[j].set(i);
+					ancestors[j].or(ancestors[i]);
+					levels[j] = Math.max(levels[j], levels[i] + 1);
+				}
+				if (dependencies[j].get(i) || modifiesContainerOf(i, j) || modifiesContainerOf(j, i)) {
+					concurrentLevels[j] = Math.max(concurrentLevels[j], concurrentLevels[i] + 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check if stage modifies nested Map containing some field accessed by other stage. Maps may not be modified
+	 * concurrently even if distinct fields are modified. Modifications of fields in the root of data are not checked, as
+	 * root Map is synchronized by {@link PreprocessChain} during concurrent run.
+	 */
+	private boolean modifiesContainerOf(int stage, int other) {
+		Set<String> written = writtenFields.get(stage);
+		if (written == null)
+			return true;
+		if (readFields.get(other) == null || writtenFields.get(other) == null)
+			return !written.isEmpty();
+		Set<String> accessedByOther = new HashSet<String>(readFields.get(other));
+		accessedByOther.addAll(writtenFields.get(other));
+		for (String w : written) {
+			int idx = w.lastIndexOf('.');
+			if (idx > 0) {
+				String container = w.substring(0, idx);
+				for (String f : accessedByOther) {
+					if (overlap(f, container))
+						return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean conflicts(int i, int j) {
+		return overlap(writtenFields.get(i), readFields.get(j)) || overlap(readFields.get(i), writtenFields.get(j))
+				|| overlap(writtenFields.get(i), writtenFields.get(j));
+	}
+
+	/**
+	 * Check if two sets of fields overlap.
+	 * 
+	 * @param fields1 first set, <code>null</code> means any field
+	 * @param fields2 second set, <code>null</code> means any field
+	 * @return true if some field from first set overlaps with some field from second one
+	 */
+	public static boolean overlap(Set<String> fields1, Set<String> fields2) {
+		if (fields1 == null)
+			return fields2 == null || !fields2.isEmpty();
+		if (fields2 == null)
+			return !fields1.isEmpty();
+		for (String f1 : fields1) {
+			for (String f2 : fields2) {
+				if (overlap(f1, f2))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check if two fields overlap, so they are same or one is nested in the other.
+	 * 
+	 * @param field1 first field in dot notation
+	 * @param field2 second field in dot notation
+	 * @return true if fields overlap
+	 */
+	public static boolean overlap(String field1, String field2) {
+		if (field1.length() == field2.length())
+			return field1.equals(field2);
+		String shorter = field1.length() < field2.length() ? field1 : field2;
+		String longer = shorter == field1 ? field2 : field1;
+		return longer.startsWith(shorter) && longer.charAt(shorter.length()) == '.';
+	}
+
+	/**
+	 * @return number of stages in graph
+	 */
+	public int size() {
+		return levels.length;
+	}
+
+	/**
+	 * Get fields read by stage.
+	 * 
+	 * @param stage index of preprocessor in chain
+	 * @return set of fields, <code>null</code> if any field may be read
+	 */
+	public Set<String> getReadFields(int stage) {
+		return readFields.get(stage);
+	}
+
+	/**
+	 * Get fields written by stage.
+	 * 
+	 * @param stage index of preprocessor in chain
+	 * @return set of fields, <code>null</code> if any field may be written
+	 */
+	public Set<String> getWrittenFields(int stage) {
+		return writtenFields.get(stage);
+	}
+
+	/**
+	 * Get direct dependencies of stage.
+	 * 
+	 * @param stage index of preprocessor in chain
+	 * @return indexes of earlier stages this stage directly depends on
+	 */
+	public BitSet getDependencies(int stage) {
+		return (BitSet) dependencies[stage].clone();
+	}
+
+	/**
+	 * Check if stage depends on other stage, directly or transitively.
+	 * 
+	 * @param stage index of preprocessor in chain
+	 * @param other index of other preprocessor in chain
+	 * @return true if <code>stage</code> depends on <code>other</code>
+	 */
+	public boolean dependsOn(int stage, int other) {
+		return ancestors[stage].get(other);
+	}
+
+	/**
+	 * Check if two stages are independent, so may be run in any order or concurrently.
+	 * 
+	 * @param stage1 index of preprocessor in chain
+	 * @param stage2 index of other preprocessor in chain
+	 * @return true if neither of stages depends on the other one
+	 */
+	public boolean isIndependent(int stage1, int stage2) {
+		return stage1 != stage2 && !dependsOn(stage1, stage2) && !dependsOn(stage2, stage1);
+	}
+
+	/**
+	 * Get level of stage in graph. Stages without dependencies have level 0, other stages have level one higher than
+	 * highest level of stages they depend on.
+	 * 
+	 * @param stage index of preprocessor in chain
+	 * @return level
+	 */
+	public int getLevel(int stage) {
+		return levels[stage];
+	}
+
+	/**
+	 * Get stages grouped by level, see {@link #getLevel(int)}. Stages in one group are independent of each other and
+	 * depend only on stages from previous groups.
+	 * 
+	 * @return list of groups, each group contains indexes of stages in chain order
+	 */
+	public List<List<Integer>> getLevels() {
+		return groupByLevel(levels);
+	}
+
+	private static List<List<Integer>> groupByLevel(int[] levels) {
+		List<List<Integer>> ret = new ArrayList<List<Integer>>();
+		for (int i = 0; i < levels.length; i++) {
+			while (ret.size() <= levels[i])
+				ret.add(new ArrayList<Integer>());
+			ret.get(levels[i]).add(i);
+		}
+		return ret;
+	}
+
+	/**
+	 * Check if two stages may be run concurrently, so they are independent and none of them modifies nested Map
+	 * accessed by the other one.
+	 * 
+	 * @param stage1 index of preprocessor in chain
+	 * @param stage2 index of other preprocessor in chain
+	 * @return true if stages may be run concurrently
+	 */
+	public boolean canRunConcurrently(int stage1, int stage2) {
+		return isIndependent(stage1, stage2) && !modifiesContainerOf(stage1, stage2) && !modifiesContainerOf(stage2, stage1);
+	}
+
+	/**
+	 * Get stages grouped into levels which may be run concurrently. Like {@link #getLevels()}, but stages which can't be
+	 * run concurrently (see {@link #canRunConcurrently(int, int)}) are never in the same group.
+	 * 
+	 * @return list of groups, each group contains indexes of stages in chain order
+	 */
+	public List<List<Integer>> getConcurrentLevels() {
+		return groupByLevel(concurrentLevels);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("PreprocessChainDependencyGraph [");
+		for (int i = 0; i < levels.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(i).append("<-").append(dependencies[i]);
+		}
+		return sb.append("]").toString();
+	}
+
+}
@@ -0,0 +1,246 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Optimizer of order in which {@link PreprocessChain} calls its preprocessors. Preprocessors which may reject data item
+ * (see {@link PreprocessorCostHint#mayRejectData()}, eg. {@link RequiredValidatorPreprocessor}) are moved before
+ * expensive preprocessors they do not depend on, so rejected data items are cheap. Only order of independent
+ * preprocessors is changed (see {@link PreprocessChainDependencyGraph}), so preprocessing result of accepted data item
+ * is the same as for original order. Preprocessors not needed by any validator keep their original order.
+ * <p>
+ * Validator which is cheapest to reach (its own cost plus cost of all not yet called preprocessors it depends on) is
+ * called first. Static {@link PreprocessorCostHint}s are used as costs initially. Time spent in each preprocessor and
+ * number of data items rejected by it are measured by chain, and the order is recomputed every
+ * <code>reoptimizeInterval</code> data items, with validators rejecting more data items preferred. Observed average
+ * time is used for preprocessors called at least <code>reoptimizeInterval</code> times. Static cost hint scaled by
+ * ratio between observed times and static hints of measured preprocessors is used for others, as preprocessors
+ * behind rejecting validators or skipped for absent inputs may be called rarely.
+ * <p>
+ * Note that if more preprocessors fail for one data item, then exception from other one may be thrown than for
+ * original order. Instances are thread safe.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see PreprocessChain#setOptimizeOrder(boolean)
+ */
+public class PreprocessChainOptimizer {
+
+	/**
+	 * Default number of data items between order recomputations.
+	 */
+	public static final int DEFAULT_REOPTIMIZE_INTERVAL = 1000;
+
+	protected final PreprocessChainDependencyGraph dependencyGraph;
+
+	protected final int[] staticCosts;
+
+	protected final boolean[] rejecting;
+
+	protected final int reoptimizeInterval;
+
+	private final AtomicLongArray stageNanos;
+	private final AtomicLongArray stageCalls;
+	private final AtomicLongArray stageRejections;
+	private final AtomicLong processedCount = new AtomicLong();
+
+	private volatile int[] order;
+
+	/**
+	 * Create optimizer with default reoptimize interval.
+	 * 
+	 * @param preprocessors in chain
+	 * @param dependencyGraph of preprocessors
+	 */
+	public PreprocessChainOptimizer(List<StructuredContentPreprocessor> preprocessors,
+			PreprocessChainDependencyGraph dependencyGraph) {
+		this(preprocessors, dependencyGraph, DEFAULT_REOPTIMIZE_INTERVAL);
+	}
+
+	/**
+	 * Create optimizer.
+	 * 
+	 * @param preprocessors in chain
+	 * @param dependencyGraph of preprocessors
+	 * @param reoptimizeInterval number of data items between order recomputations from observed times, zero or negative
+	 *          value means static cost hints are used only
+	 */
+	public PreprocessChainOptimizer(List<StructuredContentPreprocessor> preprocessors,
+			PreprocessChainDependencyGraph dependencyGraph, int reoptimizeInterval) {
+		int size = preprocessors.size();
+		this.dependencyGraph = dependencyGraph;
+		this.reoptimizeInterval = reoptimizeInterval;
+		staticCosts = new int[size];
+		rejecting = new boolean[size];
+		for (int i = 0; i < size; i++) {
+			StructuredContentPreprocessor p = preprocessors.get(i);
+			if (p instanceof PreprocessorCostHint) {
+				staticCosts[i] = ((PreprocessorCostHint) p).getCostHint();
+				rejecting[i] = ((PreprocessorCostHint) p).mayRejectData();
+			} else {
+				staticCosts[i] = PreprocessorCostHint.COST_MODERATE;
+			}
+		}
+		stageNanos = new AtomicLongArray(size);
+		stageCalls = new AtomicLongArray(size);
+		stageRejections = new AtomicLongArray(size);
+		double[] costs = new double[size];
+		double[] rejectRates = new double[size];
+		for (int i = 0; i < size; i++) {
+			costs[i] = staticCosts[i];
+			rejectRates[i] = 1;
+		}
+		order = computeOrder(costs, rejectRates);
+	}
+
+	/**
+	 * Get current order of preprocessors.
+	 * 
+	 * @return indexes of preprocessors in chain in order they should be called. Must not be modified!
+	 */
+	public int[] getOrder() {
+		return order;
+	}
+
+	/**
+	 * Record one call of preprocessor.
+	 * 
+	 * @param stage index of preprocessor in chain
+	 * @param nanos time spent in preprocessor
+	 * @param rejected true if preprocessor rejected data item by {@link InvalidDataException}
+	 */
+	public void recordStage(int stage, long nanos, boolean rejected) {
+		stageNanos.addAndGet(stage, nanos);
+		stageCalls.incrementAndGet(stage);
+		if (rejected)
+			stageRejections.incrementAndGet(stage);
+	}
+
+	/**
+	 * Record end of one data item preprocessing. Order is recomputed from observed times if it is time for it.
+	 */
+	public void recordDataProcessed() {
+		long count = processedCount.incrementAndGet();
+		if (reoptimizeInterval > 0 && count % reoptimizeInterval == 0)
+			reoptimize();
+	}
+
+	/**
+	 * Recompute order from observed times if at least one preprocessor has been called often enough. Static cost hints
+	 * scaled to observed times are used for preprocessors not called often enough.
+	 * 
+	 * @return true if order has been recomputed
+	 */
+	protected boolean reoptimize() {
+		int size = staticCosts.length;
+		double[] costs = new double[size];
+		double[] rejectRates = new double[size];
+		boolean[] measured = new boolean[size];
+		double measuredNanos = 0;
+		double measuredStaticCosts = 0;
+		for (int i = 0; i < size; i++) {
+			long calls = stageCalls.get(i);
+			// smoothed so validators which rejected nothing yet are still ordered by cost
+			rejectRates[i] = (stageRejections.get(i) + 1d) / (calls + 2d);
+			if (calls >= Math.max(1, reoptimizeInterval)) {
+				measured[i] = true;
+				costs[i] = (double) stageNanos.get(i) / calls;
+				measuredNanos += costs[i];
+				measuredStaticCosts += staticCosts[i];
+			}
+		}
+		if (measuredStaticCosts == 0)
+			return false;
+		double nanosPerStaticCost = measuredNanos / measuredStaticCosts;
+		for (int i = 0; i < size; i++) {
+			if (!measured[i])
+				costs[i] = staticCosts[i] * nanosPerStaticCost;
+		}
+		order = computeOrder(costs, rejectRates);
+		return true;
+	}
+
+	/**
+	 * Compute order of preprocessors.
+	 * 
+	 * @param costs of preprocessors
+	 * @param rejectRates probability of data item rejection for each preprocessor, used for rejecting ones only
+	 * @return indexes of preprocessors in order they should be called
+	 */
+	protected int[] computeOrder(double[] costs, double[] rejectRates) {
+		int size = costs.length;
+		int[] ret = new int[size];
+		boolean[] done = new boolean[size];
+		for (int k = 0; k < size; k++) {
+			int target = -1;
+			double bestScore = Double.MAX_VALUE;
+			for (int v = 0; v < size; v++) {
+				if (done[v] || !rejecting[v])
+					continue;
+				double score = reachCost(v, costs, done) / rejectRates[v];
+				if (score < bestScore) {
+					bestScore = score;
+					target = v;
+				}
+			}
+			// first not called stage is always ready as dependencies are on earlier stages only. If we look for it only
+			// among target validator and stages it depends on, then it is ready too, as all its dependencies are
+			// dependencies of target validator.
+			int next = -1;
+			for (int i = 0; i < size && next < 0; i++) {
+				if (!done[i] && (target < 0 || i == target || dependencyGraph.dependsOn(target, i)))
+					next = i;
+			}
+			done[next] = true;
+			ret[k] = next;
+		}
+		return ret;
+	}
+
+	private double reachCost(int stage, double[] costs, boolean[] done) {
+		double ret = costs[stage];
+		for (int i = 0; i < stage; i++) {
+			if (!done[i] && dependencyGraph.dependsOn(stage, i))
+				ret += costs[i];
+		}
+		return ret;
+	}
+
+	/**
+	 * Get average observed time spent in preprocessor.
+	 * 
+	 * @param stage index of preprocessor in chain
+	 * @return average time in nanoseconds, -1 if preprocessor has not been called yet
+	 */
+	public long getAverageNanos(int stage) {
+		long calls = stageCalls.get(stage);
+		return calls > 0 ? stageNanos.get(stage) / calls : -1;
+	}
+
+	/**
+	 * Get number of data items rejected by preprocessor.
+	 * 
+	 * @param stage index of preprocessor in chain
+	 * @return number of rejected data items
+	 */
+	public long getRejectedCount(int stage) {
+		return stageRejections.get(stage);
+	}
+
+	public int getReoptimizeInterval() {
+		return reoptimizeInterval;
+	}
+
+	@Override
+	public String toString() {
+		return "PreprocessChainOptimizer [order=" + Arrays.toString(order) + "]";
+	}
+
+}
@@ -0,0 +1,28 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+/**
+ * Exception thrown from {@link PreprocessChain} if time budget for preprocessing of one data item is exhausted and
+ * {@link PreprocessChain.TimeoutAction#FAIL} is configured.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see PreprocessChain#setTimeBudget(long, PreprocessChain.TimeoutAction)
+ */
+public class PreprocessChainTimeoutException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param message describing timeout
+	 */
+	public PreprocessChainTimeoutException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,48 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+/**
+ * Optional interface of {@link StructuredContentPreprocessor} giving static hint about its cost and whether it may
+ * reject data item by {@link InvalidDataException}. Used by {@link PreprocessChainOptimizer} to run cheap validators
+ * before expensive preprocessors, so rejected data items are cheap. Preprocessors not implementing this interface are
+ * handled as {@link #COST_MODERATE} not rejecting data.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see StructuredContentPreprocessorBase
+ */
+public interface PreprocessorCostHint {
+
+	/**
+	 * Cost of simple operation over few fields of data, eg. adding or removing value.
+	 */
+	int COST_CHEAP = 1;
+
+	/**
+	 * Cost of more complex processing of values, eg. parsing or regular expressions.
+	 */
+	int COST_MODERATE = 10;
+
+	/**
+	 * Cost of remote calls or script evaluation.
+	 */
+	int COST_EXPENSIVE = 100;
+
+	/**
+	 * Get relative cost of one data item preprocessing.
+	 * 
+	 * @return cost, see <code>COST_xx</code> constants for scale
+	 */
+	int getCostHint();
+
+	/**
+	 * Tell whether preprocessor may reject data item by {@link InvalidDataException}.
+	 * 
+	 * @return true if data item may be rejected
+	 */
+	boolean mayRejectData();
+
+}
@@ -5,7 +5,10 @@
  */
 package org.jboss.elasticsearch.tools.content;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -45,6 +48,10 @@ import org.elasticsearch.common.xcontent.support.XContentMapValues;
  * extraction is performed for each of this fields, <code>source_field</code> and <code>target_field_xx</code> are
  * resolved relatively against this base. Base must provide object or list of objects.
  * </ul>
+ * <p>
+ * If time budget for data preprocessing is defined (see
+ * {@link PreprocessChain#setTimeBudget(long, PreprocessChain.TimeoutAction)}) then pattern matching is interrupted with
+ * warning when the budget is exhausted, so catastrophic backtracking can't stall data preprocessing.
  * 
  * @author Vlastimil Elias (velias at redhat dot com)
  * @see StructuredContentPreprocessorFactory
@@ -79,6 +86,7 @@ public class RegExpCapturingGroupPreprocessor extends StructuredContentPreproces
 		try {
 			resultMapping = (Map<Object, String>) settings.get(CFG_RESULT_MAPPING);
 			validateResultMappingConfiguration(resultMapping, CFG_RESULT_MAPPING);
+			resultMapping = Collections.unmodifiableMap(new LinkedHashMap<Object, String>(resultMapping));
 		} catch (ClassCastException e) {
 			throw new SettingsException("'settings/" + CFG_RESULT_MAPPING + "' configuration value for '" + name
 					+ "' preprocessor is invalid");
@@ -144,8 +152,18 @@ public class RegExpCapturingGroupPreprocessor extends StructuredContentPreproces
 		if (v != null) {
 			if (v instanceof String) {
 				String vs = (String) v;
-				Matcher m = patternCompiled.matcher(vs);
-				if (m.matches()) {
+				Matcher m = patternCompiled.matcher(createMatchedSequence(vs, chainContext));
+				boolean matches = false;
+				try {
+					matches = m.matches();
+				} catch (DeadlineExceededException e) {
+					String warningMessage = "Pattern matching for value from field '" + fieldSource
+							+ "' interrupted because time budget for data preprocessing is exceeded";
+					addDataWarning(chainContext, warningMessage);
+					logger.debug(warningMessage);
+					return;
+				}
+				if (matches) {
 					for (Object index : resultMapping.keySet()) {
 						int i = -1;
 						if (index instanceof Number) {
@@ -179,6 +197,71 @@ public class RegExpCapturingGroupPreprocessor extends StructuredContentPreproces
 		}
 	}
 
+	/**
+	 * Create sequence to run pattern matching on. If time budget is defined for data preprocessing then sequence checking
+	 * deadline is returned, so even catastrophic backtracking of regular expression is interrupted by
+	 * {@link DeadlineExceededException} when time budget is exhausted.
+	 * 
+	 * @param value to run pattern matching on
+	 * @param chainContext to get deadline from, can be null
+	 * @return sequence to be passed to {@link Pattern#matcher(CharSequence)}
+	 */
+	protected CharSequence createMatchedSequence(String value, PreprocessChainContext chainContext) {
+		if (PreprocessChain.getRemainingTimeMillis(chainContext) < 0)
+			return value;
+		return new DeadlineCheckingCharSequence(value, (DeadlineAwareChainContext) chainContext);
+	}
+
+	/**
+	 * {@link CharSequence} checking deadline from {@link DeadlineAwareChainContext} during access to the characters. Check
+	 * is performed only once for {@value #CHECK_INTERVAL} accesses to be cheap.
+	 */
+	protected static class DeadlineCheckingCharSequence implements CharSequence {
+
+		protected static final int CHECK_INTERVAL = 1024;
+
+		private final CharSequence value;
+		private final DeadlineAwareChainContext chainContext;
+		private int counter = 0;
+
+		protected DeadlineCheckingCharSequence(CharSequence value, DeadlineAwareChainContext chainContext) {
+			this.value = value;
+			this.chainContext = chainContext;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (++counter >= CHECK_INTERVAL) {
+				counter = 0;
+				if (chainContext.isDeadlineExceeded())
+					throw new DeadlineExceededException();
+			}
+			return value.charAt(index);
+		}
+
+		@Override
+		public int length() {
+			return value.length();
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new DeadlineCheckingCharSequence(value.subSequence(start, end), chainContext);
+		}
+
+		@Override
+		public String toString() {
+			return value.toString();
+		}
+	}
+
+	/**
+	 * Exception used to interrupt pattern matching when deadline is exceeded.
+	 */
+	protected static class DeadlineExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
 	@Override
 	protected Object createContext(Map<String, Object> data) {
 		return null;
@@ -196,4 +279,22 @@ public class RegExpCapturingGroupPreprocessor extends StructuredContentPreproces
 		return patternCompiled != null ? patternCompiled.pattern() : null;
 	}
 
+	@Override
+	public Set<String> getReadFields() {
+		return toFieldSet(fieldSource);
+	}
+
+	@Override
+	public Set<String> getWrittenFields() {
+		return toFieldSet(resultMapping.values());
+	}
+
+	/**
+	 * Nothing is done if source field is not present.
+	 */
+	@Override
+	public Set<String> getRequiredInputFields() {
+		return toFieldSet(fieldSource);
+	}
+
 }
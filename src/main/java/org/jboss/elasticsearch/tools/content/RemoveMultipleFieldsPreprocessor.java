@@ -6,8 +6,10 @@
 package org.jboss.elasticsearch.tools.content;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.elasticsearch.common.settings.SettingsException;
 
@@ -48,12 +50,11 @@ public class RemoveMultipleFieldsPreprocessor extends StructuredContentPreproces
 		super.init(settings);
 		Object o = settings.get(CFG_FIELDS);
 		if (o instanceof List) {
-			fields = (List<String>) o;
+			fields = Collections.unmodifiableList(new ArrayList<String>((List<String>) o));
 		} else if (o instanceof String) {
 			String s = ValueUtils.trimToNull((String) o);
 			if (s != null) {
-				fields = new ArrayList<String>();
-				fields.add(s);
+				fields = Collections.singletonList(s);
 			}
 		}
 		if (fields == null || fields.isEmpty()) {
@@ -82,4 +83,27 @@ public class RemoveMultipleFieldsPreprocessor extends StructuredContentPreproces
 		return fields;
 	}
 
+	@Override
+	public Set<String> getReadFields() {
+		return toFieldSet();
+	}
+
+	@Override
+	public Set<String> getWrittenFields() {
+		return toFieldSet(fields);
+	}
+
+	/**
+	 * Nothing is done if no one of fields to remove is present.
+	 */
+	@Override
+	public Set<String> getRequiredInputFields() {
+		return toFieldSet(fields);
+	}
+
+	@Override
+	public int getCostHint() {
+		return COST_CHEAP;
+	}
+
 }
@@ -0,0 +1,27 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.Set;
+
+/**
+ * Optional interface of {@link StructuredContentPreprocessor} declaring input fields it can't work without. If none of
+ * them is present in data item then preprocessor changes nothing and adds no warning, so {@link PreprocessChain} may
+ * skip it without calling, see {@link FieldPresenceFilter}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see StructuredContentPreprocessorBase
+ */
+public interface RequiredInputDeclaration {
+
+	/**
+	 * Get fields at least one of which must be present in data item for preprocessor to do anything.
+	 * 
+	 * @return fields in dot notation, <code>null</code> or empty if preprocessor must be called always
+	 */
+	Set<String> getRequiredInputFields();
+
+}
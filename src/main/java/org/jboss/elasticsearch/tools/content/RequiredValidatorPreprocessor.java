@@ -7,6 +7,7 @@ package org.jboss.elasticsearch.tools.content;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.Set;
 
 import org.elasticsearch.common.settings.SettingsException;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
@@ -80,4 +81,24 @@ public class RequiredValidatorPreprocessor extends StructuredContentPreprocessor
 		return field;
 	}
 
+	@Override
+	public Set<String> getReadFields() {
+		return toFieldSet(field);
+	}
+
+	@Override
+	public Set<String> getWrittenFields() {
+		return toFieldSet();
+	}
+
+	@Override
+	public int getCostHint() {
+		return COST_CHEAP;
+	}
+
+	@Override
+	public boolean mayRejectData() {
+		return true;
+	}
+
 }
@@ -37,9 +37,16 @@ import org.elasticsearch.common.xcontent.support.XContentMapValues;
  * <ul>
  * <li><code>script_engine_name</code> - optional name of scripting engine. Defaults to <code>JavaScript</code>.
  * <li><code>script</code> - script code to run, {@link ScriptEngine#eval(String)} method is used. You can use variable
- * called <code>data</code> to manipulate processed data.
+ * called <code>data</code> to manipulate processed data. Variable called <code>chainContext</code> contains
+ * {@link PreprocessChainContext} (may be <code>null</code>). It is {@link DeadlineAwareChainContext} if time budget
+ * for data preprocessing is defined, long running scripts should check <code>chainContext.isDeadlineExceeded()</code>
+ * to finish early if it is exhausted.
  * </ul>
  * <p>
+ * Script is not executed at all if time budget for data preprocessing is exhausted already before it is started (see
+ * {@link PreprocessChain#setTimeBudget(long, PreprocessChain.TimeoutAction)}). Running script can't be interrupted
+ * safely, so it should check the deadline itself.
+ * <p>
  * <b>Note</b> that performance of this preprocessor depends on performance of scripting engine. It is always better to
  * use other existing specialized preprocessors for simple tasks like constant values setting, simple value copy etc.
  * 
@@ -55,6 +62,10 @@ public class ScriptingPreprocessor extends StructuredContentPreprocessorBase {
 	protected static ScriptEngineManager factory = new ScriptEngineManager();
 	protected String script;
 	protected ScriptEngine engine;
+	/**
+	 * true if {@link #engine} can evaluate scripts by more threads concurrently, it is synchronized otherwise.
+	 */
+	protected boolean engineThreadSafe;
 
 	@Override
 	public void init(Map<String, Object> settings) throws SettingsException {
@@ -65,23 +76,38 @@ public class ScriptingPreprocessor extends StructuredContentPreprocessorBase {
 		validateConfigurationStringNotEmpty(script, CFG_SCRIPT_FIELD);
 		scriptEngineName = XContentMapValues.nodeStringValue(settings.get(CFG_SCRIPT_ENGINE_NAME_FIELD), "JavaScript");
 		validateConfigurationStringNotEmpty(scriptEngineName, CFG_SCRIPT_ENGINE_NAME_FIELD);
-		engine = factory.getEngineByName(scriptEngineName);
+		synchronized (factory) {
+			engine = factory.getEngineByName(scriptEngineName);
+		}
 		if (engine == null) {
 			throw new SettingsException("No scripting engine is available for name " + scriptEngineName
 					+ " for preprocessor " + name);
 		}
+		engineThreadSafe = engine.getFactory().getParameter("THREADING") != null;
 	}
 
 	@Override
 	public Map<String, Object> preprocessData(Map<String, Object> data, PreprocessChainContext chainContext) {
 
+		if (isDeadlineExceeded(chainContext)) {
+			String warningMessage = "Script not executed because time budget for data preprocessing is exceeded";
+			addDataWarning(chainContext, warningMessage);
+			logger.debug(warningMessage);
+			return data;
+		}
+
 		ScriptContext newContext = new SimpleScriptContext();
 		Bindings engineScope = newContext.getBindings(ScriptContext.ENGINE_SCOPE);
 		engineScope.put("data", data);
+		engineScope.put("chainContext", chainContext);
 
 		try {
-			synchronized (engine) {
+			if (engineThreadSafe) {
 				engine.eval(script, newContext);
+			} else {
+				synchronized (engine) {
+					engine.eval(script, newContext);
+				}
 			}
 		} catch (ScriptException e) {
 			String warningMessage = "Script execution failed: " + e.getMessage();
@@ -99,4 +125,9 @@ public class ScriptingPreprocessor extends StructuredContentPreprocessorBase {
 		return script;
 	}
 
+	@Override
+	public int getCostHint() {
+		return COST_EXPENSIVE;
+	}
+
 }
@@ -6,7 +6,11 @@
 package org.jboss.elasticsearch.tools.content;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.elasticsearch.common.settings.SettingsException;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
@@ -77,6 +81,8 @@ public class SimpleValueMapMapperPreprocessor extends StructuredContentPreproces
 		validateConfigurationStringNotEmpty(fieldTarget, CFG_TARGET_FIELD);
 		defaultValue = ValueUtils.trimToNull(XContentMapValues.nodeStringValue(settings.get(CFG_VALUE_DEFAULT), null));
 		valueMap = (Map<String, String>) settings.get(CFG_VALUE_MAPPING);
+		if (valueMap != null)
+			valueMap = Collections.unmodifiableMap(new HashMap<String, String>(valueMap));
 		if (valueMap == null || valueMap.isEmpty()) {
 			logger.warn("'settings/" + CFG_VALUE_MAPPING + "' is not defined for preprocessor '{}'", name);
 		}
@@ -141,4 +147,21 @@ public class SimpleValueMapMapperPreprocessor extends StructuredContentPreproces
 		return valueMap;
 	}
 
+	@Override
+	public Set<String> getReadFields() {
+		Set<String> ret = new LinkedHashSet<String>(ValueUtils.getPatternKeys(defaultValue));
+		ret.add(fieldSource);
+		return toFieldSet(ret);
+	}
+
+	@Override
+	public Set<String> getWrittenFields() {
+		return toFieldSet(fieldTarget);
+	}
+
+	@Override
+	public int getCostHint() {
+		return COST_CHEAP;
+	}
+
 }
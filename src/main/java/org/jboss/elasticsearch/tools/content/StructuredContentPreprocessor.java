@@ -13,6 +13,10 @@ import org.elasticsearch.common.settings.SettingsException;
 /**
  * Interface for components used to preprocess structured data before other action, eg. indexed document is created from
  * them. Instances may be created from configuration using {@link StructuredContentPreprocessorFactory}.
+ * <p>
+ * Once initialized, one instance may be used to preprocess data by more threads concurrently, so implementations must
+ * not change their configuration nor store state of processed data item into instance fields during
+ * {@link #preprocessData(Map, PreprocessChainContext)}.
  * 
  * @author Vlastimil Elias (velias at redhat dot com)
  */
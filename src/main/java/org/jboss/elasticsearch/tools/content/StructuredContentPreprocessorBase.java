@@ -5,8 +5,12 @@
  */
 package org.jboss.elasticsearch.tools.content;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.logging.ESLogger;
@@ -14,11 +18,18 @@ import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.SettingsException;
 
 /**
- * Abstract base class for {@link StructuredContentPreprocessor} implementations.
+ * Abstract base class for {@link StructuredContentPreprocessor} implementations. Implements
+ * {@link FieldAccessDeclaration} conservatively (any field may be read and written), override
+ * {@link #getReadFields()} and {@link #getWrittenFields()} to declare fields your preprocessor really touches.
+ * Implements {@link PreprocessorCostHint} as {@link PreprocessorCostHint#COST_MODERATE} not rejecting data, override
+ * {@link #getCostHint()} and {@link #mayRejectData()} if it doesn't fit your preprocessor. Implements
+ * {@link RequiredInputDeclaration} so preprocessor is always called, override {@link #getRequiredInputFields()} if
+ * your preprocessor does nothing when its input fields are missing.
  * 
  * @author Vlastimil Elias (velias at redhat dot com)
  */
-public abstract class StructuredContentPreprocessorBase implements StructuredContentPreprocessor {
+public abstract class StructuredContentPreprocessorBase implements StructuredContentPreprocessor, FieldAccessDeclaration,
+		PreprocessorCostHint, RequiredInputDeclaration {
 
 	protected ESLogger logger = null;
 
@@ -66,6 +77,17 @@ public abstract class StructuredContentPreprocessorBase implements StructuredCon
 		}
 	}
 
+	/**
+	 * Check if time budget for preprocessing of data item is exceeded already.
+	 * 
+	 * @param chainContext to check deadline in. Can be <code>null</code>.
+	 * @return <code>true</code> if deadline is exceeded
+	 * @see PreprocessChain#isDeadlineExceeded(PreprocessChainContext)
+	 */
+	protected boolean isDeadlineExceeded(PreprocessChainContext chainContext) {
+		return PreprocessChain.isDeadlineExceeded(chainContext);
+	}
+
 	/**
 	 * Validate configuration string is not null or empty. Useful for your {@link #init(Map)} implementation.
 	 * 
@@ -118,6 +140,85 @@ public abstract class StructuredContentPreprocessorBase implements StructuredCon
 		}
 	}
 
+	/**
+	 * Any field may be read by default.
+	 * 
+	 * @return null
+	 */
+	@Override
+	public Set<String> getReadFields() {
+		return null;
+	}
+
+	/**
+	 * Any field may be written by default.
+	 * 
+	 * @return null
+	 */
+	@Override
+	public Set<String> getWrittenFields() {
+		return null;
+	}
+
+	/**
+	 * Moderate cost by default.
+	 * 
+	 * @return {@link PreprocessorCostHint#COST_MODERATE}
+	 */
+	@Override
+	public int getCostHint() {
+		return COST_MODERATE;
+	}
+
+	/**
+	 * Data are not rejected by default.
+	 * 
+	 * @return false
+	 */
+	@Override
+	public boolean mayRejectData() {
+		return false;
+	}
+
+	/**
+	 * Preprocessor is always called by default.
+	 * 
+	 * @return null
+	 */
+	@Override
+	public Set<String> getRequiredInputFields() {
+		return null;
+	}
+
+	/**
+	 * Create set of fields for {@link FieldAccessDeclaration} implementation. Useful for your {@link #getReadFields()}
+	 * and {@link #getWrittenFields()} implementation.
+	 * 
+	 * @param fields to add into set, <code>null</code> or empty values are ignored
+	 * @return unmodifiable set of fields
+	 */
+	protected Set<String> toFieldSet(String... fields) {
+		return toFieldSet(Arrays.asList(fields));
+	}
+
+	/**
+	 * Create set of fields for {@link FieldAccessDeclaration} implementation. Useful for your {@link #getReadFields()}
+	 * and {@link #getWrittenFields()} implementation.
+	 * 
+	 * @param fields to add into set, can be null. <code>null</code> or empty values are ignored.
+	 * @return unmodifiable set of fields
+	 */
+	protected Set<String> toFieldSet(Collection<String> fields) {
+		Set<String> ret = new LinkedHashSet<String>();
+		if (fields != null) {
+			for (String f : fields) {
+				if (!ValueUtils.isEmpty(f))
+					ret.add(f);
+			}
+		}
+		return Collections.unmodifiableSet(ret);
+	}
+
 	@Override
 	public String getName() {
 		return name;
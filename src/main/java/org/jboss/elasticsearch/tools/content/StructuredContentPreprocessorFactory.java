@@ -5,11 +5,24 @@
  */
 package org.jboss.elasticsearch.tools.content;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
 
 /**
  * Factory class used to construct {@link StructuredContentPreprocessor} instances from configuration.
@@ -27,10 +40,23 @@ import org.elasticsearch.client.Client;
  * }
  * </pre>
  * 
- * Class defined in <code>class</code> element must implement {@link StructuredContentPreprocessor} interface. Name of
+ * Class defined in <code>class</code> element must implement {@link StructuredContentPreprocessor} interface. Short alias
+ * registered in {@link StructuredContentPreprocessorRegistry} may be used instead of fully qualified class name, eg.
+ * <code>strip_html</code> or <code>es_lookup</code> for preprocessors distributed with this framework (see
+ * {@link BuiltInPreprocessorProvider}). Name of
  * preprocessor from <code>name</code> element and configuration structure stored in <code>settings</code> element (must
  * be <code>Map<String, Object></code>) is then passed to the
  * {@link StructuredContentPreprocessor#init(String, Client, Map)} method.
+ * <p>
+ * Preprocessors from array of configurations are initialized in parallel, as they do not depend on each other. Optional
+ * <code>lazy_init</code> element with <code>true</code> value postpones initialization of preprocessor until it is
+ * used for the first time, see {@link LazyInitPreprocessor}. Optional <code>condition</code> element restricts
+ * preprocessor to data items matching condition, see {@link DataCondition} for its structure and
+ * {@link ConditionalPreprocessor}. Optional <code>memoize</code> element with <code>true</code> value or max number of
+ * cached results enables reuse of results for data items with the same input, see {@link MemoizingPreprocessor}.
+ * <p>
+ * Preprocessors of chains created over {@link #acquirePreprocessChain(List, Client)} are cached and shared by all
+ * callers using identical configuration, see {@link PreprocessChainCache}.
  * 
  * @author Vlastimil Elias (velias at redhat dot com)
  */
@@ -39,6 +65,11 @@ public class StructuredContentPreprocessorFactory {
   public static final String CFG_SETTINGS = "settings";
 	public static final String CFG_CLASS = "class";
 	public static final String CFG_NAME = "name";
+	public static final String CFG_LAZY_INIT = "lazy_init";
+	public static final String CFG_CONDITION = "condition";
+	public static final String CFG_MEMOIZE = "memoize";
+
+  private static final PreprocessChainCache preprocessChainCache = new PreprocessChainCache();
 
 	/**
    * Create preprocessor from configuration described in this class's javadoc.
@@ -63,24 +94,34 @@ public class StructuredContentPreprocessorFactory {
     if (settings != null && !(settings instanceof Map)) {
       throw new IllegalArgumentException("'settings' element must be Map for preprocessor " + name);
     }
-    try {
-      StructuredContentPreprocessor preproc = (StructuredContentPreprocessor) Class.forName(className).newInstance();
-      preproc.init(name, client, (Map<String, Object>) settings);
-      return preproc;
-    } catch (InstantiationException e) {
-      throw new IllegalArgumentException("Preprocessor class " + className + " creation exception " + e.getMessage(), e);
-    } catch (IllegalAccessException e) {
-      throw new IllegalArgumentException("Preprocessor class " + className + " creation exception " + e.getMessage(), e);
-    } catch (ClassNotFoundException e) {
-      throw new IllegalArgumentException("Preprocessor class " + className + " not found", e);
-    } catch (ClassCastException e) {
-      throw new IllegalArgumentException("Preprocessor class " + className + " must implement interface "
-          + StructuredContentPreprocessor.class.getName());
+    StructuredContentPreprocessor preproc = StructuredContentPreprocessorRegistry.getDefault().newInstance(className);
+    if (XContentMapValues.nodeBooleanValue(preprocessorConfig.get(CFG_LAZY_INIT), false)) {
+      preproc = new LazyInitPreprocessor(preproc);
+    }
+    Object memoize = preprocessorConfig.get(CFG_MEMOIZE);
+    if (memoize instanceof Number) {
+      if (((Number) memoize).intValue() < 1)
+        throw new IllegalArgumentException("'memoize' element must be true or positive number for preprocessor " + name);
+      preproc = new MemoizingPreprocessor(preproc, ((Number) memoize).intValue());
+    } else if (XContentMapValues.nodeBooleanValue(memoize, false)) {
+      preproc = new MemoizingPreprocessor(preproc, MemoizingPreprocessor.DEFAULT_MAX_SIZE);
     }
+    Object condition = preprocessorConfig.get(CFG_CONDITION);
+    if (condition != null) {
+      try {
+        preproc = new ConditionalPreprocessor(preproc, DataCondition.compile(condition));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Invalid 'condition' element for preprocessor " + name + ": "
+            + e.getMessage(), e);
+      }
+    }
+    preproc.init(name, client, (Map<String, Object>) settings);
+    return preproc;
   }
 
   /**
-   * Create more preprocessor from array of configurations described in this class's javadoc.
+   * Create more preprocessor from array of configurations described in this class's javadoc. Preprocessors are
+   * initialized in parallel using shared pool of daemon threads.
    * 
    * @param preprocessorConfig List of configuration structure in Map of Maps
    * @param client ES client to be passed to the preprocessor.
@@ -89,13 +130,193 @@ public class StructuredContentPreprocessorFactory {
    */
   public static List<StructuredContentPreprocessor> createPreprocessors(List<Map<String, Object>> preprocessorConfig,
       Client client) throws IllegalArgumentException {
+    return createPreprocessors(preprocessorConfig, client, getInitExecutor());
+  }
+
+  /**
+   * Create more preprocessor from array of configurations described in this class's javadoc. Preprocessors are
+   * initialized in parallel using passed executor, calling thread initializes preprocessors not started by executor
+   * yet, so initialization never waits for busy executor. If more preprocessors fail then exception from the first of
+   * them (in configuration order) is thrown. Preprocessors created successfully are closed if some other one fails, so
+   * resources held by them are not leaked.
+   * 
+   * @param preprocessorConfig List of configuration structure in Map of Maps
+   * @param client ES client to be passed to the preprocessor.
+   * @param executor used to initialize preprocessors in parallel, null to initialize them sequentially in calling
+   *          thread
+   * @return list of created instances
+   * @throws IllegalArgumentException if something is wrong and preprocessor can't be instantiated.
+   * @since 1.3.9
+   */
+  public static List<StructuredContentPreprocessor> createPreprocessors(List<Map<String, Object>> preprocessorConfig,
+      final Client client, Executor executor) throws IllegalArgumentException {
     List<StructuredContentPreprocessor> ret = new ArrayList<StructuredContentPreprocessor>();
-    if (preprocessorConfig != null) {
-      for (Map<String, Object> cfgMap : preprocessorConfig) {
-        ret.add(createPreprocessor(cfgMap, client));
+    if (preprocessorConfig == null)
+      return ret;
+    if (executor == null || preprocessorConfig.size() < 2) {
+      try {
+        for (Map<String, Object> cfgMap : preprocessorConfig) {
+          ret.add(createPreprocessor(cfgMap, client));
+        }
+      } catch (RuntimeException | Error e) {
+        closePreprocessors(ret);
+        throw e;
       }
+      return ret;
     }
-    return ret;
+
+    // preprocessors created by tasks, so they can be closed if other one fails. Tasks still running when failure is
+    // detected close their preprocessors themselves.
+    final List<StructuredContentPreprocessor> created = new ArrayList<StructuredContentPreprocessor>();
+    final boolean[] abandoned = new boolean[1];
+    List<FutureTask<StructuredContentPreprocessor>> tasks = new ArrayList<FutureTask<StructuredContentPreprocessor>>();
+    for (final Map<String, Object> cfgMap : preprocessorConfig) {
+      FutureTask<StructuredContentPreprocessor> task = new FutureTask<StructuredContentPreprocessor>(
+          new Callable<StructuredContentPreprocessor>() {
+            @Override
+            public StructuredContentPreprocessor call() {
+              StructuredContentPreprocessor ret = createPreprocessor(cfgMap, client);
+              synchronized (created) {
+                if (!abandoned[0]) {
+                  created.add(ret);
+                  return ret;
+                }
+              }
+              closePreprocessors(Collections.singletonList(ret));
+              return ret;
+            }
+          });
+      tasks.add(task);
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        // task is run by calling thread then
+      }
+    }
+    boolean success = false;
+    try {
+      for (FutureTask<StructuredContentPreprocessor> task : tasks) {
+        // no-op if task is started by executor already
+        task.run();
+        ret.add(task.get());
+      }
+      success = true;
+      return ret;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IllegalArgumentException("Preprocessor creation exception " + cause.getMessage(), cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalArgumentException("Preprocessors initialization interrupted", e);
+    } catch (CancellationException e) {
+      throw new IllegalArgumentException("Preprocessors initialization cancelled", e);
+    } finally {
+      for (FutureTask<StructuredContentPreprocessor> task : tasks) {
+        task.cancel(false);
+      }
+      if (!success) {
+        List<StructuredContentPreprocessor> toClose;
+        synchronized (created) {
+          abandoned[0] = true;
+          toClose = new ArrayList<StructuredContentPreprocessor>(created);
+        }
+        closePreprocessors(toClose);
+      }
+    }
+  }
+
+  private static void closePreprocessors(List<StructuredContentPreprocessor> preprocessors) {
+    try {
+      PreprocessChain.closePreprocessors(preprocessors);
+    } catch (IOException e) {
+      // already logged
+    }
+  }
+
+  private static volatile ThreadPoolExecutor initExecutor;
+
+  /**
+   * Get shared executor used to initialize preprocessors in parallel. Pool of daemon threads with size equal to number
+   * of processors is used, idle threads are stopped.
+   * 
+   * @return executor
+   */
+  protected static Executor getInitExecutor() {
+    if (initExecutor == null) {
+      synchronized (StructuredContentPreprocessorFactory.class) {
+        if (initExecutor == null) {
+          int threads = Runtime.getRuntime().availableProcessors();
+          ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, "preprocessor-init");
+                  t.setDaemon(true);
+                  return t;
+                }
+              });
+          executor.allowCoreThreadTimeOut(true);
+          initExecutor = executor;
+        }
+      }
+    }
+    return initExecutor;
+  }
+
+  /**
+   * Create chain of preprocessors from array of configurations described in this class's javadoc.
+   * 
+   * @param preprocessorConfig List of configuration structure in Map of Maps
+   * @param client ES client to be passed to the preprocessor.
+   * @return chain with created preprocessors
+   * @throws IllegalArgumentException if something is wrong and preprocessor can't be instantiated.
+   * @since 1.3.9
+   */
+  public static PreprocessChain createPreprocessChain(List<Map<String, Object>> preprocessorConfig, Client client)
+      throws IllegalArgumentException {
+    return new PreprocessChain(createPreprocessors(preprocessorConfig, client));
+  }
+
+  /**
+   * Get chain of shared preprocessors for array of configurations described in this class's javadoc. Preprocessors are
+   * created only if no preprocessor with identical configuration is cached yet. Returned chain is private for caller
+   * so may be configured, but must be released over {@link #releasePreprocessChain(PreprocessChain)} once not used
+   * anymore.
+   * 
+   * @param preprocessorConfig List of configuration structure in Map of Maps
+   * @param client ES client to be passed to the preprocessor.
+   * @return chain with shared initialized preprocessors
+   * @throws IllegalArgumentException if something is wrong and preprocessor can't be instantiated.
+   * @see PreprocessChainCache
+   */
+  public static PreprocessChain acquirePreprocessChain(List<Map<String, Object>> preprocessorConfig, Client client)
+      throws IllegalArgumentException {
+    return preprocessChainCache.acquirePreprocessChain(preprocessorConfig, client);
+  }
+
+  /**
+   * Release chain obtained from {@link #acquirePreprocessChain(List, Client)}. Resources held by preprocessors are
+   * released when last user of chain with the same configuration releases it.
+   * 
+   * @param chain to release
+   * @return true if preprocessors of chain have been released
+   * @throws IllegalArgumentException if chain is not obtained from {@link #acquirePreprocessChain(List, Client)}
+   */
+  public static boolean releasePreprocessChain(PreprocessChain chain) throws IllegalArgumentException {
+    return preprocessChainCache.release(chain);
+  }
+
+  /**
+   * Get cache used by {@link #acquirePreprocessChain(List, Client)}.
+   * 
+   * @return cache instance
+   */
+  public static PreprocessChainCache getPreprocessChainCache() {
+    return preprocessChainCache;
   }
 
 }
@@ -0,0 +1,28 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+/**
+ * Service provider interface used to register {@link StructuredContentPreprocessor} implementations under short
+ * aliases into {@link StructuredContentPreprocessorRegistry}. Implementations are discovered by
+ * {@link java.util.ServiceLoader}, so they must have public no-arg constructor and must be listed in
+ * <code>META-INF/services/org.jboss.elasticsearch.tools.content.StructuredContentPreprocessorProvider</code> file
+ * of the jar they are distributed in.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see BuiltInPreprocessorProvider
+ */
+public interface StructuredContentPreprocessorProvider {
+
+	/**
+	 * Register preprocessors provided by this provider.
+	 * 
+	 * @param registry to register preprocessors into using
+	 *          {@link StructuredContentPreprocessorRegistry#register(String, Class)}
+	 */
+	void registerPreprocessors(StructuredContentPreprocessorRegistry registry);
+
+}
@@ -0,0 +1,177 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of {@link StructuredContentPreprocessor} implementations used by
+ * {@link StructuredContentPreprocessorFactory} to create preprocessors. Preprocessor may be referenced by short alias
+ * registered by some {@link StructuredContentPreprocessorProvider}, or by fully qualified class name. Constructors are
+ * resolved only once and cached, so class loading and reflective lookups are not repeated for each created
+ * preprocessor.
+ * <p>
+ * Default registry returned by {@link #getDefault()} contains aliases from all providers found by
+ * {@link ServiceLoader}, see {@link BuiltInPreprocessorProvider} for aliases of preprocessors distributed with this
+ * framework. Instances are thread safe.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class StructuredContentPreprocessorRegistry {
+
+	private static volatile StructuredContentPreprocessorRegistry defaultRegistry;
+
+	/**
+	 * Get default registry with aliases registered by all {@link StructuredContentPreprocessorProvider}s available over
+	 * {@link ServiceLoader}. Registry is created on first call.
+	 * 
+	 * @return default registry, never null
+	 */
+	public static StructuredContentPreprocessorRegistry getDefault() {
+		StructuredContentPreprocessorRegistry ret = defaultRegistry;
+		if (ret == null) {
+			synchronized (StructuredContentPreprocessorRegistry.class) {
+				ret = defaultRegistry;
+				if (ret == null) {
+					ret = new StructuredContentPreprocessorRegistry();
+					ret.loadProviders(StructuredContentPreprocessorRegistry.class.getClassLoader());
+					defaultRegistry = ret;
+				}
+			}
+		}
+		return ret;
+	}
+
+	private final ConcurrentMap<String, Constructor<? extends StructuredContentPreprocessor>> aliases = new ConcurrentHashMap<String, Constructor<? extends StructuredContentPreprocessor>>();
+
+	private final ConcurrentMap<String, Constructor<? extends StructuredContentPreprocessor>> constructors = new ConcurrentHashMap<String, Constructor<? extends StructuredContentPreprocessor>>();
+
+	/**
+	 * Register preprocessors from all {@link StructuredContentPreprocessorProvider}s available over
+	 * {@link ServiceLoader}.
+	 * 
+	 * @param classLoader to load providers from, can be null for system class loader
+	 */
+	public void loadProviders(ClassLoader classLoader) {
+		for (StructuredContentPreprocessorProvider provider : ServiceLoader.load(
+				StructuredContentPreprocessorProvider.class, classLoader)) {
+			provider.registerPreprocessors(this);
+		}
+	}
+
+	/**
+	 * Register preprocessor class under alias. Alias registered later replaces previous one with same name.
+	 * 
+	 * @param alias to register class under
+	 * @param preprocessorClass class of preprocessor, must have no-arg constructor
+	 * @throws IllegalArgumentException if alias is empty or class has no usable no-arg constructor
+	 */
+	public void register(String alias, Class<? extends StructuredContentPreprocessor> preprocessorClass)
+			throws IllegalArgumentException {
+		if (ValueUtils.isEmpty(alias))
+			throw new IllegalArgumentException("alias must be defined");
+		if (preprocessorClass == null)
+			throw new IllegalArgumentException("preprocessor class must be defined for alias " + alias);
+		aliases.put(alias.trim(), getConstructor(preprocessorClass));
+	}
+
+	/**
+	 * Get all registered aliases.
+	 * 
+	 * @return unmodifiable map with registered class for each alias, sorted by alias
+	 */
+	public Map<String, Class<? extends StructuredContentPreprocessor>> getAliases() {
+		Map<String, Class<? extends StructuredContentPreprocessor>> ret = new TreeMap<String, Class<? extends StructuredContentPreprocessor>>();
+		for (Map.Entry<String, Constructor<? extends StructuredContentPreprocessor>> e : aliases.entrySet()) {
+			ret.put(e.getKey(), e.getValue().getDeclaringClass());
+		}
+		return Collections.unmodifiableMap(ret);
+	}
+
+	/**
+	 * Resolve alias to class name.
+	 * 
+	 * @param aliasOrClassName registered alias or fully qualified name of preprocessor class
+	 * @return fully qualified name of registered class for alias, trimmed input otherwise
+	 */
+	public String resolveClassName(String aliasOrClassName) {
+		String key = aliasOrClassName.trim();
+		Constructor<? extends StructuredContentPreprocessor> c = aliases.get(key);
+		return c != null ? c.getDeclaringClass().getName() : key;
+	}
+
+	/**
+	 * Create new not initialized preprocessor instance.
+	 * 
+	 * @param aliasOrClassName registered alias or fully qualified name of preprocessor class
+	 * @return new preprocessor instance
+	 * @throws IllegalArgumentException if preprocessor can't be instantiated.
+	 */
+	public StructuredContentPreprocessor newInstance(String aliasOrClassName) throws IllegalArgumentException {
+		Constructor<? extends StructuredContentPreprocessor> constructor = resolveConstructor(aliasOrClassName);
+		try {
+			return constructor.newInstance();
+		} catch (InstantiationException e) {
+			throw new IllegalArgumentException("Preprocessor class " + constructor.getDeclaringClass().getName()
+					+ " creation exception " + e.getMessage(), e);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("Preprocessor class " + constructor.getDeclaringClass().getName()
+					+ " creation exception " + e.getMessage(), e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalArgumentException("Preprocessor class " + constructor.getDeclaringClass().getName()
+					+ " creation exception " + e.getCause(), e.getCause());
+		}
+	}
+
+	/**
+	 * Resolve constructor for alias or class name. Constructors for class names are cached.
+	 * 
+	 * @param aliasOrClassName registered alias or fully qualified name of preprocessor class
+	 * @return no-arg constructor of preprocessor class, never null
+	 * @throws IllegalArgumentException if class is not found or is not usable as preprocessor
+	 */
+	protected Constructor<? extends StructuredContentPreprocessor> resolveConstructor(String aliasOrClassName)
+			throws IllegalArgumentException {
+		String key = aliasOrClassName.trim();
+		Constructor<? extends StructuredContentPreprocessor> ret = aliases.get(key);
+		if (ret != null)
+			return ret;
+		ret = constructors.get(key);
+		if (ret != null)
+			return ret;
+		Class<?> clazz;
+		try {
+			clazz = Class.forName(key);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalArgumentException("Preprocessor class " + key + " not found", e);
+		}
+		if (!StructuredContentPreprocessor.class.isAssignableFrom(clazz)) {
+			throw new IllegalArgumentException("Preprocessor class " + key + " must implement interface "
+					+ StructuredContentPreprocessor.class.getName());
+		}
+		ret = getConstructor(clazz.asSubclass(StructuredContentPreprocessor.class));
+		constructors.putIfAbsent(key, ret);
+		return ret;
+	}
+
+	private static Constructor<? extends StructuredContentPreprocessor> getConstructor(
+			Class<? extends StructuredContentPreprocessor> clazz) throws IllegalArgumentException {
+		try {
+			return clazz.getDeclaredConstructor();
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException("Preprocessor class " + clazz.getName()
+					+ " creation exception no-arg constructor not found", e);
+		}
+	}
+
+}
@@ -5,35 +5,67 @@
  */
 package org.jboss.elasticsearch.tools.content;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.elasticsearch.common.settings.SettingsException;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
 
 /**
  * Abstract base class for preprocessors supporting concept of "source_bases". Do not forgot to call parent
- * {@link #init(Map)} from your subclass init method if you override it!
+ * {@link #init(Map)} from your subclass init method if you override it! Fields passed to {@link #toFieldSet(Collection)}
+ * are relative to bases, so are prefixed by each base.
+ * <p>
+ * Values of one base may be processed in parallel if <code>source_bases_parallel_threshold</code> is configured and
+ * number of values (elements of collection) is equal or higher. Values are split to the parts processed by shared
+ * {@link ForkJoinPool} then, each part gets own context from {@link #createContext(Map)} and
+ * {@link #processOneSourceValue(Map, Object, String, PreprocessChainContext)} must be thread safe. Calls of
+ * {@link PreprocessChainContext} are synchronized, order of warnings from parallel processing is not defined.
+ * Preprocessors blocking on I/O during value processing (eg. remote lookups) must return <code>true</code> from
+ * {@link #isBlockingValueProcessing()}, so parts are processed as {@link ForkJoinPool.ManagedBlocker} and pool
+ * compensates blocked threads, so they do not starve CPU bound preprocessors sharing the pool.
  * 
  * @author Vlastimil Elias (velias at redhat dot com)
  */
 public abstract class StructuredContentPreprocessorWithSourceBasesBase<T> extends StructuredContentPreprocessorBase {
 
 	protected static final String CFG_source_bases = "source_bases";
+	protected static final String CFG_source_bases_parallel_threshold = "source_bases_parallel_threshold";
+
+	private static volatile ForkJoinPool forkJoinPool;
 
 	protected List<String> sourceBases;
 
+	/**
+	 * Number of values of one base to process them in parallel, 0 means never.
+	 */
+	protected int parallelThreshold = 0;
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public void init(Map<String, Object> settings) throws SettingsException {
 		if (settings == null) {
 			throw new SettingsException("'settings' section is not defined for preprocessor " + name);
 		}
-		sourceBases = (List<String>) settings.get(CFG_source_bases);
+		List<String> sb = (List<String>) settings.get(CFG_source_bases);
+		sourceBases = sb != null ? Collections.unmodifiableList(new ArrayList<String>(sb)) : null;
+		try {
+			Integer pt = StructureUtils.getIntegerValue(settings, CFG_source_bases_parallel_threshold);
+			parallelThreshold = pt != null && pt > 0 ? pt : 0;
+		} catch (NumberFormatException e) {
+			throw new SettingsException("Non integer value in 'settings/" + CFG_source_bases_parallel_threshold
+					+ "' configuration for '" + name + "' preprocessor");
+		}
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public Map<String, Object> preprocessData(Map<String, Object> data, PreprocessChainContext chainContext) {
 		if (data == null)
@@ -43,27 +75,19 @@ public abstract class StructuredContentPreprocessorWithSourceBasesBase<T> extend
 			processOneSourceValue(data, null, null, chainContext);
 		} else {
 			T context = createContext(data);
+			List<String> problems = new ArrayList<String>();
 			for (String base : sourceBases) {
-				Object obj = XContentMapValues.extractValue(base, data);
-				if (obj != null) {
-					if (obj instanceof Map) {
-						processOneSourceValue((Map<String, Object>) obj, context, base, chainContext);
-					} else if (obj instanceof Collection) {
-						for (Object o : (Collection<Object>) obj) {
-							if (o instanceof Map) {
-								processOneSourceValue((Map<String, Object>) o, context, base, chainContext);
-							} else {
-								String msg = "Collection in field '" + base
-										+ "' contains value which is not Map, which can't be processed as source_base, so is skipped";
-								addDataWarning(chainContext, msg);
-								logger.debug(msg);
-							}
-						}
-					} else {
-						String msg = "Field '" + base
-								+ "' contains invalid value which can't be processed as source_base, so is skipped";
-						addDataWarning(chainContext, msg);
-						logger.debug(msg);
+				List<Map<String, Object>> values = extractSourceBaseValues(base, data, problems);
+				for (String msg : problems) {
+					addDataWarning(chainContext, msg);
+					logger.debug(msg);
+				}
+				problems.clear();
+				if (parallelThreshold > 0 && values.size() >= parallelThreshold) {
+					processInParallel(values, data, base, chainContext);
+				} else {
+					for (Map<String, Object> value : values) {
+						processOneSourceValue(value, context, base, chainContext);
 					}
 				}
 			}
@@ -71,6 +95,170 @@ public abstract class StructuredContentPreprocessorWithSourceBasesBase<T> extend
 		return data;
 	}
 
+	private void processInParallel(List<Map<String, Object>> values, final Map<String, Object> data, final String base,
+			PreprocessChainContext chainContext) {
+		final PreprocessChainContext syncContext = chainContext != null ? new PreprocessChain.SynchronizedChainContext(
+				chainContext) : null;
+		processInParallel(values, new SourceValuesProcessor() {
+			@Override
+			public void processValues(List<Map<String, Object>> values, int from, int to) {
+				T context = createContext(data);
+				for (int i = from; i < to; i++) {
+					processOneSourceValue(values.get(i), context, base, syncContext);
+				}
+			}
+		}, isBlockingValueProcessing());
+	}
+
+	/**
+	 * Check if {@link #processOneSourceValue(Map, Object, String, PreprocessChainContext)} may block on I/O, eg. due to
+	 * remote lookup. Used for parallel processing of values, see class javadoc.
+	 * 
+	 * @return true if processing of value may block, false for CPU bound processing (default)
+	 */
+	protected boolean isBlockingValueProcessing() {
+		return false;
+	}
+
+	/**
+	 * Processor of values of one base in parallel, see {@link #processInParallel(List, SourceValuesProcessor)}.
+	 */
+	protected static interface SourceValuesProcessor {
+
+		/**
+		 * Process part of values. Called concurrently for distinct parts.
+		 * 
+		 * @param values all values of base
+		 * @param from index of first value to process
+		 * @param to index after last value to process
+		 */
+		void processValues(List<Map<String, Object>> values, int from, int to);
+	}
+
+	/**
+	 * Process values in parallel using shared {@link ForkJoinPool}. Returns when all values are processed. First
+	 * exception thrown by processor is rethrown.
+	 * 
+	 * @param values to process
+	 * @param processor to process parts of values
+	 * @param blocking true if processor may block on I/O, parts are processed over
+	 *          {@link ForkJoinPool#managedBlock(ForkJoinPool.ManagedBlocker)} then
+	 */
+	protected static void processInParallel(List<Map<String, Object>> values, SourceValuesProcessor processor,
+			boolean blocking) {
+		ForkJoinPool pool = getForkJoinPool();
+		// few parts per thread so busy threads are helped by others
+		int partSize = Math.max(1, values.size() / (pool.getParallelism() * 4));
+		pool.invoke(new SourceValuesTask(values, 0, values.size(), partSize, processor, blocking));
+	}
+
+	/**
+	 * Get pool used for parallel processing of values. Pool is created on first call, with parallelism equal to number
+	 * of processors.
+	 * 
+	 * @return pool
+	 */
+	protected static ForkJoinPool getForkJoinPool() {
+		if (forkJoinPool == null) {
+			synchronized (StructuredContentPreprocessorWithSourceBasesBase.class) {
+				if (forkJoinPool == null)
+					forkJoinPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+			}
+		}
+		return forkJoinPool;
+	}
+
+	private static final class SourceValuesTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final List<Map<String, Object>> values;
+		final int from;
+		final int to;
+		final int partSize;
+		final SourceValuesProcessor processor;
+		final boolean blocking;
+
+		SourceValuesTask(List<Map<String, Object>> values, int from, int to, int partSize,
+				SourceValuesProcessor processor, boolean blocking) {
+			this.values = values;
+			this.from = from;
+			this.to = to;
+			this.partSize = partSize;
+			this.processor = processor;
+			this.blocking = blocking;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= partSize) {
+				if (blocking)
+					processValuesBlocking();
+				else
+					processor.processValues(values, from, to);
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new SourceValuesTask(values, from, middle, partSize, processor, blocking), new SourceValuesTask(
+						values, middle, to, partSize, processor, blocking));
+			}
+		}
+
+		private void processValuesBlocking() {
+			try {
+				ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+					boolean done = false;
+
+					@Override
+					public boolean block() {
+						processor.processValues(values, from, to);
+						done = true;
+						return true;
+					}
+
+					@Override
+					public boolean isReleasable() {
+						return done;
+					}
+				});
+			} catch (InterruptedException e) {
+				// never thrown as block() is not interruptible
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Extract values to be processed for one base from data.
+	 * 
+	 * @param base to extract values for
+	 * @param data complete data we run preprocessing for
+	 * @param problems list to add messages about invalid values into. Invalid values are skipped.
+	 * @return list of values to be processed for base, never null
+	 */
+	@SuppressWarnings("unchecked")
+	protected static List<Map<String, Object>> extractSourceBaseValues(String base, Map<String, Object> data,
+			List<String> problems) {
+		Object obj = XContentMapValues.extractValue(base, data);
+		if (obj == null) {
+			return Collections.emptyList();
+		} else if (obj instanceof Map) {
+			return Collections.singletonList((Map<String, Object>) obj);
+		} else if (obj instanceof Collection) {
+			List<Map<String, Object>> ret = new ArrayList<Map<String, Object>>(((Collection<Object>) obj).size());
+			for (Object o : (Collection<Object>) obj) {
+				if (o instanceof Map) {
+					ret.add((Map<String, Object>) o);
+				} else {
+					problems.add("Collection in field '" + base
+							+ "' contains value which is not Map, which can't be processed as source_base, so is skipped");
+				}
+			}
+			return ret;
+		} else {
+			problems.add("Field '" + base + "' contains invalid value which can't be processed as source_base, so is skipped");
+			return Collections.emptyList();
+		}
+	}
+
 	/**
 	 * Do preprocessing of data. If "source_bases" concept is used then called multiple times for each base,
 	 * <code>data<code> are relative for this base now.
@@ -108,6 +296,56 @@ public abstract class StructuredContentPreprocessorWithSourceBasesBase<T> extend
 		}
 	}
 
+	/**
+	 * Create set of fields for {@link FieldAccessDeclaration} implementation. Fields are prefixed by each configured
+	 * base if "source_bases" concept is used.
+	 * 
+	 * @param fields relative to bases, can be null. <code>null</code> or empty values are ignored.
+	 * @return unmodifiable set of fields
+	 */
+	@Override
+	protected Set<String> toFieldSet(Collection<String> fields) {
+		if (sourceBases == null)
+			return super.toFieldSet(fields);
+		Set<String> ret = new LinkedHashSet<String>();
+		for (String f : super.toFieldSet(fields)) {
+			for (String base : sourceBases) {
+				ret.add(getFullFieldName(base, f));
+			}
+		}
+		return Collections.unmodifiableSet(ret);
+	}
+
+	/**
+	 * Create set of fields for {@link FieldAccessDeclaration} implementation for fields relative to the root of data,
+	 * so not prefixed by bases.
+	 * 
+	 * @param fields relative to the root of data. <code>null</code> or empty values are ignored.
+	 * @return unmodifiable set of fields
+	 */
+	protected Set<String> toRootFieldSet(String... fields) {
+		return super.toFieldSet(Arrays.asList(fields));
+	}
+
+	/**
+	 * Get fields read from the root of data even if "source_bases" concept is used, so not relative to bases. They must
+	 * be part of {@link #getReadFields()} too.
+	 * 
+	 * @return unmodifiable set of fields, empty by default
+	 */
+	public Set<String> getRootReadFields() {
+		return Collections.emptySet();
+	}
+
+	/**
+	 * Get number of values of one base to process them in parallel.
+	 * 
+	 * @return threshold, 0 if values are never processed in parallel
+	 */
+	public int getParallelThreshold() {
+		return parallelThreshold;
+	}
+
 	/**
 	 * Get configured source bases
 	 * 
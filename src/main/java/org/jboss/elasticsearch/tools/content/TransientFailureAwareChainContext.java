@@ -0,0 +1,27 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+/**
+ * Optional interface of {@link PreprocessChainContext} which is informed when preprocessor produced its result for data
+ * item only due transient failure (eg. lookup used default values because remote system is not available), so the
+ * result should not be reused for other data items. Use
+ * {@link PreprocessChain#reportTransientFailure(PreprocessChainContext, String)} to report failure into any context.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ * @see MemoizingPreprocessor
+ * @since 1.3.9
+ */
+public interface TransientFailureAwareChainContext extends PreprocessChainContext {
+
+	/**
+	 * Report transient failure which affected result of preprocessing of this data item.
+	 * 
+	 * @param preprocessorName name of preprocessor which hit the failure
+	 */
+	public void reportTransientFailure(String preprocessorName);
+
+}
@@ -6,6 +6,7 @@
 package org.jboss.elasticsearch.tools.content;
 
 import java.util.Map;
+import java.util.Set;
 
 import org.elasticsearch.common.settings.SettingsException;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
@@ -113,4 +114,27 @@ public class TrimStringValuePreprocessor extends StructuredContentPreprocessorWi
 		return maxSize;
 	}
 
+	@Override
+	public Set<String> getReadFields() {
+		return toFieldSet(fieldSource);
+	}
+
+	@Override
+	public Set<String> getWrittenFields() {
+		return toFieldSet(fieldTarget);
+	}
+
+	/**
+	 * Nothing is done if source field is not present.
+	 */
+	@Override
+	public Set<String> getRequiredInputFields() {
+		return toFieldSet(fieldSource);
+	}
+
+	@Override
+	public int getCostHint() {
+		return COST_CHEAP;
+	}
+
 }
@@ -9,8 +9,10 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
@@ -178,6 +180,33 @@ public class ValueUtils {
 		return finalContent.toString();
 	}
 
+	/**
+	 * Get keys used in pattern processed by {@link #processStringValuePatternReplacement(String, Map, Object)}, so names
+	 * of fields from data used by pattern. Special key <code>{@value #PATTERN_KEY_ORIGINAL_VALUE}</code> is not
+	 * returned.
+	 * 
+	 * @param patternValue to get keys from, can be null
+	 * @return set of keys, never null
+	 */
+	public static Set<String> getPatternKeys(String patternValue) {
+		Set<String> ret = new LinkedHashSet<String>();
+		if (patternValue == null)
+			return ret;
+		int start = -1;
+		for (int idx = 0; idx < patternValue.length(); idx++) {
+			char ch = patternValue.charAt(idx);
+			if (start < 0 && ch == '{') {
+				start = idx + 1;
+			} else if (start >= 0 && ch == '}') {
+				String key = patternValue.substring(start, idx);
+				if (key.length() > 0 && !PATTERN_KEY_ORIGINAL_VALUE.equals(key))
+					ret.add(key);
+				start = -1;
+			}
+		}
+		return ret;
+	}
+
 	protected static final SimpleDateFormat ISO_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXX");
 	static {
 		ISO_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
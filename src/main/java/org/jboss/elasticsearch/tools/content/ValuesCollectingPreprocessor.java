@@ -7,6 +7,7 @@ package org.jboss.elasticsearch.tools.content;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -65,6 +66,7 @@ public class ValuesCollectingPreprocessor extends StructuredContentPreprocessorB
 		}
 		fieldsSource = ((List<String>) settings.get(CFG_SOURCE_FIELDS));
 		validateConfigurationObjectNotEmpty(fieldsSource, CFG_SOURCE_FIELDS);
+		fieldsSource = Collections.unmodifiableList(new ArrayList<String>(fieldsSource));
 		fieldTarget = XContentMapValues.nodeStringValue(settings.get(CFG_TARGET_FIELD), null);
 		validateConfigurationStringNotEmpty(fieldTarget, CFG_TARGET_FIELD);
 		String fieldDeepCopyStr = XContentMapValues.nodeStringValue(settings.get(CFG_DEEP_COPY), "false" );
@@ -119,4 +121,19 @@ public class ValuesCollectingPreprocessor extends StructuredContentPreprocessorB
 		return fieldsSource;
 	}
 
+	@Override
+	public Set<String> getReadFields() {
+		return toFieldSet(fieldsSource);
+	}
+
+	@Override
+	public Set<String> getWrittenFields() {
+		return toFieldSet(fieldTarget);
+	}
+
+	@Override
+	public int getCostHint() {
+		return COST_CHEAP;
+	}
+
 }
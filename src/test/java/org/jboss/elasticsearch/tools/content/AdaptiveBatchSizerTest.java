@@ -0,0 +1,69 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link AdaptiveBatchSizer}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class AdaptiveBatchSizerTest {
+
+	@Test
+	public void constructor_validation() {
+		assertConstructorFails(0, 10, 10);
+		assertConstructorFails(10, 9, 10);
+		assertConstructorFails(10, 10, 0);
+
+		AdaptiveBatchSizer tested = new AdaptiveBatchSizer(5, 20, 100);
+		Assert.assertEquals(5, tested.getMinSize());
+		Assert.assertEquals(20, tested.getMaxSize());
+		Assert.assertEquals(100, tested.getTargetLatencyMillis());
+		Assert.assertEquals(5, tested.getBatchSize());
+	}
+
+	private void assertConstructorFails(int minSize, int maxSize, long targetLatencyMillis) {
+		try {
+			new AdaptiveBatchSizer(minSize, maxSize, targetLatencyMillis);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+	}
+
+	@Test
+	public void aimd() {
+		AdaptiveBatchSizer tested = new AdaptiveBatchSizer(5, 22, 100);
+
+		// case - additive increase up to max size
+		tested.recordSuccess(5, 100);
+		Assert.assertEquals(10, tested.getBatchSize());
+		tested.recordSuccess(10, 50);
+		Assert.assertEquals(15, tested.getBatchSize());
+		tested.recordSuccess(15, 50);
+		tested.recordSuccess(20, 50);
+		Assert.assertEquals(22, tested.getBatchSize());
+
+		// case - multiplicative decrease
+		tested.recordSuccess(22, 101);
+		Assert.assertEquals(11, tested.getBatchSize());
+
+		// case - not full batch doesn't increase
+		tested.recordSuccess(3, 10);
+		Assert.assertEquals(11, tested.getBatchSize());
+
+		// case - decrease stops at min size
+		tested.recordFailure();
+		Assert.assertEquals(5, tested.getBatchSize());
+		tested.recordSuccess(3, 500);
+		Assert.assertEquals(5, tested.getBatchSize());
+	}
+
+}
@@ -96,5 +96,22 @@ public class AddMultipleValuesPreprocessorTest {
 			Assert.assertEquals("Gratest book ever - Joe", XContentMapValues.extractValue("field_replace.complex2", values));
 		}
 
+		// case - structured value is copied, so changes in one data item do not affect configuration nor other items
+		{
+			Map<String, Object> structure = new HashMap<String, Object>();
+			structure.put("a", "b");
+			settings.put("field_structure", structure);
+			tested.init("Test mapper", null, settings);
+			Map<String, Object> values = new HashMap<String, Object>();
+			tested.preprocessData(values, null);
+			Assert.assertEquals(structure, values.get("field_structure"));
+			StructureUtils.putValueIntoMapOfMaps(values, "field_structure.c", "d");
+			Assert.assertEquals(1, structure.size());
+			Assert.assertEquals(1, ((Map<?, ?>) tested.getFields().get("field_structure")).size());
+			values = new HashMap<String, Object>();
+			tested.preprocessData(values, null);
+			Assert.assertEquals(1, ((Map<?, ?>) values.get("field_structure")).size());
+		}
+
 	}
 }
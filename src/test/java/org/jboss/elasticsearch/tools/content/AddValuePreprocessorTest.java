@@ -177,6 +177,19 @@ public class AddValuePreprocessorTest {
 			Assert.assertEquals(new Integer(10), values.get(tested.field));
 		}
 
+		// case - configured pattern is not changed by preprocessing, so it is evaluated for each data item
+		{
+			tested.value = "Value {a}";
+			Map<String, Object> values = new HashMap<String, Object>();
+			values.put("a", "1");
+			tested.preprocessData(values, null);
+			Assert.assertEquals("Value 1", values.get(tested.field));
+			values.put("a", "2");
+			tested.preprocessData(values, null);
+			Assert.assertEquals("Value 2", values.get(tested.field));
+			Assert.assertEquals("Value {a}", tested.getValue());
+		}
+
 		// case - fill String value over null - dot notation
 		tested.field = "my_field.level1.level2";
 		{
@@ -0,0 +1,354 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import junit.framework.Assert;
+
+import org.elasticsearch.ElasticsearchException;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit test for {@link CachingLookupBackend}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class CachingLookupBackendTest {
+
+	@Test
+	public void constructor_validation() {
+		LookupBackend backend = Mockito.mock(LookupBackend.class);
+		assertConstructorFails(null, 1, 1, 1);
+		assertConstructorFails(backend, 0, 1, 1);
+		assertConstructorFails(backend, 10, 9, 1);
+		assertConstructorFails(backend, 10, 10, 0);
+
+		CachingLookupBackend tested = new CachingLookupBackend(backend, 10, 20, 30);
+		Assert.assertEquals(backend, tested.getDelegate());
+		Assert.assertEquals(10, tested.getSoftTtlMillis());
+		Assert.assertEquals(20, tested.getHardTtlMillis());
+		Assert.assertEquals(30, tested.getMaxSize());
+	}
+
+	private void assertConstructorFails(LookupBackend backend, long softTtl, long hardTtl, int maxSize) {
+		try {
+			new CachingLookupBackend(backend, softTtl, hardTtl, maxSize);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+	}
+
+	@Test
+	public void lookup_staleWhileRevalidate() {
+		LookupBackend backend = Mockito.mock(LookupBackend.class);
+		LookupResult r1 = new LookupResult(1, null);
+		LookupResult r2 = new LookupResult(2, null);
+		LookupResult r3 = new LookupResult(3, null);
+		Mockito.when(backend.lookup("f", "v", null, null)).thenReturn(r1, r2, r3);
+		TimeControlledCache tested = new TimeControlledCache(backend, 100, 1000, 10);
+		ManualExecutor executor = new ManualExecutor();
+		tested.setRefreshExecutor(executor);
+
+		// case - loaded synchronously, then cached
+		Assert.assertSame(r1, tested.lookup("f", "v", null, null));
+		tested.time = 99;
+		Assert.assertSame(r1, tested.lookup("f", "v", null, null));
+		Assert.assertEquals(0, executor.tasks.size());
+		Mockito.verify(backend, Mockito.times(1)).lookup("f", "v", null, null);
+
+		// case - soft TTL elapsed, stale value returned, only one background refresh scheduled
+		tested.time = 100;
+		Assert.assertSame(r1, tested.lookup("f", "v", null, null));
+		Assert.assertSame(r1, tested.lookup("f", "v", null, null));
+		Assert.assertEquals(1, executor.tasks.size());
+		Mockito.verify(backend, Mockito.times(1)).lookup("f", "v", null, null);
+		executor.runAll();
+		Assert.assertSame(r2, tested.lookup("f", "v", null, null));
+		Mockito.verify(backend, Mockito.times(2)).lookup("f", "v", null, null);
+
+		// case - hard TTL elapsed, loaded synchronously
+		tested.time = 1100;
+		Assert.assertSame(r3, tested.lookup("f", "v", null, null));
+		Assert.assertEquals(0, executor.tasks.size());
+		Mockito.verify(backend, Mockito.times(3)).lookup("f", "v", null, null);
+	}
+
+	@Test
+	public void lookup_refreshFailure() {
+		LookupBackend backend = Mockito.mock(LookupBackend.class);
+		LookupResult r1 = new LookupResult(1, null);
+		LookupResult r2 = new LookupResult(2, null);
+		Mockito.when(backend.lookup("f", "v", null, null)).thenReturn(r1).thenThrow(new ElasticsearchException("failure"))
+				.thenReturn(r2);
+		TimeControlledCache tested = new TimeControlledCache(backend, 100, 1000, 10);
+		ManualExecutor executor = new ManualExecutor();
+		tested.setRefreshExecutor(executor);
+
+		Assert.assertSame(r1, tested.lookup("f", "v", null, null));
+		tested.time = 200;
+		Assert.assertSame(r1, tested.lookup("f", "v", null, null));
+		executor.runAll();
+		// stale value is kept and refresh is scheduled again
+		Assert.assertSame(r1, tested.lookup("f", "v", null, null));
+		Assert.assertEquals(1, executor.tasks.size());
+		executor.runAll();
+		Assert.assertSame(r2, tested.lookup("f", "v", null, null));
+	}
+
+	@Test
+	public void lookup_exceptionNotCached() {
+		LookupBackend backend = Mockito.mock(LookupBackend.class);
+		Mockito.when(backend.lookup("f", "v", null, null)).thenThrow(new ElasticsearchException("failure"))
+				.thenReturn(LookupResult.NOT_FOUND);
+		CachingLookupBackend tested = new CachingLookupBackend(backend, 100, 1000, 10);
+		try {
+			tested.lookup("f", "v", null, null);
+			Assert.fail("ElasticsearchException expected");
+		} catch (ElasticsearchException e) {
+			// OK
+		}
+		Assert.assertEquals(0, tested.getSize());
+		// not found result is cached
+		Assert.assertSame(LookupResult.NOT_FOUND, tested.lookup("f", "v", null, null));
+		Assert.assertSame(LookupResult.NOT_FOUND, tested.lookup("f", "v", null, null));
+		Mockito.verify(backend, Mockito.times(2)).lookup("f", "v", null, null);
+	}
+
+	@Test
+	public void lookupByIds() {
+		Map<String, Map<String, Object>> docs = new HashMap<String, Map<String, Object>>();
+		docs.put("id1", new HashMap<String, Object>());
+		docs.put("id2", new HashMap<String, Object>());
+		LookupBackend backend = Mockito.spy(new InMemoryLookupBackend(docs, null, null, false, null));
+		CachingLookupBackend tested = new CachingLookupBackend(backend, 100, 1000, 10);
+
+		List<String> ids = new ArrayList<String>();
+		ids.add("id1");
+		Assert.assertTrue(tested.lookupByIds(ids, null, null).get("id1").isFound());
+		ids.add("id2");
+		ids.add("id3");
+		Map<String, LookupResult> ret = tested.lookupByIds(ids, null, null);
+		Assert.assertEquals(3, ret.size());
+		Assert.assertTrue(ret.get("id2").isFound());
+		Assert.assertFalse(ret.get("id3").isFound());
+		List<String> expectedMissing = new ArrayList<String>();
+		expectedMissing.add("id2");
+		expectedMissing.add("id3");
+		Mockito.verify(backend).lookupByIds(expectedMissing, null, null);
+		// single id lookup uses same cache
+		Assert.assertTrue(tested.lookup("_id", "id2", null, null).isFound());
+		Assert.assertEquals(3, tested.getSize());
+	}
+
+	@Test
+	public void maxSize() {
+		LookupBackend backend = Mockito.mock(LookupBackend.class);
+		Mockito.when(backend.lookup(Mockito.anyString(), Mockito.any(), Mockito.anyString(),
+				Mockito.any(PreprocessChainContext.class)))
+				.thenReturn(LookupResult.NOT_FOUND);
+		TimeControlledCache tested = new TimeControlledCache(backend, 100, 1000, 3);
+		tested.lookup("f", "v1", null, null);
+		tested.lookup("f", "v2", null, null);
+		tested.time = 500;
+		tested.lookup("f", "v3", null, null);
+		Assert.assertEquals(3, tested.getSize());
+		// hard expired entries are evicted first
+		tested.time = 1200;
+		tested.lookup("f", "v4", null, null);
+		Assert.assertEquals(2, tested.getSize());
+		tested.lookup("f", "v5", null, null);
+		tested.lookup("f", "v6", null, null);
+		Assert.assertEquals(3, tested.getSize());
+
+		// evicted in batch down to 90% of max size
+		tested = new TimeControlledCache(backend, 100, 1000, 20);
+		for (int i = 0; i < 20; i++) {
+			tested.lookup("f", "v" + i, null, null);
+		}
+		Assert.assertEquals(20, tested.getSize());
+		tested.lookup("f", "v20", null, null);
+		Assert.assertEquals(18, tested.getSize());
+		tested.lookup("f", "v21", null, null);
+		Assert.assertEquals(19, tested.getSize());
+	}
+
+	@Test
+	public void persistentFile() throws Exception {
+		File file = File.createTempFile("lookupcache", ".bin");
+		file.deleteOnExit();
+		LookupBackend backend = Mockito.mock(LookupBackend.class);
+		Map<String, Object> fields = new HashMap<String, Object>();
+		fields.put("name", "Jan");
+		LookupResult r1 = new LookupResult(1, fields);
+		Mockito.when(backend.lookup("f", "v1", null, null)).thenReturn(r1);
+		Mockito.when(backend.lookup("f", "v2", "r", null)).thenReturn(LookupResult.NOT_FOUND);
+		Mockito.when(backend.lookupCombined(Arrays.asList("f", "g"), "v1", null, null)).thenReturn(
+				Collections.singletonMap("f", r1));
+
+		TimeControlledCache tested = new TimeControlledCache(backend, 100, 1000, 10);
+		LookupCacheFile pf = new LookupCacheFile(file, "cfg1", 10000);
+		tested.setPersistentFile(pf);
+		Assert.assertSame(pf, tested.getPersistentFile());
+		tested.lookup("f", "v1", null, null);
+		tested.time = 500;
+		tested.lookup("f", "v2", "r", null);
+		tested.lookupCombined(Arrays.asList("f", "g"), "v1", null, null);
+		// pending results are written by close
+		tested.close();
+
+		// case - restarted cache is warm, backend is not called
+		LookupBackend backend2 = Mockito.mock(LookupBackend.class);
+		tested = new TimeControlledCache(backend2, 100, 1000, 10);
+		tested.setRefreshExecutor(new ManualExecutor());
+		tested.time = 550;
+		pf = new LookupCacheFile(file, "cfg1", 10000);
+		// results are loaded during initialization
+		tested.setPersistentFile(pf);
+		Assert.assertEquals(3, tested.getSize());
+		LookupResult r = tested.lookup("f", "v1", null, null);
+		Assert.assertEquals(1, r.getTotalHits());
+		Assert.assertEquals("Jan", r.getFieldValue("name"));
+		Assert.assertFalse(tested.lookup("f", "v2", "r", null).isFound());
+		Assert.assertEquals("Jan", tested.lookupCombined(Arrays.asList("f", "g"), "v1", null, null).get("f")
+				.getFieldValue("name"));
+		Mockito.verifyZeroInteractions(backend2);
+		pf.close();
+
+		// case - hard expired results are not loaded
+		tested = new TimeControlledCache(backend2, 100, 1000, 10);
+		tested.setRefreshExecutor(new ManualExecutor());
+		tested.time = 1200;
+		pf = new LookupCacheFile(file, "cfg1", 10000);
+		tested.setPersistentFile(pf);
+		tested.lookup("f", "v2", "r", null);
+		Assert.assertEquals(2, tested.getSize());
+		Mockito.verify(backend2, Mockito.times(0)).lookup("f", "v2", "r", null);
+		pf.close();
+
+		// case - changed configuration drops persisted results
+		tested = new TimeControlledCache(backend, 100, 1000, 10);
+		tested.time = 550;
+		pf = new LookupCacheFile(file, "cfg2", 10000);
+		tested.setPersistentFile(pf);
+		tested.lookup("f", "v2", "r", null);
+		Assert.assertEquals(1, tested.getSize());
+
+		// case - close releases persistent file, cache still works
+		tested.close();
+		Assert.assertNull(tested.getPersistentFile());
+		tested.lookup("f", "v1", null, null);
+		Assert.assertEquals(2, tested.getSize());
+		tested.close();
+	}
+
+	@Test
+	public void persistentFile_compaction() throws Exception {
+		File file = File.createTempFile("lookupcache", ".bin");
+		file.deleteOnExit();
+		LookupBackend backend = Mockito.mock(LookupBackend.class);
+		Mockito.when(backend.lookup(Mockito.anyString(), Mockito.any(), Mockito.anyString(),
+				Mockito.any(PreprocessChainContext.class))).thenReturn(LookupResult.NOT_FOUND);
+		TimeControlledCache tested = new TimeControlledCache(backend, 100, 1000, 2);
+		tested.setPersistExecutor(new DirectExecutor());
+		LookupCacheFile pf = new LookupCacheFile(file, "cfg", 200);
+		tested.setPersistentFile(pf);
+		for (int i = 0; i < 10; i++)
+			tested.lookup("f", "v" + i, null, null);
+		Assert.assertEquals(2, tested.getSize());
+		// file is rewritten with cached results only when it is full, so it never contains more records than fit into
+		Assert.assertTrue(pf.readAll().size() <= 3);
+		pf.close();
+	}
+
+	@Test
+	public void persistentFile_asyncAndNormalizedKeys() throws Exception {
+		File file = File.createTempFile("lookupcache", ".bin");
+		file.deleteOnExit();
+		LookupBackend backend = Mockito.mock(LookupBackend.class);
+		LookupResult r1 = new LookupResult(1, null);
+		Mockito.when(backend.lookup("f", 10L, null, null)).thenReturn(r1);
+		Mockito.when(backend.lookupCombined(Arrays.asList("f", "g"), 1.5f, null, null)).thenReturn(
+				Collections.singletonMap("f", r1));
+
+		TimeControlledCache tested = new TimeControlledCache(backend, 100, 1000, 10);
+		ManualExecutor persistExecutor = new ManualExecutor();
+		tested.setPersistExecutor(persistExecutor);
+		LookupCacheFile pf = new LookupCacheFile(file, "cfg1", 10000);
+		tested.setPersistentFile(pf);
+		tested.lookup("f", 10L, null, null);
+		tested.lookupCombined(Arrays.asList("f", "g"), 1.5f, null, null);
+		// nothing written by lookup thread
+		Assert.assertEquals(0, pf.readAll().size());
+		persistExecutor.runAll();
+		Assert.assertEquals(2, pf.readAll().size());
+		tested.close();
+		pf.close();
+
+		// case - keys read from file match live keys even if JSON changes number types
+		LookupBackend backend2 = Mockito.mock(LookupBackend.class);
+		tested = new TimeControlledCache(backend2, 100, 1000, 10);
+		tested.setPersistentFile(new LookupCacheFile(file, "cfg1", 10000));
+		Assert.assertSame(LookupResult.class, tested.lookup("f", 10L, null, null).getClass());
+		Assert.assertEquals(1, tested.lookup("f", 10, null, null).getTotalHits());
+		Assert.assertEquals(1, tested.lookupCombined(Arrays.asList("f", "g"), 1.5f, null, null).get("f").getTotalHits());
+		Mockito.verifyZeroInteractions(backend2);
+		tested.close();
+
+		Assert.assertEquals(CachingLookupBackend.createKey("f", 10L, null), CachingLookupBackend.createKey("f", 10, null));
+		Assert.assertEquals(CachingLookupBackend.createKey(Arrays.asList("f"), 1.5d, null),
+				CachingLookupBackend.createKey(Collections.singletonList("f"), 1.5f, null));
+	}
+
+	protected static class DirectExecutor implements Executor {
+
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	}
+
+	protected static class TimeControlledCache extends CachingLookupBackend {
+
+		long time = 0;
+
+		public TimeControlledCache(LookupBackend delegate, long softTtlMillis, long hardTtlMillis, int maxSize) {
+			super(delegate, softTtlMillis, hardTtlMillis, maxSize);
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			return time;
+		}
+	}
+
+	protected static class ManualExecutor implements Executor {
+
+		List<Runnable> tasks = new ArrayList<Runnable>();
+
+		@Override
+		public void execute(Runnable command) {
+			tasks.add(command);
+		}
+
+		void runAll() {
+			List<Runnable> t = new ArrayList<Runnable>(tasks);
+			tasks.clear();
+			for (Runnable r : t)
+				r.run();
+		}
+	}
+
+}
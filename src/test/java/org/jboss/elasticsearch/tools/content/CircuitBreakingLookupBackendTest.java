@@ -0,0 +1,133 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.Collections;
+
+import junit.framework.Assert;
+
+import org.elasticsearch.ElasticsearchException;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit test for {@link CircuitBreakingLookupBackend}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class CircuitBreakingLookupBackendTest {
+
+	@Test
+	public void lookup() {
+		LookupBackend backend = Mockito.mock(LookupBackend.class);
+		LookupResult r = new LookupResult(1, null);
+		Mockito.when(backend.lookup("f", "v", null, null)).thenReturn(r);
+		Mockito.when(backend.lookup("f", "err", null, null)).thenThrow(new ElasticsearchException("failed"));
+		LookupCircuitBreaker breaker = new LookupCircuitBreaker(100, 2, 2, 100000);
+		CircuitBreakingLookupBackend tested = new CircuitBreakingLookupBackend(backend, breaker, "test");
+		Assert.assertSame(backend, tested.getDelegate());
+		Assert.assertSame(breaker, tested.getCircuitBreaker());
+
+		Assert.assertSame(r, tested.lookup("f", "v", null, null));
+		tested.lookupCombined(Collections.singletonList("f"), "v", null, null);
+		tested.lookupByIds(Collections.singletonList("id"), null, null);
+		Assert.assertEquals(LookupCircuitBreaker.State.CLOSED, breaker.getState());
+
+		// case - failures open breaker
+		for (int i = 0; i < 2; i++) {
+			try {
+				tested.lookup("f", "err", null, null);
+				Assert.fail("ElasticsearchException expected");
+			} catch (ElasticsearchException e) {
+				Assert.assertEquals("failed", e.getMessage());
+			}
+		}
+		Assert.assertEquals(LookupCircuitBreaker.State.OPEN, breaker.getState());
+
+		// case - request not passed to backend while breaker is open
+		try {
+			tested.lookup("f", "v", null, null);
+			Assert.fail("LookupCircuitOpenException expected");
+		} catch (LookupCircuitOpenException e) {
+			Assert.assertEquals("Lookup circuit breaker is open for preprocessor 'test'", e.getMessage());
+		}
+		Mockito.verify(backend, Mockito.times(1)).lookup("f", "v", null, null);
+	}
+
+	@Test
+	public void lookup_probeReleasedOnAnyException() {
+		LookupBackend backend = Mockito.mock(LookupBackend.class);
+		Mockito.when(backend.lookup("f", "npe", null, null)).thenThrow(new NullPointerException());
+		LookupResult r = new LookupResult(1, null);
+		Mockito.when(backend.lookup("f", "v", null, null)).thenReturn(r);
+		final long[] time = new long[] { 1000 };
+		LookupCircuitBreaker breaker = new LookupCircuitBreaker(50, 1, 1, 100) {
+			@Override
+			protected long currentTimeMillis() {
+				return time[0];
+			}
+		};
+		CircuitBreakingLookupBackend tested = new CircuitBreakingLookupBackend(backend, breaker, "test");
+
+		try {
+			tested.lookup("f", "npe", null, null);
+			Assert.fail("NullPointerException expected");
+		} catch (NullPointerException e) {
+			// OK
+		}
+		Assert.assertEquals(LookupCircuitBreaker.State.OPEN, breaker.getState());
+
+		// case - failed probe opens breaker again, so next probe is allowed later
+		time[0] += 100;
+		try {
+			tested.lookup("f", "npe", null, null);
+			Assert.fail("NullPointerException expected");
+		} catch (NullPointerException e) {
+			// OK
+		}
+		Assert.assertEquals(LookupCircuitBreaker.State.OPEN, breaker.getState());
+		time[0] += 100;
+		Assert.assertSame(r, tested.lookup("f", "v", null, null));
+		Assert.assertEquals(LookupCircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void lookup_underCache() {
+		LookupBackend backend = Mockito.mock(LookupBackend.class);
+		LookupResult r = new LookupResult(1, null);
+		Mockito.when(backend.lookup("f", "v", null, null)).thenReturn(r);
+		Mockito.when(backend.lookup("f", "err", null, null)).thenThrow(new ElasticsearchException("failed"));
+		LookupCircuitBreaker breaker = new LookupCircuitBreaker(100, 2, 2, 100000);
+		CachingLookupBackend tested = new CachingLookupBackend(new CircuitBreakingLookupBackend(backend, breaker, "test"),
+				100000, 100000, 10);
+
+		Assert.assertSame(r, tested.lookup("f", "v", null, null));
+		// cache hits are not tracked by breaker, so they do not dilute failure rate
+		for (int i = 0; i < 5; i++) {
+			tested.lookup("f", "v", null, null);
+		}
+		for (int i = 0; i < 2; i++) {
+			try {
+				tested.lookup("f", "err", null, null);
+				Assert.fail("ElasticsearchException expected");
+			} catch (ElasticsearchException e) {
+				// OK
+			}
+		}
+		Assert.assertEquals(LookupCircuitBreaker.State.OPEN, breaker.getState());
+
+		// case - cached result is used while breaker is open
+		Assert.assertSame(r, tested.lookup("f", "v", null, null));
+		Mockito.verify(backend, Mockito.times(1)).lookup("f", "v", null, null);
+		try {
+			tested.lookup("f", "other", null, null);
+			Assert.fail("LookupCircuitOpenException expected");
+		} catch (LookupCircuitOpenException e) {
+			// OK
+		}
+	}
+
+}
@@ -0,0 +1,159 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link CoalescingLookupBackend}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class CoalescingLookupBackendTest {
+
+	@Test
+	public void lookup_coalesced() throws Exception {
+		final BlockingLookupBackend backend = new BlockingLookupBackend();
+		final CoalescingLookupBackend tested = new CoalescingLookupBackend(backend);
+		Assert.assertEquals(backend, tested.getDelegate());
+
+		final List<LookupResult> results = new ArrayList<LookupResult>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 5; i++) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					LookupResult r = tested.lookup("field", "value", null, null);
+					synchronized (results) {
+						results.add(r);
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		backend.started.await();
+		// give other threads time to join running lookup
+		Thread.sleep(100);
+		Assert.assertEquals(1, tested.getInFlightCount());
+		backend.release.countDown();
+		for (Thread t : threads)
+			t.join();
+
+		Assert.assertEquals(1, backend.calls.get());
+		Assert.assertEquals(5, results.size());
+		for (LookupResult r : results)
+			Assert.assertSame(results.get(0), r);
+		Assert.assertEquals(0, tested.getInFlightCount());
+
+		// case - next lookup is not coalesced with finished one
+		tested.lookup("field", "value", null, null);
+		Assert.assertEquals(2, backend.calls.get());
+		// case - lookup with other key
+		tested.lookup("field", "value2", null, null);
+		tested.lookup("field2", "value", null, null);
+		Assert.assertEquals(4, backend.calls.get());
+	}
+
+	@Test
+	public void lookup_exceptionShared() throws Exception {
+		final BlockingLookupBackend backend = new BlockingLookupBackend();
+		backend.exception = new ElasticsearchException("ES failure");
+		final CoalescingLookupBackend tested = new CoalescingLookupBackend(backend);
+
+		final AtomicInteger failures = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 3; i++) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						tested.lookup("field", "value", null, null);
+					} catch (ElasticsearchException e) {
+						if ("ES failure".equals(e.getMessage()))
+							failures.incrementAndGet();
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		backend.started.await();
+		Thread.sleep(100);
+		backend.release.countDown();
+		for (Thread t : threads)
+			t.join();
+		Assert.assertEquals(1, backend.calls.get());
+		Assert.assertEquals(3, failures.get());
+	}
+
+	@Test
+	public void lookup_waitingTimeBudget() throws Exception {
+		final BlockingLookupBackend backend = new BlockingLookupBackend();
+		final CoalescingLookupBackend tested = new CoalescingLookupBackend(backend);
+
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				tested.lookup("field", "value", null, null);
+			}
+		};
+		t.start();
+		backend.started.await();
+
+		PreprocessChainContextImpl chainContext = new PreprocessChainContextImpl();
+		chainContext.setTimeBudget(50);
+		try {
+			tested.lookup("field", "value", null, chainContext);
+			Assert.fail("ElasticsearchTimeoutException expected");
+		} catch (ElasticsearchTimeoutException e) {
+			// OK
+		}
+		backend.release.countDown();
+		t.join();
+		Assert.assertEquals(1, backend.calls.get());
+	}
+
+	/**
+	 * Backend blocking lookups until released.
+	 */
+	protected static class BlockingLookupBackend extends LookupBackendBase {
+
+		AtomicInteger calls = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		RuntimeException exception;
+
+		protected BlockingLookupBackend() {
+			super(null, false, null);
+		}
+
+		@Override
+		public LookupResult lookup(String idxSearchField, Object sourceValue, String routing,
+				PreprocessChainContext chainContext) {
+			calls.incrementAndGet();
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (exception != null)
+				throw exception;
+			return new LookupResult(1, null);
+		}
+	}
+
+}
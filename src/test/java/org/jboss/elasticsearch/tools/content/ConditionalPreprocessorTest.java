@@ -0,0 +1,82 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.elasticsearch.client.Client;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit test for {@link ConditionalPreprocessor}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class ConditionalPreprocessorTest {
+
+	@Test
+	public void preprocessData() throws Exception {
+		StructuredContentPreprocessor delegate = Mockito.mock(StructuredContentPreprocessor.class,
+				Mockito.withSettings().extraInterfaces(Closeable.class));
+		Client client = Mockito.mock(Client.class);
+		Map<String, Object> settings = new HashMap<String, Object>();
+		Mockito.when(delegate.getName()).thenReturn("cond");
+
+		ConditionalPreprocessor tested = new ConditionalPreprocessor(delegate, DataCondition.compile(DataConditionTest.cond(
+				"equals", DataConditionTest.cond("field", "type", "value", "bug"))));
+		tested.init("cond", client, settings);
+		Mockito.verify(delegate).init("cond", client, settings);
+		Assert.assertEquals("cond", tested.getName());
+		Assert.assertSame(delegate, tested.getDelegate());
+
+		// case - not matching data are not passed to delegate
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("type", "feature");
+		Assert.assertSame(data, tested.preprocessData(data));
+		Assert.assertNull(tested.preprocessData(null, null));
+		Mockito.verify(delegate, Mockito.never()).preprocessData(Mockito.anyMap(), Mockito.any(PreprocessChainContext.class));
+
+		// case - matching data
+		data.put("type", "bug");
+		Map<String, Object> result = new HashMap<String, Object>();
+		Mockito.when(delegate.preprocessData(data, null)).thenReturn(result);
+		Assert.assertSame(result, tested.preprocessData(data));
+
+		tested.close();
+		Mockito.verify((Closeable) delegate).close();
+	}
+
+	@Test
+	public void declarations() {
+		RequiredValidatorPreprocessor validator = new RequiredValidatorPreprocessor();
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put(RequiredValidatorPreprocessor.CFG_FIELD, "title");
+		validator.init("v", null, settings);
+
+		ConditionalPreprocessor tested = new ConditionalPreprocessor(validator, DataCondition.compile(DataConditionTest
+				.cond("exists", "type")));
+		Assert.assertEquals(new LinkedHashSet<String>(Arrays.asList("title", "type")), tested.getReadFields());
+		Assert.assertEquals(validator.getWrittenFields(), tested.getWrittenFields());
+		Assert.assertEquals(PreprocessorCostHint.COST_CHEAP, tested.getCostHint());
+		Assert.assertTrue(tested.mayRejectData());
+
+		// delegate with undeclared access
+		tested = new ConditionalPreprocessor(Mockito.mock(StructuredContentPreprocessor.class),
+				DataCondition.compile(DataConditionTest.cond("exists", "type")));
+		Assert.assertNull(tested.getReadFields());
+		Assert.assertNull(tested.getWrittenFields());
+		Assert.assertEquals(PreprocessorCostHint.COST_MODERATE, tested.getCostHint());
+		Assert.assertFalse(tested.mayRejectData());
+	}
+
+}
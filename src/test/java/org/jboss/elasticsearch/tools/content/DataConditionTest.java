@@ -0,0 +1,187 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link DataCondition}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class DataConditionTest {
+
+	@Test
+	public void compile_errors() {
+		assertCompileError(null, "condition must be object with exactly one element, but is null");
+		assertCompileError(cond("exists", "a", "equals", "b"),
+				"condition must be object with exactly one element, but is {exists=a, equals=b}");
+		assertCompileError(cond("unknown", params("field", "a")), "Unknown condition type 'unknown'");
+		assertCompileError(cond("exists", ""), "'exists' condition must contain field name");
+		assertCompileError(cond("and", new ArrayList<Object>()), "'and' condition must contain non empty array of conditions");
+		assertCompileError(cond("or", cond("exists", "a")), "'or' condition must contain non empty array of conditions");
+		assertCompileError(cond("not", "a"), "condition must be object with exactly one element, but is a");
+		assertCompileError(cond("equals", "a"), "'equals' condition must be object");
+		assertCompileError(cond("equals", params("value", "a")), "'equals/field' must be defined");
+		assertCompileError(cond("equals", params("field", "a")), "'equals/value' must be defined");
+		assertCompileError(cond("in", params("field", "a", "values", "b")), "'in/values' must be array");
+		assertCompileError(cond("regex", params("field", "a")), "'regex/pattern' must be defined");
+		try {
+			DataCondition.compile(cond("regex", params("field", "a", "pattern", "(")));
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage().startsWith("'regex/pattern' is invalid: "));
+		}
+		assertCompileError(cond("gt", params("field", "a", "value", "10")), "'gt/value' must be number");
+		// nested error
+		assertCompileError(cond("and", Arrays.asList(cond("exists", "a"), cond("lte", params("field", "a")))),
+				"'lte/value' must be number");
+	}
+
+	@Test
+	public void exists() {
+		DataCondition tested = DataCondition.compile(cond("exists", "author.name"));
+		Assert.assertEquals(new LinkedHashSet<String>(Arrays.asList("author.name")), tested.getFields());
+		Assert.assertTrue(tested.matches(createData()));
+		Assert.assertFalse(DataCondition.compile(cond("exists", "author.email")).matches(createData()));
+		Assert.assertFalse(DataCondition.compile(cond("exists", "unknown")).matches(createData()));
+		// value in collection
+		Assert.assertTrue(DataCondition.compile(cond("exists", "comments.text")).matches(createData()));
+	}
+
+	@Test
+	public void equals_in() {
+		Map<String, Object> data = createData();
+		Assert.assertTrue(DataCondition.compile(cond("equals", params("field", "type", "value", "bug"))).matches(data));
+		Assert.assertFalse(DataCondition.compile(cond("equals", params("field", "type", "value", "Bug"))).matches(data));
+		Assert.assertFalse(DataCondition.compile(cond("equals", params("field", "unknown", "value", "bug"))).matches(data));
+		// numbers by value
+		Assert.assertTrue(DataCondition.compile(cond("equals", params("field", "count", "value", 10.0))).matches(data));
+		Assert.assertTrue(DataCondition.compile(cond("equals", params("field", "count", "value", 10L))).matches(data));
+		Assert.assertFalse(DataCondition.compile(cond("equals", params("field", "count", "value", "10"))).matches(data));
+		// value in collection
+		Assert.assertTrue(DataCondition.compile(cond("equals", params("field", "tags", "value", "b"))).matches(data));
+		Assert.assertTrue(DataCondition.compile(cond("equals", params("field", "comments.text", "value", "c2"))).matches(
+				data));
+
+		Assert.assertTrue(DataCondition.compile(cond("in", params("field", "type", "values", Arrays.asList("feature", "bug"))))
+				.matches(data));
+		Assert.assertFalse(DataCondition.compile(cond("in", params("field", "type", "values", Arrays.asList("feature"))))
+				.matches(data));
+		Assert.assertFalse(DataCondition.compile(cond("in", params("field", "type", "values", new ArrayList<Object>())))
+				.matches(data));
+		Assert.assertTrue(DataCondition.compile(cond("in", params("field", "tags", "values", Arrays.asList("x", "c"))))
+				.matches(data));
+	}
+
+	@Test
+	public void regex() {
+		Map<String, Object> data = createData();
+		Assert.assertTrue(DataCondition.compile(cond("regex", params("field", "title", "pattern", "Re: .*"))).matches(data));
+		// must match whole value
+		Assert.assertFalse(DataCondition.compile(cond("regex", params("field", "title", "pattern", "Re:"))).matches(data));
+		Assert.assertTrue(DataCondition.compile(cond("regex", params("field", "count", "pattern", "\\d+"))).matches(data));
+		Assert.assertTrue(DataCondition.compile(cond("regex", params("field", "tags", "pattern", "[b-c]"))).matches(data));
+		Assert.assertFalse(DataCondition.compile(cond("regex", params("field", "unknown", "pattern", ".*"))).matches(data));
+	}
+
+	@Test
+	public void compare() {
+		Map<String, Object> data = createData();
+		Assert.assertTrue(DataCondition.compile(cond("gt", params("field", "count", "value", 9))).matches(data));
+		Assert.assertFalse(DataCondition.compile(cond("gt", params("field", "count", "value", 10))).matches(data));
+		Assert.assertTrue(DataCondition.compile(cond("gte", params("field", "count", "value", 10))).matches(data));
+		Assert.assertTrue(DataCondition.compile(cond("lt", params("field", "count", "value", 10.5))).matches(data));
+		Assert.assertFalse(DataCondition.compile(cond("lt", params("field", "count", "value", 10))).matches(data));
+		Assert.assertTrue(DataCondition.compile(cond("lte", params("field", "count", "value", 10))).matches(data));
+		// String with number
+		Assert.assertTrue(DataCondition.compile(cond("gt", params("field", "votes", "value", 1))).matches(data));
+		// not a number
+		Assert.assertFalse(DataCondition.compile(cond("gt", params("field", "type", "value", 1))).matches(data));
+		Assert.assertFalse(DataCondition.compile(cond("lt", params("field", "unknown", "value", 1))).matches(data));
+		// value in collection
+		Assert.assertTrue(DataCondition.compile(cond("gt", params("field", "comments.votes", "value", 4))).matches(data));
+		Assert.assertFalse(DataCondition.compile(cond("gt", params("field", "comments.votes", "value", 5))).matches(data));
+	}
+
+	@Test
+	public void combinators() {
+		Map<String, Object> data = createData();
+		Map<String, Object> t = cond("exists", "type");
+		Map<String, Object> f = cond("exists", "unknown");
+
+		Assert.assertTrue(DataCondition.compile(cond("and", Arrays.asList(t, t))).matches(data));
+		Assert.assertFalse(DataCondition.compile(cond("and", Arrays.asList(t, f))).matches(data));
+		Assert.assertTrue(DataCondition.compile(cond("or", Arrays.asList(f, t))).matches(data));
+		Assert.assertFalse(DataCondition.compile(cond("or", Arrays.asList(f, f))).matches(data));
+		Assert.assertTrue(DataCondition.compile(cond("not", f)).matches(data));
+		Assert.assertFalse(DataCondition.compile(cond("not", t)).matches(data));
+
+		DataCondition tested = DataCondition.compile(cond("and",
+				Arrays.asList(cond("or", Arrays.asList(f, cond("equals", params("field", "type", "value", "bug")))),
+						cond("not", cond("gt", params("field", "count", "value", 100))))));
+		Assert.assertTrue(tested.matches(data));
+		Assert.assertEquals(new LinkedHashSet<String>(Arrays.asList("unknown", "type", "count")), tested.getFields());
+		data.put("count", 101);
+		Assert.assertFalse(tested.matches(data));
+	}
+
+	private static void assertCompileError(Object config, String expectedMessage) {
+		try {
+			DataCondition.compile(config);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals(expectedMessage, e.getMessage());
+		}
+	}
+
+	protected static Map<String, Object> cond(Object... keyValues) {
+		return params(keyValues);
+	}
+
+	private static Map<String, Object> params(Object... keyValues) {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			ret.put((String) keyValues[i], keyValues[i + 1]);
+		}
+		return ret;
+	}
+
+	private static Map<String, Object> createData() {
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("type", "bug");
+		data.put("title", "Re: problem");
+		data.put("count", 10);
+		data.put("votes", "3");
+		data.put("tags", Arrays.asList("a", "b", "c"));
+		Map<String, Object> author = new HashMap<String, Object>();
+		author.put("name", "John");
+		author.put("email", null);
+		data.put("author", author);
+		List<Object> comments = new ArrayList<Object>();
+		Map<String, Object> comment = new HashMap<String, Object>();
+		comment.put("text", "c1");
+		comment.put("votes", 2);
+		comments.add(comment);
+		comment = new HashMap<String, Object>();
+		comment.put("text", "c2");
+		comment.put("votes", 5);
+		comments.add(comment);
+		data.put("comments", comments);
+		return data;
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.jboss.elasticsearch.tools.content.ESLookupValuePreprocessor.SearchMode;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Unit test for {@link ESLookupBackend}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class ESLookupBackendTest {
+
+	@Test
+	public void lookup_searchTimedOut() {
+		SearchResponse resp = Mockito.mock(SearchResponse.class);
+		Mockito.when(resp.isTimedOut()).thenReturn(true);
+		ESLookupBackend tested = createBackend(resp);
+
+		try {
+			tested.lookup("name", "value", null, null);
+			Assert.fail("ElasticsearchTimeoutException expected");
+		} catch (ElasticsearchTimeoutException e) {
+			Assert.assertEquals("Lookup search timed out", e.getMessage());
+		}
+		try {
+			tested.lookupCombined(Arrays.asList("name", "title"), "value", null, null);
+			Assert.fail("ElasticsearchTimeoutException expected");
+		} catch (ElasticsearchTimeoutException e) {
+			Assert.assertEquals("Lookup search timed out", e.getMessage());
+		}
+		Mockito.verify(resp, Mockito.never()).getHits();
+	}
+
+	@Test
+	public void lookup_searchShardsFailed() {
+		SearchResponse resp = Mockito.mock(SearchResponse.class);
+		Mockito.when(resp.getFailedShards()).thenReturn(1);
+		Mockito.when(resp.getTotalShards()).thenReturn(5);
+		ESLookupBackend tested = createBackend(resp);
+
+		try {
+			tested.lookup("name", "value", null, null);
+			Assert.fail("ElasticsearchTimeoutException expected");
+		} catch (ElasticsearchTimeoutException e) {
+			Assert.assertEquals("Lookup search failed on 1 of 5 shards", e.getMessage());
+		}
+		Mockito.verify(resp, Mockito.never()).getHits();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ESLookupBackend createBackend(final SearchResponse resp) {
+		final Client client = Mockito.mock(Client.class);
+		Mockito.when(client.prepareSearch("idx")).thenAnswer(new Answer<SearchRequestBuilder>() {
+			@Override
+			public SearchRequestBuilder answer(InvocationOnMock invocation) {
+				return new SearchRequestBuilder(client).setIndices("idx");
+			}
+		});
+		Mockito.doAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) {
+				((ActionListener<SearchResponse>) invocation.getArguments()[1]).onResponse(resp);
+				return null;
+			}
+		}).when(client).search(Mockito.any(SearchRequest.class), Mockito.any(ActionListener.class));
+		return new ESLookupBackend(client, "idx", "type", SearchMode.TERM, null, new String[] { "name" }, false, null);
+	}
+
+}
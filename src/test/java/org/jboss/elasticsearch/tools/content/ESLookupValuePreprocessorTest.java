@@ -5,7 +5,11 @@
  */
 package org.jboss.elasticsearch.tools.content;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -284,8 +288,10 @@ public class ESLookupValuePreprocessorTest extends ESRealClientTestBase {
 			// case - test rewrite on target field and default pattern
 			{
 				Map<String, Object> values = new HashMap<String, Object>();
-				tested.resultMapping.get(0)
-						.put(ESLookupValuePreprocessor.CFG_value_default, "unknown {field} for {__original}");
+				Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+				((List<Map<String, Object>>) settings.get(ESLookupValuePreprocessor.CFG_result_mapping)).get(0).put(
+						ESLookupValuePreprocessor.CFG_value_default, "unknown {field} for {__original}");
+				tested.init("Test mapper", client, settings);
 				StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, "BBB");
 				StructureUtils.putValueIntoMapOfMaps(values, "field", "jj");
 				tested.preprocessData(values, null);
@@ -294,7 +300,10 @@ public class ESLookupValuePreprocessorTest extends ESRealClientTestBase {
 
 			// case - test handling when source field contains list of values
 			{
-				tested.resultMapping.get(0).put(ESLookupValuePreprocessor.CFG_value_default, "unknown");
+				Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+				((List<Map<String, Object>>) settings.get(ESLookupValuePreprocessor.CFG_result_mapping)).get(0).put(
+						ESLookupValuePreprocessor.CFG_value_default, "unknown");
+				tested.init("Test mapper", client, settings);
 				Map<String, Object> values = new HashMap<String, Object>();
 				List<Object> obj = new ArrayList<Object>();
 				obj.add("ORG");
@@ -318,6 +327,822 @@ public class ESLookupValuePreprocessorTest extends ESRealClientTestBase {
 		}
 	}
 
+	@Test
+	public void init_searchMode() {
+		Client client = Mockito.mock(Client.class);
+		ESLookupValuePreprocessor tested = new ESLookupValuePreprocessor();
+
+		// case - default mode
+		{
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+			tested.init("Test mapper", client, settings);
+			Assert.assertEquals(ESLookupValuePreprocessor.SearchMode.MATCH, tested.getIdxSearchMode());
+			Assert.assertNull(tested.getResultSourceIncludes());
+		}
+
+		// case - term mode, source includes
+		{
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+			settings.put(ESLookupValuePreprocessor.CFG_idx_search_mode, "Term");
+			List<String> includes = new ArrayList<String>();
+			includes.add("code");
+			includes.add("name");
+			settings.put(ESLookupValuePreprocessor.CFG_result_source_includes, includes);
+			tested.init("Test mapper", client, settings);
+			Assert.assertEquals(ESLookupValuePreprocessor.SearchMode.TERM, tested.getIdxSearchMode());
+			Assert.assertEquals("jbossorg_jira_project", tested.idxSearchField.get(0));
+			Assert.assertEquals(2, tested.getResultSourceIncludes().length);
+			Assert.assertEquals("code", tested.getResultSourceIncludes()[0]);
+		}
+
+		// case - id mode doesn't require idx_search_field
+		{
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+			settings.put(ESLookupValuePreprocessor.CFG_idx_search_mode, "id");
+			settings.remove(ESLookupValuePreprocessor.CFG_idx_search_field);
+			tested.init("Test mapper", client, settings);
+			Assert.assertEquals(ESLookupValuePreprocessor.SearchMode.ID, tested.getIdxSearchMode());
+			Assert.assertEquals(1, tested.idxSearchField.size());
+			Assert.assertEquals("_id", tested.idxSearchField.get(0));
+		}
+
+		// case - term mode requires idx_search_field
+		try {
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+			settings.put(ESLookupValuePreprocessor.CFG_idx_search_mode, "term");
+			settings.remove(ESLookupValuePreprocessor.CFG_idx_search_field);
+			tested.init("Test mapper", client, settings);
+			Assert.fail("SettingsException must be thrown");
+		} catch (SettingsException e) {
+			Assert.assertEquals(
+					"Missing or empty 'settings/idx_search_field' configuration value for 'Test mapper' preprocessor",
+					e.getMessage());
+		}
+
+		// case - unknown mode
+		try {
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+			settings.put(ESLookupValuePreprocessor.CFG_idx_search_mode, "fuzzy");
+			tested.init("Test mapper", client, settings);
+			Assert.fail("SettingsException must be thrown");
+		} catch (SettingsException e) {
+			Assert.assertEquals(
+					"Invalid 'settings/idx_search_mode' configuration value for 'Test mapper' preprocessor: Unknown search mode 'fuzzy', allowed values are [MATCH, TERM, ID]",
+					e.getMessage());
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Test
+	public void preprocessData_searchModes() throws Exception {
+		try {
+			Client client = prepareESClientForUnitTest();
+
+			// case - term mode
+			{
+				Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+				settings.put(ESLookupValuePreprocessor.CFG_idx_search_mode, "term");
+				ESLookupValuePreprocessor tested = new ESLookupValuePreprocessor();
+				tested.init("Test mapper", client, settings);
+				prepareTestData(client, tested);
+
+				Map<String, Object> values = new HashMap<String, Object>();
+				StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, "ISPN");
+				PreprocessChainContextImpl chainContext = new PreprocessChainContextImpl();
+				tested.preprocessData(values, chainContext);
+				Assert.assertEquals("infinispan", (String) XContentMapValues.extractValue("project.code", values));
+				Assert.assertEquals("Infinispan", (String) XContentMapValues.extractValue("project_name", values));
+				Assert.assertFalse(chainContext.isWarning());
+
+				// multiple results are detected in term mode also
+				StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, "ES");
+				tested.preprocessData(values, chainContext);
+				Assert.assertTrue(chainContext.isWarning());
+
+				StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, "AAA");
+				tested.preprocessData(values, null);
+				Assert.assertEquals("defval", (String) XContentMapValues.extractValue("project.code", values));
+				Assert.assertNull(XContentMapValues.extractValue("project_name", values));
+			}
+
+			// case - id mode with single value and list of values
+			{
+				Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+				settings.put(ESLookupValuePreprocessor.CFG_idx_search_mode, "id");
+				ESLookupValuePreprocessor tested = new ESLookupValuePreprocessor();
+				tested.init("Test mapper", client, settings);
+
+				Map<String, Object> values = new HashMap<String, Object>();
+				StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, "data2");
+				PreprocessChainContextImpl chainContext = new PreprocessChainContextImpl();
+				tested.preprocessData(values, chainContext);
+				Assert.assertEquals("infinispan", (String) XContentMapValues.extractValue("project.code", values));
+				Assert.assertEquals("Infinispan", (String) XContentMapValues.extractValue("project_name", values));
+				Assert.assertFalse(chainContext.isWarning());
+
+				List<Object> obj = new ArrayList<Object>();
+				obj.add("data1");
+				obj.add("data3");
+				obj.add("unknown");
+				StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, obj);
+				chainContext = new PreprocessChainContextImpl();
+				tested.preprocessData(values, chainContext);
+				List<Object> l = (List<Object>) XContentMapValues.extractValue("project.code", values);
+				Assert.assertEquals(3, l.size());
+				Assert.assertEquals("jbossorg", l.get(0));
+				Assert.assertEquals("elasticsearch", l.get(1));
+				Assert.assertEquals("defval", l.get(2));
+				l = (List<Object>) XContentMapValues.extractValue("project_name", values);
+				Assert.assertEquals(1, l.size());
+				Assert.assertEquals("jboss.org", l.get(0));
+				// missing name in data3 and not found data
+				Assert.assertEquals(2, chainContext.getWarnings().size());
+			}
+
+			// case - id mode with filtered _source
+			{
+				Map<String, Object> settings = TestUtils
+						.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases-FullSource.json");
+				settings.put(ESLookupValuePreprocessor.CFG_idx_search_mode, "id");
+				List<String> includes = new ArrayList<String>();
+				includes.add("code");
+				settings.put(ESLookupValuePreprocessor.CFG_result_source_includes, includes);
+				ESLookupValuePreprocessor tested = new ESLookupValuePreprocessor();
+				tested.init("Test mapper", client, settings);
+
+				Map<String, Object> values = new HashMap<String, Object>();
+				StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, "data1");
+				tested.preprocessData(values, null);
+				Map m = (Map) XContentMapValues.extractValue("full_doc", values);
+				Assert.assertEquals(1, m.size());
+				Assert.assertEquals("jbossorg", m.get("code"));
+			}
+
+			// case - term mode with filtered _source
+			{
+				Map<String, Object> settings = TestUtils
+						.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases-FullSource.json");
+				settings.put(ESLookupValuePreprocessor.CFG_idx_search_mode, "term");
+				List<String> includes = new ArrayList<String>();
+				includes.add("name");
+				settings.put(ESLookupValuePreprocessor.CFG_result_source_includes, includes);
+				ESLookupValuePreprocessor tested = new ESLookupValuePreprocessor();
+				tested.init("Test mapper", client, settings);
+
+				Map<String, Object> values = new HashMap<String, Object>();
+				StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, "ORG");
+				tested.preprocessData(values, null);
+				Map m = (Map) XContentMapValues.extractValue("full_doc", values);
+				Assert.assertEquals(1, m.size());
+				Assert.assertEquals("jboss.org", m.get("name"));
+			}
+		} finally {
+			finalizeESClientForUnitTest();
+		}
+	}
+
+	@Test
+	public void preprocessData_combinedSearch() throws Exception {
+		try {
+			Client client = prepareESClientForUnitTest();
+
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases-2.json");
+			settings.remove(ESLookupValuePreprocessor.CFG_source_value);
+			settings.put(ESLookupValuePreprocessor.CFG_source_field, "sf");
+			ESLookupValuePreprocessor tested = new ESLookupValuePreprocessor();
+			tested.init("Test mapper", client, settings);
+			Assert.assertFalse(tested.isIdxSearchCombined());
+			Assert.assertFalse(tested.isCombinedSearch());
+
+			prepareTestData(client, tested);
+			Map<String, Object> doc = new HashMap<String, Object>();
+			doc.put("code", "infinispan2");
+			doc.put("name", "Infinispan 2");
+			doc.put("jbossorg_jira_project_2", "ISPN");
+			client.prepareIndex(tested.indexName, tested.indexType).setId("data4").setSource(doc).execute().actionGet();
+			client.admin().indices().prepareRefresh(tested.indexName).execute().actionGet();
+
+			// both modes must provide same results
+			for (boolean combined : new boolean[] { false, true }) {
+				settings.put(ESLookupValuePreprocessor.CFG_idx_search_combined, combined);
+				tested.init("Test mapper", client, settings);
+				Assert.assertEquals(combined, tested.isCombinedSearch());
+
+				// case - found in second field only
+				Map<String, Object> values = new HashMap<String, Object>();
+				values.put("sf", "ORGA");
+				PreprocessChainContextImpl chainContext = new PreprocessChainContextImpl();
+				tested.preprocessData(values, chainContext);
+				Assert.assertEquals("jbossorg", XContentMapValues.extractValue("project.code", values));
+				Assert.assertEquals("jboss.org", XContentMapValues.extractValue("project_name", values));
+				Assert.assertEquals(1, chainContext.getWarnings().size());
+
+				// case - found in both fields, first one has priority
+				values = new HashMap<String, Object>();
+				values.put("sf", "ISPN");
+				chainContext = new PreprocessChainContextImpl();
+				tested.preprocessData(values, chainContext);
+				Assert.assertEquals("infinispan2", XContentMapValues.extractValue("project.code", values));
+				Assert.assertEquals("Infinispan 2", XContentMapValues.extractValue("project_name", values));
+				Assert.assertFalse(chainContext.isWarning());
+
+				// case - multiple results are ignored so default value is used
+				values = new HashMap<String, Object>();
+				values.put("sf", "ES");
+				chainContext = new PreprocessChainContextImpl();
+				tested.preprocessData(values, chainContext);
+				Assert.assertEquals("defval", XContentMapValues.extractValue("project.code", values));
+				Assert.assertNull(XContentMapValues.extractValue("project_name", values));
+				Assert.assertEquals(2, chainContext.getWarnings().size());
+
+				// case - not found at all
+				values = new HashMap<String, Object>();
+				values.put("sf", "AAA");
+				tested.preprocessData(values, null);
+				Assert.assertEquals("defval", XContentMapValues.extractValue("project.code", values));
+			}
+		} finally {
+			finalizeESClientForUnitTest();
+		}
+	}
+
+	@Test
+	public void preprocessData_combinedSearch_missingResult() {
+		Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases-2.json");
+		settings.remove(ESLookupValuePreprocessor.CFG_source_value);
+		settings.put(ESLookupValuePreprocessor.CFG_source_field, "sf");
+		settings.put(ESLookupValuePreprocessor.CFG_idx_search_combined, true);
+		ESLookupValuePreprocessor tested = new ESLookupValuePreprocessor();
+		tested.init("Test mapper", Mockito.mock(Client.class), settings);
+		LookupBackend backend = Mockito.mock(LookupBackend.class);
+		Map<String, Object> fields = new HashMap<String, Object>();
+		fields.put("code", "jbossorg");
+		// no result for the first field
+		Mockito.when(backend.lookupCombined(tested.idxSearchField, "ORGA", null, null)).thenReturn(
+				Collections.singletonMap("jbossorg_jira_project", new LookupResult(1, fields)));
+		Mockito.when(backend.lookupCombined(tested.idxSearchField, "AAA", null, null)).thenReturn(
+				new HashMap<String, LookupResult>());
+		tested.setLookupBackend(backend);
+
+		Map<String, Object> values = new HashMap<String, Object>();
+		values.put("sf", "ORGA");
+		tested.preprocessData(values, null);
+		Assert.assertEquals("jbossorg", XContentMapValues.extractValue("project.code", values));
+
+		values = new HashMap<String, Object>();
+		values.put("sf", "AAA");
+		tested.preprocessData(values, null);
+		Assert.assertEquals("defval", XContentMapValues.extractValue("project.code", values));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void init_lookupBackend() throws Exception {
+		Client client = Mockito.mock(Client.class);
+		ESLookupValuePreprocessor tested = new ESLookupValuePreprocessor();
+
+		// case - default Elasticsearch backend
+		{
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+			tested.init("Test mapper", client, settings);
+			ESLookupBackend backend = (ESLookupBackend) tested.getLookupBackend();
+			Assert.assertEquals(client, backend.getClient());
+			Assert.assertEquals("projects", backend.getIndexName());
+			Assert.assertEquals("project", backend.getIndexType());
+			Assert.assertEquals(ESLookupValuePreprocessor.SearchMode.MATCH, backend.getSearchMode());
+			Assert.assertEquals(2, backend.getResultFields().length);
+			Assert.assertFalse(backend.isSourceRequested());
+		}
+
+		// case - memory backend, client and index are not required
+		{
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+			settings.remove(ESLookupValuePreprocessor.CFG_index_name);
+			settings.remove(ESLookupValuePreprocessor.CFG_index_type);
+			settings.put(ESLookupValuePreprocessor.CFG_lookup_backend, "memory");
+			settings.put(ESLookupValuePreprocessor.CFG_lookup_data,
+					TestUtils.loadJSONFromClasspathFile("/ESLookupValue_lookupData.json"));
+			tested.init("Test mapper", null, settings);
+			Assert.assertEquals(3, ((InMemoryLookupBackend) tested.getLookupBackend()).getDocuments().size());
+
+			settings.remove(ESLookupValuePreprocessor.CFG_lookup_data);
+			try {
+				tested.init("Test mapper", null, settings);
+				Assert.fail("SettingsException must be thrown");
+			} catch (SettingsException e) {
+				Assert.assertEquals(
+						"Missing or invalid 'settings/lookup_data' configuration object for 'Test mapper' preprocessor",
+						e.getMessage());
+			}
+		}
+
+		// case - file backends
+		{
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+			settings.put(ESLookupValuePreprocessor.CFG_lookup_backend, "csv_file");
+			settings.put(ESLookupValuePreprocessor.CFG_lookup_file,
+					InMemoryLookupBackendTest.getClasspathFile("/ESLookupValue_lookupData.csv").getAbsolutePath());
+			tested.init("Test mapper", null, settings);
+			Assert.assertEquals(3, ((InMemoryLookupBackend) tested.getLookupBackend()).getDocuments().size());
+
+			settings.put(ESLookupValuePreprocessor.CFG_lookup_backend, "json_file");
+			try {
+				tested.init("Test mapper", null, settings);
+				Assert.fail("SettingsException must be thrown");
+			} catch (SettingsException e) {
+				Assert.assertTrue(e.getMessage().startsWith("Invalid lookup file '"));
+			}
+
+			settings.put(ESLookupValuePreprocessor.CFG_lookup_file, "/nonexisting/file.json");
+			try {
+				tested.init("Test mapper", null, settings);
+				Assert.fail("SettingsException must be thrown");
+			} catch (SettingsException e) {
+				Assert.assertTrue(e.getMessage().startsWith("Lookup file '/nonexisting/file.json' can't be read"));
+			}
+
+			settings.remove(ESLookupValuePreprocessor.CFG_lookup_file);
+			try {
+				tested.init("Test mapper", null, settings);
+				Assert.fail("SettingsException must be thrown");
+			} catch (SettingsException e) {
+				Assert.assertEquals("Missing or empty 'settings/lookup_file' configuration value for 'Test mapper' preprocessor",
+						e.getMessage());
+			}
+		}
+
+		// case - unknown backend
+		try {
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+			settings.put(ESLookupValuePreprocessor.CFG_lookup_backend, "redis");
+			tested.init("Test mapper", null, settings);
+			Assert.fail("SettingsException must be thrown");
+		} catch (SettingsException e) {
+			Assert.assertEquals(
+					"Unknown 'settings/lookup_backend' configuration value 'redis' for 'Test mapper' preprocessor, allowed values are [elasticsearch, memory, json_file, csv_file]",
+					e.getMessage());
+		}
+	}
+
+	@Test
+	public void init_lookupGovernor() throws IOException {
+		Client client = Mockito.mock(Client.class);
+		ESLookupValuePreprocessor tested = new ESLookupValuePreprocessor();
+
+		Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+		Map<String, Object> governorSettings = new HashMap<String, Object>();
+		governorSettings.put(ESLookupValuePreprocessor.CFG_lookup_governor_name, "init_lookupGovernor");
+		settings.put(ESLookupValuePreprocessor.CFG_lookup_governor, governorSettings);
+		settings.put(ESLookupValuePreprocessor.CFG_lookup_coalescing, true);
+		tested.init("Test mapper", client, settings);
+		GovernedLookupBackend governed = (GovernedLookupBackend) ((CoalescingLookupBackend) tested.getLookupBackend())
+				.getDelegate();
+		Assert.assertEquals(5000, governed.getQueueTimeoutMillis());
+		Assert.assertEquals(10, governed.getGovernor().getMaxPermits());
+		Assert.assertTrue(governed.getDelegate() instanceof ESLookupBackend);
+
+		// case - governor shared with other preprocessor
+		governorSettings.put(ESLookupValuePreprocessor.CFG_lookup_governor_max_concurrent, 4);
+		governorSettings.put(ESLookupValuePreprocessor.CFG_lookup_governor_queue_timeout, "100");
+		settings.remove(ESLookupValuePreprocessor.CFG_lookup_coalescing);
+		ESLookupValuePreprocessor tested2 = new ESLookupValuePreprocessor();
+		tested2.init("Test mapper 2", client, settings);
+		GovernedLookupBackend governed2 = (GovernedLookupBackend) tested2.getLookupBackend();
+		Assert.assertEquals(100, governed2.getQueueTimeoutMillis());
+		Assert.assertSame(governed.getGovernor(), governed2.getGovernor());
+		Assert.assertEquals(10, governed.getGovernor().getMaxPermits());
+
+		// case - governor released when all preprocessors are closed
+		tested.close();
+		Assert.assertSame(governed.getGovernor(), LookupConcurrencyGovernor.getExistingGovernor("init_lookupGovernor"));
+		tested2.close();
+		tested2.close();
+		Assert.assertNull(LookupConcurrencyGovernor.getExistingGovernor("init_lookupGovernor"));
+
+		// case - governor released when later init step fails
+		Map<String, Object> cacheSettings = new HashMap<String, Object>();
+		cacheSettings.put(ESLookupValuePreprocessor.CFG_lookup_cache_soft_ttl, "bad");
+		settings.put(ESLookupValuePreprocessor.CFG_lookup_cache, cacheSettings);
+		try {
+			tested2.init("Test mapper 2", client, settings);
+			Assert.fail("SettingsException must be thrown");
+		} catch (SettingsException e) {
+			Assert.assertNull(LookupConcurrencyGovernor.getExistingGovernor("init_lookupGovernor"));
+			Assert.assertNull(tested2.getLookupBackend());
+		}
+		settings.remove(ESLookupValuePreprocessor.CFG_lookup_cache);
+
+		// case - errors
+		governorSettings.put(ESLookupValuePreprocessor.CFG_lookup_governor_max_concurrent, 0);
+		try {
+			tested.init("Test mapper", client, settings);
+			Assert.fail("SettingsException must be thrown");
+		} catch (SettingsException e) {
+			Assert.assertEquals(
+					"Invalid 'settings/lookup_governor' configuration for 'Test mapper' preprocessor: max permits must be positive",
+					e.getMessage());
+		}
+		governorSettings.remove(ESLookupValuePreprocessor.CFG_lookup_governor_name);
+		try {
+			tested.init("Test mapper", client, settings);
+			Assert.fail("SettingsException must be thrown");
+		} catch (SettingsException e) {
+			Assert.assertEquals(
+					"Missing or empty 'settings/lookup_governor/name' configuration value for 'Test mapper' preprocessor",
+					e.getMessage());
+		}
+		settings.put(ESLookupValuePreprocessor.CFG_lookup_governor, "a");
+		try {
+			tested.init("Test mapper", client, settings);
+			Assert.fail("SettingsException must be thrown");
+		} catch (SettingsException e) {
+			Assert.assertEquals(
+					"'settings/lookup_governor' configuration value for 'Test mapper' preprocessor must be an object",
+					e.getMessage());
+		}
+	}
+
+	@Test
+	public void init_lookupCache() throws Exception {
+		Client client = Mockito.mock(Client.class);
+		ESLookupValuePreprocessor tested = new ESLookupValuePreprocessor();
+
+		// case - defaults, coalescing wrapped by cache
+		{
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+			settings.put(ESLookupValuePreprocessor.CFG_lookup_cache, new HashMap<String, Object>());
+			settings.put(ESLookupValuePreprocessor.CFG_lookup_coalescing, true);
+			tested.init("Test mapper", client, settings);
+			CachingLookupBackend cache = (CachingLookupBackend) tested.getLookupBackend();
+			Assert.assertEquals(60000, cache.getSoftTtlMillis());
+			Assert.assertEquals(600000, cache.getHardTtlMillis());
+			Assert.assertEquals(10000, cache.getMaxSize());
+			Assert.assertTrue(cache.getDelegate() instanceof CoalescingLookupBackend);
+		}
+
+		// case - configured
+		{
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+			Map<String, Object> cacheSettings = new HashMap<String, Object>();
+			cacheSettings.put(ESLookupValuePreprocessor.CFG_lookup_cache_soft_ttl, 1000000);
+			cacheSettings.put(ESLookupValuePreprocessor.CFG_lookup_cache_max_size, "100");
+			settings.put(ESLookupValuePreprocessor.CFG_lookup_cache, cacheSettings);
+			tested.init("Test mapper", client, settings);
+			CachingLookupBackend cache = (CachingLookupBackend) tested.getLookupBackend();
+			Assert.assertEquals(1000000, cache.getSoftTtlMillis());
+			Assert.assertEquals(1000000, cache.getHardTtlMillis());
+			Assert.assertEquals(100, cache.getMaxSize());
+			Assert.assertTrue(cache.getDelegate() instanceof ESLookupBackend);
+
+			cacheSettings.put(ESLookupValuePreprocessor.CFG_lookup_cache_hard_ttl, 10);
+			try {
+				tested.init("Test mapper", client, settings);
+				Assert.fail("SettingsException must be thrown");
+			} catch (SettingsException e) {
+				Assert.assertEquals(
+						"Invalid 'settings/lookup_cache' configuration for 'Test mapper' preprocessor: hard TTL must not be lower than soft TTL",
+						e.getMessage());
+			}
+
+			settings.put(ESLookupValuePreprocessor.CFG_lookup_cache, "a");
+			try {
+				tested.init("Test mapper", client, settings);
+				Assert.fail("SettingsException must be thrown");
+			} catch (SettingsException e) {
+				Assert.assertEquals("'settings/lookup_cache' configuration value for 'Test mapper' preprocessor must be an object",
+						e.getMessage());
+			}
+		}
+
+		// case - persistent file
+		{
+			File file = File.createTempFile("lookupcache", ".bin");
+			file.deleteOnExit();
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+			Map<String, Object> cacheSettings = new HashMap<String, Object>();
+			cacheSettings.put(ESLookupValuePreprocessor.CFG_lookup_cache_persistent_file, file.getAbsolutePath());
+			cacheSettings.put(ESLookupValuePreprocessor.CFG_lookup_cache_persistent_file_size, 10000);
+			settings.put(ESLookupValuePreprocessor.CFG_lookup_cache, cacheSettings);
+			tested.init("Test mapper", client, settings);
+			LookupCacheFile pf = ((CachingLookupBackend) tested.getLookupBackend()).getPersistentFile();
+			Assert.assertEquals(file, pf.getFile());
+			Assert.assertEquals(10000, pf.getCapacity());
+			Assert.assertEquals(tested.getLookupCacheConfigVersion(), pf.getConfigVersion());
+			tested.close();
+			Assert.assertNull(((CachingLookupBackend) tested.getLookupBackend()).getPersistentFile());
+
+			cacheSettings.put(ESLookupValuePreprocessor.CFG_lookup_cache_persistent_file, file.getParentFile()
+					.getAbsolutePath());
+			try {
+				tested.init("Test mapper", client, settings);
+				Assert.fail("SettingsException must be thrown");
+			} catch (SettingsException e) {
+				Assert.assertTrue(e.getMessage().startsWith(
+						"Persistent lookup cache file '" + file.getParentFile().getAbsolutePath()
+								+ "' can't be opened for 'Test mapper' preprocessor: "));
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void preprocessData_memoryBackend() throws Exception {
+		Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+		settings.put(ESLookupValuePreprocessor.CFG_lookup_backend, "json_file");
+		settings.put(ESLookupValuePreprocessor.CFG_lookup_file,
+				InMemoryLookupBackendTest.getClasspathFile("/ESLookupValue_lookupData.json").getAbsolutePath());
+		ESLookupValuePreprocessor tested = new ESLookupValuePreprocessor();
+		tested.init("Test mapper", null, settings);
+
+		// case - lookup for existing value
+		Map<String, Object> values = new HashMap<String, Object>();
+		StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, "ORGA");
+		PreprocessChainContextImpl chainContext = new PreprocessChainContextImpl();
+		tested.preprocessData(values, chainContext);
+		Assert.assertEquals("jbossorg", XContentMapValues.extractValue("project.code", values));
+		Assert.assertEquals("jboss.org", XContentMapValues.extractValue("project_name", values));
+		Assert.assertFalse(chainContext.isWarning());
+
+		// case - missing result field
+		values.remove("project_name");
+		StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, "ES2");
+		tested.preprocessData(values, chainContext);
+		Assert.assertEquals("elasticsearch", XContentMapValues.extractValue("project.code", values));
+		Assert.assertNull(XContentMapValues.extractValue("project_name", values));
+		Assert.assertEquals(1, chainContext.getWarnings().size());
+
+		// case - list of values with default
+		List<Object> obj = new ArrayList<Object>();
+		obj.add("ISPN");
+		obj.add("AAA");
+		StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, obj);
+		tested.preprocessData(values, null);
+		List<Object> l = (List<Object>) XContentMapValues.extractValue("project.code", values);
+		Assert.assertEquals(2, l.size());
+		Assert.assertEquals("infinispan", l.get(0));
+		Assert.assertEquals("defval", l.get(1));
+
+		// case - coalescing wrapper
+		settings.put(ESLookupValuePreprocessor.CFG_lookup_coalescing, true);
+		tested.init("Test mapper", null, settings);
+		Assert.assertTrue(((CoalescingLookupBackend) tested.getLookupBackend()).getDelegate() instanceof InMemoryLookupBackend);
+		StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, "ISPN");
+		tested.preprocessData(values, null);
+		Assert.assertEquals("infinispan", XContentMapValues.extractValue("project.code", values));
+
+		// case - custom backend
+		LookupBackend backendMock = Mockito.mock(LookupBackend.class);
+		Mockito.when(backendMock.lookup("jbossorg_jira_project", "XX", null, null)).thenReturn(LookupResult.NOT_FOUND);
+		tested.setLookupBackend(backendMock);
+		StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, "XX");
+		tested.preprocessData(values, null);
+		Assert.assertEquals("defval", XContentMapValues.extractValue("project.code", values));
+		Mockito.verify(backendMock).lookup("jbossorg_jira_project", "XX", null, null);
+	}
+
+	@Test
+	public void preprocessData_routing() throws Exception {
+		try {
+			Client client = prepareESClientForUnitTest();
+
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+			settings.put(ESLookupValuePreprocessor.CFG_idx_search_mode, "id");
+			settings.put(ESLookupValuePreprocessor.CFG_idx_routing, "{fields.routing}");
+			settings.put(ESLookupValuePreprocessor.CFG_idx_preference, "_local");
+			ESLookupValuePreprocessor tested = new ESLookupValuePreprocessor();
+			tested.init("Test mapper", client, settings);
+			Assert.assertEquals("{fields.routing}", tested.getIdxRouting());
+			Assert.assertEquals("_local", tested.getIdxPreference());
+			Assert.assertEquals("_local", ((ESLookupBackend) tested.getLookupBackend()).getPreference());
+
+			client.admin().indices().prepareCreate(tested.indexName).execute().actionGet();
+			for (int i = 0; i < 10; i++) {
+				Map<String, Object> doc = new HashMap<String, Object>();
+				doc.put("code", "code" + i);
+				client.prepareIndex(tested.indexName, tested.indexType).setId("id" + i).setRouting("route")
+						.setSource(doc).execute().actionGet();
+			}
+			client.admin().indices().prepareRefresh(tested.indexName).execute().actionGet();
+
+			// case - routing resolved from data
+			for (int i = 0; i < 10; i++) {
+				Map<String, Object> values = new HashMap<String, Object>();
+				StructureUtils.putValueIntoMapOfMaps(values, "fields.routing", "route");
+				StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, "id" + i);
+				tested.preprocessData(values, null);
+				Assert.assertEquals("code" + i, XContentMapValues.extractValue("project.code", values));
+			}
+
+			// case - prefetch of list of values uses routing also
+			List<Object> ids = new ArrayList<Object>();
+			for (int i = 0; i < 10; i++)
+				ids.add("id" + i);
+			Map<String, Object> values = new HashMap<String, Object>();
+			StructureUtils.putValueIntoMapOfMaps(values, "fields.routing", "route");
+			StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, ids);
+			tested.preprocessData(values, null);
+			Assert.assertEquals(10, ((List<?>) XContentMapValues.extractValue("project.code", values)).size());
+			Assert.assertEquals("code9", ((List<?>) XContentMapValues.extractValue("project.code", values)).get(9));
+
+			// case - routing resolution
+			Assert.assertEquals("route", tested.resolveRouting(values, "a"));
+			Assert.assertNull(tested.resolveRouting(new HashMap<String, Object>(), "a"));
+			tested.idxRouting = "{__original}-r";
+			Assert.assertEquals("a-r", tested.resolveRouting(values, "a"));
+			tested.idxRouting = null;
+			Assert.assertNull(tested.resolveRouting(values, "a"));
+		} finally {
+			finalizeESClientForUnitTest();
+		}
+	}
+
+	@Test
+	public void init_circuitBreaker() {
+		Client client = Mockito.mock(Client.class);
+		ESLookupValuePreprocessor tested = new ESLookupValuePreprocessor();
+
+		// case - not configured
+		{
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+			tested.init("Test mapper", client, settings);
+			Assert.assertNull(tested.getCircuitBreaker());
+		}
+
+		// case - defaults
+		{
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+			settings.put(ESLookupValuePreprocessor.CFG_circuit_breaker, new HashMap<String, Object>());
+			tested.init("Test mapper", client, settings);
+			Assert.assertEquals(50, tested.getCircuitBreaker().getFailureRateThreshold());
+			Assert.assertEquals(5, tested.getCircuitBreaker().getMinimumCalls());
+			Assert.assertEquals(20, tested.getCircuitBreaker().getWindowSize());
+			Assert.assertEquals(10000, tested.getCircuitBreaker().getProbeIntervalMillis());
+			// breaker protects remote backend directly, under cache
+			Assert.assertSame(tested.getCircuitBreaker(),
+					((CircuitBreakingLookupBackend) tested.getLookupBackend()).getCircuitBreaker());
+			settings.put(ESLookupValuePreprocessor.CFG_lookup_cache, new HashMap<String, Object>());
+			tested.init("Test mapper", client, settings);
+			CircuitBreakingLookupBackend cbb = (CircuitBreakingLookupBackend) ((CachingLookupBackend) tested
+					.getLookupBackend()).getDelegate();
+			Assert.assertTrue(cbb.getDelegate() instanceof ESLookupBackend);
+		}
+
+		// case - configured
+		{
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+			Map<String, Object> cb = new HashMap<String, Object>();
+			cb.put(ESLookupValuePreprocessor.CFG_circuit_breaker_failure_rate_threshold, 80);
+			cb.put(ESLookupValuePreprocessor.CFG_circuit_breaker_minimum_calls, "2");
+			cb.put(ESLookupValuePreprocessor.CFG_circuit_breaker_window_size, 10);
+			cb.put(ESLookupValuePreprocessor.CFG_circuit_breaker_probe_interval, 500);
+			settings.put(ESLookupValuePreprocessor.CFG_circuit_breaker, cb);
+			tested.init("Test mapper", client, settings);
+			Assert.assertEquals(80, tested.getCircuitBreaker().getFailureRateThreshold());
+			Assert.assertEquals(2, tested.getCircuitBreaker().getMinimumCalls());
+			Assert.assertEquals(10, tested.getCircuitBreaker().getWindowSize());
+			Assert.assertEquals(500, tested.getCircuitBreaker().getProbeIntervalMillis());
+
+			// case - invalid
+			cb.put(ESLookupValuePreprocessor.CFG_circuit_breaker_window_size, 1);
+			try {
+				tested.init("Test mapper", client, settings);
+				Assert.fail("SettingsException must be thrown");
+			} catch (SettingsException e) {
+				Assert.assertEquals(
+						"Invalid 'settings/circuit_breaker' configuration for 'Test mapper' preprocessor: window size must not be lower than minimum calls",
+						e.getMessage());
+			}
+			cb.put(ESLookupValuePreprocessor.CFG_circuit_breaker_window_size, "aa");
+			try {
+				tested.init("Test mapper", client, settings);
+				Assert.fail("SettingsException must be thrown");
+			} catch (SettingsException e) {
+				Assert.assertEquals("Non integer value in 'settings/circuit_breaker' configuration for 'Test mapper' preprocessor",
+						e.getMessage());
+			}
+			settings.put(ESLookupValuePreprocessor.CFG_circuit_breaker, "aa");
+			try {
+				tested.init("Test mapper", client, settings);
+				Assert.fail("SettingsException must be thrown");
+			} catch (SettingsException e) {
+				Assert.assertEquals("'settings/circuit_breaker' configuration value for 'Test mapper' preprocessor must be an object",
+						e.getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void init_idxBatch() {
+		Client client = Mockito.mock(Client.class);
+		ESLookupValuePreprocessor tested = new ESLookupValuePreprocessor();
+
+		Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+		tested.init("Test mapper", client, settings);
+		Assert.assertNull(tested.getBatchSizer());
+
+		Map<String, Object> batch = new HashMap<String, Object>();
+		settings.put(ESLookupValuePreprocessor.CFG_idx_batch, batch);
+		tested.init("Test mapper", client, settings);
+		Assert.assertEquals(10, tested.getBatchSizer().getMinSize());
+		Assert.assertEquals(500, tested.getBatchSizer().getMaxSize());
+		Assert.assertEquals(200, tested.getBatchSizer().getTargetLatencyMillis());
+
+		batch.put(ESLookupValuePreprocessor.CFG_idx_batch_min_size, 1000);
+		batch.put(ESLookupValuePreprocessor.CFG_idx_batch_target_latency, "50");
+		tested.init("Test mapper", client, settings);
+		Assert.assertEquals(1000, tested.getBatchSizer().getMinSize());
+		Assert.assertEquals(1000, tested.getBatchSizer().getMaxSize());
+		Assert.assertEquals(50, tested.getBatchSizer().getTargetLatencyMillis());
+
+		batch.put(ESLookupValuePreprocessor.CFG_idx_batch_max_size, 10);
+		try {
+			tested.init("Test mapper", client, settings);
+			Assert.fail("SettingsException must be thrown");
+		} catch (SettingsException e) {
+			Assert.assertEquals(
+					"Invalid 'settings/idx_batch' configuration for 'Test mapper' preprocessor: max size must not be lower than min size",
+					e.getMessage());
+		}
+		settings.put(ESLookupValuePreprocessor.CFG_idx_batch, "aa");
+		try {
+			tested.init("Test mapper", client, settings);
+			Assert.fail("SettingsException must be thrown");
+		} catch (SettingsException e) {
+			Assert.assertEquals("'settings/idx_batch' configuration value for 'Test mapper' preprocessor must be an object",
+					e.getMessage());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void preprocessData_idxBatch() {
+		Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+		settings.put(ESLookupValuePreprocessor.CFG_idx_search_mode, "id");
+		Map<String, Object> batch = new HashMap<String, Object>();
+		batch.put(ESLookupValuePreprocessor.CFG_idx_batch_min_size, 2);
+		batch.put(ESLookupValuePreprocessor.CFG_idx_batch_target_latency, 100000);
+		settings.put(ESLookupValuePreprocessor.CFG_idx_batch, batch);
+		ESLookupValuePreprocessor tested = new ESLookupValuePreprocessor();
+		tested.init("Test mapper", Mockito.mock(Client.class), settings);
+		LookupBackend backend = Mockito.mock(LookupBackend.class);
+		Mockito.when(
+				backend.lookupByIds(Mockito.anyCollection(), Mockito.anyString(), Mockito.any(PreprocessChainContext.class)))
+				.thenReturn(new HashMap<String, LookupResult>());
+		Mockito.when(
+				backend.lookup(Mockito.anyString(), Mockito.any(), Mockito.anyString(),
+						Mockito.any(PreprocessChainContext.class))).thenReturn(LookupResult.NOT_FOUND);
+		tested.setLookupBackend(backend);
+
+		Map<String, Object> values = new HashMap<String, Object>();
+		StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, Arrays.asList("a", "b", "c", "d", "e"));
+		tested.preprocessData(values, null);
+
+		// first batch has min size, second one is bigger as first one was fast
+		Mockito.verify(backend).lookupByIds(Arrays.asList("a", "b"), null, null);
+		Mockito.verify(backend).lookupByIds(Arrays.asList("c", "d", "e"), null, null);
+		Assert.assertEquals(4, tested.getBatchSizer().getBatchSize());
+	}
+
+	@Test
+	public void preprocessData_circuitBreaker() throws Exception {
+		try {
+			Client client = prepareESClientForUnitTest();
+
+			Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+			Map<String, Object> cb = new HashMap<String, Object>();
+			cb.put(ESLookupValuePreprocessor.CFG_circuit_breaker_minimum_calls, 2);
+			cb.put(ESLookupValuePreprocessor.CFG_circuit_breaker_probe_interval, 100000);
+			settings.put(ESLookupValuePreprocessor.CFG_circuit_breaker, cb);
+			ESLookupValuePreprocessor tested = new ESLookupValuePreprocessor();
+			tested.init("Test mapper", client, settings);
+
+			// case - lookup index is missing so lookups fail and breaker is opened
+			for (int i = 0; i < 2; i++) {
+				Map<String, Object> values = new HashMap<String, Object>();
+				StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, "AAA");
+				tested.preprocessData(values, null);
+				Assert.assertEquals("defval", (String) XContentMapValues.extractValue("project.code", values));
+			}
+			Assert.assertEquals(LookupCircuitBreaker.State.OPEN, tested.getCircuitBreaker().getState());
+
+			// case - index exists now but breaker is open so default value is used without lookup
+			prepareTestData(client, tested);
+			{
+				Map<String, Object> values = new HashMap<String, Object>();
+				StructureUtils.putValueIntoMapOfMaps(values, tested.sourceField, "ORG");
+				PreprocessChainContextImpl chainContext = new PreprocessChainContextImpl();
+				tested.preprocessData(values, chainContext);
+				Assert.assertEquals("defval", (String) XContentMapValues.extractValue("project.code", values));
+				Assert.assertEquals(1, chainContext.getWarnings().size());
+				Assert.assertEquals(
+						"Lookup for value 'ORG' not performed because lookup circuit breaker is open, so default value handling is used.",
+						chainContext.getWarnings().get(0).getWarningMessage());
+			}
+		} finally {
+			finalizeESClientForUnitTest();
+		}
+	}
+
 	@Test
 	public void preprocessData_nobases_sourceField_idx_search_field_fallback() throws Exception {
 		try {
@@ -461,8 +1286,9 @@ public class ESLookupValuePreprocessorTest extends ESRealClientTestBase {
 				tested.init("Test mapper", client, settings);
 
 				Map<String, Object> values = new HashMap<String, Object>();
-				tested.resultMapping.get(0)
-						.put(ESLookupValuePreprocessor.CFG_value_default, "unknown {field} for {__original}");
+				((List<Map<String, Object>>) settings.get(ESLookupValuePreprocessor.CFG_result_mapping)).get(0).put(
+						ESLookupValuePreprocessor.CFG_value_default, "unknown {field} for {__original}");
+				tested.init("Test mapper", client, settings);
 				StructureUtils.putValueIntoMapOfMaps(values, testInputField, "BBB");
 				StructureUtils.putValueIntoMapOfMaps(values, "field", "jj");
 				tested.preprocessData(values, null);
@@ -0,0 +1,205 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit test for {@link FieldPresenceFilter} and its use in {@link PreprocessChain}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class FieldPresenceFilterTest {
+
+	@Test
+	public void filter() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(new CopyPreprocessorMock("c0", "author.html", "author.text"));
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("a1", "title", "t"));
+		preprocs.add(new CopyPreprocessorMock("c2", "title", "title_short"));
+		preprocs.add(Mockito.mock(StructuredContentPreprocessor.class));
+		preprocs.add(new CopyPreprocessorMock("c4", "author.text", "summary"));
+		FieldPresenceFilter tested = new FieldPresenceFilter(preprocs);
+		Assert.assertTrue(tested.isActive());
+		Assert.assertEquals(Arrays.asList("author", "title"), tested.getTrackedFields());
+
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("description", "d");
+		data.put("author", null);
+		long presence = tested.computePresence(data);
+		Assert.assertEquals(0, presence);
+		Assert.assertTrue(tested.canSkip(0, presence));
+		Assert.assertFalse(tested.canSkip(1, presence));
+		Assert.assertTrue(tested.canSkip(2, presence));
+		Assert.assertFalse(tested.canSkip(3, presence));
+
+		// written field is present then
+		presence = tested.updatePresence(1, presence, data, data);
+		Assert.assertEquals(2, presence);
+		Assert.assertFalse(tested.canSkip(2, presence));
+		Assert.assertTrue(tested.canSkip(4, presence));
+
+		// undeclared written fields or other data returned lead to recomputation
+		data.put("author", new HashMap<String, Object>());
+		Assert.assertEquals(1, tested.updatePresence(3, 0, data, data));
+		data.put("title", "t");
+		Assert.assertEquals(3, tested.updatePresence(2, presence, new HashMap<String, Object>(), data));
+		Assert.assertEquals(3, tested.computePresence(data));
+
+		// nothing to skip
+		Assert.assertFalse(new FieldPresenceFilter(Arrays.asList(preprocs.get(1), preprocs.get(3))).isActive());
+	}
+
+	@Test
+	public void filter_tooManyFields() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		for (int i = 0; i < FieldPresenceFilter.MAX_TRACKED_FIELDS; i++) {
+			preprocs.add(new CopyPreprocessorMock("c" + i, "f" + i, "t" + i));
+		}
+		preprocs.add(new CopyPreprocessorMock("over", "other", "t"));
+		FieldPresenceFilter tested = new FieldPresenceFilter(preprocs);
+		Assert.assertEquals(FieldPresenceFilter.MAX_TRACKED_FIELDS, tested.getTrackedFields().size());
+		long presence = tested.computePresence(new HashMap<String, Object>());
+		Assert.assertTrue(tested.canSkip(FieldPresenceFilter.MAX_TRACKED_FIELDS - 1, presence));
+		Assert.assertFalse(tested.canSkip(FieldPresenceFilter.MAX_TRACKED_FIELDS, presence));
+	}
+
+	@Test
+	public void chain_skipAbsentInputs() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		CopyPreprocessorMock c0 = new CopyPreprocessorMock("c0", "html", "text");
+		CopyPreprocessorMock c1 = new CopyPreprocessorMock("c1", "text", "summary");
+		preprocs.add(c0);
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("a2", "title", "t"));
+		preprocs.add(c1);
+		PreprocessChain tested = new PreprocessChain(preprocs);
+		Assert.assertTrue(tested.isSkipAbsentInputs());
+		Assert.assertNotNull(tested.getPresenceFilter());
+
+		Map<String, Object> data = tested.preprocessData(new HashMap<String, Object>(), null);
+		Assert.assertEquals("t", data.get("title"));
+		Assert.assertEquals(0, c0.calls);
+		Assert.assertEquals(0, c1.calls);
+
+		// input written by previous preprocessor
+		data = new HashMap<String, Object>();
+		data.put("html", "h");
+		data = tested.preprocessData(data, null);
+		Assert.assertEquals("h", data.get("summary"));
+		Assert.assertEquals(1, c0.calls);
+		Assert.assertEquals(1, c1.calls);
+
+		// optimized order and concurrent run
+		tested.setOptimizeOrder(true);
+		tested.preprocessData(new HashMap<String, Object>(), null);
+		tested.setOptimizeOrder(false);
+		tested.setParallelExecutor(PreprocessChain.getSharedParallelExecutor());
+		tested.preprocessData(new HashMap<String, Object>(), null);
+		Assert.assertEquals(1, c0.calls);
+		Assert.assertEquals(1, c1.calls);
+		tested.setParallelExecutor(null);
+
+		// disabled
+		tested.setSkipAbsentInputs(false);
+		tested.preprocessData(new HashMap<String, Object>(), null);
+		Assert.assertEquals(2, c0.calls);
+		Assert.assertEquals(2, c1.calls);
+	}
+
+	@Test
+	public void chain_skipAbsentInputs_sameResult() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(createBuiltIn(new StripHtmlPreprocessor(), "s", StripHtmlPreprocessor.CFG_SOURCE_FIELD, "html",
+				StripHtmlPreprocessor.CFG_TARGET_FIELD, "text"));
+		preprocs.add(createBuiltIn(new TrimStringValuePreprocessor(), "t", TrimStringValuePreprocessor.CFG_SOURCE_FIELD,
+				"text", TrimStringValuePreprocessor.CFG_TARGET_FIELD, "text_short", TrimStringValuePreprocessor.CFG_MAX_SIZE,
+				5));
+		preprocs.add(createBuiltIn(new LongToTimestampValuePreprocessor(), "l",
+				LongToTimestampValuePreprocessor.CFG_SOURCE_FIELD, "updated", LongToTimestampValuePreprocessor.CFG_TARGET_FIELD,
+				"updated_ts"));
+		preprocs.add(createBuiltIn(new RemoveMultipleFieldsPreprocessor(), "r", RemoveMultipleFieldsPreprocessor.CFG_FIELDS,
+				Arrays.asList("html", "tmp")));
+		PreprocessChain tested = new PreprocessChain(preprocs);
+		Assert.assertEquals(Arrays.asList("html", "text", "updated", "tmp"), tested.getPresenceFilter().getTrackedFields());
+		PreprocessChain notSkipping = new PreprocessChain(preprocs);
+		notSkipping.setSkipAbsentInputs(false);
+
+		for (int i = 0; i < 4; i++) {
+			Map<String, Object> data = new HashMap<String, Object>();
+			if ((i & 1) > 0)
+				data.put("html", "<b>Hello</b> world");
+			if ((i & 2) > 0)
+				data.put("updated", 1000L);
+			Map<String, Object> expected = new HashMap<String, Object>(data);
+			Assert.assertEquals(notSkipping.preprocessData(expected, null), tested.preprocessData(data, null));
+		}
+	}
+
+	private static StructuredContentPreprocessor createBuiltIn(StructuredContentPreprocessor preproc, String name,
+			Object... settingsKeyValues) {
+		Map<String, Object> settings = new HashMap<String, Object>();
+		for (int i = 0; i < settingsKeyValues.length; i += 2) {
+			settings.put((String) settingsKeyValues[i], settingsKeyValues[i + 1]);
+		}
+		preproc.init(name, null, settings);
+		return preproc;
+	}
+
+	/**
+	 * Preprocessor copying value of source field into target field, which does nothing if source field is not present.
+	 */
+	protected static class CopyPreprocessorMock extends StructuredContentPreprocessorBase {
+
+		String sourceField;
+		String targetField;
+		int calls = 0;
+
+		protected CopyPreprocessorMock(String name, String sourceField, String targetField) {
+			this.name = name;
+			this.sourceField = sourceField;
+			this.targetField = targetField;
+		}
+
+		@Override
+		public void init(Map<String, Object> settings) {
+		}
+
+		@Override
+		public Map<String, Object> preprocessData(Map<String, Object> data, PreprocessChainContext chainContext) {
+			calls++;
+			Object v = data.get(sourceField);
+			if (v != null)
+				data.put(targetField, v);
+			return data;
+		}
+
+		@Override
+		public Set<String> getReadFields() {
+			return toFieldSet(sourceField);
+		}
+
+		@Override
+		public Set<String> getWrittenFields() {
+			return toFieldSet(targetField);
+		}
+
+		@Override
+		public Set<String> getRequiredInputFields() {
+			return toFieldSet(sourceField);
+		}
+	}
+
+}
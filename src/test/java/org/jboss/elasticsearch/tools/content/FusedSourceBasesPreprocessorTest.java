@@ -0,0 +1,206 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit test for {@link FusedSourceBasesPreprocessor} and its use in {@link PreprocessChain}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class FusedSourceBasesPreprocessorTest {
+
+	private static final List<String> BASES = Arrays.asList("comments", "author");
+
+	@Test
+	public void constructor_invalid() {
+		try {
+			new FusedSourceBasesPreprocessor(null);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("preprocessors must be defined", e.getMessage());
+		}
+		try {
+			new FusedSourceBasesPreprocessor(Arrays.asList(createStripHtml("s1", BASES),
+					createStripHtml("s2", Arrays.asList("comments"))));
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("Preprocessor 's2' must have the same source_bases as other preprocessors in group",
+					e.getMessage());
+		}
+	}
+
+	@Test
+	public void canBeFused() {
+		List<StructuredContentPreprocessor> group = new ArrayList<StructuredContentPreprocessor>();
+		Assert.assertTrue(FusedSourceBasesPreprocessor.canBeFused(group, createStripHtml("s1", BASES)));
+		group.add(createStripHtml("s1", BASES));
+		Assert.assertTrue(FusedSourceBasesPreprocessor.canBeFused(group, createTrim("t1", BASES)));
+		// different bases
+		Assert.assertFalse(FusedSourceBasesPreprocessor.canBeFused(group, createTrim("t1", Arrays.asList("comments"))));
+		// no bases
+		Assert.assertFalse(FusedSourceBasesPreprocessor.canBeFused(group, createTrim("t1", null)));
+		// nested bases
+		Assert.assertFalse(FusedSourceBasesPreprocessor.canBeFused(new ArrayList<StructuredContentPreprocessor>(),
+				createTrim("t1", Arrays.asList("comments", "comments.replies"))));
+		// not source_bases preprocessor
+		Assert.assertFalse(FusedSourceBasesPreprocessor.canBeFused(group,
+				PreprocessChainTest.createAddValuePreprocessor("a", "comments", "v")));
+		Assert.assertFalse(FusedSourceBasesPreprocessor.canBeFused(group, new LazyInitPreprocessor(createTrim("t1", BASES))));
+
+		// checked date is read from the root of data, where it is written by strip html for comments
+		IsDateInRangePreprocessor range = createDateInRange("r1", BASES, "comments.text");
+		Assert.assertTrue(range.getReadFields().contains("comments.text"));
+		Assert.assertEquals(Collections.singleton("comments.text"), range.getRootReadFields());
+		Assert.assertFalse(FusedSourceBasesPreprocessor.canBeFused(group, range));
+		Assert.assertTrue(FusedSourceBasesPreprocessor.canBeFused(group, createDateInRange("r1", BASES, "checked")));
+	}
+
+	@Test
+	public void chain_fused() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("a1", "label", "v"));
+		preprocs.add(createStripHtml("s1", BASES));
+		preprocs.add(createTrim("t1", BASES));
+		preprocs.add(createDateInRange("r1", BASES, "checked"));
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("a2", "label2", "v"));
+		preprocs.add(createTrim("t2", BASES));
+		PreprocessChain tested = new PreprocessChain(preprocs);
+		Assert.assertTrue(tested.isFuseSourceBases());
+
+		List<StructuredContentPreprocessor> fused = tested.getFusedPreprocessors();
+		Assert.assertEquals(4, fused.size());
+		Assert.assertSame(preprocs.get(0), fused.get(0));
+		FusedSourceBasesPreprocessor group = (FusedSourceBasesPreprocessor) fused.get(1);
+		Assert.assertEquals("s1, t1, r1", group.getName());
+		Assert.assertEquals(BASES, group.getSourceBases());
+		Assert.assertEquals(3, group.getPreprocessors().size());
+		Assert.assertEquals(PreprocessorCostHint.COST_MODERATE * 2 + PreprocessorCostHint.COST_CHEAP,
+				group.getCostHint());
+		Assert.assertFalse(group.mayRejectData());
+		Assert.assertTrue(group.getReadFields().contains("checked"));
+		Assert.assertTrue(group.getWrittenFields().contains("author.text_short"));
+		Assert.assertSame(preprocs.get(5), fused.get(3));
+
+		PreprocessChainContextImpl context = new PreprocessChainContextImpl();
+		Map<String, Object> data = tested.preprocessData(createData(), context);
+
+		PreprocessChain notFused = new PreprocessChain(preprocs);
+		notFused.setFuseSourceBases(false);
+		PreprocessChainContextImpl expectedContext = new PreprocessChainContextImpl();
+		Map<String, Object> expected = notFused.preprocessData(createData(), expectedContext);
+
+		Assert.assertEquals(expected, data);
+		Assert.assertEquals("Hello world", ((Map<?, ?>) ((List<?>) data.get("comments")).get(0)).get("text"));
+		Assert.assertNotNull(((Map<?, ?>) ((List<?>) data.get("comments")).get(1)).get("text_short"));
+		Assert.assertEquals(Boolean.TRUE, ((Map<?, ?>) data.get("author")).get("in_range"));
+		// bad comment value is reported by each preprocessor
+		Assert.assertEquals(4, context.getWarnings().size());
+		Assert.assertEquals(expectedContext.getWarnings().size(), context.getWarnings().size());
+	}
+
+	@Test
+	public void preprocessData_parallel() {
+		List<StructuredContentPreprocessorWithSourceBasesBase<?>> preprocs = new ArrayList<StructuredContentPreprocessorWithSourceBasesBase<?>>();
+		preprocs.add(createStripHtml("s1", BASES));
+		preprocs.add(createTrim("t1", BASES));
+		FusedSourceBasesPreprocessor sequential = new FusedSourceBasesPreprocessor(preprocs);
+		Assert.assertEquals(0, sequential.getParallelThreshold());
+
+		preprocs.set(0, createStripHtml("s1", BASES));
+		preprocs.get(0).parallelThreshold = 100;
+		// parallel processing must be enabled for all preprocessors
+		Assert.assertEquals(0, new FusedSourceBasesPreprocessor(preprocs).getParallelThreshold());
+		preprocs.get(1).parallelThreshold = 200;
+		FusedSourceBasesPreprocessor tested = new FusedSourceBasesPreprocessor(preprocs);
+		Assert.assertEquals(100, tested.getParallelThreshold());
+
+		PreprocessChainContextImpl expectedContext = new PreprocessChainContextImpl();
+		Map<String, Object> expected = sequential.preprocessData(
+				StructuredContentPreprocessorWithSourceBasesBaseTest.createDataWithComments(3000), expectedContext);
+		PreprocessChainContextImpl context = new PreprocessChainContextImpl();
+		Map<String, Object> data = tested.preprocessData(
+				StructuredContentPreprocessorWithSourceBasesBaseTest.createDataWithComments(3000), context);
+		Assert.assertEquals(expected, data);
+		Assert.assertEquals(2, context.getWarnings().size());
+	}
+
+	@Test
+	public void chain_nothingToFuse() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(createStripHtml("s1", BASES));
+		preprocs.add(Mockito.mock(StructuredContentPreprocessor.class));
+		preprocs.add(createTrim("t1", BASES));
+		PreprocessChain tested = new PreprocessChain(preprocs);
+		Assert.assertSame(tested.getPreprocessors(), tested.getFusedPreprocessors());
+	}
+
+	private static Map<String, Object> createData() {
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("checked", "2014-10-19T10:00:00.000Z");
+		List<Object> comments = new ArrayList<Object>();
+		Map<String, Object> comment = new HashMap<String, Object>();
+		comment.put("html", "<b>Hello</b> world");
+		comment.put("from", "2014-10-01T10:00:00.000Z");
+		comments.add(comment);
+		comment = new HashMap<String, Object>();
+		comment.put("html", "<i>Second</i>");
+		comments.add(comment);
+		comments.add("bad value");
+		data.put("comments", comments);
+		Map<String, Object> author = new HashMap<String, Object>();
+		author.put("html", "<p>Author</p>");
+		author.put("from", "2014-10-01T10:00:00.000Z");
+		data.put("author", author);
+		return data;
+	}
+
+	private static StripHtmlPreprocessor createStripHtml(String name, List<String> bases) {
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put(StripHtmlPreprocessor.CFG_SOURCE_FIELD, "html");
+		settings.put(StripHtmlPreprocessor.CFG_TARGET_FIELD, "text");
+		if (bases != null)
+			settings.put(StructuredContentPreprocessorWithSourceBasesBase.CFG_source_bases, bases);
+		StripHtmlPreprocessor ret = new StripHtmlPreprocessor();
+		ret.init(name, null, settings);
+		return ret;
+	}
+
+	private static TrimStringValuePreprocessor createTrim(String name, List<String> bases) {
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put(TrimStringValuePreprocessor.CFG_SOURCE_FIELD, "text");
+		settings.put(TrimStringValuePreprocessor.CFG_TARGET_FIELD, "text_short");
+		settings.put(TrimStringValuePreprocessor.CFG_MAX_SIZE, 5);
+		if (bases != null)
+			settings.put(StructuredContentPreprocessorWithSourceBasesBase.CFG_source_bases, bases);
+		TrimStringValuePreprocessor ret = new TrimStringValuePreprocessor();
+		ret.init(name, null, settings);
+		return ret;
+	}
+
+	private static IsDateInRangePreprocessor createDateInRange(String name, List<String> bases, String checkedField) {
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put(IsDateInRangePreprocessor.CFG_LEFT_DATE, "from");
+		settings.put(IsDateInRangePreprocessor.CFG_CHECKED_DATE, checkedField);
+		settings.put(IsDateInRangePreprocessor.CFG_RESULT_FIELD, "in_range");
+		settings.put(StructuredContentPreprocessorWithSourceBasesBase.CFG_source_bases, bases);
+		IsDateInRangePreprocessor ret = new IsDateInRangePreprocessor();
+		ret.init(name, null, settings);
+		return ret;
+	}
+
+}
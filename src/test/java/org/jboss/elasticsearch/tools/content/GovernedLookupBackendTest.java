@@ -0,0 +1,71 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.Collections;
+
+import junit.framework.Assert;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit test for {@link GovernedLookupBackend}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class GovernedLookupBackendTest {
+
+	@Test
+	public void lookup() {
+		LookupBackend backend = Mockito.mock(LookupBackend.class);
+		LookupResult r = new LookupResult(1, null);
+		Mockito.when(backend.lookup("f", "v", null, null)).thenReturn(r);
+		Mockito.when(backend.lookup("f", "err", null, null)).thenThrow(new ElasticsearchException("failed"));
+		LookupConcurrencyGovernor governor = new LookupConcurrencyGovernor("test", 1);
+		GovernedLookupBackend tested = new GovernedLookupBackend(backend, governor, 10);
+		Assert.assertSame(backend, tested.getDelegate());
+		Assert.assertSame(governor, tested.getGovernor());
+		Assert.assertEquals(10, tested.getQueueTimeoutMillis());
+
+		Assert.assertSame(r, tested.lookup("f", "v", null, null));
+		tested.lookupCombined(Collections.singletonList("f"), "v", null, null);
+		tested.lookupByIds(Collections.singletonList("id"), null, null);
+		Assert.assertEquals(0, governor.getActiveCount());
+		Assert.assertEquals(3, governor.getAcquiredCount());
+
+		// case - permit released on exception
+		try {
+			tested.lookup("f", "err", null, null);
+			Assert.fail("ElasticsearchException expected");
+		} catch (ElasticsearchException e) {
+			Assert.assertEquals(0, governor.getActiveCount());
+		}
+
+		// case - no permit available
+		governor.acquire(0);
+		try {
+			tested.lookup("f", "v", null, null);
+			Assert.fail("ElasticsearchTimeoutException expected");
+		} catch (ElasticsearchTimeoutException e) {
+			Assert.assertEquals("No permit acquired from lookup concurrency governor 'test' in 10ms", e.getMessage());
+		}
+
+		// case - waiting bounded by time budget
+		DeadlineAwareChainContext chainContext = Mockito.mock(DeadlineAwareChainContext.class);
+		Mockito.when(chainContext.getRemainingTimeMillis()).thenReturn(0l);
+		try {
+			tested.lookup("f", "v", null, chainContext);
+			Assert.fail("ElasticsearchTimeoutException expected");
+		} catch (ElasticsearchTimeoutException e) {
+			Assert.assertEquals("No permit acquired from lookup concurrency governor 'test' in 0ms", e.getMessage());
+		}
+		Mockito.verify(backend, Mockito.times(1)).lookup("f", "v", null, null);
+	}
+
+}
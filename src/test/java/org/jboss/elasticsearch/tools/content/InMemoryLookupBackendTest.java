@@ -0,0 +1,130 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link InMemoryLookupBackend}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class InMemoryLookupBackendTest {
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void lookup() throws Exception {
+		List<String> fields = new ArrayList<String>();
+		fields.add("jbossorg_jira_project");
+		InMemoryLookupBackend tested = new InMemoryLookupBackend(
+				InMemoryLookupBackend.loadJsonFile(getClasspathFile("/ESLookupValue_lookupData.json")), fields, new String[] {
+						"code", "name" }, false, null);
+		Assert.assertEquals(3, tested.getDocuments().size());
+
+		// case - found by field value
+		LookupResult result = tested.lookup("jbossorg_jira_project", "ISPN", null, null);
+		Assert.assertEquals(1, result.getTotalHits());
+		Assert.assertEquals("infinispan", result.getFieldValue("code"));
+		Assert.assertEquals("Infinispan", result.getFieldValue("name"));
+		Assert.assertFalse(result.hasField("_source"));
+
+		// case - found by one of list values
+		result = tested.lookup("jbossorg_jira_project", "ORGA", null, null);
+		Assert.assertEquals(1, result.getTotalHits());
+		Assert.assertEquals("jbossorg", result.getFieldValue("code"));
+
+		// case - more documents found, first one used, missing result field
+		result = tested.lookup("jbossorg_jira_project", "ES2", null, null);
+		Assert.assertEquals(1, result.getTotalHits());
+		Assert.assertFalse(result.hasField("name"));
+		result = tested.lookup("jbossorg_jira_project", "ES", null, null);
+		Assert.assertEquals(2, result.getTotalHits());
+		Assert.assertEquals("jbossorg", result.getFieldValue("code"));
+
+		// case - not found, values are not analyzed
+		Assert.assertFalse(tested.lookup("jbossorg_jira_project", "org", null, null).isFound());
+		Assert.assertFalse(tested.lookup("unknown_field", "ORG", null, null).isFound());
+
+		// case - lookup by ids
+		result = tested.lookup("_id", "data3", null, null);
+		Assert.assertEquals("elasticsearch", result.getFieldValue("code"));
+		List<String> ids = new ArrayList<String>();
+		ids.add("data1");
+		ids.add("unknown");
+		Map<String, LookupResult> results = tested.lookupByIds(ids, null, null);
+		Assert.assertEquals(2, results.size());
+		Assert.assertEquals("jbossorg", results.get("data1").getFieldValue("code"));
+		Assert.assertFalse(results.get("unknown").isFound());
+
+		// case - combined lookup
+		fields.add("code");
+		results = tested.lookupCombined(fields, "ES", null, null);
+		Assert.assertEquals(2, results.get("jbossorg_jira_project").getTotalHits());
+		Assert.assertFalse(results.get("code").isFound());
+
+		// case - filtered source
+		tested = new InMemoryLookupBackend(tested.getDocuments(), null, null, true, new String[] { "name" });
+		result = tested.lookup("_id", "data1", null, null);
+		Map<String, Object> source = (Map<String, Object>) result.getFieldValue("_source");
+		Assert.assertEquals(1, source.size());
+		Assert.assertEquals("jboss.org", source.get("name"));
+	}
+
+	@Test
+	public void loadJsonFile_invalid() throws Exception {
+		try {
+			InMemoryLookupBackend.loadJsonFile(getClasspathFile("/ESLookupValue_lookupData.csv"));
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+		try {
+			InMemoryLookupBackend.loadJsonFile(getClasspathFile("/ESLookupValue_preprocessData-nobases.json"));
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage().startsWith("Document with id 'index_name' in file"));
+		}
+	}
+
+	@Test
+	public void loadCsvFile() throws Exception {
+		Map<String, Map<String, Object>> docs = InMemoryLookupBackend
+				.loadCsvFile(getClasspathFile("/ESLookupValue_lookupData.csv"));
+		Assert.assertEquals(3, docs.size());
+		Assert.assertEquals("jbossorg", docs.get("data1").get("code"));
+		Assert.assertEquals("ORG", docs.get("data1").get("jbossorg_jira_project"));
+		Assert.assertFalse(docs.get("data1").containsKey("_id"));
+		Assert.assertEquals("Infinispan, \"the\" grid", docs.get("data2").get("name"));
+		Assert.assertFalse(docs.get("data3").containsKey("name"));
+	}
+
+	@Test
+	public void parseCsv() throws Exception {
+		List<List<String>> rows = InMemoryLookupBackend.parseCsv(new StringReader("a,b\n1,\"x\ny\"\n\n2,"));
+		Assert.assertEquals(4, rows.size());
+		Assert.assertEquals(2, rows.get(0).size());
+		Assert.assertEquals("x\ny", rows.get(1).get(1));
+		Assert.assertEquals(1, rows.get(2).size());
+		Assert.assertEquals("", rows.get(2).get(0));
+		Assert.assertEquals("2", rows.get(3).get(0));
+		Assert.assertEquals("", rows.get(3).get(1));
+
+		Assert.assertTrue(InMemoryLookupBackend.parseCsv(new StringReader("")).isEmpty());
+	}
+
+	protected static File getClasspathFile(String path) throws Exception {
+		return new File(InMemoryLookupBackendTest.class.getResource(path).toURI());
+	}
+
+}
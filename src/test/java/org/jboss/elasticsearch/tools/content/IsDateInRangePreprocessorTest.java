@@ -6,6 +6,7 @@
 package org.jboss.elasticsearch.tools.content;
 
 import static org.jboss.elasticsearch.tools.content.IsDateInRangePreprocessor.CFG_CHECKED_DATE;
+import static org.jboss.elasticsearch.tools.content.IsDateInRangePreprocessor.CFG_CHECKED_DATE_FORMAT;
 import static org.jboss.elasticsearch.tools.content.IsDateInRangePreprocessor.CFG_DEFAULT_DATE_FORMAT;
 import static org.jboss.elasticsearch.tools.content.IsDateInRangePreprocessor.CFG_LEFT_DATE;
 import static org.jboss.elasticsearch.tools.content.IsDateInRangePreprocessor.CFG_RESULT_FIELD;
@@ -75,8 +76,19 @@ public class IsDateInRangePreprocessorTest {
 					e.getMessage());
 		}
 
-		// case - no more mandatory setting fields
+		// case - invalid date format
 		settings.put(CFG_RIGHT_DATE, "right_date");
+		settings.put(CFG_CHECKED_DATE_FORMAT, "yyyy-MM-dd'T");
+		try {
+			tested.init("Test mapper", null, settings);
+			Assert.fail("SettingsException must be thrown");
+		} catch (SettingsException e) {
+			Assert.assertTrue(e.getMessage().startsWith(
+					"'settings/" + CFG_CHECKED_DATE_FORMAT + "' configuration value for 'Test mapper' preprocessor is invalid: "));
+		}
+		settings.remove(CFG_CHECKED_DATE_FORMAT);
+
+		// case - no more mandatory setting fields
 		tested.init("Test mapper", null, settings); 
 	}
 
@@ -0,0 +1,76 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.SettingsException;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit test for {@link LazyInitPreprocessor}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class LazyInitPreprocessorTest {
+
+	@Test
+	public void preprocessData() throws Exception {
+		StructuredContentPreprocessor delegate = Mockito.mock(StructuredContentPreprocessor.class,
+				Mockito.withSettings().extraInterfaces(Closeable.class));
+		Client client = Mockito.mock(Client.class);
+		Map<String, Object> settings = new HashMap<String, Object>();
+		Map<String, Object> data = new HashMap<String, Object>();
+		Mockito.when(delegate.preprocessData(data, null)).thenReturn(data);
+
+		LazyInitPreprocessor tested = new LazyInitPreprocessor(delegate);
+		tested.init("lazy", client, settings);
+		Assert.assertEquals("lazy", tested.getName());
+		Assert.assertSame(delegate, tested.getDelegate());
+		Assert.assertFalse(tested.isInitialized());
+		Mockito.verifyZeroInteractions(delegate);
+
+		// case - not initialized is not closed
+		tested.close();
+		Mockito.verifyZeroInteractions(delegate);
+
+		// case - initialized on first use only
+		Assert.assertSame(data, tested.preprocessData(data));
+		Assert.assertSame(data, tested.preprocessData(data, null));
+		Assert.assertTrue(tested.isInitialized());
+		Mockito.verify(delegate, Mockito.times(1)).init("lazy", client, settings);
+		Mockito.verify(delegate, Mockito.times(2)).preprocessData(data, null);
+
+		tested.close();
+		Mockito.verify((Closeable) delegate).close();
+	}
+
+	@Test
+	public void preprocessData_initError() {
+		StructuredContentPreprocessor delegate = Mockito.mock(StructuredContentPreprocessor.class);
+		Mockito.doThrow(new SettingsException("bad config")).when(delegate)
+				.init(Mockito.anyString(), Mockito.any(Client.class), Mockito.anyMap());
+
+		LazyInitPreprocessor tested = new LazyInitPreprocessor(delegate);
+		tested.init("lazy", null, null);
+		for (int i = 0; i < 2; i++) {
+			try {
+				tested.preprocessData(new HashMap<String, Object>(), null);
+				Assert.fail("SettingsException expected");
+			} catch (SettingsException e) {
+				Assert.assertEquals("bad config", e.getMessage());
+			}
+		}
+		Assert.assertFalse(tested.isInitialized());
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link LookupCacheFile}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class LookupCacheFileTest {
+
+	@Test
+	public void appendAndRead() throws Exception {
+		File file = createTempFile();
+		LookupCacheFile tested = new LookupCacheFile(file, "cfg", 1000);
+		Assert.assertEquals(file, tested.getFile());
+		Assert.assertEquals("cfg", tested.getConfigVersion());
+		Assert.assertEquals(1000, tested.getCapacity());
+		Assert.assertTrue(tested.readAll().isEmpty());
+
+		Map<String, Object> fields = new HashMap<String, Object>();
+		fields.put("name", "Jan");
+		fields.put("empty", null);
+		Map<String, LookupResult> combined = new HashMap<String, LookupResult>();
+		combined.put("f1", new LookupResult(2, fields));
+		combined.put("f2", LookupResult.NOT_FOUND);
+		Assert.assertTrue(tested.append(Arrays.<Object> asList("f", 10, null), 5, new LookupResult(1, fields)));
+		Assert.assertTrue(tested.append(Arrays.<Object> asList(Arrays.asList("f1", "f2"), "v", "r"), 6, combined));
+		tested.close();
+
+		tested = new LookupCacheFile(file, "cfg", 1000);
+		List<LookupCacheFile.Record> records = tested.readAll();
+		Assert.assertEquals(2, records.size());
+		Assert.assertEquals(Arrays.<Object> asList("f", 10, null), records.get(0).key);
+		Assert.assertEquals(5, records.get(0).loadedAt);
+		LookupResult r = (LookupResult) records.get(0).value;
+		Assert.assertEquals(1, r.getTotalHits());
+		Assert.assertEquals("Jan", r.getFieldValue("name"));
+		Assert.assertTrue(r.hasField("empty"));
+		Assert.assertEquals(Arrays.<Object> asList(Arrays.asList("f1", "f2"), "v", "r"), records.get(1).key);
+		@SuppressWarnings("unchecked")
+		Map<String, LookupResult> c = (Map<String, LookupResult>) records.get(1).value;
+		Assert.assertEquals(2, c.get("f1").getTotalHits());
+		Assert.assertSame(LookupResult.NOT_FOUND, c.get("f2"));
+
+		// case - appended after records read
+		Assert.assertTrue(tested.append(Arrays.<Object> asList("f", "v3", null), 7, LookupResult.NOT_FOUND));
+		Assert.assertEquals(3, tested.readAll().size());
+
+		// case - not enough space
+		Assert.assertFalse(tested.append(Arrays.<Object> asList("f", "v4", null), 8, new LookupResult(1,
+				Collections.<String, Object> singletonMap("long", new String(new char[1000])))));
+		Assert.assertEquals(3, tested.readAll().size());
+
+		// case - reset
+		tested.reset();
+		Assert.assertTrue(tested.readAll().isEmpty());
+		tested.close();
+	}
+
+	@Test
+	public void incompatibleFile() throws Exception {
+		File file = createTempFile();
+		LookupCacheFile tested = new LookupCacheFile(file, "cfg", 1000);
+		tested.append(Arrays.<Object> asList("f", "v", null), 5, LookupResult.NOT_FOUND);
+		tested.close();
+
+		// case - other configuration version
+		tested = new LookupCacheFile(file, "cfg2", 1000);
+		Assert.assertTrue(tested.readAll().isEmpty());
+		tested.close();
+
+		// case - garbage in file
+		FileOutputStream os = new FileOutputStream(file);
+		os.write("garbage".getBytes());
+		os.close();
+		tested = new LookupCacheFile(file, "cfg", 1000);
+		Assert.assertTrue(tested.readAll().isEmpty());
+		tested.close();
+
+		try {
+			new LookupCacheFile(file, "cfg", 10);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+	}
+
+	private File createTempFile() throws Exception {
+		File file = File.createTempFile("lookupcache", ".bin");
+		file.deleteOnExit();
+		return file;
+	}
+
+}
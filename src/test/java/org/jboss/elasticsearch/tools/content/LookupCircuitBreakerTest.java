@@ -0,0 +1,107 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import junit.framework.Assert;
+
+import org.jboss.elasticsearch.tools.content.LookupCircuitBreaker.State;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link LookupCircuitBreaker}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class LookupCircuitBreakerTest {
+
+	@Test
+	public void constructor_validation() {
+		assertConstructorFails(0, 1, 1, 1);
+		assertConstructorFails(101, 1, 1, 1);
+		assertConstructorFails(50, 0, 1, 1);
+		assertConstructorFails(50, 5, 4, 1);
+		assertConstructorFails(50, 5, 5, 0);
+
+		LookupCircuitBreaker tested = new LookupCircuitBreaker(50, 5, 10, 100);
+		Assert.assertEquals(50, tested.getFailureRateThreshold());
+		Assert.assertEquals(5, tested.getMinimumCalls());
+		Assert.assertEquals(10, tested.getWindowSize());
+		Assert.assertEquals(100, tested.getProbeIntervalMillis());
+		Assert.assertEquals(State.CLOSED, tested.getState());
+	}
+
+	private void assertConstructorFails(int failureRateThreshold, int minimumCalls, int windowSize, long probeInterval) {
+		try {
+			new LookupCircuitBreaker(failureRateThreshold, minimumCalls, windowSize, probeInterval);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+	}
+
+	@Test
+	public void stateTransitions() {
+		LookupCircuitBreakerTimeMock tested = new LookupCircuitBreakerTimeMock(50, 4, 4, 1000);
+
+		// case - failure rate is not evaluated until minimum calls
+		Assert.assertTrue(tested.allowRequest());
+		Assert.assertFalse(tested.recordFailure());
+		Assert.assertFalse(tested.recordFailure());
+		Assert.assertFalse(tested.recordFailure());
+		Assert.assertEquals(State.CLOSED, tested.getState());
+
+		// case - failure rate bellow threshold in sliding window
+		tested.recordSuccess();
+		tested.recordSuccess();
+		tested.recordSuccess();
+		Assert.assertFalse(tested.recordFailure());
+		Assert.assertEquals(State.CLOSED, tested.getState());
+
+		// case - threshold reached so breaker is opened
+		Assert.assertTrue(tested.recordFailure());
+		Assert.assertEquals(State.OPEN, tested.getState());
+		Assert.assertFalse(tested.allowRequest());
+		tested.time += 999;
+		Assert.assertFalse(tested.allowRequest());
+
+		// case - half open after probe interval, only one probe allowed
+		tested.time += 1;
+		Assert.assertTrue(tested.allowRequest());
+		Assert.assertEquals(State.HALF_OPEN, tested.getState());
+		Assert.assertFalse(tested.allowRequest());
+
+		// case - probe failed so open again
+		Assert.assertTrue(tested.recordFailure());
+		Assert.assertEquals(State.OPEN, tested.getState());
+		Assert.assertFalse(tested.allowRequest());
+
+		// case - probe succeeded so closed with clean window
+		tested.time += 1000;
+		Assert.assertTrue(tested.allowRequest());
+		tested.recordSuccess();
+		Assert.assertEquals(State.CLOSED, tested.getState());
+		Assert.assertTrue(tested.allowRequest());
+		Assert.assertFalse(tested.recordFailure());
+		Assert.assertFalse(tested.recordFailure());
+		Assert.assertFalse(tested.recordFailure());
+		Assert.assertTrue(tested.recordFailure());
+	}
+
+	private static class LookupCircuitBreakerTimeMock extends LookupCircuitBreaker {
+
+		long time = 1000;
+
+		LookupCircuitBreakerTimeMock(int failureRateThreshold, int minimumCalls, int windowSize, long probeIntervalMillis) {
+			super(failureRateThreshold, minimumCalls, windowSize, probeIntervalMillis);
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			return time;
+		}
+	}
+
+}
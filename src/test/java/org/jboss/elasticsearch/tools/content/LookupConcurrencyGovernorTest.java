@@ -0,0 +1,108 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link LookupConcurrencyGovernor}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class LookupConcurrencyGovernorTest {
+
+	@Test
+	public void getGovernor() {
+		Assert.assertNull(LookupConcurrencyGovernor.getExistingGovernor("LookupConcurrencyGovernorTest"));
+		LookupConcurrencyGovernor g = LookupConcurrencyGovernor.getGovernor("LookupConcurrencyGovernorTest", 5);
+		Assert.assertEquals("LookupConcurrencyGovernorTest", g.getName());
+		Assert.assertEquals(5, g.getMaxPermits());
+		Assert.assertSame(g, LookupConcurrencyGovernor.getExistingGovernor("LookupConcurrencyGovernorTest"));
+
+		// case - same instance shared, first configuration wins
+		Assert.assertSame(g, LookupConcurrencyGovernor.getGovernor("LookupConcurrencyGovernorTest", 3));
+		Assert.assertEquals(5, g.getMaxPermits());
+
+		try {
+			LookupConcurrencyGovernor.getGovernor(" ", 3);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+		try {
+			LookupConcurrencyGovernor.getGovernor("LookupConcurrencyGovernorTest", 0);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+
+		// case - removed from registry once released by all users, not registered governor ignored
+		LookupConcurrencyGovernor.releaseGovernor(new LookupConcurrencyGovernor("LookupConcurrencyGovernorTest", 1));
+		LookupConcurrencyGovernor.releaseGovernor(g);
+		Assert.assertSame(g, LookupConcurrencyGovernor.getExistingGovernor("LookupConcurrencyGovernorTest"));
+		LookupConcurrencyGovernor.releaseGovernor(g);
+		Assert.assertNull(LookupConcurrencyGovernor.getExistingGovernor("LookupConcurrencyGovernorTest"));
+		Assert.assertNotSame(g, LookupConcurrencyGovernor.getGovernor("LookupConcurrencyGovernorTest", 3));
+		LookupConcurrencyGovernor.releaseGovernor(LookupConcurrencyGovernor
+				.getExistingGovernor("LookupConcurrencyGovernorTest"));
+	}
+
+	@Test
+	public void acquireRelease() {
+		LookupConcurrencyGovernor tested = new LookupConcurrencyGovernor("test", 2);
+		Assert.assertTrue(tested.acquire(0));
+		Assert.assertTrue(tested.acquire(0));
+		Assert.assertEquals(2, tested.getActiveCount());
+		Assert.assertFalse(tested.acquire(0));
+		Assert.assertFalse(tested.acquire(20));
+		Assert.assertEquals(2, tested.getAcquiredCount());
+		Assert.assertEquals(2, tested.getRejectedCount());
+		Assert.assertTrue(tested.getTotalWaitMillis() >= 15);
+
+		tested.release();
+		Assert.assertEquals(1, tested.getActiveCount());
+		Assert.assertTrue(tested.acquire(0));
+
+		// case - permits lowered while all are used, released ones are not available until under limit
+		tested.setMaxPermits(1);
+		Assert.assertEquals(2, tested.getActiveCount());
+		tested.release();
+		Assert.assertFalse(tested.acquire(0));
+		tested.release();
+		Assert.assertTrue(tested.acquire(0));
+
+		// case - permits raised
+		tested.setMaxPermits(3);
+		Assert.assertTrue(tested.acquire(0));
+		Assert.assertTrue(tested.acquire(0));
+		Assert.assertFalse(tested.acquire(0));
+		Assert.assertEquals(3, tested.getActiveCount());
+		Assert.assertEquals(0, tested.getWaitingCount());
+	}
+
+	@Test
+	public void acquire_waitsForRelease() throws Exception {
+		final LookupConcurrencyGovernor tested = new LookupConcurrencyGovernor("test", 1);
+		Assert.assertTrue(tested.acquire(0));
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					// nothing
+				}
+				tested.release();
+			}
+		};
+		t.start();
+		Assert.assertTrue(tested.acquire(5000));
+		t.join();
+	}
+
+}
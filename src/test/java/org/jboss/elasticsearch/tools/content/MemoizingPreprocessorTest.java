@@ -0,0 +1,247 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.jboss.elasticsearch.tools.content.FieldPresenceFilterTest.CopyPreprocessorMock;
+import org.jboss.elasticsearch.tools.content.testtools.TestUtils;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit test for {@link MemoizingPreprocessor}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class MemoizingPreprocessorTest {
+
+	@Test
+	public void constructor_invalid() {
+		try {
+			new MemoizingPreprocessor(null, 10);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("delegate must be defined", e.getMessage());
+		}
+		try {
+			new MemoizingPreprocessor(new CopyPreprocessorMock("c", "a", "b"), 0);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("max size must be positive", e.getMessage());
+		}
+	}
+
+	@Test
+	public void preprocessData() {
+		CopyPreprocessorMock delegate = new CopyPreprocessorMock("c", "source", "target");
+		MemoizingPreprocessor tested = new MemoizingPreprocessor(delegate, 10);
+		Assert.assertEquals("c", tested.getName());
+		Assert.assertSame(delegate, tested.getDelegate());
+		Assert.assertEquals(10, tested.getMaxSize());
+		Assert.assertEquals(delegate.getReadFields(), tested.getReadFields());
+		Assert.assertEquals(delegate.getWrittenFields(), tested.getWrittenFields());
+		Assert.assertEquals(delegate.getRequiredInputFields(), tested.getRequiredInputFields());
+
+		Map<String, Object> data = tested.preprocessData(createData("a", "other1"), null);
+		Assert.assertEquals("a", ((Map<?, ?>) ((List<?>) data.get("target")).get(0)).get("v"));
+		Assert.assertEquals(1, delegate.calls);
+		Assert.assertEquals(0, tested.getHitCount());
+		Assert.assertEquals(1, tested.getMissCount());
+		Assert.assertEquals(1, tested.getCacheSize());
+
+		// changed cached result doesn't affect next data
+		((List<?>) data.get("target")).clear();
+
+		// not read field changed
+		data = tested.preprocessData(createData("a", "other2"), null);
+		Assert.assertEquals(createData("a", "other2").get("source"), data.get("target"));
+		Assert.assertEquals("other2", data.get("other"));
+		Assert.assertEquals(1, delegate.calls);
+		Assert.assertEquals(1, tested.getHitCount());
+
+		// changed result is not affected by next preprocessors
+		((List<?>) data.get("target")).clear();
+		data = tested.preprocessData(createData("a", "other3"), null);
+		Assert.assertEquals(1, ((List<?>) data.get("target")).size());
+		Assert.assertEquals(1, delegate.calls);
+
+		// read field changed
+		data = tested.preprocessData(createData("b", "other1"), null);
+		Assert.assertEquals("b", ((Map<?, ?>) ((List<?>) data.get("target")).get(0)).get("v"));
+		Assert.assertEquals(2, delegate.calls);
+
+		// previous value of written field changed
+		Map<String, Object> d = createData("a", "other1");
+		d.put("target", "old");
+		tested.preprocessData(d, null);
+		Assert.assertEquals(3, delegate.calls);
+
+		// written field not changed by preprocessor
+		d = new HashMap<String, Object>();
+		d.put("target", "old");
+		tested.preprocessData(new HashMap<String, Object>(d), null);
+		Assert.assertEquals(4, delegate.calls);
+		Assert.assertEquals("old", tested.preprocessData(new HashMap<String, Object>(d), null).get("target"));
+		Assert.assertEquals(4, delegate.calls);
+	}
+
+	@Test
+	public void preprocessData_warnings() {
+		StripHtmlPreprocessor delegate = new StripHtmlPreprocessor();
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put(StripHtmlPreprocessor.CFG_SOURCE_FIELD, "html");
+		settings.put(StripHtmlPreprocessor.CFG_TARGET_FIELD, "text");
+		MemoizingPreprocessor tested = new MemoizingPreprocessor(delegate, 10);
+		tested.init("strip", null, settings);
+
+		for (int i = 0; i < 2; i++) {
+			Map<String, Object> data = new HashMap<String, Object>();
+			data.put("html", 10);
+			PreprocessChainContextImpl context = new PreprocessChainContextImpl();
+			tested.preprocessData(data, context);
+			Assert.assertEquals(1, context.getWarnings().size());
+			Assert.assertEquals("strip", context.getWarnings().get(0).getPreprocessorName());
+			Assert.assertEquals("Value for field 'html' is not String, so can't be processed", context.getWarnings().get(0)
+					.getWarningMessage());
+		}
+		Assert.assertEquals(1, tested.getHitCount());
+
+		// result is not cached if deadline is exceeded
+		DeadlineAwareChainContext context = Mockito.mock(DeadlineAwareChainContext.class);
+		Mockito.when(context.isDeadlineExceeded()).thenReturn(true);
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("html", "<b>a</b>");
+		tested.preprocessData(data, context);
+		Assert.assertEquals(1, tested.getCacheSize());
+	}
+
+	@Test
+	public void preprocessData_transientFailure() throws Exception {
+		Map<String, Object> settings = TestUtils.loadJSONFromClasspathFile("/ESLookupValue_preprocessData-nobases.json");
+		settings.put(ESLookupValuePreprocessor.CFG_lookup_backend, "json_file");
+		settings.put(ESLookupValuePreprocessor.CFG_lookup_file,
+				InMemoryLookupBackendTest.getClasspathFile("/ESLookupValue_lookupData.json").getAbsolutePath());
+		ESLookupValuePreprocessor delegate = new ESLookupValuePreprocessor();
+		MemoizingPreprocessor tested = new MemoizingPreprocessor(delegate, 10);
+		tested.init("lookup", null, settings);
+
+		LookupBackend backendMock = Mockito.mock(LookupBackend.class);
+		Mockito.when(backendMock.lookup(Mockito.eq("jbossorg_jira_project"), Mockito.eq("ORGA"), Mockito.anyString(),
+				Mockito.any(PreprocessChainContext.class))).thenThrow(new ElasticsearchException("outage"))
+				.thenThrow(new LookupCircuitOpenException("lookup")).thenReturn(LookupResult.NOT_FOUND);
+		delegate.setLookupBackend(backendMock);
+
+		// case - defaults used due lookup failure or open circuit breaker are not memoized
+		for (int i = 0; i < 2; i++) {
+			Map<String, Object> data = new HashMap<String, Object>();
+			StructureUtils.putValueIntoMapOfMaps(data, "fields.projectcode", "ORGA");
+			PreprocessChainContextImpl context = new PreprocessChainContextImpl();
+			tested.preprocessData(data, context);
+			Assert.assertEquals("defval", XContentMapValues.extractValue("project.code", data));
+			Assert.assertTrue(context.isWarning());
+			Assert.assertEquals(0, tested.getCacheSize());
+		}
+
+		// case - transient failure is forwarded into outer context
+		TransientFailureAwareChainContext outerContext = Mockito.mock(TransientFailureAwareChainContext.class);
+		Mockito.when(backendMock.lookup(Mockito.eq("jbossorg_jira_project"), Mockito.eq("ES2"), Mockito.anyString(),
+				Mockito.any(PreprocessChainContext.class))).thenThrow(new ElasticsearchException("outage"));
+		Map<String, Object> data = new HashMap<String, Object>();
+		StructureUtils.putValueIntoMapOfMaps(data, "fields.projectcode", "ES2");
+		tested.preprocessData(data, outerContext);
+		Mockito.verify(outerContext).reportTransientFailure("lookup");
+		Assert.assertEquals(0, tested.getCacheSize());
+
+		// case - result is memoized once lookup works again
+		data = new HashMap<String, Object>();
+		StructureUtils.putValueIntoMapOfMaps(data, "fields.projectcode", "ORGA");
+		tested.preprocessData(data, null);
+		Assert.assertEquals("defval", XContentMapValues.extractValue("project.code", data));
+		Assert.assertEquals(1, tested.getCacheSize());
+	}
+
+	@Test
+	public void preprocessData_notMemoized() throws Exception {
+		StructuredContentPreprocessor delegate = Mockito.mock(StructuredContentPreprocessor.class,
+				Mockito.withSettings().extraInterfaces(Closeable.class));
+		Map<String, Object> data = new HashMap<String, Object>();
+		Mockito.when(delegate.preprocessData(data, null)).thenReturn(data);
+		MemoizingPreprocessor tested = new MemoizingPreprocessor(delegate, 10);
+		tested.preprocessData(data, null);
+		tested.preprocessData(data, null);
+		Mockito.verify(delegate, Mockito.times(2)).preprocessData(data, null);
+		Assert.assertEquals(0, tested.getCacheSize());
+		Assert.assertNull(tested.getReadFields());
+		Assert.assertEquals(PreprocessorCostHint.COST_MODERATE, tested.getCostHint());
+
+		tested.close();
+		Mockito.verify((Closeable) delegate).close();
+	}
+
+	@Test
+	public void evict() {
+		CopyPreprocessorMock delegate = new CopyPreprocessorMock("c", "source", "target");
+		MemoizingPreprocessor tested = new MemoizingPreprocessor(delegate, 3);
+		for (int i = 0; i < 10; i++) {
+			tested.preprocessData(createData("v" + i, null), null);
+			Assert.assertTrue(tested.getCacheSize() <= 3);
+		}
+		Assert.assertEquals(3, tested.getCacheSize());
+	}
+
+	@Test
+	public void fingerprint() {
+		List<String> keys = Arrays.asList("target");
+		Map<String, Object> m1 = new LinkedHashMap<String, Object>();
+		m1.put("a", 1);
+		m1.put("b", Arrays.asList("x", null));
+		Map<String, Object> m2 = new LinkedHashMap<String, Object>();
+		m2.put("b", new ArrayList<Object>(Arrays.asList("x", null)));
+		m2.put("a", 1);
+		Map<String, Object> d1 = new HashMap<String, Object>();
+		d1.put("source", m1);
+		Map<String, Object> d2 = new HashMap<String, Object>();
+		d2.put("source", m2);
+		// key order doesn't matter
+		Assert.assertEquals(MemoizingPreprocessor.fingerprint(d1, toSet("source"), keys),
+				MemoizingPreprocessor.fingerprint(d2, toSet("source"), keys));
+		Assert.assertEquals(128, MemoizingPreprocessor.fingerprint(d1, toSet("source"), keys)
+				.bits());
+		// type of number matters
+		m2.put("a", 1L);
+		Assert.assertFalse(MemoizingPreprocessor.fingerprint(d1, toSet("source"), keys).equals(
+				MemoizingPreprocessor.fingerprint(d2, toSet("source"), keys)));
+	}
+
+	private static Set<String> toSet(String... fields) {
+		return new LinkedHashSet<String>(Arrays.asList(fields));
+	}
+
+	private static Map<String, Object> createData(String value, String other) {
+		Map<String, Object> data = new HashMap<String, Object>();
+		List<Object> source = new ArrayList<Object>();
+		Map<String, Object> v = new HashMap<String, Object>();
+		v.put("v", value);
+		source.add(v);
+		data.put("source", source);
+		data.put("other", other);
+		return data;
+	}
+
+}
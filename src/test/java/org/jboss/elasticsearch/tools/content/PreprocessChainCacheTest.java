@@ -0,0 +1,225 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import static org.mockito.Mockito.mock;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.elasticsearch.client.Client;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link PreprocessChainCache}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class PreprocessChainCacheTest {
+
+	@Test
+	public void acquirePreprocessChain() throws IOException {
+		PreprocessChainCache tested = new PreprocessChainCache();
+		Client client = mock(Client.class);
+
+		PreprocessChain chain1 = tested.acquirePreprocessChain(createChainConfig("p1", false), client);
+		Assert.assertEquals(2, chain1.getPreprocessors().size());
+		Assert.assertEquals(1, tested.getChainCount());
+		Assert.assertEquals(2, tested.getPreprocessorCount());
+
+		// case - same configuration with other fields order and alias shares preprocessors, chain is private for caller
+		PreprocessChain chain2 = tested.acquirePreprocessChain(createChainConfig("p1", true), client);
+		Assert.assertNotSame(chain1, chain2);
+		Assert.assertEquals(chain1.getPreprocessors(), chain2.getPreprocessors());
+		Assert.assertEquals(1, tested.getChainCount());
+		Assert.assertEquals(2, tested.getPreprocessorCount());
+		chain2.setTimeBudget(100, PreprocessChain.TimeoutAction.FAIL);
+		Assert.assertEquals(0, chain1.getTimeBudgetMillis());
+
+		// case - other client is not shared
+		PreprocessChain chain3 = tested.acquirePreprocessChain(createChainConfig("p1", false), mock(Client.class));
+		Assert.assertNotSame(chain1, chain3);
+		Assert.assertEquals(2, tested.getChainCount());
+		Assert.assertEquals(4, tested.getPreprocessorCount());
+
+		// case - other chain shares preprocessor with identical configuration
+		List<Map<String, Object>> cfg = createChainConfig("p1", false);
+		cfg.remove(1);
+		PreprocessChain chain4 = tested.acquirePreprocessChain(cfg, client);
+		Assert.assertNotSame(chain1, chain4);
+		Assert.assertSame(chain1.getPreprocessors().get(0), chain4.getPreprocessors().get(0));
+		Assert.assertEquals(4, tested.getPreprocessorCount());
+
+		// case - release, preprocessors are closed with last reference only
+		CloseablePreprocessorMock closeable = (CloseablePreprocessorMock) chain1.getPreprocessors().get(0);
+		Assert.assertFalse(tested.release(chain1));
+		Assert.assertTrue(tested.release(chain2));
+		Assert.assertFalse(closeable.closed);
+		// not shared preprocessor of released chain is removed
+		Assert.assertEquals(3, tested.getPreprocessorCount());
+		Assert.assertTrue(tested.release(chain4));
+		Assert.assertTrue(closeable.closed);
+		Assert.assertTrue(tested.release(chain3));
+		Assert.assertEquals(0, tested.getChainCount());
+		Assert.assertEquals(0, tested.getPreprocessorCount());
+
+		// case - released already
+		try {
+			tested.release(chain1);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("Preprocess chain is not acquired from this cache", e.getMessage());
+		}
+
+		// case - new chain created after release
+		PreprocessChain chain5 = tested.acquirePreprocessChain(createChainConfig("p1", false), client);
+		Assert.assertNotSame(chain1, chain5);
+	}
+
+	@Test
+	public void acquirePreprocessChain_parallelInit() {
+		PreprocessChainCache tested = new PreprocessChainCache();
+		Client client = mock(Client.class);
+		final AtomicInteger executed = new AtomicInteger();
+		tested.setInitExecutor(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				executed.incrementAndGet();
+				command.run();
+			}
+		});
+
+		PreprocessChain chain1 = tested.acquirePreprocessChain(createChainConfig("p1", false), client);
+		Assert.assertEquals(2, executed.get());
+
+		// case - only not cached preprocessors are created
+		List<Map<String, Object>> cfg = createChainConfig("p1", false);
+		cfg.add(createPreprocessorConfig("p2", "v1", false));
+		cfg.add(createPreprocessorConfig("p3", "v1", false));
+		PreprocessChain chain2 = tested.acquirePreprocessChain(cfg, client);
+		Assert.assertEquals(4, executed.get());
+		Assert.assertEquals(4, chain2.getPreprocessors().size());
+		Assert.assertSame(chain1.getPreprocessors().get(1), chain2.getPreprocessors().get(1));
+		Assert.assertEquals("p3", chain2.getPreprocessors().get(3).getName());
+		Assert.assertEquals(4, tested.getPreprocessorCount());
+	}
+
+	@Test
+	public void acquirePreprocessChain_error() {
+		PreprocessChainCache tested = new PreprocessChainCache();
+		Client client = mock(Client.class);
+
+		List<Map<String, Object>> cfg = createChainConfig("p1", false);
+		cfg.get(1).put(StructuredContentPreprocessorFactory.CFG_CLASS, "org.unknown.Test");
+		try {
+			tested.acquirePreprocessChain(cfg, client);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("Preprocessor class org.unknown.Test not found", e.getMessage());
+		}
+		// already created preprocessors are released
+		Assert.assertEquals(0, tested.getChainCount());
+		Assert.assertEquals(0, tested.getPreprocessorCount());
+	}
+
+	@Test
+	public void acquirePreprocessor() {
+		PreprocessChainCache tested = new PreprocessChainCache();
+		Client client = mock(Client.class);
+
+		StructuredContentPreprocessor p1 = tested.acquirePreprocessor(createPreprocessorConfig("p1", "v1", false), client);
+		StructuredContentPreprocessor p2 = tested.acquirePreprocessor(createPreprocessorConfig("p1", "v1", true), client);
+		Assert.assertSame(p1, p2);
+		StructuredContentPreprocessor p3 = tested.acquirePreprocessor(createPreprocessorConfig("p1", "v2", false), client);
+		Assert.assertNotSame(p1, p3);
+		Assert.assertEquals(2, tested.getPreprocessorCount());
+
+		Assert.assertFalse(tested.release(p1));
+		Assert.assertTrue(tested.release(p2));
+		Assert.assertTrue(((CloseablePreprocessorMock) p1).closed);
+		Assert.assertFalse(((CloseablePreprocessorMock) p3).closed);
+
+		try {
+			tested.release(new StructuredContentPreprocessorMock());
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("Preprocessor is not acquired from this cache", e.getMessage());
+		}
+	}
+
+	@Test
+	public void factory_acquirePreprocessChain() {
+		Client client = mock(Client.class);
+		PreprocessChain chain1 = StructuredContentPreprocessorFactory.acquirePreprocessChain(
+				createChainConfig("p1", false), client);
+		PreprocessChain chain2 = StructuredContentPreprocessorFactory.acquirePreprocessChain(createChainConfig("p1", true),
+				client);
+		Assert.assertSame(chain1.getPreprocessors().get(0), chain2.getPreprocessors().get(0));
+		Assert.assertFalse(StructuredContentPreprocessorFactory.releasePreprocessChain(chain1));
+		Assert.assertTrue(StructuredContentPreprocessorFactory.releasePreprocessChain(chain2));
+	}
+
+	private List<Map<String, Object>> createChainConfig(String name, boolean reverted) {
+		List<Map<String, Object>> ret = new ArrayList<Map<String, Object>>();
+		ret.add(createPreprocessorConfig(name, "v1", reverted));
+		Map<String, Object> cfg = new LinkedHashMap<String, Object>();
+		Map<String, Object> settings = new LinkedHashMap<String, Object>();
+		if (reverted) {
+			settings.put(AddValuePreprocessor.CFG_VALUE, "value");
+			settings.put(AddValuePreprocessor.CFG_FIELD, "field");
+			cfg.put(StructuredContentPreprocessorFactory.CFG_SETTINGS, settings);
+			cfg.put(StructuredContentPreprocessorFactory.CFG_CLASS, "add_value");
+			cfg.put(StructuredContentPreprocessorFactory.CFG_NAME, name + "_add");
+		} else {
+			settings.put(AddValuePreprocessor.CFG_FIELD, "field");
+			settings.put(AddValuePreprocessor.CFG_VALUE, "value");
+			cfg.put(StructuredContentPreprocessorFactory.CFG_NAME, name + "_add");
+			cfg.put(StructuredContentPreprocessorFactory.CFG_CLASS, AddValuePreprocessor.class.getName());
+			cfg.put(StructuredContentPreprocessorFactory.CFG_SETTINGS, settings);
+		}
+		ret.add(cfg);
+		return ret;
+	}
+
+	private Map<String, Object> createPreprocessorConfig(String name, String value, boolean reverted) {
+		Map<String, Object> cfg = new LinkedHashMap<String, Object>();
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put("setting", value);
+		if (reverted) {
+			cfg.put(StructuredContentPreprocessorFactory.CFG_SETTINGS, settings);
+			cfg.put(StructuredContentPreprocessorFactory.CFG_CLASS, " " + CloseablePreprocessorMock.class.getName());
+			cfg.put(StructuredContentPreprocessorFactory.CFG_NAME, name);
+		} else {
+			cfg.put(StructuredContentPreprocessorFactory.CFG_NAME, name);
+			cfg.put(StructuredContentPreprocessorFactory.CFG_CLASS, CloseablePreprocessorMock.class.getName());
+			cfg.put(StructuredContentPreprocessorFactory.CFG_SETTINGS, settings);
+		}
+		return cfg;
+	}
+
+	/**
+	 * Preprocessor which tracks whether it has been closed.
+	 */
+	public static class CloseablePreprocessorMock extends StructuredContentPreprocessorMock implements Closeable {
+
+		boolean closed = false;
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+		}
+	}
+
+}
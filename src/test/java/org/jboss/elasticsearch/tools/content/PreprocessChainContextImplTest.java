@@ -54,4 +54,25 @@ public class PreprocessChainContextImplTest {
 		Assert.assertEquals("msg2", tested.getWarnings().get(1).getWarningMessage());
 	}
 
+	@Test
+	public void timeBudget() throws InterruptedException {
+		PreprocessChainContextImpl tested = new PreprocessChainContextImpl();
+		Assert.assertFalse(tested.isDeadlineExceeded());
+		Assert.assertEquals(-1, tested.getRemainingTimeMillis());
+
+		tested.setTimeBudget(10000);
+		Assert.assertFalse(tested.isDeadlineExceeded());
+		long remaining = tested.getRemainingTimeMillis();
+		Assert.assertTrue(remaining > 9000 && remaining <= 10000);
+
+		tested.setTimeBudget(1);
+		Thread.sleep(5);
+		Assert.assertTrue(tested.isDeadlineExceeded());
+		Assert.assertEquals(0, tested.getRemainingTimeMillis());
+
+		tested.setTimeBudget(0);
+		Assert.assertFalse(tested.isDeadlineExceeded());
+		Assert.assertEquals(-1, tested.getRemainingTimeMillis());
+	}
+
 }
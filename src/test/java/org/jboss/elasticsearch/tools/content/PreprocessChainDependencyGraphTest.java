@@ -0,0 +1,224 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.jboss.elasticsearch.tools.content.testtools.TestUtils;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit test for {@link PreprocessChainDependencyGraph} and {@link FieldAccessDeclaration} implementations of built-in
+ * preprocessors.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class PreprocessChainDependencyGraphTest {
+
+	@Test
+	public void overlap_fields() {
+		Assert.assertTrue(PreprocessChainDependencyGraph.overlap("a", "a"));
+		Assert.assertTrue(PreprocessChainDependencyGraph.overlap("a", "a.b"));
+		Assert.assertTrue(PreprocessChainDependencyGraph.overlap("a.b.c", "a.b"));
+		Assert.assertFalse(PreprocessChainDependencyGraph.overlap("a", "b"));
+		Assert.assertFalse(PreprocessChainDependencyGraph.overlap("a", "ab"));
+		Assert.assertFalse(PreprocessChainDependencyGraph.overlap("a.b", "a.c"));
+		Assert.assertFalse(PreprocessChainDependencyGraph.overlap("ab.c", "a"));
+	}
+
+	@Test
+	public void overlap_sets() {
+		Set<String> empty = Collections.emptySet();
+		Assert.assertTrue(PreprocessChainDependencyGraph.overlap((Set<String>) null, null));
+		Assert.assertTrue(PreprocessChainDependencyGraph.overlap(null, set("a")));
+		Assert.assertTrue(PreprocessChainDependencyGraph.overlap(set("a"), null));
+		Assert.assertFalse(PreprocessChainDependencyGraph.overlap(null, empty));
+		Assert.assertFalse(PreprocessChainDependencyGraph.overlap(empty, null));
+		Assert.assertFalse(PreprocessChainDependencyGraph.overlap(empty, set("a")));
+		Assert.assertTrue(PreprocessChainDependencyGraph.overlap(set("b", "a.x"), set("c", "a")));
+		Assert.assertFalse(PreprocessChainDependencyGraph.overlap(set("b", "a.x"), set("c", "a.y")));
+	}
+
+	@Test
+	public void graph_empty() {
+		PreprocessChainDependencyGraph tested = new PreprocessChain(null).getDependencyGraph();
+		Assert.assertEquals(0, tested.size());
+		Assert.assertTrue(tested.getLevels().isEmpty());
+	}
+
+	@Test
+	public void graph_undeclaredAccess() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("p1", "f1", "v1"));
+		preprocs.add(Mockito.mock(StructuredContentPreprocessor.class));
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("p3", "f3", "v3"));
+		preprocs.add(new LazyInitPreprocessor(new AddValuePreprocessor()));
+		PreprocessChainDependencyGraph tested = new PreprocessChainDependencyGraph(preprocs);
+
+		Assert.assertNull(tested.getReadFields(1));
+		Assert.assertNull(tested.getWrittenFields(1));
+		Assert.assertTrue(tested.dependsOn(1, 0));
+		Assert.assertTrue(tested.dependsOn(2, 1));
+		Assert.assertTrue(tested.dependsOn(2, 0));
+		Assert.assertFalse(tested.getDependencies(2).get(0));
+		// not initialized lazy preprocessor
+		Assert.assertNull(tested.getWrittenFields(3));
+		Assert.assertTrue(tested.getDependencies(3).get(2));
+		Assert.assertEquals(Arrays.asList(Arrays.asList(0), Arrays.asList(1), Arrays.asList(2), Arrays.asList(3)),
+				tested.getLevels());
+	}
+
+	@Test
+	public void graph_sourceBases() {
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put(StripHtmlPreprocessor.CFG_SOURCE_FIELD, "html");
+		settings.put(StripHtmlPreprocessor.CFG_TARGET_FIELD, "text");
+		settings.put(StructuredContentPreprocessorWithSourceBasesBase.CFG_source_bases,
+				Arrays.asList("comments", "fields.links"));
+		StripHtmlPreprocessor strip = new StripHtmlPreprocessor();
+		strip.init("strip", null, settings);
+		Assert.assertEquals(set("comments.html", "fields.links.html"), strip.getReadFields());
+		Assert.assertEquals(set("comments.text", "fields.links.text"), strip.getWrittenFields());
+
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("p1", "fields", "v1"));
+		preprocs.add(strip);
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("p3", "text", "{comments}"));
+		PreprocessChainDependencyGraph tested = new PreprocessChainDependencyGraph(preprocs);
+		// nested field overlaps with whole structure
+		Assert.assertTrue(tested.dependsOn(1, 0));
+		Assert.assertTrue(tested.dependsOn(2, 1));
+		// transitive dependency only
+		Assert.assertFalse(tested.getDependencies(2).get(0));
+		Assert.assertTrue(tested.dependsOn(2, 0));
+		Assert.assertFalse(tested.isIndependent(0, 2));
+		Assert.assertFalse(tested.isIndependent(0, 0));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void graph_builtInPreprocessors() {
+		List<Map<String, Object>> config = (List<Map<String, Object>>) TestUtils.loadJSONFromClasspathFile(
+				"/PreprocessorConcurrency_chain.json").get("preprocessors");
+		PreprocessChain chain = StructuredContentPreprocessorFactory.createPreprocessChain(config, null);
+		PreprocessChainDependencyGraph tested = chain.getDependencyGraph();
+		Assert.assertEquals(14, tested.size());
+
+		assertFields(tested, 0, set("title", "count"), set("label"));
+		assertFields(tested, 1, set("user.name"), set("static_field", "structure", "user_label"));
+		assertFields(tested, 2, set("html"), set("text"));
+		assertFields(tested, 3, set("text"), set("text_short"));
+		assertFields(tested, 4, set("version"), set("version_major", "version_minor"));
+		assertFields(tested, 5, set("created_long"), set("created"));
+		assertFields(tested, 6, set("updates"), set("last_update"));
+		assertFields(tested, 7, set("from", "to", "checked"), set("in_range"));
+		assertFields(tested, 8, set("code"), set("code_mapped"));
+		assertFields(tested, 9, set("project"), set("project_name"));
+		assertFields(tested, 10, set("tags", "code_mapped"), set("all_tags"));
+		// script accesses any field
+		assertFields(tested, 11, null, null);
+		assertFields(tested, 12, set(), set("html"));
+		assertFields(tested, 13, set("title"), set());
+
+		Assert.assertTrue(tested.isIndependent(0, 1));
+		Assert.assertTrue(tested.isIndependent(3, 4));
+		Assert.assertTrue(tested.dependsOn(3, 2));
+		Assert.assertTrue(tested.dependsOn(10, 8));
+		Assert.assertTrue(tested.dependsOn(12, 2));
+		Assert.assertFalse(tested.getDependencies(13).get(12));
+
+		List<List<Integer>> levels = tested.getLevels();
+		Assert.assertEquals(4, levels.size());
+		Assert.assertEquals(Arrays.asList(0, 1, 2, 4, 5, 6, 7, 8, 9), levels.get(0));
+		Assert.assertEquals(Arrays.asList(3, 10), levels.get(1));
+		Assert.assertEquals(Arrays.asList(11), levels.get(2));
+		Assert.assertEquals(Arrays.asList(12, 13), levels.get(3));
+		Assert.assertEquals(3, tested.getLevel(13));
+		// all fields in root of data so same grouping for concurrent run
+		Assert.assertEquals(levels, tested.getConcurrentLevels());
+	}
+
+	@Test
+	public void concurrentLevels() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("p0", "x.a", "v"));
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("p1", "x.b", "v"));
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("p2", "y", "v"));
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("p3", "z", "{x.c}"));
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("p4", "w", "v"));
+		PreprocessChainDependencyGraph tested = new PreprocessChainDependencyGraph(preprocs);
+
+		// independent but both modify Map in field x
+		Assert.assertTrue(tested.isIndependent(0, 1));
+		Assert.assertFalse(tested.canRunConcurrently(0, 1));
+		// root level fields
+		Assert.assertTrue(tested.canRunConcurrently(0, 2));
+		Assert.assertTrue(tested.canRunConcurrently(2, 4));
+		// reads from Map modified by other one
+		Assert.assertTrue(tested.isIndependent(0, 3));
+		Assert.assertFalse(tested.canRunConcurrently(0, 3));
+		Assert.assertFalse(tested.canRunConcurrently(3, 0));
+		Assert.assertFalse(tested.canRunConcurrently(1, 1));
+
+		Assert.assertEquals(Arrays.asList(Arrays.asList(0, 1, 2, 3, 4)), tested.getLevels());
+		Assert.assertEquals(Arrays.asList(Arrays.asList(0, 2, 4), Arrays.asList(1), Arrays.asList(3)), tested.getConcurrentLevels());
+
+		// undeclared access is never run concurrently
+		preprocs.add(Mockito.mock(StructuredContentPreprocessor.class));
+		tested = new PreprocessChainDependencyGraph(preprocs);
+		Assert.assertFalse(tested.canRunConcurrently(2, 5));
+		Assert.assertEquals(4, tested.getConcurrentLevels().size());
+		Assert.assertEquals(Arrays.asList(5), tested.getConcurrentLevels().get(3));
+	}
+
+	@Test
+	public void preprocessorsWithPatterns() {
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put("f1", "{a}-{b.c}");
+		settings.put("f2", Collections.singletonMap("x", "{ignored}"));
+		AddMultipleValuesPreprocessor amv = new AddMultipleValuesPreprocessor();
+		amv.init("amv", null, settings);
+		Assert.assertEquals(set("a", "b.c"), amv.getReadFields());
+		Assert.assertEquals(set("f1", "f2"), amv.getWrittenFields());
+
+		// not String value
+		settings = new HashMap<String, Object>();
+		settings.put(AddValuePreprocessor.CFG_FIELD, "f");
+		settings.put(AddValuePreprocessor.CFG_VALUE, 10);
+		AddValuePreprocessor av = new AddValuePreprocessor();
+		av.init("av", null, settings);
+		Assert.assertEquals(set(), av.getReadFields());
+		Assert.assertEquals(set("f"), av.getWrittenFields());
+
+		AddCurrentTimestampPreprocessor act = new AddCurrentTimestampPreprocessor();
+		settings = new HashMap<String, Object>();
+		settings.put(AddCurrentTimestampPreprocessor.CFG_FIELD, "ts");
+		act.init("act", null, settings);
+		Assert.assertEquals(set(), act.getReadFields());
+		Assert.assertEquals(set("ts"), act.getWrittenFields());
+	}
+
+	private static void assertFields(PreprocessChainDependencyGraph tested, int stage, Set<String> read,
+			Set<String> written) {
+		Assert.assertEquals(read, tested.getReadFields(stage));
+		Assert.assertEquals(written, tested.getWrittenFields(stage));
+	}
+
+	private static Set<String> set(String... fields) {
+		return new HashSet<String>(Arrays.asList(fields));
+	}
+
+}
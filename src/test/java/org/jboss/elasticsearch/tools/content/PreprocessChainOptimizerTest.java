@@ -0,0 +1,287 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit test for {@link PreprocessChainOptimizer}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class PreprocessChainOptimizerTest {
+
+	@Test
+	public void order_noValidator() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(new CostPreprocessorMock("e", PreprocessorCostHint.COST_EXPENSIVE, "src", "x"));
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("p1", "y", "v"));
+		PreprocessChainOptimizer tested = createOptimizer(preprocs, 0);
+		assertOrder(tested, 0, 1);
+	}
+
+	@Test
+	public void order_validatorHoisted() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(new CostPreprocessorMock("e", PreprocessorCostHint.COST_EXPENSIVE, "src", "x"));
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("p1", "y", "v"));
+		preprocs.add(createRequiredValidator("v", "title"));
+		PreprocessChainOptimizer tested = createOptimizer(preprocs, 0);
+		assertOrder(tested, 2, 0, 1);
+
+		// validator needs data from cheaper preprocessor
+		preprocs.set(1, PreprocessChainTest.createAddValuePreprocessor("p1", "title", "{src}"));
+		tested = createOptimizer(preprocs, 0);
+		assertOrder(tested, 1, 2, 0);
+
+		// validator needs data from expensive preprocessor so it can't be moved
+		preprocs.set(2, createRequiredValidator("v", "x"));
+		tested = createOptimizer(preprocs, 0);
+		assertOrder(tested, 0, 2, 1);
+
+		// preprocessor with undeclared field access is barrier
+		preprocs.clear();
+		preprocs.add(new CostPreprocessorMock("e", PreprocessorCostHint.COST_EXPENSIVE, "src", "x"));
+		preprocs.add(Mockito.mock(StructuredContentPreprocessor.class));
+		preprocs.add(createRequiredValidator("v", "title"));
+		tested = createOptimizer(preprocs, 0);
+		assertOrder(tested, 0, 1, 2);
+	}
+
+	@Test
+	public void order_cheapestValidatorFirst() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(new CostPreprocessorMock("e", PreprocessorCostHint.COST_EXPENSIVE, "src", "x"));
+		preprocs.add(new CostPreprocessorMock("m", PreprocessorCostHint.COST_MODERATE, "src", "y"));
+		preprocs.add(createRequiredValidator("v1", "x"));
+		preprocs.add(createRequiredValidator("v2", "y"));
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("p4", "z", "v"));
+		PreprocessChainOptimizer tested = createOptimizer(preprocs, 0);
+		assertOrder(tested, 1, 3, 0, 2, 4);
+	}
+
+	@Test
+	public void reoptimize_observed() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(new CostPreprocessorMock("e", PreprocessorCostHint.COST_EXPENSIVE, "src", "x"));
+		preprocs.add(createRequiredValidator("v1", "a"));
+		preprocs.add(createRequiredValidator("v2", "b"));
+		PreprocessChainOptimizer tested = createOptimizer(preprocs, 2);
+		Assert.assertEquals(2, tested.getReoptimizeInterval());
+		assertOrder(tested, 1, 2, 0);
+		Assert.assertEquals(-1, tested.getAverageNanos(0));
+
+		// not called often enough
+		tested.recordStage(1, 100, false);
+		tested.recordStage(2, 100, true);
+		tested.recordDataProcessed();
+		assertOrder(tested, 1, 2, 0);
+		Assert.assertFalse(tested.reoptimize());
+
+		// same cost, but second validator rejects more data, expensive stage never called uses scaled static cost
+		tested.recordStage(1, 100, false);
+		tested.recordStage(2, 100, true);
+		tested.recordDataProcessed();
+		assertOrder(tested, 2, 1, 0);
+		Assert.assertEquals(2, tested.getRejectedCount(2));
+		Assert.assertEquals(100, tested.getAverageNanos(2));
+		Assert.assertEquals(-1, tested.getAverageNanos(0));
+
+		// second validator is much slower
+		tested.recordStage(1, 100, false);
+		tested.recordStage(2, 100000, true);
+		tested.recordDataProcessed();
+		tested.recordStage(1, 100, false);
+		tested.recordStage(2, 100000, true);
+		tested.recordDataProcessed();
+		assertOrder(tested, 1, 2, 0);
+		Assert.assertEquals(0, tested.getRejectedCount(1));
+	}
+
+	@Test
+	public void reoptimize_unmeasuredStages() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(new CostPreprocessorMock("m", PreprocessorCostHint.COST_MODERATE, "src", "x"));
+		preprocs.add(createRequiredValidator("v1", "x"));
+		preprocs.add(new CostPreprocessorMock("e", PreprocessorCostHint.COST_EXPENSIVE, "src", "y"));
+		preprocs.add(createRequiredValidator("v2", "y"));
+		PreprocessChainOptimizer tested = createOptimizer(preprocs, 1);
+		assertOrder(tested, 0, 1, 2, 3);
+
+		// first validator rejects everything, so stages behind it are never called
+		tested.recordStage(0, 1000, false);
+		tested.recordStage(1, 10, true);
+		Assert.assertTrue(tested.reoptimize());
+		assertOrder(tested, 0, 1, 2, 3);
+		Assert.assertEquals(-1, tested.getAverageNanos(2));
+	}
+
+	@Test
+	public void chain_optimizeOrder() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		CostPreprocessorMock expensive = new CostPreprocessorMock("e", PreprocessorCostHint.COST_EXPENSIVE, "src", "x");
+		preprocs.add(expensive);
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("p1", "label", "{x}-{title}"));
+		preprocs.add(createRequiredValidator("v", "title"));
+		PreprocessChain tested = new PreprocessChain(preprocs);
+		Assert.assertNull(tested.getOptimizer());
+		tested.setOptimizeOrder(true);
+		PreprocessChainOptimizer optimizer = tested.getOptimizer();
+		Assert.assertNotNull(optimizer);
+		tested.setOptimizeOrder(true);
+		Assert.assertSame(optimizer, tested.getOptimizer());
+		assertOrder(optimizer, 2, 0, 1);
+
+		// rejected data item
+		try {
+			tested.preprocessData(new HashMap<String, Object>(), null);
+			Assert.fail("InvalidDataException expected");
+		} catch (InvalidDataException e) {
+			// OK
+		}
+		Assert.assertEquals(0, expensive.calls);
+		Assert.assertEquals(1, optimizer.getRejectedCount(2));
+
+		// accepted data item has same result as for original order
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("title", "t");
+		data = tested.preprocessData(data, null);
+		Assert.assertEquals(1, expensive.calls);
+		Assert.assertEquals("e-t", data.get("label"));
+		Assert.assertTrue(optimizer.getAverageNanos(0) >= 0);
+
+		tested.setOptimizeOrder(false);
+		Assert.assertNull(tested.getOptimizer());
+	}
+
+	@Test
+	public void chain_optimizeOrder_timeBudget() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("p0", "f0", "v"));
+		preprocs.add(PreprocessChainTest.createAddValuePreprocessor("p1", "f1", "v"));
+		preprocs.add(new PreprocessChainTest.SlowPreprocessorMock("slow", 50) {
+			@Override
+			public Set<String> getReadFields() {
+				return toFieldSet("title");
+			}
+
+			@Override
+			public Set<String> getWrittenFields() {
+				return toFieldSet();
+			}
+
+			@Override
+			public boolean mayRejectData() {
+				return true;
+			}
+		});
+		PreprocessChain tested = new PreprocessChain(preprocs);
+		tested.setOptimizeOrder(true);
+		tested.setTimeBudget(10, null);
+		assertOrder(tested.getOptimizer(), 2, 0, 1);
+
+		PreprocessChainContextImpl context = new PreprocessChainContextImpl();
+		Map<String, Object> data = tested.preprocessData(new HashMap<String, Object>(), context);
+		Assert.assertTrue(data.isEmpty());
+		Assert.assertEquals(2, context.getWarnings().size());
+		Assert.assertEquals("p0", context.getWarnings().get(0).getPreprocessorName());
+		Assert.assertEquals("p1", context.getWarnings().get(1).getPreprocessorName());
+	}
+
+	@Test
+	public void costHints() {
+		Assert.assertEquals(PreprocessorCostHint.COST_CHEAP, createRequiredValidator("v", "a").getCostHint());
+		Assert.assertTrue(createRequiredValidator("v", "a").mayRejectData());
+		Assert.assertEquals(PreprocessorCostHint.COST_EXPENSIVE, new ESLookupValuePreprocessor().getCostHint());
+		Assert.assertEquals(PreprocessorCostHint.COST_EXPENSIVE, new ScriptingPreprocessor().getCostHint());
+		Assert.assertEquals(PreprocessorCostHint.COST_MODERATE, new StripHtmlPreprocessor().getCostHint());
+		Assert.assertFalse(new StripHtmlPreprocessor().mayRejectData());
+		Assert.assertEquals(PreprocessorCostHint.COST_CHEAP, new AddValuePreprocessor().getCostHint());
+
+		LazyInitPreprocessor lazy = new LazyInitPreprocessor(new RequiredValidatorPreprocessor());
+		Assert.assertEquals(PreprocessorCostHint.COST_CHEAP, lazy.getCostHint());
+		Assert.assertTrue(lazy.mayRejectData());
+		lazy = new LazyInitPreprocessor(Mockito.mock(StructuredContentPreprocessor.class));
+		Assert.assertEquals(PreprocessorCostHint.COST_MODERATE, lazy.getCostHint());
+		Assert.assertFalse(lazy.mayRejectData());
+	}
+
+	private static PreprocessChainOptimizer createOptimizer(List<StructuredContentPreprocessor> preprocs,
+			int reoptimizeInterval) {
+		return new PreprocessChainOptimizer(preprocs, new PreprocessChainDependencyGraph(preprocs), reoptimizeInterval);
+	}
+
+	private static void assertOrder(PreprocessChainOptimizer tested, Integer... expected) {
+		List<Integer> actual = new ArrayList<Integer>();
+		for (int i : tested.getOrder()) {
+			actual.add(i);
+		}
+		Assert.assertEquals(Arrays.asList(expected), actual);
+	}
+
+	private static RequiredValidatorPreprocessor createRequiredValidator(String name, String field) {
+		RequiredValidatorPreprocessor preproc = new RequiredValidatorPreprocessor();
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put(RequiredValidatorPreprocessor.CFG_FIELD, field);
+		preproc.init(name, null, settings);
+		return preproc;
+	}
+
+	/**
+	 * Preprocessor with declared cost which writes its name into target field.
+	 */
+	protected static class CostPreprocessorMock extends StructuredContentPreprocessorBase {
+
+		int cost;
+		String sourceField;
+		String targetField;
+		int calls = 0;
+
+		protected CostPreprocessorMock(String name, int cost, String sourceField, String targetField) {
+			this.name = name;
+			this.cost = cost;
+			this.sourceField = sourceField;
+			this.targetField = targetField;
+		}
+
+		@Override
+		public void init(Map<String, Object> settings) {
+		}
+
+		@Override
+		public Map<String, Object> preprocessData(Map<String, Object> data, PreprocessChainContext chainContext) {
+			calls++;
+			data.put(targetField, name);
+			return data;
+		}
+
+		@Override
+		public Set<String> getReadFields() {
+			return toFieldSet(sourceField);
+		}
+
+		@Override
+		public Set<String> getWrittenFields() {
+			return toFieldSet(targetField);
+		}
+
+		@Override
+		public int getCostHint() {
+			return cost;
+		}
+	}
+
+}
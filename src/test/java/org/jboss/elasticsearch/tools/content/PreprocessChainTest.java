@@ -0,0 +1,548 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.Assert;
+
+import org.jboss.elasticsearch.tools.content.PreprocessChain.TimeoutAction;
+import org.jboss.elasticsearch.tools.content.testtools.TestUtils;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit test for {@link PreprocessChain}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class PreprocessChainTest {
+
+	@Test
+	public void preprocessData_noPreprocessors() {
+		PreprocessChain tested = new PreprocessChain(null);
+		Assert.assertTrue(tested.getPreprocessors().isEmpty());
+		Map<String, Object> data = new HashMap<String, Object>();
+		Assert.assertEquals(data, tested.preprocessData(data));
+		Assert.assertNull(tested.preprocessData(null, null));
+	}
+
+	@Test
+	public void preprocessData() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(createAddValuePreprocessor("p1", "f1", "v1"));
+		preprocs.add(createAddValuePreprocessor("p2", "f2", "{f1}-v2"));
+		PreprocessChain tested = new PreprocessChain(preprocs);
+		Assert.assertEquals(2, tested.getPreprocessors().size());
+
+		PreprocessChainContextImpl context = new PreprocessChainContextImpl();
+		Map<String, Object> data = tested.preprocessData(new HashMap<String, Object>(), context);
+		Assert.assertEquals("v1", data.get("f1"));
+		Assert.assertEquals("v1-v2", data.get("f2"));
+		Assert.assertFalse(context.isWarning());
+		// no time budget so no deadline in context
+		Assert.assertEquals(-1, context.getRemainingTimeMillis());
+	}
+
+	@Test
+	public void preprocessData_timeBudget_notExceeded() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(createAddValuePreprocessor("p1", "f1", "v1"));
+		PreprocessChain tested = new PreprocessChain(preprocs);
+		tested.setTimeBudget(10000, null);
+		Assert.assertEquals(TimeoutAction.SKIP, tested.getTimeoutAction());
+
+		PreprocessChainContextImpl context = new PreprocessChainContextImpl();
+		Map<String, Object> data = tested.preprocessData(new HashMap<String, Object>(), context);
+		Assert.assertEquals("v1", data.get("f1"));
+		Assert.assertFalse(context.isWarning());
+		Assert.assertTrue(context.getRemainingTimeMillis() > 0);
+
+		// case - no context passed in
+		data = tested.preprocessData(new HashMap<String, Object>());
+		Assert.assertEquals("v1", data.get("f1"));
+	}
+
+	@Test
+	public void preprocessData_timeBudget_skip() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(createAddValuePreprocessor("p1", "f1", "v1"));
+		preprocs.add(new SlowPreprocessorMock("slow", 50));
+		preprocs.add(createAddValuePreprocessor("p3", "f3", "v3"));
+		preprocs.add(createAddValuePreprocessor("p4", "f4", "v4"));
+		PreprocessChain tested = new PreprocessChain(preprocs);
+		tested.setTimeBudget(10, TimeoutAction.SKIP);
+
+		PreprocessChainContextImpl context = new PreprocessChainContextImpl();
+		Map<String, Object> data = tested.preprocessData(new HashMap<String, Object>(), context);
+		Assert.assertEquals("v1", data.get("f1"));
+		Assert.assertFalse(data.containsKey("f3"));
+		Assert.assertFalse(data.containsKey("f4"));
+		Assert.assertEquals(2, context.getWarnings().size());
+		Assert.assertEquals("p3", context.getWarnings().get(0).getPreprocessorName());
+		Assert.assertEquals("Preprocessor skipped because time budget of 10ms for data preprocessing is exceeded", context
+				.getWarnings().get(0).getWarningMessage());
+		Assert.assertEquals("p4", context.getWarnings().get(1).getPreprocessorName());
+
+		// case - other chain context implementation gets warnings forwarded
+		PreprocessChainContext contextMock = Mockito.mock(PreprocessChainContext.class);
+		data = tested.preprocessData(new HashMap<String, Object>(), contextMock);
+		Assert.assertFalse(data.containsKey("f3"));
+		Mockito.verify(contextMock).addDataWarning("p3",
+				"Preprocessor skipped because time budget of 10ms for data preprocessing is exceeded");
+		Mockito.verify(contextMock).addDataWarning("p4",
+				"Preprocessor skipped because time budget of 10ms for data preprocessing is exceeded");
+	}
+
+	@Test
+	public void deadlineHelpers() {
+		// context without deadline support
+		PreprocessChainContext contextMock = Mockito.mock(PreprocessChainContext.class);
+		Assert.assertFalse(PreprocessChain.isDeadlineExceeded(contextMock));
+		Assert.assertEquals(-1, PreprocessChain.getRemainingTimeMillis(contextMock));
+		Assert.assertFalse(PreprocessChain.isDeadlineExceeded(null));
+		Assert.assertEquals(-1, PreprocessChain.getRemainingTimeMillis(null));
+
+		PreprocessChainContextImpl context = new PreprocessChainContextImpl();
+		context.setTimeBudget(10000);
+		Assert.assertFalse(PreprocessChain.isDeadlineExceeded(context));
+		Assert.assertTrue(PreprocessChain.getRemainingTimeMillis(context) > 0);
+		context.setTimeBudget(1);
+		context.deadlineNanos = System.nanoTime() - 1;
+		Assert.assertTrue(PreprocessChain.isDeadlineExceeded(context));
+		Assert.assertEquals(0, PreprocessChain.getRemainingTimeMillis(context));
+	}
+
+	@Test
+	public void preprocessData_timeBudget_fail() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(new SlowPreprocessorMock("slow", 50));
+		preprocs.add(createAddValuePreprocessor("p2", "f2", "v2"));
+		PreprocessChain tested = new PreprocessChain(preprocs);
+		tested.setTimeBudget(10, TimeoutAction.FAIL);
+
+		try {
+			tested.preprocessData(new HashMap<String, Object>(), null);
+			Assert.fail("PreprocessChainTimeoutException expected");
+		} catch (PreprocessChainTimeoutException e) {
+			Assert.assertEquals("Time budget of 10ms for data preprocessing exceeded before preprocessor 'p2'",
+					e.getMessage());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void preprocessData_parallel() {
+		List<Map<String, Object>> config = (List<Map<String, Object>>) TestUtils.loadJSONFromClasspathFile(
+				"/PreprocessorConcurrency_chain.json").get("preprocessors");
+		PreprocessChain sequential = StructuredContentPreprocessorFactory.createPreprocessChain(config, null);
+		PreprocessChain tested = new PreprocessChain(sequential.getPreprocessors());
+		Assert.assertNull(tested.getParallelExecutor());
+		tested.setParallelExecutor(PreprocessChain.getSharedParallelExecutor());
+		Assert.assertSame(PreprocessChain.getSharedParallelExecutor(), tested.getParallelExecutor());
+
+		List<Map<String, Object>> expectedDocs = PreprocessorConcurrencyTest.createDocuments(1);
+		List<Map<String, Object>> docs = PreprocessorConcurrencyTest.createDocuments(1);
+		for (int i = 0; i < docs.size(); i++) {
+			PreprocessChainContextImpl expectedContext = new PreprocessChainContextImpl();
+			String expectedError = null;
+			try {
+				sequential.preprocessData(expectedDocs.get(i), expectedContext);
+			} catch (InvalidDataException e) {
+				expectedError = e.getMessage();
+			}
+			PreprocessChainContextImpl context = new PreprocessChainContextImpl();
+			String error = null;
+			try {
+				tested.preprocessData(docs.get(i), context);
+			} catch (InvalidDataException e) {
+				error = e.getMessage();
+			}
+			Assert.assertEquals(expectedError, error);
+			Assert.assertEquals(expectedDocs.get(i), docs.get(i));
+			Assert.assertEquals(expectedContext.isWarning(), context.isWarning());
+		}
+	}
+
+	@Test
+	public void preprocessData_parallel_exception() {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+			preprocs.add(new FailingPreprocessorMock("fail1", "f1"));
+			preprocs.add(createAddValuePreprocessor("p2", "f2", "v2"));
+			preprocs.add(new FailingPreprocessorMock("fail3", "f3"));
+			preprocs.add(createAddValuePreprocessor("p4", "f4", "{f2}"));
+			PreprocessChain tested = new PreprocessChain(preprocs);
+			tested.setParallelExecutor(executor);
+			Assert.assertEquals(3, tested.getDependencyGraph().getConcurrentLevels().get(0).size());
+
+			Map<String, Object> data = new HashMap<String, Object>();
+			try {
+				tested.preprocessData(data, null);
+				Assert.fail("IllegalStateException expected");
+			} catch (IllegalStateException e) {
+				// first failing preprocessor in chain order
+				Assert.assertEquals("fail1", e.getMessage());
+			}
+			// all concurrently run preprocessors finished, next level not run
+			Assert.assertEquals("v2", data.get("f2"));
+			Assert.assertFalse(data.containsKey("f4"));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void preprocessData_parallel_otherDataReturned() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(createAddValuePreprocessor("p1", "f1", "v1"));
+		preprocs.add(new CopyingPreprocessorMock("copy", "f2"));
+		PreprocessChain tested = new PreprocessChain(preprocs);
+		tested.setParallelExecutor(PreprocessChain.getSharedParallelExecutor());
+		Assert.assertEquals(2, tested.getDependencyGraph().getConcurrentLevels().get(0).size());
+
+		try {
+			tested.preprocessData(new HashMap<String, Object>(), null);
+			Assert.fail("IllegalStateException expected");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals(
+					"Preprocessor 'copy' returned other data instance than passed in, so it can't be run concurrently",
+					e.getMessage());
+		}
+
+		// case - sequential run uses returned data
+		tested.setParallelExecutor(null);
+		Map<String, Object> data = tested.preprocessData(new HashMap<String, Object>(), null);
+		Assert.assertEquals("v1", data.get("f1"));
+		Assert.assertEquals("x", data.get("f2"));
+	}
+
+	@Test
+	public void preprocessData_parallel_timeBudget_skip() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(new SlowPreprocessorMock("slow", 50));
+		preprocs.add(createAddValuePreprocessor("p2", "f2", "{f3}"));
+		preprocs.add(createAddValuePreprocessor("p3", "f3", "v3"));
+		preprocs.add(createAddValuePreprocessor("p4", "f4", "v4"));
+		PreprocessChain tested = new PreprocessChain(preprocs);
+		tested.setParallelExecutor(PreprocessChain.getSharedParallelExecutor());
+		tested.setTimeBudget(10, TimeoutAction.SKIP);
+
+		PreprocessChainContextImpl context = new PreprocessChainContextImpl();
+		Map<String, Object> data = tested.preprocessData(new HashMap<String, Object>(), context);
+		Assert.assertFalse(data.containsKey("f2"));
+		Assert.assertFalse(data.containsKey("f3"));
+		Assert.assertFalse(data.containsKey("f4"));
+		// skipped preprocessors reported in chain order
+		Assert.assertEquals(3, context.getWarnings().size());
+		Assert.assertEquals("p2", context.getWarnings().get(0).getPreprocessorName());
+		Assert.assertEquals("p3", context.getWarnings().get(1).getPreprocessorName());
+		Assert.assertEquals("p4", context.getWarnings().get(2).getPreprocessorName());
+	}
+
+	@Test
+	public void preprocessPartialUpdate() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		FieldPresenceFilterTest.CopyPreprocessorMock copyHtml = new FieldPresenceFilterTest.CopyPreprocessorMock("c0",
+				"html", "text");
+		preprocs.add(copyHtml);
+		preprocs.add(createAddValuePreprocessor("p1", "label", "{status}-{text}"));
+		preprocs.add(createAddValuePreprocessor("p2", "author.updated", "{updated}"));
+		preprocs.add(createAddValuePreprocessor("p3", "summary", "{author.updated}"));
+		PreprocessChain tested = new PreprocessChain(preprocs);
+
+		Map<String, Object> source = new HashMap<String, Object>();
+		source.put("html", "h");
+		source.put("status", "open");
+		source.put("updated", "u1");
+		Map<String, Object> output = tested.preprocessData(new HashMap<String, Object>(source), null);
+		Assert.assertEquals("open-h", output.get("label"));
+
+		// only preprocessors depending on changed field are called
+		Map<String, Object> delta = new HashMap<String, Object>();
+		delta.put("status", "closed");
+		Map<String, Object> update = tested.preprocessPartialUpdate(output, delta, null);
+		Assert.assertEquals(2, update.size());
+		Assert.assertEquals("closed", update.get("status"));
+		Assert.assertEquals("closed-h", update.get("label"));
+		Assert.assertEquals(1, copyHtml.calls);
+		source.put("status", "closed");
+		Assert.assertEquals(tested.preprocessData(new HashMap<String, Object>(source), null), output);
+
+		// transitive dependency over written field, removed field removes its copy too
+		delta.clear();
+		delta.put("updated", "u2");
+		delta.put("html", null);
+		update = tested.preprocessPartialUpdate(output, delta, null);
+		Assert.assertEquals(6, update.size());
+		Assert.assertTrue(update.containsKey("html"));
+		Assert.assertNull(update.get("html"));
+		Assert.assertTrue(update.containsKey("text"));
+		Assert.assertNull(update.get("text"));
+		Assert.assertEquals("u2", ((Map<?, ?>) update.get("author")).get("updated"));
+		Assert.assertEquals("u2", update.get("summary"));
+		source.put("updated", "u2");
+		source.remove("html");
+		Map<String, Object> expected = tested.preprocessData(new HashMap<String, Object>(source), null);
+		Assert.assertEquals(expected.get("label"), update.get("label"));
+		Assert.assertEquals(expected, output);
+
+		// nothing changed
+		Assert.assertTrue(tested.preprocessPartialUpdate(output, new HashMap<String, Object>(), null).isEmpty());
+
+		// invalid parameters
+		try {
+			tested.preprocessPartialUpdate(output, null, null);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("delta must be defined", e.getMessage());
+		}
+		try {
+			tested.preprocessPartialUpdate(null, delta, null);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("previousOutput must be defined", e.getMessage());
+		}
+
+		// undeclared field access may read output of later preprocessors, so previous input is necessary
+		preprocs.add(1, new SlowPreprocessorMock("s", 0));
+		tested = new PreprocessChain(preprocs);
+		Assert.assertTrue(tested.isRerunReadingLaterOutput(1));
+		delta.clear();
+		delta.put("status", "open");
+		try {
+			tested.preprocessPartialUpdate(output, delta, null);
+			Assert.fail("IllegalStateException expected");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals(
+					"Preprocessor 's' reads field written by itself or later preprocessor, so previous input is necessary for partial update",
+					e.getMessage());
+		}
+		// whole chain called over previous input, complete output returned
+		source.put("html", "h");
+		Map<String, Object> input = new HashMap<String, Object>(source);
+		Map<String, Object> ret = tested.preprocessPartialUpdate(input, output, delta, null);
+		Assert.assertSame(input, ret);
+		Assert.assertEquals("open-h", ret.get("label"));
+		Assert.assertEquals(4, copyHtml.calls);
+	}
+
+	@Test
+	public void preprocessPartialUpdate_readsLaterOutput() {
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(createAddValuePreprocessor("p0", "label", "{status}-{title}"));
+		preprocs.add(createAddValuePreprocessor("p1", "title", "fixed"));
+		preprocs.add(createAddValuePreprocessor("p2", "summary", "{updated}"));
+		PreprocessChain tested = new PreprocessChain(preprocs);
+		Assert.assertTrue(tested.isRerunReadingLaterOutput(0));
+		Assert.assertFalse(tested.isRerunReadingLaterOutput(1));
+		Assert.assertFalse(tested.isRerunReadingLaterOutput(2));
+
+		Map<String, Object> source = new HashMap<String, Object>();
+		source.put("status", "open");
+		source.put("title", "original");
+		source.put("updated", "u1");
+		Map<String, Object> output = tested.preprocessData(new HashMap<String, Object>(source), null);
+		Assert.assertEquals("open-original", output.get("label"));
+
+		// preprocessor not reading output of later ones is called incrementally
+		Map<String, Object> delta = new HashMap<String, Object>();
+		delta.put("updated", "u2");
+		Map<String, Object> update = tested.preprocessPartialUpdate(output, delta, null);
+		Assert.assertEquals(2, update.size());
+		Assert.assertEquals("u2", update.get("summary"));
+		source.put("updated", "u2");
+
+		// rerun of p0 over previous output would see title written by p1, so whole chain is called over input
+		delta.clear();
+		delta.put("status", "closed");
+		source.put("status", "open");
+		Map<String, Object> ret = tested.preprocessPartialUpdate(source, output, delta, null);
+		Assert.assertEquals("closed-original", ret.get("label"));
+		Assert.assertEquals("fixed", ret.get("title"));
+		Assert.assertEquals("u2", ret.get("summary"));
+	}
+
+	@Test
+	public void preprocessPartialUpdate_staleTarget() {
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put(StripHtmlPreprocessor.CFG_SOURCE_FIELD, "description");
+		settings.put(StripHtmlPreprocessor.CFG_TARGET_FIELD, "description_text");
+		StripHtmlPreprocessor strip = new StripHtmlPreprocessor();
+		strip.init("strip", null, settings);
+		List<StructuredContentPreprocessor> preprocs = new ArrayList<StructuredContentPreprocessor>();
+		preprocs.add(strip);
+		PreprocessChain tested = new PreprocessChain(preprocs);
+		Assert.assertFalse(tested.isRerunReadingOwnOutput(0));
+
+		Map<String, Object> source = new HashMap<String, Object>();
+		source.put("description", "<b>hi</b>");
+		Map<String, Object> output = tested.preprocessData(new HashMap<String, Object>(source), null);
+		Assert.assertEquals("hi", output.get("description_text"));
+
+		// target is removed with source
+		Map<String, Object> delta = new HashMap<String, Object>();
+		delta.put("description", null);
+		Map<String, Object> update = tested.preprocessPartialUpdate(output, delta, null);
+		Assert.assertEquals(2, update.size());
+		Assert.assertTrue(update.containsKey("description_text"));
+		Assert.assertNull(update.get("description_text"));
+		Assert.assertTrue(output.isEmpty());
+
+		// target is removed if source changes to value which is not processed
+		output = tested.preprocessData(new HashMap<String, Object>(source), null);
+		delta.put("description", 10);
+		PreprocessChainContextImpl context = new PreprocessChainContextImpl();
+		update = tested.preprocessPartialUpdate(output, delta, context);
+		Assert.assertNull(update.get("description_text"));
+		Assert.assertFalse(output.containsKey("description_text"));
+		Assert.assertTrue(context.isWarning());
+		source.put("description", 10);
+		Assert.assertEquals(tested.preprocessData(new HashMap<String, Object>(source), null), output);
+
+		// preprocessor overwriting field it reads can't be called over its own previous output
+		settings.put(StripHtmlPreprocessor.CFG_TARGET_FIELD, "description");
+		strip.init("strip", null, settings);
+		tested = new PreprocessChain(preprocs);
+		Assert.assertTrue(tested.isRerunReadingOwnOutput(0));
+		source.put("description", "<b>hi</b>");
+		output = tested.preprocessData(new HashMap<String, Object>(source), null);
+		delta.put("description", "<i>&lt;b&gt;hello&lt;/b&gt;</i>");
+		try {
+			tested.preprocessPartialUpdate(output, delta, null);
+			Assert.fail("IllegalStateException expected");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals(
+					"Preprocessor 'strip' reads field written by itself or later preprocessor, so previous input is necessary for partial update",
+					e.getMessage());
+		}
+		Map<String, Object> ret = tested.preprocessPartialUpdate(source, output, delta, null);
+		Assert.assertEquals("<b>hello</b>", ret.get("description"));
+	}
+
+	@Test
+	public void timeoutAction_parse() {
+		Assert.assertEquals(TimeoutAction.SKIP, TimeoutAction.parse(null));
+		Assert.assertEquals(TimeoutAction.SKIP, TimeoutAction.parse(" "));
+		Assert.assertEquals(TimeoutAction.SKIP, TimeoutAction.parse("skip"));
+		Assert.assertEquals(TimeoutAction.FAIL, TimeoutAction.parse("Fail "));
+		try {
+			TimeoutAction.parse("unknown");
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("Unknown timeout action 'unknown', allowed values are [SKIP, FAIL]", e.getMessage());
+		}
+	}
+
+	protected static StructuredContentPreprocessor createAddValuePreprocessor(String name, String field, String value) {
+		AddValuePreprocessor preproc = new AddValuePreprocessor();
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put(AddValuePreprocessor.CFG_FIELD, field);
+		settings.put(AddValuePreprocessor.CFG_VALUE, value);
+		preproc.init(name, null, settings);
+		return preproc;
+	}
+
+	/**
+	 * Preprocessor which simply sleeps for defined time.
+	 */
+	protected static class SlowPreprocessorMock extends StructuredContentPreprocessorBase {
+
+		long sleepMillis;
+
+		protected SlowPreprocessorMock(String name, long sleepMillis) {
+			this.name = name;
+			this.sleepMillis = sleepMillis;
+		}
+
+		@Override
+		public void init(Map<String, Object> settings) {
+		}
+
+		@Override
+		public Map<String, Object> preprocessData(Map<String, Object> data, PreprocessChainContext chainContext) {
+			try {
+				Thread.sleep(sleepMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return data;
+		}
+	}
+
+	/**
+	 * Preprocessor which fails with its name as message after it writes field.
+	 */
+	protected static class CopyingPreprocessorMock extends StructuredContentPreprocessorBase {
+
+		String field;
+
+		protected CopyingPreprocessorMock(String name, String field) {
+			this.name = name;
+			this.field = field;
+		}
+
+		@Override
+		public void init(Map<String, Object> settings) {
+		}
+
+		@Override
+		public Map<String, Object> preprocessData(Map<String, Object> data, PreprocessChainContext chainContext) {
+			Map<String, Object> ret = new HashMap<String, Object>(data);
+			ret.put(field, "x");
+			return ret;
+		}
+
+		@Override
+		public Set<String> getReadFields() {
+			return Collections.emptySet();
+		}
+
+		@Override
+		public Set<String> getWrittenFields() {
+			return toFieldSet(field);
+		}
+	}
+
+	protected static class FailingPreprocessorMock extends StructuredContentPreprocessorBase {
+
+		String field;
+
+		protected FailingPreprocessorMock(String name, String field) {
+			this.name = name;
+			this.field = field;
+		}
+
+		@Override
+		public void init(Map<String, Object> settings) {
+		}
+
+		@Override
+		public Map<String, Object> preprocessData(Map<String, Object> data, PreprocessChainContext chainContext) {
+			data.put(field, "x");
+			throw new IllegalStateException(name);
+		}
+
+		@Override
+		public Set<String> getReadFields() {
+			return Collections.emptySet();
+		}
+
+		@Override
+		public Set<String> getWrittenFields() {
+			return toFieldSet(field);
+		}
+	}
+
+}
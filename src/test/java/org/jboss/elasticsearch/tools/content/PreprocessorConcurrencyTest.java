@@ -0,0 +1,244 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.jboss.elasticsearch.tools.content.PreprocessChainContextImpl.DataWarning;
+import org.jboss.elasticsearch.tools.content.testtools.TestUtils;
+import org.junit.Test;
+
+/**
+ * Concurrency stress test for built-in preprocessors and whole {@link PreprocessChain}. One initialized instance is
+ * used by many threads to process randomized documents in random order, and result for each document (data, warnings,
+ * exception) must be the same as result of single-threaded processing of the same document by another instance in
+ * original order.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class PreprocessorConcurrencyTest {
+
+	private static final int THREADS = 8;
+	private static final int DOCUMENTS = 1000;
+	private static final long SEED = 20141019L;
+
+	@SuppressWarnings("unchecked")
+	private static List<Map<String, Object>> loadChainConfig() {
+		return (List<Map<String, Object>>) TestUtils.loadJSONFromClasspathFile("/PreprocessorConcurrency_chain.json").get(
+				"preprocessors");
+	}
+
+	@Test
+	public void eachPreprocessor() throws Exception {
+		for (final Map<String, Object> config : loadChainConfig()) {
+			assertConcurrentResultsSame((String) config.get(StructuredContentPreprocessorFactory.CFG_NAME),
+					new ProcessorFactory() {
+						@Override
+						public Processor create() {
+							final StructuredContentPreprocessor preprocessor = StructuredContentPreprocessorFactory
+									.createPreprocessor(config, null);
+							return new Processor() {
+								@Override
+								public Map<String, Object> process(Map<String, Object> data, PreprocessChainContext chainContext) {
+									return preprocessor.preprocessData(data, chainContext);
+								}
+							};
+						}
+					});
+		}
+	}
+
+	@Test
+	public void wholeChain() throws Exception {
+		assertConcurrentResultsSame("chain", new ProcessorFactory() {
+			@Override
+			public Processor create() {
+				final PreprocessChain chain = StructuredContentPreprocessorFactory.createPreprocessChain(loadChainConfig(),
+						null);
+				return new Processor() {
+					@Override
+					public Map<String, Object> process(Map<String, Object> data, PreprocessChainContext chainContext) {
+						return chain.preprocessData(data, chainContext);
+					}
+				};
+			}
+		});
+	}
+
+	/**
+	 * Process {@link #DOCUMENTS} randomized documents single-threaded, then process the same documents in random order
+	 * by {@link #THREADS} threads concurrently using another processor instance, and compare results.
+	 * 
+	 * @param name used in failure message
+	 * @param processorFactory to create tested processor instances
+	 */
+	protected static void assertConcurrentResultsSame(String name, ProcessorFactory processorFactory) throws Exception {
+		final List<Map<String, Object>> expectedDocs = createDocuments(SEED);
+		final Outcome[] expected = new Outcome[DOCUMENTS];
+		Processor baseline = processorFactory.create();
+		for (int i = 0; i < DOCUMENTS; i++) {
+			expected[i] = Outcome.run(baseline, expectedDocs.get(i));
+		}
+
+		final Processor processor = processorFactory.create();
+		final List<Map<String, Object>> docs = createDocuments(SEED);
+		final List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < DOCUMENTS; i++)
+			order.add(i);
+		Collections.shuffle(order, new Random(SEED));
+		final Outcome[] actual = new Outcome[DOCUMENTS];
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			for (int t = 0; t < THREADS; t++) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						int n;
+						while ((n = next.getAndIncrement()) < DOCUMENTS) {
+							int i = order.get(n);
+							actual[i] = Outcome.run(processor, docs.get(i));
+						}
+					}
+				});
+			}
+			start.countDown();
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertTrue("Processing timed out for " + name, executor.awaitTermination(60, TimeUnit.SECONDS));
+
+		for (int i = 0; i < DOCUMENTS; i++) {
+			Assert.assertEquals("Different result of concurrent processing for '" + name + "', document " + i + " "
+					+ expectedDocs.get(i), expected[i], actual[i]);
+		}
+	}
+
+	/**
+	 * Create randomized documents. Same seed gives same documents.
+	 * 
+	 * @param seed for random generator
+	 * @return list of documents
+	 */
+	protected static List<Map<String, Object>> createDocuments(long seed) {
+		Random r = new Random(seed);
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXX");
+		long now = 1413676800000L;
+		List<Map<String, Object>> ret = new ArrayList<Map<String, Object>>();
+		String[] words = { "alpha", "beta", "gamma", "delta", "<i>epsilon</i>", "&amp;", "zeta" };
+		for (int i = 0; i < DOCUMENTS; i++) {
+			Map<String, Object> doc = new HashMap<String, Object>();
+			if (r.nextInt(10) > 0)
+				doc.put("title", "Title " + r.nextInt(50));
+			doc.put("count", r.nextInt(100));
+			doc.put("html", "<p>Hello <b>" + words[r.nextInt(words.length)] + "</b> world " + words[r.nextInt(words.length)]
+					+ "</p>");
+			doc.put("version", r.nextBoolean() ? r.nextInt(5) + "." + r.nextInt(10) + "." + r.nextInt(10) : "v" + i);
+			if (r.nextBoolean())
+				doc.put("created_long", now - r.nextInt(1000000000));
+			else
+				doc.put("created_long", "not number " + i);
+			List<Object> updates = new ArrayList<Object>();
+			for (int j = r.nextInt(4); j > 0; j--)
+				updates.add(ValueUtils.formatISODateTime(new Date(now - r.nextInt(1000000000))));
+			doc.put("updates", updates);
+			if (r.nextInt(4) > 0)
+				doc.put("from", df.format(new Date(now - r.nextInt(1000000000))));
+			doc.put("to", df.format(new Date(now + r.nextInt(1000000000))));
+			doc.put("checked", r.nextInt(10) > 0 ? df.format(new Date(now - 500000000 + r.nextInt(1000000000))) : "bad date");
+			String[] codes = { "a", "b", "c" };
+			if (r.nextInt(4) > 0)
+				doc.put("code", codes[r.nextInt(codes.length)]);
+			doc.put("project", "p" + r.nextInt(6));
+			List<Object> tags = new ArrayList<Object>();
+			for (int j = r.nextInt(4); j > 0; j--)
+				tags.add(words[r.nextInt(words.length)]);
+			doc.put("tags", tags);
+			Map<String, Object> user = new HashMap<String, Object>();
+			user.put("name", "user" + r.nextInt(20));
+			doc.put("user", user);
+			ret.add(doc);
+		}
+		return ret;
+	}
+
+	/**
+	 * Factory of tested processor instances.
+	 */
+	protected static interface ProcessorFactory {
+		Processor create();
+	}
+
+	/**
+	 * Tested processing of one document.
+	 */
+	protected static interface Processor {
+		Map<String, Object> process(Map<String, Object> data, PreprocessChainContext chainContext);
+	}
+
+	/**
+	 * Result of processing of one document.
+	 */
+	protected static class Outcome {
+		Map<String, Object> data;
+		String exception;
+		List<String> warnings = new ArrayList<String>();
+
+		static Outcome run(Processor processor, Map<String, Object> data) {
+			Outcome ret = new Outcome();
+			PreprocessChainContextImpl chainContext = new PreprocessChainContextImpl();
+			try {
+				ret.data = processor.process(data, chainContext);
+			} catch (RuntimeException e) {
+				ret.exception = e.getClass().getName() + ": " + e.getMessage();
+			}
+			for (DataWarning w : chainContext.getWarnings()) {
+				ret.warnings.add(w.getPreprocessorName() + ": " + w.getWarningMessage());
+			}
+			return ret;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Outcome))
+				return false;
+			Outcome o = (Outcome) obj;
+			return (data == null ? o.data == null : data.equals(o.data))
+					&& (exception == null ? o.exception == null : exception.equals(o.exception)) && warnings.equals(o.warnings);
+		}
+
+		@Override
+		public int hashCode() {
+			return warnings.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return "Outcome [data=" + data + ", exception=" + exception + ", warnings=" + warnings + "]";
+		}
+	}
+
+}
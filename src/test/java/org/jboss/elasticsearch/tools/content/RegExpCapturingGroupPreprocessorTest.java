@@ -309,4 +309,80 @@ public class RegExpCapturingGroupPreprocessorTest {
 
 	}
 
+	@Test
+	public void preprocessData_timeBudget() {
+
+		RegExpCapturingGroupPreprocessor tested = new RegExpCapturingGroupPreprocessor();
+		tested.name = "mypreproc";
+		tested.fieldSource = "source";
+		tested.resultMapping = RESULT_MAPPING_VALID;
+		tested.patternCompiled = Pattern.compile("(a+)(b)(c*)");
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			sb.append("a");
+		}
+
+		// case - matching is interrupted when time budget is exhausted, deadline is controlled by context
+		{
+			Map<String, Object> values = new HashMap<String, Object>();
+			values.put(tested.fieldSource, sb.toString());
+			DeadlineContextMock context = new DeadlineContextMock(1);
+			tested.preprocessData(values, context);
+			Assert.assertEquals(2, context.checks);
+			Assert.assertNull(values.get(TARGET_0));
+			Assert.assertEquals(1, context.getWarnings().size());
+			Assert.assertEquals(
+					"Pattern matching for value from field 'source' interrupted because time budget for data preprocessing is exceeded",
+					context.getWarnings().get(0).getWarningMessage());
+		}
+
+		// case - long matching finishes if deadline is not exceeded
+		{
+			Map<String, Object> values = new HashMap<String, Object>();
+			values.put(tested.fieldSource, sb.toString() + "b");
+			DeadlineContextMock context = new DeadlineContextMock(Integer.MAX_VALUE);
+			tested.preprocessData(values, context);
+			Assert.assertTrue(context.checks > 0);
+			Assert.assertEquals(sb.toString(), values.get(TARGET_1));
+			Assert.assertFalse(context.isWarning());
+		}
+
+		// case - pattern matches within time budget, groups are correctly extracted
+		{
+			Map<String, Object> values = new HashMap<String, Object>();
+			values.put(tested.fieldSource, "aab");
+			PreprocessChainContextImpl context = new PreprocessChainContextImpl();
+			context.setTimeBudget(10000);
+			tested.preprocessData(values, context);
+			Assert.assertEquals("aab", values.get(TARGET_0));
+			Assert.assertEquals("aa", values.get(TARGET_1));
+			Assert.assertEquals("b", values.get(TARGET_2));
+			Assert.assertFalse(context.isWarning());
+		}
+	}
+
+	/**
+	 * Context with deadline exceeded after given number of checks, so test does not depend on time.
+	 */
+	private static class DeadlineContextMock extends PreprocessChainContextImpl {
+
+		int checksBeforeDeadline;
+		int checks = 0;
+
+		DeadlineContextMock(int checksBeforeDeadline) {
+			this.checksBeforeDeadline = checksBeforeDeadline;
+		}
+
+		@Override
+		public boolean isDeadlineExceeded() {
+			return ++checks > checksBeforeDeadline;
+		}
+
+		@Override
+		public long getRemainingTimeMillis() {
+			return checks >= checksBeforeDeadline ? 0 : 1000;
+		}
+	}
+
 }
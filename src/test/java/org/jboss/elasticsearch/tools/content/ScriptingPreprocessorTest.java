@@ -118,4 +118,36 @@ public class ScriptingPreprocessorTest {
 		Assert.assertEquals("con", data.get("c"));
 	}
 
+	@Test
+	public void preprocessData_timeBudget() throws InterruptedException {
+		ScriptingPreprocessor tested = new ScriptingPreprocessor();
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put(ScriptingPreprocessor.CFG_SCRIPT_FIELD,
+				"if (!chainContext.isDeadlineExceeded()) { data.put('c','con'); }");
+		tested.init("my preprocc", null, settings);
+
+		// case - time budget not exhausted, chain context available in script
+		{
+			PreprocessChainContextImpl context = new PreprocessChainContextImpl();
+			context.setTimeBudget(10000);
+			Map<String, Object> data = new HashMap<>();
+			tested.preprocessData(data, context);
+			Assert.assertFalse("no warnings expected but is " + context, context.isWarning());
+			Assert.assertEquals("con", data.get("c"));
+		}
+
+		// case - time budget exhausted, script is not executed
+		{
+			PreprocessChainContextImpl context = new PreprocessChainContextImpl();
+			context.setTimeBudget(1);
+			Thread.sleep(5);
+			Map<String, Object> data = new HashMap<>();
+			tested.preprocessData(data, context);
+			Assert.assertNull(data.get("c"));
+			Assert.assertEquals(1, context.getWarnings().size());
+			Assert.assertEquals("Script not executed because time budget for data preprocessing is exceeded", context
+					.getWarnings().get(0).getWarningMessage());
+		}
+	}
+
 }
@@ -5,8 +5,16 @@
  */
 package org.jboss.elasticsearch.tools.content;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 
@@ -99,6 +107,31 @@ public class StructuredContentPreprocessorFactoryTest {
 		StructuredContentPreprocessorFactory.createPreprocessor(preprocessorConfig, clientMock);
 	}
 
+	@Test
+	public void createPreprocessor_class_alias() {
+		Client clientMock = mock(Client.class);
+
+		// case - alias registered over ServiceLoader from test resources
+		Map<String, Object> preprocessorConfig = getTestingPreprocessorConfig();
+		preprocessorConfig.put(StructuredContentPreprocessorFactory.CFG_CLASS, StructuredContentPreprocessorProviderMock.ALIAS);
+		StructuredContentPreprocessor preproc = StructuredContentPreprocessorFactory.createPreprocessor(preprocessorConfig,
+				clientMock);
+		Assert.assertEquals("Status Normalizer", preproc.getName());
+		Assert.assertEquals("value1", ((StructuredContentPreprocessorMock) preproc).settings.get("some_setting_1_1"));
+
+		// case - alias of built in preprocessor
+		preprocessorConfig = new HashMap<String, Object>();
+		preprocessorConfig.put(StructuredContentPreprocessorFactory.CFG_NAME, "Strip");
+		preprocessorConfig.put(StructuredContentPreprocessorFactory.CFG_CLASS, "strip_html");
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put(StripHtmlPreprocessor.CFG_SOURCE_FIELD, "text");
+		settings.put(StripHtmlPreprocessor.CFG_TARGET_FIELD, "text");
+		preprocessorConfig.put(StructuredContentPreprocessorFactory.CFG_SETTINGS, settings);
+		preproc = StructuredContentPreprocessorFactory.createPreprocessor(preprocessorConfig, clientMock);
+		Assert.assertTrue(preproc instanceof StripHtmlPreprocessor);
+		Assert.assertEquals("Strip", preproc.getName());
+	}
+
 	@SuppressWarnings("unchecked")
 	private Map<String, Object> getTestingPreprocessorConfig() {
 		List<Map<String, Object>> preprocessorConfigList = (List<Map<String, Object>>) (TestUtils
@@ -131,4 +164,215 @@ public class StructuredContentPreprocessorFactoryTest {
 				((StructuredContentPreprocessorMock) preprocs.get(1)).settings.get("some_setting_2_2"));
 	}
 
+	@SuppressWarnings("unchecked")
+	@Test
+	public void createPreprocessors_parallel() {
+		Client clientMock = mock(Client.class);
+		List<Map<String, Object>> preprocessorConfig = (List<Map<String, Object>>) (TestUtils
+				.loadJSONFromClasspathFile("/StructuredContentPreprocessorFactory.json")).get("preprocessors");
+
+		// case - initialized by executor threads, order is kept
+		final AtomicInteger executed = new AtomicInteger();
+		Executor threadPerTask = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				executed.incrementAndGet();
+				new Thread(command).start();
+			}
+		};
+		List<StructuredContentPreprocessor> preprocs = StructuredContentPreprocessorFactory.createPreprocessors(
+				preprocessorConfig, clientMock, threadPerTask);
+		Assert.assertEquals(2, executed.get());
+		Assert.assertEquals(2, preprocs.size());
+		Assert.assertEquals("Status Normalizer", preprocs.get(0).getName());
+		Assert.assertEquals("value1",
+				((StructuredContentPreprocessorMock) preprocs.get(0)).settings.get("some_setting_1_1"));
+		Assert.assertEquals("Issue type Normalizer", preprocs.get(1).getName());
+		Assert.assertEquals("value1",
+				((StructuredContentPreprocessorMock) preprocs.get(1)).settings.get("some_setting_2_1"));
+
+		// case - executor rejecting or not running tasks, calling thread initializes them
+		Executor rejecting = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException();
+			}
+		};
+		preprocs = StructuredContentPreprocessorFactory.createPreprocessors(preprocessorConfig, clientMock, rejecting);
+		Assert.assertEquals(2, preprocs.size());
+		Executor idle = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+			}
+		};
+		preprocs = StructuredContentPreprocessorFactory.createPreprocessors(preprocessorConfig, clientMock, idle);
+		Assert.assertEquals("Issue type Normalizer", preprocs.get(1).getName());
+
+		// case - exception from the first failing preprocessor is thrown
+		preprocessorConfig.get(0).put(StructuredContentPreprocessorFactory.CFG_CLASS, "org.unknown.A");
+		preprocessorConfig.get(1).put(StructuredContentPreprocessorFactory.CFG_CLASS, "org.unknown.B");
+		try {
+			StructuredContentPreprocessorFactory.createPreprocessors(preprocessorConfig, clientMock, threadPerTask);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("Preprocessor class org.unknown.A not found", e.getMessage());
+		}
+		try {
+			StructuredContentPreprocessorFactory.createPreprocessors(preprocessorConfig, clientMock);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("Preprocessor class org.unknown.A not found", e.getMessage());
+		}
+	}
+
+	@Test
+	public void createPreprocessors_failureClosesCreated() throws IOException {
+		Client clientMock = mock(Client.class);
+		List<Map<String, Object>> preprocessorConfig = new ArrayList<Map<String, Object>>();
+		Map<String, Object> closeable = getTestingPreprocessorConfig();
+		closeable.put(StructuredContentPreprocessorFactory.CFG_CLASS, CloseCountingPreprocessorMock.class.getName());
+		preprocessorConfig.add(closeable);
+		Map<String, Object> failing = getTestingPreprocessorConfig();
+		failing.put(StructuredContentPreprocessorFactory.CFG_CLASS, "org.unknown.B");
+		preprocessorConfig.add(failing);
+
+		Executor threadPerTask = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				new Thread(command).start();
+			}
+		};
+		CloseCountingPreprocessorMock.closed.set(0);
+		for (Executor executor : Arrays.asList(null, threadPerTask)) {
+			try {
+				StructuredContentPreprocessorFactory.createPreprocessors(preprocessorConfig, clientMock, executor);
+				Assert.fail("IllegalArgumentException expected");
+			} catch (IllegalArgumentException e) {
+				Assert.assertEquals("Preprocessor class org.unknown.B not found", e.getMessage());
+			}
+		}
+		Assert.assertEquals(2, CloseCountingPreprocessorMock.closed.get());
+	}
+
+	/**
+	 * Preprocessor counting number of closed instances.
+	 */
+	public static class CloseCountingPreprocessorMock extends StructuredContentPreprocessorMock implements Closeable {
+
+		static final AtomicInteger closed = new AtomicInteger();
+
+		@Override
+		public void close() throws IOException {
+			closed.incrementAndGet();
+		}
+	}
+
+	@Test
+	public void createPreprocessor_lazyInit() {
+		Client clientMock = mock(Client.class);
+
+		Map<String, Object> preprocessorConfig = getTestingPreprocessorConfig();
+		preprocessorConfig.put(StructuredContentPreprocessorFactory.CFG_LAZY_INIT, true);
+		StructuredContentPreprocessor preproc = StructuredContentPreprocessorFactory.createPreprocessor(preprocessorConfig,
+				clientMock);
+		Assert.assertTrue(preproc instanceof LazyInitPreprocessor);
+		Assert.assertEquals("Status Normalizer", preproc.getName());
+		StructuredContentPreprocessorMock delegate = (StructuredContentPreprocessorMock) ((LazyInitPreprocessor) preproc)
+				.getDelegate();
+		Assert.assertNull(delegate.settings);
+
+		preproc.preprocessData(new HashMap<String, Object>());
+		Assert.assertEquals("value1", delegate.settings.get("some_setting_1_1"));
+		Assert.assertEquals(clientMock, delegate.client);
+
+		// case - string value and false
+		preprocessorConfig.put(StructuredContentPreprocessorFactory.CFG_LAZY_INIT, "true");
+		Assert.assertTrue(StructuredContentPreprocessorFactory.createPreprocessor(preprocessorConfig, clientMock) instanceof LazyInitPreprocessor);
+		preprocessorConfig.put(StructuredContentPreprocessorFactory.CFG_LAZY_INIT, false);
+		Assert.assertTrue(StructuredContentPreprocessorFactory.createPreprocessor(preprocessorConfig, clientMock) instanceof StructuredContentPreprocessorMock);
+	}
+
+	@Test
+	public void createPreprocessor_condition() {
+		Client clientMock = mock(Client.class);
+
+		Map<String, Object> preprocessorConfig = getTestingPreprocessorConfig();
+		preprocessorConfig.put(StructuredContentPreprocessorFactory.CFG_CONDITION, DataConditionTest.cond("exists", "type"));
+		preprocessorConfig.put(StructuredContentPreprocessorFactory.CFG_LAZY_INIT, true);
+		StructuredContentPreprocessor preproc = StructuredContentPreprocessorFactory.createPreprocessor(preprocessorConfig,
+				clientMock);
+		Assert.assertTrue(preproc instanceof ConditionalPreprocessor);
+		Assert.assertEquals("Status Normalizer", preproc.getName());
+		LazyInitPreprocessor lazy = (LazyInitPreprocessor) ((ConditionalPreprocessor) preproc).getDelegate();
+
+		// case - not matching data item doesn't initialize lazy preprocessor
+		preproc.preprocessData(new HashMap<String, Object>());
+		Assert.assertFalse(lazy.isInitialized());
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("type", "bug");
+		preproc.preprocessData(data);
+		Assert.assertTrue(lazy.isInitialized());
+
+		// case - invalid condition
+		preprocessorConfig.put(StructuredContentPreprocessorFactory.CFG_CONDITION, DataConditionTest.cond("exists", ""));
+		try {
+			StructuredContentPreprocessorFactory.createPreprocessor(preprocessorConfig, clientMock);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals(
+					"Invalid 'condition' element for preprocessor Status Normalizer: 'exists' condition must contain field name",
+					e.getMessage());
+		}
+	}
+
+	@Test
+	public void createPreprocessor_memoize() {
+		Client clientMock = mock(Client.class);
+
+		Map<String, Object> preprocessorConfig = getTestingPreprocessorConfig();
+		preprocessorConfig.put(StructuredContentPreprocessorFactory.CFG_MEMOIZE, true);
+		StructuredContentPreprocessor preproc = StructuredContentPreprocessorFactory.createPreprocessor(preprocessorConfig,
+				clientMock);
+		Assert.assertTrue(preproc instanceof MemoizingPreprocessor);
+		Assert.assertEquals("Status Normalizer", preproc.getName());
+		Assert.assertEquals(MemoizingPreprocessor.DEFAULT_MAX_SIZE, ((MemoizingPreprocessor) preproc).getMaxSize());
+		Assert.assertTrue(((MemoizingPreprocessor) preproc).getDelegate() instanceof StructuredContentPreprocessorMock);
+
+		preprocessorConfig.put(StructuredContentPreprocessorFactory.CFG_MEMOIZE, 100);
+		preprocessorConfig.put(StructuredContentPreprocessorFactory.CFG_CONDITION, DataConditionTest.cond("exists", "type"));
+		preproc = StructuredContentPreprocessorFactory.createPreprocessor(preprocessorConfig, clientMock);
+		MemoizingPreprocessor memoizing = (MemoizingPreprocessor) ((ConditionalPreprocessor) preproc).getDelegate();
+		Assert.assertEquals(100, memoizing.getMaxSize());
+
+		preprocessorConfig.put(StructuredContentPreprocessorFactory.CFG_MEMOIZE, 0);
+		try {
+			StructuredContentPreprocessorFactory.createPreprocessor(preprocessorConfig, clientMock);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("'memoize' element must be true or positive number for preprocessor Status Normalizer",
+					e.getMessage());
+		}
+		preprocessorConfig.put(StructuredContentPreprocessorFactory.CFG_MEMOIZE, false);
+		Assert.assertTrue(((ConditionalPreprocessor) StructuredContentPreprocessorFactory.createPreprocessor(
+				preprocessorConfig, clientMock)).getDelegate() instanceof StructuredContentPreprocessorMock);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void createPreprocessChain() {
+		Client clientMock = mock(Client.class);
+
+		List<Map<String, Object>> preprocessorConfig = (List<Map<String, Object>>) (TestUtils
+				.loadJSONFromClasspathFile("/StructuredContentPreprocessorFactory.json")).get("preprocessors");
+		PreprocessChain chain = StructuredContentPreprocessorFactory.createPreprocessChain(preprocessorConfig, clientMock);
+		Assert.assertEquals(2, chain.getPreprocessors().size());
+		Assert.assertEquals("Status Normalizer", chain.getPreprocessors().get(0).getName());
+		Assert.assertEquals("Issue type Normalizer", chain.getPreprocessors().get(1).getName());
+		Assert.assertEquals(0, chain.getTimeBudgetMillis());
+
+		// case - no configuration
+		chain = StructuredContentPreprocessorFactory.createPreprocessChain(null, clientMock);
+		Assert.assertTrue(chain.getPreprocessors().isEmpty());
+	}
+
 }
@@ -0,0 +1,23 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+/**
+ * Implementation of {@link StructuredContentPreprocessorProvider} registered over <code>META-INF/services</code> in
+ * test resources, for {@link java.util.ServiceLoader} discovery tests.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class StructuredContentPreprocessorProviderMock implements StructuredContentPreprocessorProvider {
+
+	public static final String ALIAS = "test_mock";
+
+	@Override
+	public void registerPreprocessors(StructuredContentPreprocessorRegistry registry) {
+		registry.register(ALIAS, StructuredContentPreprocessorMock.class);
+	}
+
+}
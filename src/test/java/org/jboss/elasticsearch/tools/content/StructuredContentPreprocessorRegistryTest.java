@@ -0,0 +1,110 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.jboss.elasticsearch.tools.content;
+
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link StructuredContentPreprocessorRegistry}.
+ * 
+ * @author Vlastimil Elias (velias at redhat dot com)
+ */
+public class StructuredContentPreprocessorRegistryTest {
+
+	@Test
+	public void getDefault() {
+		StructuredContentPreprocessorRegistry tested = StructuredContentPreprocessorRegistry.getDefault();
+		Assert.assertSame(tested, StructuredContentPreprocessorRegistry.getDefault());
+
+		Map<String, Class<? extends StructuredContentPreprocessor>> aliases = tested.getAliases();
+		// built in preprocessors
+		Assert.assertEquals(StripHtmlPreprocessor.class, aliases.get("strip_html"));
+		Assert.assertEquals(ESLookupValuePreprocessor.class, aliases.get("es_lookup"));
+		Assert.assertEquals(AddValuePreprocessor.class, aliases.get("add_value"));
+		Assert.assertEquals(ScriptingPreprocessor.class, aliases.get("scripting"));
+		// provider from test resources
+		Assert.assertEquals(StructuredContentPreprocessorMock.class, aliases.get(StructuredContentPreprocessorProviderMock.ALIAS));
+
+		try {
+			aliases.put("other", StructuredContentPreprocessorMock.class);
+			Assert.fail("UnsupportedOperationException expected");
+		} catch (UnsupportedOperationException e) {
+			// OK
+		}
+	}
+
+	@Test
+	public void newInstance() {
+		StructuredContentPreprocessorRegistry tested = new StructuredContentPreprocessorRegistry();
+		tested.register("mock", StructuredContentPreprocessorMock.class);
+
+		// case - alias
+		StructuredContentPreprocessor p1 = tested.newInstance("mock");
+		Assert.assertTrue(p1 instanceof StructuredContentPreprocessorMock);
+		StructuredContentPreprocessor p2 = tested.newInstance(" mock ");
+		Assert.assertTrue(p2 instanceof StructuredContentPreprocessorMock);
+		Assert.assertNotSame(p1, p2);
+
+		// case - class name, constructor is cached
+		Assert.assertTrue(tested.newInstance(AddValuePreprocessor.class.getName()) instanceof AddValuePreprocessor);
+		Assert.assertSame(tested.resolveConstructor(AddValuePreprocessor.class.getName()),
+				tested.resolveConstructor(AddValuePreprocessor.class.getName()));
+
+		// case - alias not registered in this registry is handled as class name
+		try {
+			tested.newInstance("strip_html");
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("Preprocessor class strip_html not found", e.getMessage());
+		}
+
+		// case - alias registered later replaces previous one
+		tested.register("mock", AddValuePreprocessor.class);
+		Assert.assertTrue(tested.newInstance("mock") instanceof AddValuePreprocessor);
+	}
+
+	@Test
+	public void newInstance_errors() {
+		StructuredContentPreprocessorRegistry tested = new StructuredContentPreprocessorRegistry();
+
+		try {
+			tested.newInstance("java.lang.String");
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("Preprocessor class java.lang.String must implement interface "
+					+ StructuredContentPreprocessor.class.getName(), e.getMessage());
+		}
+
+		try {
+			tested.newInstance(StructuredContentPreprocessorBase.class.getName());
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage().startsWith(
+					"Preprocessor class " + StructuredContentPreprocessorBase.class.getName() + " creation exception"));
+		}
+
+		try {
+			tested.register(PreprocessChainTest.SlowPreprocessorMock.class.getSimpleName(),
+					PreprocessChainTest.SlowPreprocessorMock.class);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("Preprocessor class " + PreprocessChainTest.SlowPreprocessorMock.class.getName()
+					+ " creation exception no-arg constructor not found", e.getMessage());
+		}
+
+		try {
+			tested.register(" ", StructuredContentPreprocessorMock.class);
+			Assert.fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("alias must be defined", e.getMessage());
+		}
+	}
+
+}
@@ -6,9 +6,12 @@
 package org.jboss.elasticsearch.tools.content;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.settings.SettingsException;
@@ -49,6 +52,127 @@ public class StructuredContentPreprocessorWithSourceBasesBaseTest {
 		settings.put(StructuredContentPreprocessorWithSourceBasesBase.CFG_source_bases, baseslist);
 		tested.init(settings);
 		Assert.assertEquals(baseslist, tested.getSourceBases());
+		Assert.assertEquals(0, tested.parallelThreshold);
+
+		settings.put(StructuredContentPreprocessorWithSourceBasesBase.CFG_source_bases_parallel_threshold, 500);
+		tested.init(settings);
+		Assert.assertEquals(500, tested.parallelThreshold);
+		settings.put(StructuredContentPreprocessorWithSourceBasesBase.CFG_source_bases_parallel_threshold, -1);
+		tested.init(settings);
+		Assert.assertEquals(0, tested.parallelThreshold);
+
+		settings.put(StructuredContentPreprocessorWithSourceBasesBase.CFG_source_bases_parallel_threshold, "bad");
+		try {
+			tested.init(settings);
+			Assert.fail("SettingsException expected");
+		} catch (SettingsException e) {
+			Assert.assertEquals(
+					"Non integer value in 'settings/source_bases_parallel_threshold' configuration for 'null' preprocessor",
+					e.getMessage());
+		}
+	}
+
+	@Test
+	public void preprocessData_bases_parallel() {
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put(StripHtmlPreprocessor.CFG_SOURCE_FIELD, "html");
+		settings.put(StripHtmlPreprocessor.CFG_TARGET_FIELD, "text");
+		settings.put(StructuredContentPreprocessorWithSourceBasesBase.CFG_source_bases, Arrays.asList("comments", "author"));
+		StripHtmlPreprocessor sequential = new StripHtmlPreprocessor();
+		sequential.init("strip", null, settings);
+		settings.put(StructuredContentPreprocessorWithSourceBasesBase.CFG_source_bases_parallel_threshold, 100);
+		StripHtmlPreprocessor tested = new StripHtmlPreprocessor();
+		tested.init("strip", null, settings);
+		Assert.assertEquals(100, tested.getParallelThreshold());
+
+		PreprocessChainContextImpl expectedContext = new PreprocessChainContextImpl();
+		Map<String, Object> expected = sequential.preprocessData(createDataWithComments(5000), expectedContext);
+		PreprocessChainContextImpl chainContext = new PreprocessChainContextImpl();
+		Map<String, Object> data = tested.preprocessData(createDataWithComments(5000), chainContext);
+		Assert.assertEquals(expected, data);
+		Assert.assertEquals("comment 4999", ((Map<?, ?>) ((List<?>) data.get("comments")).get(4999)).get("text"));
+		Assert.assertEquals(expectedContext.getWarnings().size(), chainContext.getWarnings().size());
+	}
+
+	@Test
+	public void preprocessData_bases_parallel_exception() {
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put(RequiredValidatorPreprocessor.CFG_FIELD, "html");
+		settings.put(StructuredContentPreprocessorWithSourceBasesBase.CFG_source_bases, Arrays.asList("comments"));
+		settings.put(StructuredContentPreprocessorWithSourceBasesBase.CFG_source_bases_parallel_threshold, 10);
+		Map<String, Object> data = createDataWithComments(1000);
+		((Map<?, ?>) ((List<?>) data.get("comments")).get(700)).remove("html");
+		final RequiredValidatorPreprocessor validator = new RequiredValidatorPreprocessor();
+		validator.init("validator", null, new HashMap<String, Object>(settings));
+		StructuredContentPreprocessorWithSourceBasesBase<Object> tested = new StructuredContentPreprocessorWithSourceBasesBase<Object>() {
+
+			@Override
+			protected void processOneSourceValue(Map<String, Object> data, Object context, String base,
+					PreprocessChainContext chainContext) {
+				validator.preprocessData(data, chainContext);
+			}
+
+			@Override
+			protected Object createContext(Map<String, Object> data) {
+				return null;
+			}
+		};
+		tested.init("tested", null, settings);
+		try {
+			tested.preprocessData(data, null);
+			Assert.fail("InvalidDataException expected");
+		} catch (InvalidDataException e) {
+			// OK
+		}
+	}
+
+	@Test
+	public void processInParallel_blocking() throws InterruptedException {
+		// more parts must block at once than pool parallelism, so blocked threads must be compensated
+		int parallelism = StructuredContentPreprocessorWithSourceBasesBase.getForkJoinPool().getParallelism();
+		List<Map<String, Object>> values = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < parallelism * 4; i++) {
+			values.add(new HashMap<String, Object>());
+		}
+		final CountDownLatch latch = new CountDownLatch(parallelism + 1);
+		StructuredContentPreprocessorWithSourceBasesBase.processInParallel(values,
+				new StructuredContentPreprocessorWithSourceBasesBase.SourceValuesProcessor() {
+					@Override
+					public void processValues(List<Map<String, Object>> values, int from, int to) {
+						latch.countDown();
+						try {
+							latch.await(10, TimeUnit.SECONDS);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						for (int i = from; i < to; i++) {
+							values.get(i).put("processed", Boolean.TRUE);
+						}
+					}
+				}, true);
+		Assert.assertEquals(0, latch.getCount());
+		for (Map<String, Object> value : values) {
+			Assert.assertEquals(Boolean.TRUE, value.get("processed"));
+		}
+
+		Assert.assertTrue(new ESLookupValuePreprocessor().isBlockingValueProcessing());
+		Assert.assertFalse(new StripHtmlPreprocessor().isBlockingValueProcessing());
+	}
+
+	protected static Map<String, Object> createDataWithComments(int count) {
+		Map<String, Object> data = new HashMap<String, Object>();
+		List<Object> comments = new ArrayList<Object>();
+		for (int i = 0; i < count; i++) {
+			Map<String, Object> comment = new HashMap<String, Object>();
+			comment.put("html", "<b>comment</b> " + i);
+			comments.add(comment);
+		}
+		comments.add("bad value");
+		data.put("comments", comments);
+		Map<String, Object> author = new HashMap<String, Object>();
+		author.put("html", "<p>Author</p>");
+		data.put("author", author);
+		return data;
 	}
 
 	@Test
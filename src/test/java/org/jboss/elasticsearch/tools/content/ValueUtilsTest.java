@@ -7,7 +7,9 @@ package org.jboss.elasticsearch.tools.content;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -144,6 +146,16 @@ public class ValueUtilsTest {
 				ValueUtils.processStringValuePatternReplacement("Ahoj {__original}, welcome {count} times.", data, null));
 	}
 
+	@Test
+	public void getPatternKeys() {
+		Assert.assertTrue(ValueUtils.getPatternKeys(null).isEmpty());
+		Assert.assertTrue(ValueUtils.getPatternKeys("").isEmpty());
+		Assert.assertTrue(ValueUtils.getPatternKeys("no keys").isEmpty());
+		Assert.assertTrue(ValueUtils.getPatternKeys("{} {__original} {not closed").isEmpty());
+		Assert.assertEquals(new LinkedHashSet<String>(Arrays.asList("user.name", "id")),
+				ValueUtils.getPatternKeys("User {user.name} ({id}) {__original} {id}"));
+	}
+
 	@Test
 	public void formatISODateTime() {
 		Assert.assertNull(ValueUtils.formatISODateTime(null));